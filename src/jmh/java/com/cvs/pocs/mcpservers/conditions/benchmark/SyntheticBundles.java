@@ -0,0 +1,30 @@
+package com.cvs.pocs.mcpservers.conditions.benchmark;
+
+import com.cvs.pocs.mcpservers.conditions.support.StubFhirServer;
+
+/**
+ * Builds searchset Bundles of the shape the FHIR server returns, with the
+ * same resource bodies the stub FHIR server serves, for benchmarks that need
+ * realistic input of a given size.
+ */
+public final class SyntheticBundles {
+
+    private SyntheticBundles() {
+    }
+
+    public static String searchset(String resourceType, int entries) {
+        StringBuilder sb = new StringBuilder(entries * 512 + 128)
+            .append("{\"resourceType\":\"Bundle\",\"type\":\"searchset\",\"total\":").append(entries)
+            .append(",\"link\":[{\"relation\":\"self\",\"url\":\"http://fhir.example/").append(resourceType).append("\"}]")
+            .append(",\"entry\":[");
+        for (int i = 0; i < entries; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"fullUrl\":\"http://fhir.example/").append(resourceType).append('/').append(i)
+                .append("\",\"resource\":").append(StubFhirServer.resource(resourceType, i))
+                .append(",\"search\":{\"mode\":\"match\"}}");
+        }
+        return sb.append("]}").toString();
+    }
+}
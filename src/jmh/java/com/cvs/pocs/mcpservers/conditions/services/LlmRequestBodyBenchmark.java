@@ -0,0 +1,72 @@
+package com.cvs.pocs.mcpservers.conditions.services;
+
+import com.cvs.pocs.mcpservers.conditions.benchmark.SyntheticBundles;
+import com.cvs.pocs.mcpservers.conditions.config.UpstreamHttpClients;
+import com.cvs.pocs.mcpservers.conditions.util.FhirParserUtil;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Observation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.core.env.StandardEnvironment;
+import org.springframework.web.reactive.function.client.WebClient;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of building the LLM request body for patient data assembled from 10,
+ * 1k and 10k Observations, with and without the JSON serialization that
+ * WebClient performs before sending it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class LlmRequestBodyBenchmark {
+
+    @Param({"10", "1000", "10000"})
+    public int entries;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private LlmService llmService;
+    private String patientData;
+
+    @Setup
+    public void setUp() {
+        PipelineMetrics metrics = new PipelineMetrics(new SimpleMeterRegistry());
+        llmService = new LlmService(WebClient.builder(), new UpstreamHttpClients(new StandardEnvironment(), metrics),
+            objectMapper, metrics, new LlmAdmission(false, 1, 0, 1, 1, Duration.ofSeconds(1), metrics),
+            "http://localhost");
+        Bundle bundle = FhirParserUtil.parseBundle(SyntheticBundles.searchset("Observation", entries));
+        StringBuilder sb = new StringBuilder("LABORATORY RESULTS (LAST 3 MONTHS):\n");
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            sb.append(FhirParserUtil.formatObservation((Observation) entry.getResource()));
+        }
+        patientData = sb.toString();
+    }
+
+    @Benchmark
+    public Map<String, Object> buildRequestBody() {
+        return llmService.buildRequestBody("Summarize the recent lab results", patientData);
+    }
+
+    @Benchmark
+    public byte[] buildAndSerializeRequestBody() throws JsonProcessingException {
+        return objectMapper.writeValueAsBytes(llmService.buildRequestBody("Summarize the recent lab results", patientData));
+    }
+}
@@ -0,0 +1,46 @@
+package com.cvs.pocs.mcpservers.conditions.services;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of turning a clinician query into a fetch plan: one pass of the
+ * compiled keyword matcher, and a repeat query answered from the plan cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class QueryRoutingBenchmark {
+
+    @Param({
+        "What are the active meds?",
+        "Show labs, meds, conditions and allergies for the last 6 months",
+        "Has the patient's blood pressure been trending up? Please summarize vital signs and any recent test results from the past 3 weeks along with the current problem list."
+    })
+    public String query;
+
+    private final KeywordQueryPlanner planner = new KeywordQueryPlanner();
+
+    @Benchmark
+    public FetchPlan compile() {
+        return planner.compile(query);
+    }
+
+    @Benchmark
+    public FetchPlan cachedPlan() {
+        return planner.plan(query);
+    }
+}
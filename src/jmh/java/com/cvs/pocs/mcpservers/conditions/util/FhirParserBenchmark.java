@@ -0,0 +1,119 @@
+package com.cvs.pocs.mcpservers.conditions.util;
+
+import com.cvs.pocs.mcpservers.conditions.benchmark.SyntheticBundles;
+import org.hl7.fhir.r4.model.AllergyIntolerance;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.MedicationRequest;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Resource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import reactor.core.publisher.Flux;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parse and format cost of FHIR search results: whole-Bundle HAPI parsing,
+ * the streaming entry reader, and each {@code format*} method over Bundles of
+ * 10, 1k and 10k entries.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class FhirParserBenchmark {
+
+    private static final int CHUNK_SIZE = 8192;
+
+    @Param({"10", "1000", "10000"})
+    public int entries;
+
+    private String observationBundleJson;
+    private byte[] observationBundleBytes;
+    private List<Observation> observations;
+    private List<Condition> conditions;
+    private List<MedicationRequest> medications;
+    private List<AllergyIntolerance> allergies;
+
+    @Setup
+    public void setUp() {
+        observationBundleJson = SyntheticBundles.searchset("Observation", entries);
+        observationBundleBytes = observationBundleJson.getBytes(StandardCharsets.UTF_8);
+        observations = resources(FhirParserUtil.parseBundle(observationBundleJson), Observation.class);
+        conditions = resources(FhirParserUtil.parseBundle(SyntheticBundles.searchset("Condition", entries)), Condition.class);
+        medications = resources(FhirParserUtil.parseBundle(SyntheticBundles.searchset("MedicationRequest", entries)), MedicationRequest.class);
+        allergies = resources(FhirParserUtil.parseBundle(SyntheticBundles.searchset("AllergyIntolerance", entries)), AllergyIntolerance.class);
+    }
+
+    @Benchmark
+    public Bundle parseBundle() {
+        return FhirParserUtil.parseBundle(observationBundleJson);
+    }
+
+    @Benchmark
+    public Long streamBundle() {
+        Flux<DataBuffer> body = Flux.range(0, (observationBundleBytes.length + CHUNK_SIZE - 1) / CHUNK_SIZE)
+            .map(chunk -> {
+                int offset = chunk * CHUNK_SIZE;
+                int length = Math.min(CHUNK_SIZE, observationBundleBytes.length - offset);
+                return DefaultDataBufferFactory.sharedInstance.wrap(
+                    ByteBuffer.wrap(observationBundleBytes, offset, length).slice());
+            });
+        return FhirBundleStreamReader.readResources(body).count().block();
+    }
+
+    @Benchmark
+    public void formatObservation(Blackhole blackhole) {
+        for (Observation observation : observations) {
+            blackhole.consume(FhirParserUtil.formatObservation(observation));
+        }
+    }
+
+    @Benchmark
+    public void formatCondition(Blackhole blackhole) {
+        for (Condition condition : conditions) {
+            blackhole.consume(FhirParserUtil.formatCondition(condition));
+        }
+    }
+
+    @Benchmark
+    public void formatMedication(Blackhole blackhole) {
+        for (MedicationRequest medication : medications) {
+            blackhole.consume(FhirParserUtil.formatMedication(medication));
+        }
+    }
+
+    @Benchmark
+    public void formatAllergy(Blackhole blackhole) {
+        for (AllergyIntolerance allergy : allergies) {
+            blackhole.consume(FhirParserUtil.formatAllergy(allergy));
+        }
+    }
+
+    private static <T extends Resource> List<T> resources(Bundle bundle, Class<T> type) {
+        List<T> result = new ArrayList<>(bundle.getEntry().size());
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            result.add(type.cast(entry.getResource()));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,72 @@
+package com.cvs.pocs.mcpservers.conditions.util;
+
+import com.cvs.pocs.mcpservers.conditions.support.StubFhirServer;
+import org.hl7.fhir.r4.model.Observation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time and allocation per rendered Observation: the original
+ * {@code String.format}/{@code SimpleDateFormat} formatter, the String-returning
+ * {@link FhirParserUtil#formatObservation}, and {@link FhirTextRenderer}
+ * appending into one reused section buffer as {@code FhirService} does. Run
+ * with {@code -prof gc} and compare {@code gc.alloc.rate.norm}:
+ *
+ * <pre>mvn -Pjmh verify -Djmh.args="ObservationRender -prof gc"</pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@OperationsPerInvocation(ObservationRenderBenchmark.OBSERVATIONS)
+public class ObservationRenderBenchmark {
+
+    static final int OBSERVATIONS = 1000;
+
+    private final Observation[] observations = new Observation[OBSERVATIONS];
+    private final StringBuilder section = new StringBuilder(OBSERVATIONS * 128);
+
+    @Setup
+    public void setUp() {
+        for (int i = 0; i < OBSERVATIONS; i++) {
+            observations[i] = FhirParserUtil.parseObservation(StubFhirServer.resource("Observation", i));
+        }
+    }
+
+    @Benchmark
+    public void legacyFormat(Blackhole blackhole) {
+        for (Observation observation : observations) {
+            blackhole.consume(LegacyFhirFormatter.formatObservation(observation));
+        }
+    }
+
+    @Benchmark
+    public void formatToString(Blackhole blackhole) {
+        for (Observation observation : observations) {
+            blackhole.consume(FhirParserUtil.formatObservation(observation));
+        }
+    }
+
+    @Benchmark
+    public int appendToSection() {
+        section.setLength(0);
+        for (Observation observation : observations) {
+            FhirTextRenderer.appendObservation(section, observation);
+        }
+        return section.length();
+    }
+}
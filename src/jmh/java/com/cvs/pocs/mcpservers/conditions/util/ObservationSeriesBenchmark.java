@@ -0,0 +1,81 @@
+package com.cvs.pocs.mcpservers.conditions.util;
+
+import com.cvs.pocs.mcpservers.conditions.support.StubFhirServer;
+import org.hl7.fhir.r4.model.Observation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time per Observation to render a date window of a patient's labs: from the
+ * HAPI objects, checking each {@code effectiveDateTime} and appending with
+ * {@link FhirTextRenderer}, and from an {@link ObservationSeries} as
+ * {@code FhirService} does for windows the series store covers. Also times
+ * the per-code trends over the same window.
+ *
+ * <pre>mvn -Pjmh verify -Djmh.args="ObservationSeries -prof gc"</pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@OperationsPerInvocation(ObservationSeriesBenchmark.OBSERVATIONS)
+public class ObservationSeriesBenchmark {
+
+    static final int OBSERVATIONS = 1000;
+
+    private static final LocalDate FROM = LocalDate.parse("2024-05-01");
+
+    private final Observation[] observations = new Observation[OBSERVATIONS];
+    private final StringBuilder section = new StringBuilder(OBSERVATIONS * 128);
+    private final Date from = Date.from(FROM.atStartOfDay(ZoneId.systemDefault()).toInstant());
+    private ObservationSeries series;
+
+    @Setup
+    public void setUp() {
+        ObservationSeries.Builder builder = ObservationSeries.builder();
+        for (int i = 0; i < OBSERVATIONS; i++) {
+            observations[i] = FhirParserUtil.parseObservation(StubFhirServer.resource("Observation", i));
+            builder.add(observations[i]);
+        }
+        series = builder.build();
+    }
+
+    @Benchmark
+    public int renderWindowFromHapi() {
+        section.setLength(0);
+        for (Observation observation : observations) {
+            if (observation.hasEffectiveDateTimeType() && !observation.getEffectiveDateTimeType().getValue().before(from)) {
+                FhirTextRenderer.appendObservation(section, observation);
+            }
+        }
+        return section.length();
+    }
+
+    @Benchmark
+    public int renderWindowFromSeries() {
+        section.setLength(0);
+        series.render(section, FROM.toEpochDay(), Integer.MAX_VALUE);
+        return section.length();
+    }
+
+    @Benchmark
+    public Object trendsFromSeries() {
+        return series.trends(FROM.toEpochDay());
+    }
+}
@@ -0,0 +1,58 @@
+package com.cvs.pocs.mcpservers.conditions.util;
+
+import com.cvs.pocs.mcpservers.conditions.benchmark.SyntheticBundles;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of fitting patient data with 10, 1k and 10k lab results into the
+ * default 6000-token prompt budget. The 10-entry input fits as is, the larger
+ * ones have their lab section cut down by priority.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class PromptAssemblerBenchmark {
+
+    @Param({"10", "1000", "10000"})
+    public int entries;
+
+    private String patientData;
+
+    @Setup
+    public void setUp() {
+        StringBuilder sb = new StringBuilder("PATIENT DEMOGRAPHICS:\n");
+        Patient patient = new Patient();
+        patient.addName().setFamily("Doe").addGiven("Jane");
+        FhirTextRenderer.appendPatient(sb, patient);
+        sb.append("LABORATORY RESULTS (LAST 3 MONTHS):\n");
+        Bundle bundle = FhirParserUtil.parseBundle(SyntheticBundles.searchset("Observation", entries));
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            FhirTextRenderer.appendObservation(sb, (Observation) entry.getResource());
+        }
+        sb.append("CONDITIONS:\nEssential hypertension (Confirmed) - Onset: 2019-03-01\n");
+        patientData = sb.toString();
+    }
+
+    @Benchmark
+    public PromptAssembler.Assembly fit() {
+        return PromptAssembler.fit(patientData, 6000);
+    }
+}
@@ -0,0 +1,165 @@
+package com.cvs.pocs.mcpservers.conditions.config;
+
+import com.cvs.pocs.mcpservers.conditions.services.PipelineMetrics;
+import com.cvs.pocs.mcpservers.conditions.util.CircuitBreaker;
+import com.cvs.pocs.mcpservers.conditions.util.Hedger;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.HttpStatusCode;
+import org.springframework.web.reactive.function.client.ClientRequest;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.ExchangeFilterFunction;
+import org.springframework.web.reactive.function.client.ExchangeFunction;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Guards every call a WebClient makes to one upstream:
+ * <ul>
+ *   <li>a bulkhead refuses the call if {@code maxConcurrentCalls} are already
+ *       in flight, instead of queueing it behind a slow upstream;</li>
+ *   <li>a {@link CircuitBreaker} refuses it while the upstream is failing, so
+ *       callers reach their fallback at once;</li>
+ *   <li>each attempt must return its response headers within {@code timeout};</li>
+ *   <li>GETs are hedged by the optional {@link Hedger}.</li>
+ * </ul>
+ * Refused calls fail with {@link CallRejectedException}. Errors, timeouts and
+ * 5xx or 429 answers count as failures for the breaker. The bulkhead slot is
+ * held until the response body has been read, so it bounds open calls, not
+ * just the wait for headers.
+ */
+public class ResilienceFilter implements ExchangeFilterFunction {
+
+    private final String upstream;
+    private final Duration timeout;
+    private final int maxConcurrentCalls;
+    private final Semaphore bulkhead;
+    private final CircuitBreaker breaker;
+    private final Hedger hedger;
+    private final PipelineMetrics metrics;
+
+    /**
+     * @param hedger hedges GETs, or {@code null} to send each call once
+     */
+    public ResilienceFilter(String upstream, Duration timeout, int maxConcurrentCalls, CircuitBreaker breaker,
+                            Hedger hedger, PipelineMetrics metrics) {
+        this.upstream = upstream;
+        this.timeout = timeout;
+        this.maxConcurrentCalls = maxConcurrentCalls;
+        this.bulkhead = new Semaphore(maxConcurrentCalls);
+        this.breaker = breaker;
+        this.hedger = hedger;
+        this.metrics = metrics;
+        metrics.registerResilience(upstream, breaker, bulkhead::availablePermits, hedger);
+    }
+
+    @Override
+    public Mono<ClientResponse> filter(ClientRequest request, ExchangeFunction next) {
+        return Mono.defer(() -> {
+            if (!bulkhead.tryAcquire()) {
+                metrics.recordUpstreamRejected(upstream, "bulkhead");
+                return Mono.error(new CallRejectedException(
+                    upstream + " bulkhead is full: " + maxConcurrentCalls + " calls in flight"));
+            }
+            long permit = breaker.tryAcquire();
+            if (permit < 0) {
+                bulkhead.release();
+                metrics.recordUpstreamRejected(upstream, "circuit-open");
+                return Mono.error(new CallRejectedException(upstream + " circuit breaker is open"));
+            }
+            Call call = new Call(permit);
+            Mono<ClientResponse> exchange = hedger != null && request.method() == HttpMethod.GET
+                ? hedger.execute(() -> attempt(request, next), response -> response.releaseBody().subscribe())
+                : attempt(request, next);
+            return exchange
+                .map(response -> {
+                    if (isFailure(response.statusCode())) {
+                        call.outcome(false);
+                    }
+                    return response.mutate()
+                        // Settled before the body's end reaches the caller, not after as with doFinally
+                        .body(body -> body
+                            .doOnComplete(() -> call.finish(true))
+                            .doOnError(e -> call.finish(false))
+                            .doOnCancel(() -> call.finish(true)))
+                        .build();
+                })
+                .doOnError(e -> call.finish(false))
+                .doOnCancel(call::cancel);
+        });
+    }
+
+    public CircuitBreaker getBreaker() {
+        return breaker;
+    }
+
+    public Hedger getHedger() {
+        return hedger;
+    }
+
+    public int getAvailableCalls() {
+        return bulkhead.availablePermits();
+    }
+
+    private Mono<ClientResponse> attempt(ClientRequest request, ExchangeFunction next) {
+        return next.exchange(request).timeout(timeout);
+    }
+
+    private static boolean isFailure(HttpStatusCode status) {
+        return status.is5xxServerError() || status.value() == HttpStatus.TOO_MANY_REQUESTS.value();
+    }
+
+    /**
+     * One call's breaker permit and bulkhead slot, each settled exactly once.
+     */
+    private class Call {
+
+        private final long permit;
+        private final AtomicBoolean outcomeRecorded = new AtomicBoolean();
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        Call(long permit) {
+            this.permit = permit;
+        }
+
+        void outcome(boolean success) {
+            if (outcomeRecorded.compareAndSet(false, true)) {
+                if (success) {
+                    breaker.onSuccess(permit);
+                } else {
+                    breaker.onFailure(permit);
+                }
+            }
+        }
+
+        void finish(boolean success) {
+            outcome(success);
+            if (released.compareAndSet(false, true)) {
+                bulkhead.release();
+            }
+        }
+
+        void cancel() {
+            if (outcomeRecorded.compareAndSet(false, true)) {
+                breaker.release(permit);
+            }
+            if (released.compareAndSet(false, true)) {
+                bulkhead.release();
+            }
+        }
+    }
+
+    /**
+     * The call was refused without reaching the upstream: its bulkhead is full
+     * or its circuit breaker is open.
+     */
+    public static class CallRejectedException extends RuntimeException {
+
+        public CallRejectedException(String message) {
+            super(message);
+        }
+    }
+}
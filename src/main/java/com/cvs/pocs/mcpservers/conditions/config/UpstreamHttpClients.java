@@ -0,0 +1,215 @@
+package com.cvs.pocs.mcpservers.conditions.config;
+
+import com.cvs.pocs.mcpservers.conditions.services.PipelineMetrics;
+import com.cvs.pocs.mcpservers.conditions.util.CircuitBreaker;
+import com.cvs.pocs.mcpservers.conditions.util.Hedger;
+import io.netty.channel.ChannelOption;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.env.Environment;
+import org.springframework.http.client.reactive.ClientHttpConnector;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.stereotype.Component;
+import reactor.netty.http.HttpProtocol;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * One Reactor Netty connection pool per upstream, so a burst of slow LLM calls
+ * cannot take the connections the FHIR searches need, and the other way round.
+ * Each upstream is tuned under {@code <upstream>.http.*}, e.g.
+ * {@code fhir.http.max-connections}:
+ * <ul>
+ *   <li>{@code max-connections}, {@code pending-acquire-max-count} and
+ *       {@code pending-acquire-timeout} bound the pool and the queue of
+ *       requests waiting for a connection;</li>
+ *   <li>{@code max-idle-time}, {@code max-life-time} and {@code evict-interval}
+ *       close connections before the server or a load balancer drops them;</li>
+ *   <li>{@code connect-timeout} and {@code response-timeout} (the longest gap
+ *       between reads of a response);</li>
+ *   <li>{@code http2} offers HTTP/2 to https upstreams through ALPN, falling
+ *       back to HTTP/1.1, and {@code compress} asks for gzip responses.</li>
+ * </ul>
+ * Pool gauges are published as {@value PipelineMetrics#HTTP_POOL}.* tagged
+ * with the upstream. Calls are guarded per upstream by a {@link ResilienceFilter},
+ * tuned under {@code <upstream>.resilience.*}.
+ * <p>
+ * A tenant of an upstream, e.g. one of several EHRs, can have a pool and
+ * guards of its own from {@link #tenantClient}, tuned under
+ * {@code <upstream>.tenants.<tenant>.*} and falling back to the upstream's
+ * settings; its metrics are tagged {@code <upstream>:<tenant>}.
+ */
+@Component
+public class UpstreamHttpClients {
+
+    private static final Logger logger = LoggerFactory.getLogger(UpstreamHttpClients.class);
+
+    // Recent latencies the hedge delay is taken from
+    private static final int HEDGE_WINDOW = 512;
+
+    private final Environment environment;
+    private final PipelineMetrics metrics;
+    private final Map<String, ConnectionProvider> providers = new ConcurrentHashMap<>();
+    private final Map<String, ResilienceFilter> resilienceFilters = new ConcurrentHashMap<>();
+
+    public UpstreamHttpClients(Environment environment, PipelineMetrics metrics) {
+        this.environment = environment;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Connector for the upstream's WebClient, backed by its own connection
+     * pool; {@code baseUrl} decides whether HTTP/2 can be negotiated.
+     */
+    public ClientHttpConnector connector(String upstream, String baseUrl) {
+        ConnectionProvider provider = providers.computeIfAbsent(upstream,
+            name -> connectionProvider(name, List.of(upstream)));
+        return connector(provider, List.of(upstream), baseUrl);
+    }
+
+    /**
+     * The upstream's timeout, bulkhead, circuit breaker and, with
+     * {@code <upstream>.resilience.hedge.enabled}, GET hedging; see
+     * {@link ResilienceFilter}. Every WebClient of an upstream shares one.
+     */
+    public ResilienceFilter resilience(String upstream) {
+        return resilienceFilters.computeIfAbsent(upstream, name -> resilienceFilter(name, List.of(upstream)));
+    }
+
+    /**
+     * A connection pool, connector and {@link ResilienceFilter} for one tenant
+     * of the upstream. Settings are read from {@code <upstream>.tenants.<tenant>.*}
+     * first, then {@code <upstream>.*}. Unlike the upstream's own pool it is
+     * not kept here: the caller disposes of it once the tenant is no longer
+     * served.
+     */
+    public TenantClient tenantClient(String upstream, String tenant, String baseUrl) {
+        String name = upstream + ":" + tenant;
+        List<String> prefixes = List.of(upstream + ".tenants." + tenant, upstream);
+        ConnectionProvider provider = connectionProvider(name, prefixes);
+        return new TenantClient(name, connector(provider, prefixes, baseUrl), resilienceFilter(name, prefixes),
+            provider);
+    }
+
+    @PreDestroy
+    public void dispose() {
+        providers.values().forEach(ConnectionProvider::dispose);
+    }
+
+    private ClientHttpConnector connector(ConnectionProvider provider, List<String> prefixes, String baseUrl) {
+        HttpClient httpClient = HttpClient.create(provider)
+            .option(ChannelOption.CONNECT_TIMEOUT_MILLIS,
+                (int) property(prefixes, "http.connect-timeout", Duration.class, Duration.ofSeconds(5)).toMillis())
+            .responseTimeout(property(prefixes, "http.response-timeout", Duration.class, Duration.ofSeconds(60)))
+            .compress(property(prefixes, "http.compress", Boolean.class, false));
+        if (property(prefixes, "http.http2", Boolean.class, false)) {
+            if (baseUrl.startsWith("https:")) {
+                httpClient = httpClient.protocol(HttpProtocol.H2, HttpProtocol.HTTP11);
+            } else {
+                logger.warn("{}.http.http2 is set, but HTTP/2 is only negotiated over https; using HTTP/1.1 for {}",
+                    prefixes.get(0), baseUrl);
+            }
+        }
+        return new ReactorClientHttpConnector(httpClient);
+    }
+
+    private ConnectionProvider connectionProvider(String upstream, List<String> prefixes) {
+        int maxConnections = property(prefixes, "http.max-connections", Integer.class, 50);
+        ConnectionProvider provider = ConnectionProvider.builder(upstream)
+            .maxConnections(maxConnections)
+            .pendingAcquireMaxCount(property(prefixes, "http.pending-acquire-max-count", Integer.class, 500))
+            .pendingAcquireTimeout(property(prefixes, "http.pending-acquire-timeout", Duration.class, Duration.ofSeconds(10)))
+            .maxIdleTime(property(prefixes, "http.max-idle-time", Duration.class, Duration.ofSeconds(30)))
+            .maxLifeTime(property(prefixes, "http.max-life-time", Duration.class, Duration.ofMinutes(5)))
+            .evictInBackground(property(prefixes, "http.evict-interval", Duration.class, Duration.ofSeconds(30)))
+            .metrics(true, () -> metrics.connectionPoolRegistrar(upstream))
+            .build();
+        logger.info("Created {} connection pool with up to {} connections per host", upstream, maxConnections);
+        return provider;
+    }
+
+    private ResilienceFilter resilienceFilter(String upstream, List<String> prefixes) {
+        CircuitBreaker breaker = new CircuitBreaker(upstream,
+            property(prefixes, "resilience.breaker.failure-rate-threshold", Integer.class, 50),
+            property(prefixes, "resilience.breaker.minimum-calls", Integer.class, 20),
+            property(prefixes, "resilience.breaker.window-size", Integer.class, 100),
+            property(prefixes, "resilience.breaker.open-duration", Duration.class, Duration.ofSeconds(30)),
+            property(prefixes, "resilience.breaker.half-open-calls", Integer.class, 3));
+        Hedger hedger = !property(prefixes, "resilience.hedge.enabled", Boolean.class, false) ? null
+            : new Hedger(property(prefixes, "resilience.hedge.percentile", Double.class, 0.95),
+                property(prefixes, "resilience.hedge.min-delay", Duration.class, Duration.ofMillis(50)),
+                HEDGE_WINDOW,
+                property(prefixes, "resilience.hedge.min-samples", Integer.class, 50));
+        return new ResilienceFilter(upstream,
+            property(prefixes, "resilience.timeout", Duration.class, Duration.ofSeconds(30)),
+            property(prefixes, "resilience.max-concurrent-calls", Integer.class, 100),
+            breaker, hedger, metrics);
+    }
+
+    // The first of the prefixes that sets the property wins
+    private <T> T property(List<String> prefixes, String name, Class<T> type, T defaultValue) {
+        for (String prefix : prefixes) {
+            T value = environment.getProperty(prefix + "." + name, type);
+            if (value != null) {
+                return value;
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * One tenant's connector and guards over a pool of its own;
+     * {@link #removeMetrics} drops the tenant's metrics and {@link #dispose}
+     * closes the pool.
+     */
+    public final class TenantClient {
+
+        private final String name;
+        private final ClientHttpConnector connector;
+        private final ResilienceFilter resilience;
+        private final ConnectionProvider provider;
+
+        private TenantClient(String name, ClientHttpConnector connector, ResilienceFilter resilience,
+                             ConnectionProvider provider) {
+            this.name = name;
+            this.connector = connector;
+            this.resilience = resilience;
+            this.provider = provider;
+        }
+
+        public ClientHttpConnector connector() {
+            return connector;
+        }
+
+        public ResilienceFilter resilience() {
+            return resilience;
+        }
+
+        /**
+         * Stops publishing the tenant's metrics, so a client created again for
+         * the tenant registers its own.
+         */
+        public void removeMetrics() {
+            metrics.removeUpstream(name);
+        }
+
+        /**
+         * Closes the pool. Calls still in flight finish on their connections;
+         * a call made after this would quietly open a new pool that is never
+         * closed, so only dispose once nothing uses the client.
+         */
+        public void dispose() {
+            provider.disposeLater().subscribe(null, e -> logger.warn("Could not close {} pool: {}", name, e.getMessage()));
+        }
+
+        public boolean isDisposed() {
+            return provider.isDisposed();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.cvs.pocs.mcpservers.conditions.controllers;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.Map;
+
+import com.cvs.pocs.mcpservers.conditions.services.BulkExportService;
+
+import reactor.core.publisher.Mono;
+
+/**
+ * Starts and tracks FHIR Bulk Data {@code $export} jobs that load the local
+ * patient store.
+ */
+@RestController
+@RequestMapping("/api/v1/bulk-export")
+public class BulkExportController {
+
+    private static final Logger logger = LoggerFactory.getLogger(BulkExportController.class);
+
+    @Autowired
+    private BulkExportService bulkExportService;
+
+    /**
+     * Kicks off an export of every patient, or of one Group, and returns the
+     * job ID to poll. Ingestion continues in the background.
+     */
+    @PostMapping
+    public Mono<ResponseEntity<Map<String, Object>>> startExport(@RequestParam(required = false) String groupId) {
+        logger.info("Starting bulk export{}", groupId == null ? "" : " for group " + groupId);
+        return bulkExportService.startExport(groupId)
+            .map(jobId -> ResponseEntity.status(HttpStatus.ACCEPTED)
+                .body(Map.<String, Object>of("jobId", jobId, "state", "EXPORTING")))
+            .onErrorResume(e -> {
+                logger.error("Error starting bulk export", e);
+                return Mono.just(ResponseEntity.status(HttpStatus.BAD_GATEWAY)
+                    .body(Map.of("error", "The FHIR server did not accept the export request.")));
+            });
+    }
+
+    @GetMapping("/{jobId}")
+    public ResponseEntity<Map<String, Object>> getStatus(@PathVariable String jobId) {
+        Map<String, Object> status = bulkExportService.getStatus(jobId);
+        return status == null ? ResponseEntity.notFound().build() : ResponseEntity.ok(status);
+    }
+
+    @PostMapping("/{jobId}/resume")
+    public ResponseEntity<Map<String, Object>> resume(@PathVariable String jobId) {
+        logger.info("Resuming bulk export job {}", jobId);
+        try {
+            bulkExportService.resume(jobId);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.status(HttpStatus.ACCEPTED).body(bulkExportService.getStatus(jobId));
+    }
+}
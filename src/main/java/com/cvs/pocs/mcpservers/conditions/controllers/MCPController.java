@@ -3,13 +3,28 @@ package com.cvs.pocs.mcpservers.conditions.controllers;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.codec.ServerSentEvent;
 import org.springframework.web.bind.annotation.*;
 
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 import com.cvs.pocs.mcpservers.conditions.model.ChatRequest;
 import com.cvs.pocs.mcpservers.conditions.model.ChatResponse;
 import com.cvs.pocs.mcpservers.conditions.services.FhirService;
+import com.cvs.pocs.mcpservers.conditions.services.FhirTenantRegistry;
+import com.cvs.pocs.mcpservers.conditions.services.LlmAdmission;
 import com.cvs.pocs.mcpservers.conditions.services.LlmService;
+import com.cvs.pocs.mcpservers.conditions.services.PrewarmService;
+import com.cvs.pocs.mcpservers.conditions.util.ObservationSeries;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
 @RestController
 @RequestMapping("/api/v1")
@@ -17,39 +32,212 @@ public class MCPController {
 
     private static final Logger logger = LoggerFactory.getLogger(MCPController.class);
 
+    // Longest window /patients/{id}/observations/trends searches, in months
+    static final int MAX_TREND_MONTHS = 120;
+
     @Autowired
     private FhirService fhirService;
 
     @Autowired
     private LlmService llmService;
 
+    @Autowired
+    private PrewarmService prewarmService;
+
+    @Autowired
+    private FhirTenantRegistry tenants;
+
+    @Value("${mcp.chat.reactive-mode:true}")
+    private boolean reactiveMode;
+
+    /**
+     * In reactive mode the servlet thread is released as soon as the request has
+     * been dispatched, and the FHIR and LLM calls run on the WebClient event
+     * loops. With {@code mcp.chat.reactive-mode=false} the pipeline is run to
+     * completion on the servlet thread, as before. An LLM call turned away by
+     * admission control is answered with 429, a request for a FHIR tenant or
+     * server this instance does not serve with 400.
+     */
     @PostMapping("/chat")
-    public ResponseEntity<ChatResponse> processChat(@RequestBody ChatRequest chatRequest) {
+    public Mono<ResponseEntity<ChatResponse>> processChat(@RequestBody ChatRequest chatRequest) {
         logger.info("Received chat request for patient ID: {}", chatRequest.getPatientId());
-		//String fhirServerUrl = chatRequest.getFhirServerUrl();
-           // String fhirAccessToken = (String) chatRequest.get("accessToken");
+        FhirTenantRegistry.Tenant tenant;
+        try {
+            tenant = tenants.resolve(chatRequest.getTenantId(), chatRequest.getFhirServerUrl());
+        } catch (FhirTenantRegistry.UnknownTenantException e) {
+            logger.warn("Chat request rejected: {}", e.getMessage());
+            return Mono.just(ResponseEntity.badRequest().body(new ChatResponse(e.getMessage())));
+        }
+        if (tenant.isDefault()) {
+            prewarmService.recordChat(chatRequest.getPatientId(), chatRequest.getQuery());
+        }
 
-        
-       try {
+        Mono<ResponseEntity<ChatResponse>> pipeline =
             // Step 1: Extract relevant patient data based on the query
-            String patientData = fhirService.getRelevantPatientData(
+            fhirService.getRelevantPatientDataAsync(
+                tenant,
+                chatRequest.getAccessToken(),
                 chatRequest.getPatientId(), 
                 chatRequest.getQuery()
-            );
-            System.out.println("patientData: " + patientData);
-            // Step 2: Process the query with the LLM using patient data
-             String llmResponse = llmService.processQuery(chatRequest.getQuery(), patientData);
-            
-            // Step 3: Return the response
-            ChatResponse response = new ChatResponse(llmResponse);
-            return ResponseEntity.ok(response);
-            
-        } catch (Exception e) {
-            logger.error("Error processing chat request", e);
-            return ResponseEntity.internalServerError().body(
-                new ChatResponse("Sorry, I encountered an error while processing your request.")
-            );
+            )
+            .doOnNext(patientData -> logger.debug("patientData: {}", patientData))
+            // Step 2: Fit the patient data into the prompt token budget
+            .map(patientData -> llmService.fitPatientData(chatRequest.getQuery(), patientData))
+            // Step 3: Process the query with the LLM using patient data
+            .flatMap(assembly -> llmService.processQueryAsync(
+                tenant.qualify(chatRequest.getPatientId(), chatRequest.getAccessToken()),
+                chatRequest.getUserId(),
+                priority(chatRequest),
+                chatRequest.getQuery(),
+                assembly.patientData(),
+                !chatRequest.isBypassCache()
+            )
+            // Step 4: Return the response, noting any entries left out of the prompt
+            .map(llmResponse -> {
+                ChatResponse response = new ChatResponse(llmResponse);
+                response.setOmittedEntries(assembly.omitted());
+                return ResponseEntity.ok(response);
+            }))
+            .onErrorResume(LlmAdmission.AdmissionRejectedException.class, e -> {
+                logger.warn("Chat request rejected: {}", e.getMessage());
+                return Mono.just(ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS).body(
+                    new ChatResponse("Too many requests are waiting for the assistant; please try again shortly.")
+                ));
+            })
+            .onErrorResume(e -> {
+                logger.error("Error processing chat request", e);
+                return Mono.just(ResponseEntity.internalServerError().body(
+                    new ChatResponse("Sorry, I encountered an error while processing your request.")
+                ));
+            });
+
+        return reactiveMode ? pipeline : Mono.justOrEmpty(pipeline.block());
+    }
+    
+    /**
+     * Streams the LLM answer as Server-Sent Events: one {@code token} event per
+     * completion chunk, then a {@code done} event. Patient data is gathered
+     * before the first token, exactly as for {@link #processChat}. If entries
+     * had to be left out of the prompt, an {@code omitted} event listing them
+     * per section comes first. An LLM call turned away by admission control
+     * ends the stream with a {@code rejected} event; an unknown FHIR tenant or
+     * server is answered with a single {@code error} event.
+     */
+    @PostMapping(path = "/chat/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public Flux<ServerSentEvent<String>> streamChat(@RequestBody ChatRequest chatRequest) {
+        logger.info("Received streaming chat request for patient ID: {}", chatRequest.getPatientId());
+        FhirTenantRegistry.Tenant tenant;
+        try {
+            tenant = tenants.resolve(chatRequest.getTenantId(), chatRequest.getFhirServerUrl());
+        } catch (FhirTenantRegistry.UnknownTenantException e) {
+            logger.warn("Streaming chat request rejected: {}", e.getMessage());
+            return Flux.just(ServerSentEvent.builder(e.getMessage()).event("error").build());
+        }
+        if (tenant.isDefault()) {
+            prewarmService.recordChat(chatRequest.getPatientId(), chatRequest.getQuery());
         }
+
+        return fhirService.getRelevantPatientDataAsync(
+                tenant,
+                chatRequest.getAccessToken(),
+                chatRequest.getPatientId(),
+                chatRequest.getQuery())
+            .map(patientData -> llmService.fitPatientData(chatRequest.getQuery(), patientData))
+            .flatMapMany(assembly -> {
+                Flux<ServerSentEvent<String>> tokens = llmService.streamQuery(chatRequest.getUserId(), priority(chatRequest),
+                        chatRequest.getQuery(), assembly.patientData())
+                    .map(token -> ServerSentEvent.builder(token).event("token").build());
+                if (!assembly.truncated()) {
+                    return tokens;
+                }
+                ServerSentEvent<String> omitted = ServerSentEvent.builder(omittedSummary(assembly.omitted()))
+                    .event("omitted")
+                    .build();
+                return Flux.concat(Mono.just(omitted), tokens);
+            })
+            .concatWith(Mono.just(ServerSentEvent.builder("").event("done").build()))
+            .onErrorResume(LlmAdmission.AdmissionRejectedException.class, e -> {
+                logger.warn("Streaming chat request rejected: {}", e.getMessage());
+                return Mono.just(ServerSentEvent
+                    .builder("Too many requests are waiting for the assistant; please try again shortly.")
+                    .event("rejected")
+                    .build());
+            })
+            .onErrorResume(e -> {
+                logger.error("Error processing streaming chat request", e);
+                return Mono.just(ServerSentEvent
+                    .builder("Sorry, I encountered an error while processing your request.")
+                    .event("error")
+                    .build());
+            });
+    }
+
+    private static LlmAdmission.Priority priority(ChatRequest chatRequest) {
+        return chatRequest.isUrgent() ? LlmAdmission.Priority.URGENT : LlmAdmission.Priority.ROUTINE;
+    }
+
+    private static String omittedSummary(Map<String, Integer> omitted) {
+        StringBuilder summary = new StringBuilder();
+        omitted.forEach((section, count) -> {
+            if (summary.length() > 0) {
+                summary.append("; ");
+            }
+            summary.append(section).append(": ").append(count);
+        });
+        return summary.toString();
+    }
+
+    @GetMapping("/cache/stats")
+    public ResponseEntity<Map<String, Object>> cacheStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("fhirSections", fhirService.getCacheStats());
+        stats.put("fhirSnapshots", fhirService.getSnapshotStats());
+        stats.put("fhirRevalidation", fhirService.getRevalidationStats());
+        stats.put("llmCompletions", llmService.getCacheStats());
+        stats.put("fhirCoalescing", fhirService.getCoalescingStats());
+        stats.put("llmCoalescing", llmService.getCoalescingStats());
+        stats.put("queryPlans", fhirService.getQueryPlanStats());
+        stats.put("fhirTenants", fhirService.getTenantStats());
+        stats.put("observationSeries", fhirService.getObservationSeriesStats());
+        return ResponseEntity.ok(stats);
+    }
+
+    /**
+     * Per-code trends of the patient's {@code laboratory} or {@code vital-signs}
+     * values over the last {@code months}: first and latest value, range and
+     * slope per year, for 1 to {@value #MAX_TREND_MONTHS} months. Empty unless
+     * {@code fhir.observations.series.enabled}.
+     */
+    @GetMapping("/patients/{patientId}/observations/trends")
+    public Mono<ResponseEntity<List<ObservationSeries.Trend>>> observationTrends(
+            @PathVariable String patientId,
+            @RequestParam(defaultValue = "laboratory") String category,
+            @RequestParam(defaultValue = "12") int months) {
+        if (!category.equals("laboratory") && !category.equals("vital-signs")
+                || months < 1 || months > MAX_TREND_MONTHS) {
+            return Mono.just(ResponseEntity.badRequest().build());
+        }
+        return fhirService.getObservationTrends(patientId, category, months)
+            .map(ResponseEntity::ok);
+    }
+
+    @GetMapping("/admission/stats")
+    public ResponseEntity<Map<String, Object>> admissionStats() {
+        return ResponseEntity.ok(llmService.getAdmissionStats());
+    }
+
+    /**
+     * Drops the cached data of a patient of the default FHIR tenant, or of
+     * {@code tenant} (its id, or base URL if known only by URL).
+     */
+    @DeleteMapping("/cache/patients/{patientId}")
+    public ResponseEntity<Void> invalidatePatientCache(@PathVariable String patientId,
+                                                       @RequestParam(required = false) String tenant) {
+        String tenantId = tenant == null || tenant.isBlank() ? FhirTenantRegistry.DEFAULT_TENANT : tenant;
+        logger.info("Invalidating cached FHIR data for patient ID: {} of tenant {}", patientId, tenantId);
+        fhirService.invalidatePatient(tenantId, patientId);
+        llmService.invalidatePatient(FhirTenantRegistry.qualify(tenantId, patientId));
+        return ResponseEntity.noContent().build();
     }
     
     @GetMapping("/health")
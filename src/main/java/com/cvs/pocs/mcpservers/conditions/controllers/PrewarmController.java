@@ -0,0 +1,43 @@
+package com.cvs.pocs.mcpservers.conditions.controllers;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.List;
+import java.util.Map;
+
+import com.cvs.pocs.mcpservers.conditions.services.PrewarmService;
+
+/**
+ * Queues patients whose context should be in the cache before their
+ * encounters, e.g. from a clinic schedule, and reports how often chats then
+ * find it there.
+ */
+@RestController
+@RequestMapping("/api/v1/prewarm")
+public class PrewarmController {
+
+    private static final Logger logger = LoggerFactory.getLogger(PrewarmController.class);
+
+    @Autowired
+    private PrewarmService prewarmService;
+
+    /**
+     * Takes a JSON array of patient IDs; they are fetched in the background.
+     */
+    @PostMapping
+    public ResponseEntity<Map<String, Object>> prewarm(@RequestBody List<String> patientIds) {
+        int queued = prewarmService.prewarm(patientIds);
+        logger.info("Queued {} of {} patients for pre-warming", queued, patientIds.size());
+        return ResponseEntity.status(HttpStatus.ACCEPTED).body(Map.of("queued", queued));
+    }
+
+    @GetMapping("/stats")
+    public ResponseEntity<Map<String, Object>> stats() {
+        return ResponseEntity.ok(prewarmService.getStats());
+    }
+}
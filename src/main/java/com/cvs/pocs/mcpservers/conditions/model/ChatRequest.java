@@ -4,6 +4,11 @@ public class ChatRequest {
 	private String patientId;
     private String query;
     private String userId;  // ID of the clinician making the request
+    private boolean bypassCache;  // Skip the LLM completion cache for this request
+    private boolean urgent;  // Admitted to the LLM ahead of routine requests
+    private String tenantId;  // FHIR tenant configured as fhir.tenants.<id>.url; the default server if unset
+    private String fhirServerUrl;  // FHIR base URL, for tenants known only by URL
+    private String accessToken;  // Sent to the tenant's FHIR server as the bearer token
 
     // Constructors
     public ChatRequest() {}
@@ -38,4 +43,44 @@ public class ChatRequest {
     public void setUserId(String userId) {
         this.userId = userId;
     }
+
+    public boolean isBypassCache() {
+        return bypassCache;
+    }
+
+    public void setBypassCache(boolean bypassCache) {
+        this.bypassCache = bypassCache;
+    }
+
+    public boolean isUrgent() {
+        return urgent;
+    }
+
+    public void setUrgent(boolean urgent) {
+        this.urgent = urgent;
+    }
+
+    public String getTenantId() {
+        return tenantId;
+    }
+
+    public void setTenantId(String tenantId) {
+        this.tenantId = tenantId;
+    }
+
+    public String getFhirServerUrl() {
+        return fhirServerUrl;
+    }
+
+    public void setFhirServerUrl(String fhirServerUrl) {
+        this.fhirServerUrl = fhirServerUrl;
+    }
+
+    public String getAccessToken() {
+        return accessToken;
+    }
+
+    public void setAccessToken(String accessToken) {
+        this.accessToken = accessToken;
+    }
 }
@@ -1,8 +1,15 @@
 package com.cvs.pocs.mcpservers.conditions.model;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.util.Map;
+
 public class ChatResponse {
 	 private String response;
 	    private long timestamp;
+	    // Entries left out of the LLM prompt to fit its token budget, per section heading
+	    @JsonInclude(JsonInclude.Include.NON_EMPTY)
+	    private Map<String, Integer> omittedEntries;
 
 	    // Constructors
 	    public ChatResponse() {
@@ -30,4 +37,12 @@ public class ChatResponse {
 	    public void setTimestamp(long timestamp) {
 	        this.timestamp = timestamp;
 	    }
+
+	    public Map<String, Integer> getOmittedEntries() {
+	        return omittedEntries;
+	    }
+
+	    public void setOmittedEntries(Map<String, Integer> omittedEntries) {
+	        this.omittedEntries = omittedEntries;
+	    }
 }
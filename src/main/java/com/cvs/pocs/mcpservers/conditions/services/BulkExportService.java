@@ -0,0 +1,445 @@
+package com.cvs.pocs.mcpservers.conditions.services;
+
+import com.cvs.pocs.mcpservers.conditions.services.PatientStore.StoredResource;
+import com.cvs.pocs.mcpservers.conditions.util.FhirParserUtil;
+import com.cvs.pocs.mcpservers.conditions.util.NdjsonReader;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.util.UriComponentsBuilder;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Loads the local {@link PatientStore} through the FHIR Bulk Data
+ * {@code $export} operation. A job kicks off the export, polls its status URL
+ * until the manifest is ready, then downloads and ingests the NDJSON output
+ * files, several at a time. Each file is streamed to disk and read back through
+ * a fixed-size buffer, and resources are written in JDBC batches, so memory
+ * stays flat however large the export is.
+ *
+ * <p>Progress is checkpointed in {@code bulk_export_job} and
+ * {@code bulk_export_file}: the byte offset reached in each file is committed
+ * with the batch it covers. A failed or interrupted job can be resumed; it
+ * skips finished files, reuses completed downloads and continues each file
+ * from its last checkpoint.
+ */
+@Service
+public class BulkExportService {
+
+    private static final Logger logger = LoggerFactory.getLogger(BulkExportService.class);
+
+    private static final MediaType FHIR_JSON = MediaType.parseMediaType("application/fhir+json");
+    private static final MediaType FHIR_NDJSON = MediaType.parseMediaType("application/fhir+ndjson");
+
+    /** Length of bulk_export_job.error; longer messages would fail the update that records them. */
+    private static final int MAX_ERROR_LENGTH = 2048;
+
+    private final WebClient webClient;
+    private final ObjectMapper objectMapper;
+    private final PatientStore patientStore;
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+
+    @Value("${fhir.bulk.url:${fhir.server.url}}")
+    private String bulkUrl;
+
+    @Value("${fhir.bulk.types:Patient,Condition,MedicationRequest,AllergyIntolerance,Observation}")
+    private String types;
+
+    @Value("${fhir.bulk.access-token:}")
+    private String accessToken;
+
+    @Value("${fhir.bulk.work-dir:${java.io.tmpdir}/mcp-bulk-export}")
+    private String workDir;
+
+    @Value("${fhir.bulk.parallelism:4}")
+    private int parallelism;
+
+    @Value("${fhir.bulk.batch-size:500}")
+    private int batchSize;
+
+    @Value("${fhir.bulk.read-buffer-size:1048576}")
+    private int readBufferSize;
+
+    @Value("${fhir.bulk.max-line-bytes:16777216}")
+    private int maxLineBytes;
+
+    @Value("${fhir.bulk.poll-interval:5s}")
+    private Duration pollInterval;
+
+    @Value("${fhir.bulk.resume-on-startup:false}")
+    private boolean resumeOnStartup;
+
+    // Jobs running in this process, so a job is never ingested twice at once
+    private final Map<String, Mono<Void>> runningJobs = new ConcurrentHashMap<>();
+
+    public BulkExportService(WebClient.Builder webClientBuilder, ObjectMapper objectMapper,
+                             PatientStore patientStore, JdbcTemplate jdbcTemplate,
+                             TransactionTemplate transactionTemplate) {
+        this.webClient = webClientBuilder.build();
+        this.objectMapper = objectMapper;
+        this.patientStore = patientStore;
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = transactionTemplate;
+    }
+
+    /**
+     * Kicks off a system-level export, or a Group export when {@code groupId}
+     * is given, and ingests it in the background. Emits the job ID once the
+     * FHIR server has accepted the export.
+     */
+    public Mono<String> startExport(String groupId) {
+        UriComponentsBuilder uri = UriComponentsBuilder.fromUriString(bulkUrl);
+        uri = groupId == null ? uri.path("/$export") : uri.path("/Group/{id}/$export");
+        URI kickOffUri = uri.queryParam("_type", types).buildAndExpand(groupId).toUri();
+
+        return webClient.get()
+            .uri(kickOffUri)
+            .headers(this::authorize)
+            .accept(FHIR_JSON)
+            .header("Prefer", "respond-async")
+            .retrieve()
+            .toBodilessEntity()
+            .publishOn(Schedulers.boundedElastic())
+            .map(response -> {
+                String statusUrl = response.getHeaders().getFirst(HttpHeaders.CONTENT_LOCATION);
+                if (response.getStatusCode().value() != HttpStatus.ACCEPTED.value() || statusUrl == null) {
+                    throw new IllegalStateException("$export kick-off was not accepted: " + response.getStatusCode());
+                }
+                String jobId = UUID.randomUUID().toString();
+                Timestamp now = Timestamp.from(Instant.now());
+                jdbcTemplate.update("INSERT INTO bulk_export_job (job_id, status_url, state, created_at, updated_at) "
+                    + "VALUES (?, ?, 'EXPORTING', ?, ?)", jobId, statusUrl, now, now);
+                logger.info("Started bulk export job {} with status URL {}", jobId, statusUrl);
+                return jobId;
+            })
+            .doOnNext(this::launch);
+    }
+
+    /**
+     * Continues a failed or interrupted job from its checkpoints. Does nothing
+     * if the job is already running in this process.
+     */
+    public void resume(String jobId) {
+        if (getStatus(jobId) == null) {
+            throw new IllegalArgumentException("Unknown bulk export job " + jobId);
+        }
+        launch(jobId);
+    }
+
+    /**
+     * Completes when the job has finished running in this process, or at once
+     * if it is not running.
+     */
+    public Mono<Void> awaitJob(String jobId) {
+        return runningJobs.getOrDefault(jobId, Mono.empty()).onErrorResume(e -> Mono.empty());
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void resumeIncompleteJobs() {
+        if (!resumeOnStartup) {
+            return;
+        }
+        jdbcTemplate.queryForList("SELECT job_id FROM bulk_export_job WHERE state <> 'COMPLETE'", String.class)
+            .forEach(jobId -> {
+                logger.info("Resuming bulk export job {}", jobId);
+                launch(jobId);
+            });
+    }
+
+    /**
+     * Job state and per-file progress, or {@code null} for an unknown job.
+     */
+    public Map<String, Object> getStatus(String jobId) {
+        List<Map<String, Object>> jobs = jdbcTemplate.queryForList(
+            "SELECT state, transaction_time, error, created_at, updated_at FROM bulk_export_job WHERE job_id = ?", jobId);
+        if (jobs.isEmpty()) {
+            return null;
+        }
+        Map<String, Object> job = jobs.get(0);
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("jobId", jobId);
+        status.put("state", job.get("state"));
+        status.put("transactionTime", job.get("transaction_time"));
+        status.put("error", job.get("error"));
+        status.put("createdAt", job.get("created_at"));
+        status.put("updatedAt", job.get("updated_at"));
+        status.put("files", jdbcTemplate.query("SELECT resource_type, file_url, state, bytes_ingested, "
+                + "resources_ingested, resources_skipped FROM bulk_export_file WHERE job_id = ? ORDER BY resource_type, file_url",
+            (rs, rowNum) -> {
+                Map<String, Object> file = new LinkedHashMap<>();
+                file.put("type", rs.getString("resource_type"));
+                file.put("url", rs.getString("file_url"));
+                file.put("state", rs.getString("state"));
+                file.put("bytesIngested", rs.getLong("bytes_ingested"));
+                file.put("resourcesIngested", rs.getLong("resources_ingested"));
+                file.put("resourcesSkipped", rs.getLong("resources_skipped"));
+                return file;
+            }, jobId));
+        return status;
+    }
+
+    private void launch(String jobId) {
+        runningJobs.computeIfAbsent(jobId, id -> {
+            Mono<Void> run = runJob(id)
+                // Before awaitJob callers see the end, so a resume right after launches anew
+                .doOnTerminate(() -> runningJobs.remove(id))
+                .doOnCancel(() -> runningJobs.remove(id))
+                .cache();
+            run.subscribe(null, e -> { });
+            return run;
+        });
+    }
+
+    private Mono<Void> runJob(String jobId) {
+        return Mono.fromCallable(() -> jdbcTemplate.queryForObject(
+                "SELECT status_url FROM bulk_export_job WHERE job_id = ?", String.class, jobId))
+            .subscribeOn(Schedulers.boundedElastic())
+            .flatMap(statusUrl -> hasManifest(jobId)
+                ? Mono.fromRunnable(() -> updateJob(jobId, "INGESTING", null))
+                : awaitManifest(statusUrl)
+                    .publishOn(Schedulers.boundedElastic())
+                    .doOnNext(manifest -> recordManifest(jobId, manifest))
+                    .then())
+            .then(Mono.fromCallable(() -> pendingFiles(jobId)).subscribeOn(Schedulers.boundedElastic()))
+            .flatMapMany(Flux::fromIterable)
+            // A failing file fails the job only once the others have finished
+            .flatMapDelayError(file -> download(jobId, file)
+                .then(Mono.fromRunnable(() -> ingest(jobId, file)).subscribeOn(Schedulers.boundedElastic())),
+                parallelism, 1)
+            .then(Mono.<Void>fromRunnable(() -> {
+                updateJob(jobId, "COMPLETE", null);
+                logger.info("Bulk export job {} complete", jobId);
+            }).subscribeOn(Schedulers.boundedElastic()))
+            .onErrorResume(e -> Mono.<Void>fromRunnable(() -> {
+                    logger.error("Bulk export job {} failed", jobId, e);
+                    updateJob(jobId, "FAILED", String.valueOf(e.getMessage()));
+                })
+                .subscribeOn(Schedulers.boundedElastic())
+                .then(Mono.error(e)));
+    }
+
+    /**
+     * Polls the status URL, waiting {@code Retry-After} (or the poll interval)
+     * between attempts, until the server returns the completed manifest.
+     */
+    private Mono<JsonNode> awaitManifest(String statusUrl) {
+        return webClient.get()
+            .uri(URI.create(statusUrl))
+            .headers(this::authorize)
+            .accept(MediaType.APPLICATION_JSON)
+            .exchangeToMono(response -> {
+                if (response.statusCode().value() == HttpStatus.ACCEPTED.value()) {
+                    Duration wait = retryAfter(response.headers().asHttpHeaders().getFirst(HttpHeaders.RETRY_AFTER));
+                    logger.debug("Bulk export in progress ({}), polling again in {}",
+                        response.headers().asHttpHeaders().getFirst("X-Progress"), wait);
+                    return response.releaseBody().thenReturn(new Poll(null, wait));
+                }
+                if (response.statusCode().is2xxSuccessful()) {
+                    return response.bodyToMono(String.class).map(body -> new Poll(readJson(body), null));
+                }
+                return response.createError();
+            })
+            .flatMap(poll -> poll.manifest() != null
+                ? Mono.just(poll.manifest())
+                : Mono.delay(poll.retryAfter()).then(Mono.defer(() -> awaitManifest(statusUrl))));
+    }
+
+    private record Poll(JsonNode manifest, Duration retryAfter) {
+    }
+
+    private void recordManifest(String jobId, JsonNode manifest) {
+        transactionTemplate.executeWithoutResult(status -> {
+            for (JsonNode output : manifest.path("output")) {
+                jdbcTemplate.update("INSERT INTO bulk_export_file (job_id, file_url, resource_type, state, "
+                        + "bytes_ingested, resources_ingested, resources_skipped) VALUES (?, ?, ?, 'PENDING', 0, 0, 0)",
+                    jobId, output.path("url").asText(), output.path("type").asText());
+            }
+            jdbcTemplate.update("UPDATE bulk_export_job SET state = 'INGESTING', transaction_time = ?, updated_at = ? "
+                + "WHERE job_id = ?", manifest.path("transactionTime").asText(null), Timestamp.from(Instant.now()), jobId);
+        });
+        logger.info("Bulk export job {} produced {} files", jobId, manifest.path("output").size());
+    }
+
+    private boolean hasManifest(String jobId) {
+        Integer files = jdbcTemplate.queryForObject(
+            "SELECT COUNT(*) FROM bulk_export_file WHERE job_id = ?", Integer.class, jobId);
+        return files != null && files > 0;
+    }
+
+    private List<ExportFile> pendingFiles(String jobId) {
+        return jdbcTemplate.query("SELECT file_url, resource_type, bytes_ingested FROM bulk_export_file "
+                + "WHERE job_id = ? AND state <> 'INGESTED' ORDER BY resource_type, file_url",
+            (rs, rowNum) -> new ExportFile(rs.getString(1), rs.getString(2), rs.getLong(3)), jobId);
+    }
+
+    private record ExportFile(String url, String type, long bytesIngested) {
+    }
+
+    /**
+     * Streams the file to disk unless an earlier run already downloaded it.
+     * The body is written to a {@code .part} file and renamed when complete,
+     * so a partial download is never mistaken for a finished one.
+     */
+    private Mono<Void> download(String jobId, ExportFile file) {
+        return Mono.defer(() -> {
+            Path target = localPath(jobId, file);
+            if (Files.exists(target)) {
+                return Mono.empty();
+            }
+            Path part = target.resolveSibling(target.getFileName() + ".part");
+            try {
+                Files.createDirectories(target.getParent());
+            } catch (IOException e) {
+                return Mono.error(new UncheckedIOException(e));
+            }
+            Flux<DataBuffer> body = webClient.get()
+                .uri(URI.create(file.url()))
+                .headers(this::authorize)
+                .accept(FHIR_NDJSON)
+                .retrieve()
+                .bodyToFlux(DataBuffer.class);
+            return DataBufferUtils.write(body, part, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE)
+                .then(Mono.fromCallable(() -> Files.move(part, target, StandardCopyOption.REPLACE_EXISTING)))
+                .doOnSuccess(path -> logger.info("Downloaded {} export file {}", file.type(), file.url()))
+                .then();
+        });
+    }
+
+    /**
+     * Reads the downloaded file from its last checkpoint and upserts its
+     * resources batch by batch, committing the new byte offset with each batch.
+     * Lines that are not valid FHIR JSON are counted and skipped.
+     */
+    private void ingest(String jobId, ExportFile file) {
+        Path path = localPath(jobId, file);
+        try (NdjsonReader reader = new NdjsonReader(path, file.bytesIngested(), readBufferSize, maxLineBytes)) {
+            List<StoredResource> batch = new ArrayList<>(batchSize);
+            long skipped = 0;
+            String line;
+            while ((line = reader.nextLine()) != null) {
+                try {
+                    IBaseResource resource = FhirParserUtil.parseResource(line);
+                    batch.add(StoredResource.of(resource, line));
+                } catch (RuntimeException e) {
+                    logger.warn("Skipping unreadable {} resource in {} at offset {}", file.type(), file.url(),
+                        reader.position(), e);
+                    skipped++;
+                }
+                if (batch.size() >= batchSize) {
+                    commit(jobId, file, batch, skipped, reader.position());
+                    batch.clear();
+                    skipped = 0;
+                }
+            }
+            commit(jobId, file, batch, skipped, reader.position());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        jdbcTemplate.update("UPDATE bulk_export_file SET state = 'INGESTED' WHERE job_id = ? AND file_url = ?",
+            jobId, file.url());
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            logger.warn("Could not delete ingested export file {}", path, e);
+        }
+        logger.info("Ingested {} export file {}", file.type(), file.url());
+    }
+
+    private void commit(String jobId, ExportFile file, List<StoredResource> batch, long skipped, long offset) {
+        transactionTemplate.executeWithoutResult(status -> {
+            if (!batch.isEmpty()) {
+                patientStore.upsert(batch);
+            }
+            jdbcTemplate.update("UPDATE bulk_export_file SET state = 'INGESTING', bytes_ingested = ?, "
+                    + "resources_ingested = resources_ingested + ?, resources_skipped = resources_skipped + ? "
+                    + "WHERE job_id = ? AND file_url = ?",
+                offset, batch.size(), skipped, jobId, file.url());
+        });
+    }
+
+    private void updateJob(String jobId, String state, String error) {
+        if (error != null && error.length() > MAX_ERROR_LENGTH) {
+            error = error.substring(0, MAX_ERROR_LENGTH);
+        }
+        jdbcTemplate.update("UPDATE bulk_export_job SET state = ?, error = ?, updated_at = ? WHERE job_id = ?",
+            state, error, Timestamp.from(Instant.now()), jobId);
+    }
+
+    private Path localPath(String jobId, ExportFile file) {
+        return Paths.get(workDir, jobId, file.type() + "-" + sha256(file.url()).substring(0, 16) + ".ndjson");
+    }
+
+    private void authorize(HttpHeaders headers) {
+        if (!accessToken.isBlank()) {
+            headers.setBearerAuth(accessToken);
+        }
+    }
+
+    private Duration retryAfter(String header) {
+        if (header != null) {
+            try {
+                return Duration.ofSeconds(Long.parseLong(header.trim()));
+            } catch (NumberFormatException e) {
+                // HTTP-date form; fall back to the configured interval
+            }
+        }
+        return pollInterval;
+    }
+
+    private JsonNode readJson(String body) {
+        try {
+            return objectMapper.readTree(body);
+        } catch (IOException e) {
+            throw new IllegalStateException("Malformed $export manifest", e);
+        }
+    }
+
+    private static String sha256(String value) {
+        try {
+            return HexFormat.of().formatHex(
+                MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.cvs.pocs.mcpservers.conditions.services;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * What to fetch for one clinician query: the chart sections it asks about, on
+ * top of the demographics that are always included, and how many months back
+ * the time-windowed Observation searches go.
+ */
+public record FetchPlan(Set<Section> sections, int labMonths, int vitalMonths) {
+
+    public FetchPlan {
+        sections = Collections.unmodifiableSet(sections.isEmpty()
+            ? EnumSet.noneOf(Section.class) : EnumSet.copyOf(sections));
+    }
+
+    public boolean includes(Section section) {
+        return sections.contains(section);
+    }
+
+    /**
+     * A chart section and the FHIR resource type it is searched from.
+     */
+    public enum Section {
+        LABS("Observation"),
+        CONDITIONS("Condition"),
+        MEDICATIONS("MedicationRequest"),
+        ALLERGIES("AllergyIntolerance"),
+        VITALS("Observation");
+
+        private final String resourceType;
+
+        Section(String resourceType) {
+            this.resourceType = resourceType;
+        }
+
+        public String resourceType() {
+            return resourceType;
+        }
+    }
+}
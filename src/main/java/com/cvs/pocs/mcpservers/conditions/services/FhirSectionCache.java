@@ -0,0 +1,149 @@
+package com.cvs.pocs.mcpservers.conditions.services;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.Ticker;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-process cache of formatted FHIR sections, keyed by tenant, patient,
+ * resource type and the search parameters used to fetch them. Entries expire after a
+ * per-resource TTL ({@code fhir.cache.ttl.<ResourceType>}, falling back to
+ * {@code fhir.cache.ttl.default}) and are evicted once {@code fhir.cache.maximum-size}
+ * is reached. Only successfully formatted sections are stored, so a hit skips
+ * both the FHIR round trip and the HAPI parse.
+ */
+@Component
+public class FhirSectionCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(FhirSectionCache.class);
+
+    private final boolean enabled;
+    private final Duration defaultTtl;
+    private final Environment environment;
+    private final Map<String, Duration> ttlByResourceType = new ConcurrentHashMap<>();
+    private final Cache<SectionKey, String> cache;
+
+    @Autowired
+    public FhirSectionCache(@Value("${fhir.cache.enabled:true}") boolean enabled,
+                            @Value("${fhir.cache.maximum-size:10000}") long maximumSize,
+                            @Value("${fhir.cache.ttl.default:5m}") Duration defaultTtl,
+                            Environment environment) {
+        this(enabled, maximumSize, defaultTtl, environment, Ticker.systemTicker());
+    }
+
+    FhirSectionCache(boolean enabled, long maximumSize, Duration defaultTtl, Environment environment, Ticker ticker) {
+        this.enabled = enabled;
+        this.defaultTtl = defaultTtl;
+        this.environment = environment;
+        this.cache = Caffeine.newBuilder()
+            .maximumSize(maximumSize)
+            .ticker(ticker)
+            .expireAfter(new Expiry<SectionKey, String>() {
+                @Override
+                public long expireAfterCreate(SectionKey key, String value, long currentTime) {
+                    return ttlFor(key.resourceType()).toNanos();
+                }
+
+                @Override
+                public long expireAfterUpdate(SectionKey key, String value, long currentTime, long currentDuration) {
+                    return ttlFor(key.resourceType()).toNanos();
+                }
+
+                @Override
+                public long expireAfterRead(SectionKey key, String value, long currentTime, long currentDuration) {
+                    return currentDuration;
+                }
+            })
+            .recordStats()
+            .build();
+    }
+
+    /**
+     * Returns the cached section for the key, or subscribes to the loader and
+     * stores its value. Errors from the loader are passed through uncached.
+     */
+    public Mono<String> get(SectionKey key, Mono<String> loader) {
+        if (!enabled) {
+            return loader;
+        }
+        return Mono.defer(() -> {
+            String cached = cache.getIfPresent(key);
+            if (cached != null) {
+                return Mono.just(cached);
+            }
+            return loader.doOnNext(section -> cache.put(key, section));
+        });
+    }
+
+    /**
+     * Whether a section is currently cached for the key, without counting a hit or miss.
+     */
+    public boolean contains(SectionKey key) {
+        return enabled && cache.asMap().containsKey(key);
+    }
+
+    public void invalidatePatient(String tenant, String patientId) {
+        cache.asMap().keySet().removeIf(key -> key.tenant().equals(tenant) && key.patientId().equals(patientId));
+        logger.info("Invalidated cached FHIR sections for patient ID: {} of tenant {}", patientId, tenant);
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    public Map<String, Object> getStats() {
+        // Expired entries are otherwise only removed in the background, leaving size and evictions behind
+        cache.cleanUp();
+        CacheStats stats = cache.stats();
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("enabled", enabled);
+        result.put("size", cache.estimatedSize());
+        result.put("hits", stats.hitCount());
+        result.put("misses", stats.missCount());
+        result.put("evictions", stats.evictionCount());
+        result.put("hitRate", stats.hitRate());
+        return result;
+    }
+
+    private Duration ttlFor(String resourceType) {
+        return ttlByResourceType.computeIfAbsent(resourceType, type ->
+            environment.getProperty("fhir.cache.ttl." + type, Duration.class, defaultTtl));
+    }
+
+    /**
+     * Identifies one section fetch: the tenant whose FHIR server it comes from,
+     * the {@link FhirTenantRegistry#principal principal} of the access token it
+     * was fetched with (null without one), the patient, the FHIR resource type
+     * and the search parameters (in a stable order) that shape the section text.
+     */
+    public record SectionKey(String tenant, String principal, String patientId, String resourceType, String params) {
+
+        /**
+         * A section of the tenant fetched without an access token.
+         */
+        public SectionKey(String tenant, String patientId, String resourceType, String params) {
+            this(tenant, null, patientId, resourceType, params);
+        }
+
+        /**
+         * A section of the default tenant.
+         */
+        public SectionKey(String patientId, String resourceType, String params) {
+            this(FhirTenantRegistry.DEFAULT_TENANT, patientId, resourceType, params);
+        }
+    }
+}
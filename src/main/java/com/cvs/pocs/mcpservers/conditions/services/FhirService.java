@@ -3,270 +3,910 @@ package com.cvs.pocs.mcpservers.conditions.services;
 //import org.hl7.fhir.r4.model.*;
 import org.hl7.fhir.r4.model.Patient;
 import org.hl7.fhir.r4.model.Observation;
-import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Condition;
 import org.hl7.fhir.r4.model.AllergyIntolerance;
 import org.hl7.fhir.r4.model.MedicationRequest;
+import org.hl7.fhir.r4.model.Appointment;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.Bundle.BundleLinkComponent;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Service;
 import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import org.springframework.web.util.UriBuilder;
+import org.springframework.web.util.UriComponentsBuilder;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 
+import com.cvs.pocs.mcpservers.conditions.config.ResilienceFilter;
+import com.cvs.pocs.mcpservers.conditions.services.FhirSectionCache.SectionKey;
+import com.cvs.pocs.mcpservers.conditions.services.FhirTenantRegistry.Tenant;
+import com.cvs.pocs.mcpservers.conditions.services.PatientStore.StoreQuery;
+import com.cvs.pocs.mcpservers.conditions.util.FhirBundleStreamReader;
 import com.cvs.pocs.mcpservers.conditions.util.FhirParserUtil;
+import com.cvs.pocs.mcpservers.conditions.util.FhirTextRenderer;
+import com.cvs.pocs.mcpservers.conditions.util.ObservationSeries;
+import com.cvs.pocs.mcpservers.conditions.util.SingleFlight;
 
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 
 @Service
 public class FhirService {
 
     private static final Logger logger = LoggerFactory.getLogger(FhirService.class);
 
-    @Value("${fhir.server.url}")
-    private String fhirServerUrl;
+    // Only the elements the FhirParserUtil formatters read; the server adds the mandatory ones
+    private static final String OBSERVATION_ELEMENTS = "code,value,referenceRange,interpretation,effective";
+    private static final String CONDITION_ELEMENTS = "code,verificationStatus,onset";
+    private static final String MEDICATION_ELEMENTS = "medication,dosageInstruction";
+    private static final String ALLERGY_ELEMENTS = "code,reaction";
+    private static final String APPOINTMENT_ELEMENTS = "participant";
+
+    // Appointments that are still expected to take place
+    private static final String APPOINTMENT_STATUSES = "proposed,pending,booked,arrived,checked-in,waitlist";
 
+    private static final MediaType FHIR_JSON = MediaType.parseMediaType("application/fhir+json");
+
+    // Answers from servers without batch support: bad request, unknown endpoint, method or media type, not implemented
+    private static final Set<Integer> BATCH_UNSUPPORTED_STATUSES = Set.of(400, 404, 405, 415, 422, 501);
+
+    // The FHIR server of each tenant, with its own connection pool and guards
     @Autowired
-    private WebClient.Builder webClientBuilder;
+    private FhirTenantRegistry tenants;
+
+    @Value("${fhir.search.page-size:100}")
+    private int pageSize;
 
-    private WebClient webClient;
+    @Value("${fhir.search.max-entries:1000}")
+    private int maxEntries;
+
+    // Send the chat's searches as one FHIR batch Bundle instead of one round trip per section
+    @Value("${fhir.batch.enabled:false}")
+    private boolean batchEnabled;
+
+    @Value("${fhir.batch.max-response-bytes:16777216}")
+    private int maxBatchResponseBytes;
 
     @Autowired
-    public void initWebClient() {
-        this.webClient = webClientBuilder.baseUrl(fhirServerUrl).build();
-    }
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private QueryPlanner queryPlanner;
+
+    @Autowired
+    private FhirSectionCache sectionCache;
+
+    @Autowired
+    private SectionSnapshotStore snapshotStore;
+
+    // ETags and _lastUpdated bounds of expired sections, to revalidate rather than refetch them
+    @Autowired
+    private SectionValidators sectionValidators;
+
+    @Autowired
+    private PipelineMetrics metrics;
+
+    // Answer from the bulk-exported local store for patients it holds
+    @Value("${fhir.store.enabled:false}")
+    private boolean storeEnabled;
+
+    @Autowired
+    private PatientStore patientStore;
+
+    // Lab and vital-sign Observations as primitive columns, for shorter windows and trends
+    @Autowired
+    private ObservationSeriesStore observationSeries;
+
+    // Identical section fetches for the same patient, e.g. a care team opening one chart, share one call
+    private final SingleFlight<SectionKey, String> sectionFlights = new SingleFlight<>("fhir-sections");
 
     public String getRelevantPatientData(String patientId, String query) {
-        StringBuilder patientData = new StringBuilder();
+        return getRelevantPatientDataAsync(patientId, query).block();
+    }
+
+    /**
+     * Non-blocking form of {@link #getRelevantPatientData}: all sections in the
+     * fetch plan are requested at once and the assembled text is emitted when
+     * the slowest one completes. With {@code fhir.batch.enabled} the searches
+     * are sent as one FHIR {@code batch} Bundle instead of one call each.
+     */
+    public Mono<String> getRelevantPatientDataAsync(String patientId, String query) {
+        return getRelevantPatientDataAsync(tenants.defaultTenant(), null, patientId, query);
+    }
+
+    /**
+     * Like {@link #getRelevantPatientDataAsync(String, String)}, but from the
+     * tenant's FHIR server, sending {@code accessToken} (if any) as the bearer
+     * token of every call. Sections are cached per tenant and, for a chat with
+     * a token, per token, so no other request is answered from them; the local
+     * store only holds patients of the default tenant.
+     */
+    public Mono<String> getRelevantPatientDataAsync(Tenant tenant, String accessToken, String patientId,
+                                                    String query) {
+        Target target = target(tenant, accessToken);
+        List<Section<?>> plan = sections(target, patientId, queryPlanner.plan(query));
+
+        // Patients held in the local store are read from there, so only remote fetches are batched
+        Mono<Boolean> batched = !batchEnabled || plan.size() < 2 ? Mono.just(false)
+            : !usesStore(target) ? Mono.just(true)
+            : Mono.fromCallable(() -> !patientStore.hasPatient(patientId)).subscribeOn(Schedulers.boundedElastic());
+        return tenant.track(batched
+            .flatMap(batch -> batch && tenant.isBatchSupported() ? loadBatched(target, plan)
+                : Mono.just(loadSeparately(plan)))
+            // Subscribe to every section at once, but append them in plan order
+            .flatMap(sections -> Flux.mergeSequential(sections)
+                .collect(StringBuilder::new, StringBuilder::append)
+                .map(StringBuilder::toString)));
+    }
+
+    /**
+     * Whether every section the query would fetch for the patient is in the
+     * section cache, i.e. a chat would not wait on the FHIR server.
+     */
+    public boolean isCached(String patientId, String query) {
+        Target target = target(tenants.defaultTenant(), null);
+        for (Section<?> section : sections(target, patientId, queryPlanner.plan(query))) {
+            if (!sectionCache.contains(section.key())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * IDs of the patients with an appointment starting in {@code [from, to)},
+     * from an {@code Appointment} search; cancelled and no-show appointments
+     * are left out. At most {@code fhir.search.max-entries} appointments are read.
+     */
+    public Flux<String> findPatientsWithAppointments(Instant from, Instant to) {
+        Target target = target(tenants.defaultTenant(), null);
+        return Flux.defer(() -> readPages(target, target.webClient().get()
+                .uri(uriBuilder -> uriBuilder
+                    .path("/Appointment")
+                    .queryParam("date", "ge" + DateTimeFormatter.ISO_INSTANT.format(from))
+                    .queryParam("date", "lt" + DateTimeFormatter.ISO_INSTANT.format(to))
+                    .queryParam("status", APPOINTMENT_STATUSES)
+                    .queryParam("_elements", APPOINTMENT_ELEMENTS)
+                    .queryParam("_count", pageSize)
+                    .build())
+                .retrieve()
+                .toEntityFlux(DataBuffer.class), new AtomicLong()))
+            .ofType(Appointment.class)
+            .take(maxEntries)
+            .flatMapIterable(Appointment::getParticipant)
+            .map(participant -> participant.getActor().getReferenceElement())
+            .filter(reference -> "Patient".equals(reference.getResourceType()) && reference.hasIdPart())
+            .map(IIdType::getIdPart)
+            .distinct();
+    }
+
+    /**
+     * Drops every cached and stored section for the patient, e.g. after a chart update.
+     */
+    public void invalidatePatient(String patientId) {
+        invalidatePatient(FhirTenantRegistry.DEFAULT_TENANT, patientId);
+    }
+
+    /**
+     * Drops every cached and stored section for the tenant's patient.
+     */
+    public void invalidatePatient(String tenantId, String patientId) {
+        sectionCache.invalidatePatient(tenantId, patientId);
+        snapshotStore.invalidatePatient(tenantId, patientId);
+        sectionValidators.invalidatePatient(tenantId, patientId);
+        observationSeries.invalidatePatient(tenantId, patientId);
+    }
+
+    /**
+     * Per-code trends of the patient's {@code laboratory} or {@code vital-signs}
+     * Observations over the last {@code months}, computed from the
+     * {@link ObservationSeriesStore} and loaded as a section first if it does
+     * not cover the window. Empty if the store is off, could not keep the series
+     * or the section was served without a search.
+     */
+    public Mono<List<ObservationSeries.Trend>> getObservationTrends(String patientId, String category, int months) {
+        if (!observationSeries.isEnabled()) {
+            return Mono.just(List.of());
+        }
+        Target target = target(tenants.defaultTenant(), null);
+        Section<Observation> section = "vital-signs".equals(category)
+            ? vitalSigns(target, patientId, months)
+            : labResults(target, patientId, months);
+        LocalDate since = LocalDate.now().minusMonths(months);
+        String tenantId = target.tenant().id();
+        return Mono.defer(() -> {
+                ObservationSeries stored = observationSeries.find(tenantId, null, patientId, category, since);
+                return stored != null ? Mono.just(stored) : load(section, section.fetch())
+                    .then(Mono.fromSupplier(() -> observationSeries.find(tenantId, null, patientId, category, since)));
+            })
+            .map(series -> series.trends(since.toEpochDay()))
+            .defaultIfEmpty(List.of());
+    }
+
+    public Map<String, Object> getCacheStats() {
+        return sectionCache.getStats();
+    }
+
+    public Map<String, Object> getSnapshotStats() {
+        return snapshotStore.getStats();
+    }
+
+    public Map<String, Object> getRevalidationStats() {
+        return sectionValidators.getStats();
+    }
+
+    public Map<String, Object> getCoalescingStats() {
+        return sectionFlights.getStats();
+    }
+
+    public Map<String, Object> getQueryPlanStats() {
+        return queryPlanner.getStats();
+    }
+
+    public Map<String, Object> getObservationSeriesStats() {
+        return observationSeries.getStats();
+    }
+
+    public Map<String, Object> getTenantStats() {
+        return tenants.getStats();
+    }
+
+    private static Target target(Tenant tenant, String accessToken) {
+        String principal = FhirTenantRegistry.principal(accessToken);
+        WebClient webClient = principal == null ? tenant.webClient()
+            : tenant.webClient().mutate().defaultHeaders(headers -> headers.setBearerAuth(accessToken)).build();
+        return new Target(tenant, principal, webClient);
+    }
+
+    private boolean usesStore(Target target) {
+        return storeEnabled && target.tenant().isDefault();
+    }
+
+    private List<Section<?>> sections(Target target, String patientId, FetchPlan fetchPlan) {
+        List<Section<?>> plan = new ArrayList<>();
         
         // Add basic patient info
-        patientData.append(getPatientDemographics(patientId));
+        plan.add(patientDemographics(target, patientId));
         
-        // Analyze the query to determine what data is needed
-        if (containsKeyword(query, "lab", "laboratory", "test", "result")) {
-            int months = extractTimeframe(query, 3); // Default to 3 months if not specified
-            patientData.append(getLabResults(patientId, months));
+        // Add the sections the query asks about
+        if (fetchPlan.includes(FetchPlan.Section.LABS)) {
+            plan.add(labResults(target, patientId, fetchPlan.labMonths()));
         }
         
-        if (containsKeyword(query, "condition", "diagnosis", "problem")) {
-            patientData.append(getConditions(patientId));
+        if (fetchPlan.includes(FetchPlan.Section.CONDITIONS)) {
+            plan.add(conditions(target, patientId));
         }
         
-        if (containsKeyword(query, "medication", "med", "drug", "prescription")) {
-            patientData.append(getMedications(patientId));
+        if (fetchPlan.includes(FetchPlan.Section.MEDICATIONS)) {
+            plan.add(medications(target, patientId));
         }
         
-        if (containsKeyword(query, "allergy", "allergies", "allergic")) {
-            patientData.append(getAllergies(patientId));
+        if (fetchPlan.includes(FetchPlan.Section.ALLERGIES)) {
+            plan.add(allergies(target, patientId));
         }
         
-        if (containsKeyword(query, "vital", "vitals", "sign", "signs")) {
-            int months = extractTimeframe(query, 1); // Default to 1 month if not specified
-            patientData.append(getVitalSigns(patientId, months));
+        if (fetchPlan.includes(FetchPlan.Section.VITALS)) {
+            plan.add(vitalSigns(target, patientId, fetchPlan.vitalMonths()));
         }
-        
-        return patientData.toString();
+        return plan;
     }
 
-    private String getPatientDemographics(String patientId) {
-        try {
-            String patientJson = webClient.get()
+    /**
+     * The patient read. Once the section has expired from the cache it is
+     * revalidated with {@code If-None-Match}, using the ETag the server sent
+     * or, failing that, the resource's {@code meta.versionId}.
+     */
+    private Section<Patient> patientDemographics(Target target, String patientId) {
+        SectionKey key = new SectionKey(target.tenant().id(), target.principal(), patientId, "Patient", "");
+        Mono<String> remote = Mono.defer(() -> {
+            SectionValidators.Validator previous = sectionValidators.get(key);
+            Instant fetchStart = Instant.now();
+            return target.webClient().get()
                 .uri("/Patient/{id}", patientId)
+                .headers(headers -> {
+                    if (previous != null && previous.etag() != null) {
+                        headers.setIfNoneMatch(previous.etag());
+                    }
+                })
                 .retrieve()
-                .bodyToMono(String.class)
-                .block();
-            Patient patient = FhirParserUtil.parsePatient(patientJson);
-            String patientData = FhirParserUtil.formatPatient(patient);
-            return "PATIENT DEMOGRAPHICS:\n" + patientData;
-                   
-        } catch (Exception e) {
-            logger.error("Error retrieving patient demographics", e);
-            return "PATIENT DEMOGRAPHICS: Unable to retrieve\n\n";
-        }
+                .toEntity(byte[].class)
+                .publishOn(Schedulers.boundedElastic())
+                .map(response -> {
+                    if (previous != null && response.getStatusCode().value() == HttpStatus.NOT_MODIFIED.value()) {
+                        return sectionValidators.recordNotModified(key, previous, fetchStart, 0);
+                    }
+                    byte[] body = response.getBody() == null ? new byte[0] : response.getBody();
+                    metrics.recordFhirPayload("Patient", body.length, 1);
+                    Patient patient = FhirParserUtil.parsePatient(new String(body, StandardCharsets.UTF_8));
+                    String etag = response.getHeaders().getETag() != null ? response.getHeaders().getETag()
+                        : patient.getMeta().hasVersionId() ? "W/\"" + patient.getMeta().getVersionId() + "\"" : null;
+                    return sectionValidators.recordFull(key, previous, etag, fetchStart, "PATIENT DEMOGRAPHICS:\n",
+                        Map.of(patientId, renderEntry(patient, FhirTextRenderer::appendPatient)), body.length);
+                });
+        });
+        Mono<String> section = !usesStore(target) ? remote
+            : Mono.fromCallable(() -> patientStore.findResource("Patient", patientId).orElse(null))
+                .subscribeOn(Schedulers.boundedElastic())
+                .publishOn(Schedulers.boundedElastic())
+                .map(json -> {
+                    StringBuilder text = new StringBuilder("PATIENT DEMOGRAPHICS:\n");
+                    FhirTextRenderer.appendPatient(text, FhirParserUtil.parsePatient(json));
+                    return text.toString();
+                })
+                .switchIfEmpty(remote);
+        return new Section<>(key, "patient demographics", "PATIENT DEMOGRAPHICS: Unable to retrieve\n\n",
+            batchUrl(uriBuilder -> uriBuilder.path("/Patient/{id}").build(patientId)),
+            metrics.timeFhirFetch("Patient", section),
+            Patient.class, "PATIENT DEMOGRAPHICS:\n", FhirTextRenderer::appendPatient);
     }
 
-    private String getLabResults(String patientId, int months) {
+    private Section<Observation> labResults(Target target, String patientId, int months) {
         LocalDate cutoffDate = LocalDate.now().minusMonths(months);
         String dateParam = cutoffDate.format(DateTimeFormatter.ISO_DATE);
         
-        try {
-            String observationsJson = webClient.get()
-                .uri(uriBuilder -> uriBuilder
-                    .path("/Observation")
-                    .queryParam("patient", patientId)
-                    .queryParam("category", "laboratory")
-                  //  .queryParam("date", "ge" + dateParam)
-                    .build())
-                .retrieve()
-                .bodyToMono(String.class)
-                .block();
-            logger.info("Observations JSON: {}", observationsJson);
-            Bundle bundle = FhirParserUtil.parseBundle(observationsJson);
-            StringBuilder labResults = new StringBuilder();
-            for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
-                if (entry.hasResource() && entry.getResource() instanceof Observation) {
-                    Observation observation = (Observation) entry.getResource();
-                    labResults.append(FhirParserUtil.formatObservation(observation));
-                }
-            }
-            return "LABORATORY RESULTS (LAST " + months + " MONTHS):\n" +
-                   labResults.toString();
-                   
-        } catch (Exception e) {
-            logger.error("Error retrieving lab results", e);
-            return "LABORATORY RESULTS: Unable to retrieve\n\n";
+        SectionKey key = new SectionKey(target.tenant().id(), target.principal(), patientId, "Observation", "category=laboratory&date=ge" + dateParam);
+        return searchSection(target, key, "lab results", "LABORATORY RESULTS: Unable to retrieve\n\n",
+            uriBuilder -> uriBuilder
+                .path("/Observation")
+                .queryParam("patient", patientId)
+                .queryParam("category", "laboratory")
+                .queryParam("date", "ge" + dateParam)
+                .queryParam("_sort", "-date")
+                .queryParam("_elements", OBSERVATION_ELEMENTS)
+                .queryParam("_count", pageSize)
+                .build(),
+            new StoreQuery(patientId, "Observation", "laboratory", null, cutoffDate),
+            Observation.class, "LABORATORY RESULTS (LAST " + months + " MONTHS):\n",
+            FhirTextRenderer::appendObservation);
+    }
+
+    private Section<Condition> conditions(Target target, String patientId) {
+        SectionKey key = new SectionKey(target.tenant().id(), target.principal(), patientId, "Condition", "");
+        return searchSection(target, key, "conditions", "CONDITIONS: Unable to retrieve\n\n",
+            uriBuilder -> uriBuilder
+                .path("/Condition")
+                .queryParam("patient", patientId)
+                .queryParam("_elements", CONDITION_ELEMENTS)
+                .queryParam("_count", pageSize)
+                .build(),
+            new StoreQuery(patientId, "Condition", null, null, null),
+            Condition.class, "CONDITIONS:\n", FhirTextRenderer::appendCondition);
+    }
+
+    private Section<MedicationRequest> medications(Target target, String patientId) {
+        SectionKey key = new SectionKey(target.tenant().id(), target.principal(), patientId, "MedicationRequest", "status=active");
+        return searchSection(target, key, "medications", "MEDICATIONS: Unable to retrieve\n\n",
+            uriBuilder -> uriBuilder
+                .path("/MedicationRequest")
+                .queryParam("patient", patientId)
+                .queryParam("status", "active")
+                .queryParam("_elements", MEDICATION_ELEMENTS)
+                .queryParam("_count", pageSize)
+                .build(),
+            new StoreQuery(patientId, "MedicationRequest", null, "active", null),
+            MedicationRequest.class, "ACTIVE MEDICATIONS:\n", FhirTextRenderer::appendMedication);
+    }
+
+    private Section<AllergyIntolerance> allergies(Target target, String patientId) {
+        SectionKey key = new SectionKey(target.tenant().id(), target.principal(), patientId, "AllergyIntolerance", "");
+        return searchSection(target, key, "allergies", "ALLERGIES: Unable to retrieve\n\n",
+            uriBuilder -> uriBuilder
+                .path("/AllergyIntolerance")
+                .queryParam("patient", patientId)
+                .queryParam("_elements", ALLERGY_ELEMENTS)
+                .queryParam("_count", pageSize)
+                .build(),
+            new StoreQuery(patientId, "AllergyIntolerance", null, null, null),
+            AllergyIntolerance.class, "ALLERGIES:\n", FhirTextRenderer::appendAllergy);
+    }
+
+    private Section<Observation> vitalSigns(Target target, String patientId, int months) {
+        LocalDate cutoffDate = LocalDate.now().minusMonths(months);
+        String dateParam = cutoffDate.format(DateTimeFormatter.ISO_DATE);
+        
+        SectionKey key = new SectionKey(target.tenant().id(), target.principal(), patientId, "Observation", "category=vital-signs&date=ge" + dateParam);
+        return searchSection(target, key, "vital signs", "VITAL SIGNS: Unable to retrieve\n\n",
+            uriBuilder -> uriBuilder
+                .path("/Observation")
+                .queryParam("patient", patientId)
+                .queryParam("category", "vital-signs")
+                .queryParam("date", "ge" + dateParam)
+                .queryParam("_sort", "-date")
+                .queryParam("_elements", OBSERVATION_ELEMENTS)
+                .queryParam("_count", pageSize)
+                .build(),
+            new StoreQuery(patientId, "Observation", "vital-signs", null, cutoffDate),
+            Observation.class, "VITAL SIGNS (LAST " + months + " MONTHS):\n",
+            FhirTextRenderer::appendObservation);
+    }
+
+    private List<Mono<String>> loadSeparately(List<Section<?>> plan) {
+        List<Mono<String>> sections = new ArrayList<>();
+        for (Section<?> section : plan) {
+            sections.add(load(section, section.fetch()));
         }
+        return sections;
     }
 
-    private String getConditions(String patientId) {
-        try {
-            String conditionsJson = webClient.get()
-                .uri(uriBuilder -> uriBuilder
-                    .path("/Condition")
-                    .queryParam("patient", patientId)
-                    .build())
-                .retrieve()
-                .bodyToMono(String.class)
-                .block();
-            logger.info("Conditions JSON: {}", conditionsJson);
-            Bundle bundle = FhirParserUtil.parseBundle(conditionsJson);
-            StringBuilder conditions = new StringBuilder();
-            for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
-                if (entry.hasResource() && entry.getResource() instanceof Condition) {
-                    Condition condition = (Condition) entry.getResource();
-                    conditions.append(FhirParserUtil.formatCondition(condition));
+    /**
+     * Loads the plan's sections that are neither cached nor stored from a
+     * single batch round trip. Each section still goes through the cache,
+     * single-flight and snapshot store under its own key, so sections already
+     * cached or being fetched by another request are left out of the batch's
+     * results. Should the server turn out not to support batches, every
+     * section falls back to its own call.
+     */
+    private Mono<List<Mono<String>>> loadBatched(Target target, List<Section<?>> plan) {
+        List<SectionKey> uncached = new ArrayList<>();
+        for (Section<?> section : plan) {
+            if (!sectionCache.contains(section.key())) {
+                uncached.add(section.key());
+            }
+        }
+        return snapshotStore.findFresh(uncached).map(stored -> {
+            List<Section<?>> pending = new ArrayList<>();
+            for (Section<?> section : plan) {
+                // Sections with a validator are revalidated on their own rather than refetched in the batch
+                if (uncached.contains(section.key()) && !stored.contains(section.key())
+                        && sectionValidators.get(section.key()) == null) {
+                    pending.add(section);
                 }
             }
-            return "CONDITIONS:\n" + conditions.toString();
+            return pending.size() < 2 ? loadSeparately(plan) : loadBatched(target, plan, pending);
+        });
+    }
 
-                   
-        } catch (Exception e) {
-            logger.error("Error retrieving conditions", e);
-            return "CONDITIONS: Unable to retrieve\n\n";
+    private List<Mono<String>> loadBatched(Target target, List<Section<?>> plan, List<Section<?>> pending) {
+        Instant batchStart = Instant.now();
+        Mono<List<BundleEntryComponent>> batch = fetchBatch(target, pending).cache();
+        List<Mono<String>> sections = new ArrayList<>();
+        for (Section<?> section : plan) {
+            int index = pending.indexOf(section);
+            if (index < 0) {
+                sections.add(load(section, section.fetch()));
+                continue;
+            }
+            Mono<String> fromBatch = batch
+                .flatMap(entries -> {
+                    AtomicLong bytesRead = new AtomicLong();
+                    return renderSection(section, entryResources(target, entries.get(index), bytesRead), bytesRead,
+                        batchStart);
+                })
+                .onErrorResume(BatchNotSupportedException.class, e -> section.fetch());
+            sections.add(load(section, fromBatch));
         }
+        return sections;
     }
 
-    private String getMedications(String patientId) {
-        try {
-            String medicationsJson = webClient.get()
-                .uri(uriBuilder -> uriBuilder
-                    .path("/MedicationRequest")
-                    .queryParam("patient", patientId)
-                    .queryParam("status", "active")
-                    .build())
-                .retrieve()
-                .bodyToMono(String.class)
-                .block();
-            logger.info("Medications JSON: {}", medicationsJson);
-            Bundle bundle = FhirParserUtil.parseBundle(medicationsJson);
-            StringBuilder medications = new StringBuilder();
-            for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
-                if (entry.hasResource() && entry.getResource() instanceof MedicationRequest) {
-                    MedicationRequest medicationRequest = (MedicationRequest) entry.getResource();
-                    medications.append(FhirParserUtil.formatMedication(medicationRequest)); 
+    private Mono<String> load(Section<?> section, Mono<String> loader) {
+        return sectionCache.get(section.key(),
+                sectionFlights.execute(section.key(), () -> snapshotStore.get(section.key(), loader)))
+            .onErrorResume(e -> {
+                if (e instanceof ResilienceFilter.CallRejectedException) {
+                    logger.warn("Not retrieving {}: {}", section.description(), e.getMessage());
+                } else {
+                    logger.error("Error retrieving " + section.description(), e);
                 }
+                return Mono.just(section.unavailable());
+            });
+    }
+
+    /**
+     * POSTs one {@code batch} Bundle with a GET entry per section and returns
+     * the entries of the {@code batch-response}, in request order. A server
+     * that rejects the batch, or answers with something other than a
+     * batch-response, is remembered as not supporting batches for as long as
+     * its tenant's client is kept.
+     */
+    private Mono<List<BundleEntryComponent>> fetchBatch(Target target, List<Section<?>> sections) {
+        ObjectNode request = objectMapper.createObjectNode()
+            .put("resourceType", "Bundle")
+            .put("type", "batch");
+        ArrayNode requestEntries = request.putArray("entry");
+        for (Section<?> section : sections) {
+            requestEntries.addObject().putObject("request")
+                .put("method", "GET")
+                .put("url", section.batchUrl());
+        }
+        return metrics.timeFhirFetch("batch", target.webClient().post()
+            .uri(uriBuilder -> uriBuilder.build())
+            .contentType(FHIR_JSON)
+            .accept(FHIR_JSON)
+            .bodyValue(request.toString())
+            .retrieve()
+            .bodyToFlux(DataBuffer.class)
+            .as(body -> DataBufferUtils.join(body, maxBatchResponseBytes))
+            .map(buffer -> {
+                try {
+                    return buffer.toString(StandardCharsets.UTF_8);
+                } finally {
+                    DataBufferUtils.release(buffer);
+                }
+            })
+            .publishOn(Schedulers.boundedElastic())
+            .map(json -> {
+                Bundle response = FhirParserUtil.parseBundle(json);
+                if (response.getType() != Bundle.BundleType.BATCHRESPONSE
+                        || response.getEntry().size() != sections.size()) {
+                    throw new BatchNotSupportedException("Expected a batch-response with " + sections.size()
+                        + " entries but got " + response.getType() + " with " + response.getEntry().size());
+                }
+                metrics.recordFhirPayload("batch", json.length(), sections.size());
+                return response.getEntry();
+            })
+            .onErrorMap(WebClientResponseException.class, e -> BATCH_UNSUPPORTED_STATUSES.contains(e.getStatusCode().value())
+                ? new BatchNotSupportedException("FHIR server rejected the batch with " + e.getStatusCode(), e)
+                : e)
+            .doOnError(BatchNotSupportedException.class, e -> {
+                if (target.tenant().markBatchUnsupported()) {
+                    logger.warn("FHIR server of tenant {} does not support batch requests, using separate searches: {}",
+                        target.tenant().id(), e.getMessage());
+                }
+            }));
+    }
+
+    /**
+     * The resources of one batch-response entry: the entry's own resource, or
+     * for a searchset the resources it holds followed by any {@code next} pages,
+     * fetched only if the entry cap has not yet been reached.
+     */
+    private Flux<IBaseResource> entryResources(Target target, BundleEntryComponent entry, AtomicLong bytesRead) {
+        String status = entry.getResponse().getStatus();
+        if (status == null || !status.startsWith("2")) {
+            return Flux.error(new IllegalStateException("Batch entry failed with status " + status));
+        }
+        if (!(entry.getResource() instanceof Bundle searchset)) {
+            return Mono.<IBaseResource>justOrEmpty(entry.getResource()).flux();
+        }
+        BundleLinkComponent next = searchset.getLink(Bundle.LINK_NEXT);
+        return Flux.fromIterable(searchset.getEntry())
+            .<IBaseResource>map(BundleEntryComponent::getResource)
+            .concatWith(Flux.defer(() -> {
+                Mono<ResponseEntity<Flux<DataBuffer>>> nextPage = next == null || !next.hasUrl() ? null
+                    : prefetchPage(target, next.getUrl());
+                return nextPage == null ? Flux.empty() : readPages(target, nextPage, bytesRead);
+            }));
+    }
+
+    private static String batchUrl(Function<UriBuilder, URI> uriFunction) {
+        // Batch entry URLs are relative to the server base, without the leading slash
+        return uriFunction.apply(UriComponentsBuilder.newInstance()).toString().substring(1);
+    }
+
+    /**
+     * Describes a section that runs a FHIR search and streams the resulting
+     * Bundle, rendering each entry of the expected type into one buffer that
+     * starts with the section heading as soon as it has been read. Neither the
+     * raw Bundle JSON nor the full HAPI Bundle is held in memory. {@code next}
+     * pages are followed until {@code fhir.search.max-entries} entries have been
+     * rendered. Fetch time, bytes read and entries rendered are recorded per
+     * resource type. With {@code fhir.store.enabled}, patients held in the local
+     * store are read from there with the equivalent query instead. With
+     * {@code fhir.revalidation.enabled}, an expired section is revalidated:
+     * see {@link #revalidate}. Otherwise, with
+     * {@code fhir.observations.series.enabled}, Observations read are also kept
+     * in the {@link ObservationSeriesStore}, and a window it covers is rendered
+     * from there without a search.
+     */
+    private <T extends IBaseResource> Section<T> searchSection(Target target,
+                                                               SectionKey key,
+                                                               String description,
+                                                               String unavailable,
+                                                               Function<UriBuilder, URI> uriFunction,
+                                                               StoreQuery storeQuery,
+                                                               Class<T> resourceType,
+                                                               String heading,
+                                                               BiConsumer<StringBuilder, T> renderer) {
+        Mono<String> fetch = metrics.timeFhirFetch(resourceType.getSimpleName(), Mono.defer(() -> {
+            if (sectionValidators.isEnabled()) {
+                Mono<String> remote = Mono.defer(() -> revalidate(target, key, uriFunction, resourceType, heading,
+                    renderer));
+                return !usesStore(target) ? remote
+                    : Mono.fromCallable(() -> patientStore.hasPatient(storeQuery.patientId()))
+                        .subscribeOn(Schedulers.boundedElastic())
+                        .flatMap(stored -> stored
+                            ? renderSection(readStore(storeQuery), resourceType, heading, renderer, new AtomicLong())
+                            : remote);
+            }
+            AtomicLong bytesRead = new AtomicLong();
+            Flux<IBaseResource> remote = Flux.defer(() -> readPages(target,
+                target.webClient().get().uri(uriFunction).retrieve().toEntityFlux(DataBuffer.class), bytesRead));
+            Flux<IBaseResource> resources = !usesStore(target) ? remote
+                : Mono.fromCallable(() -> patientStore.hasPatient(storeQuery.patientId()))
+                    .subscribeOn(Schedulers.boundedElastic())
+                    .flatMapMany(stored -> stored ? readStore(storeQuery) : remote);
+            if (!keepsSeries(resourceType, storeQuery)) {
+                return renderSection(resources, resourceType, heading, renderer, bytesRead);
             }
-            return "ACTIVE MEDICATIONS:\n" + medications.toString();
-                   
-        } catch (Exception e) {
-            logger.error("Error retrieving medications", e);
-            return "MEDICATIONS: Unable to retrieve\n\n";
+            ObservationSeries.Builder series = ObservationSeries.builder();
+            return renderSection(resources.doOnNext(resource -> {
+                    if (resource instanceof Observation observation) {
+                        series.add(observation);
+                    }
+                }), resourceType, heading, renderer, bytesRead)
+                .doOnNext(text -> observationSeries.put(key.tenant(), key.principal(), key.patientId(),
+                    storeQuery.category(), storeQuery.since(), series.build(), series.size() >= maxEntries));
+        }));
+        if (keepsSeries(resourceType, storeQuery)) {
+            Mono<String> search = fetch;
+            fetch = Mono.defer(() -> {
+                ObservationSeries stored = observationSeries.find(key.tenant(), key.principal(), key.patientId(),
+                    storeQuery.category(), storeQuery.since());
+                if (stored == null) {
+                    return search;
+                }
+                StringBuilder text = new StringBuilder(heading);
+                stored.render(text, storeQuery.since().toEpochDay(), maxEntries);
+                return Mono.just(text.toString());
+            });
         }
+        return new Section<>(key, description, unavailable, batchUrl(uriFunction), fetch,
+            resourceType, heading, renderer);
     }
 
-    private String getAllergies(String patientId) {
-        try {
-            String allergiesJson = webClient.get()
-                .uri(uriBuilder -> uriBuilder
-                    .path("/AllergyIntolerance")
-                    .queryParam("patient", patientId)
-                    .build())
-                .retrieve()
-                .bodyToMono(String.class)
-                .block();
-            logger.info("Allergies JSON: {}", allergiesJson);
-            Bundle bundle = FhirParserUtil.parseBundle(allergiesJson);
-            StringBuilder allergies = new StringBuilder();
-            for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
-                if (entry.hasResource() && entry.getResource() instanceof AllergyIntolerance) {
-                    AllergyIntolerance allergyIntolerance = (AllergyIntolerance) entry.getResource();
-                    allergies.append(FhirParserUtil.formatAllergy(allergyIntolerance));
+    private boolean keepsSeries(Class<?> resourceType, StoreQuery storeQuery) {
+        return observationSeries.isEnabled() && resourceType == Observation.class && storeQuery.category() != null
+            && storeQuery.since() != null;
+    }
+
+    /**
+     * Runs a section's search with its previous fetch as the validator: the
+     * whole search with {@code If-None-Match} if the server sent an ETag for
+     * it, otherwise only resources updated since ({@code _lastUpdated=gt}),
+     * which are merged into the previous text. Without a validator, or once
+     * {@code fhir.revalidation.max-age} has passed, the search is run in full
+     * and its ETag and entries are kept for next time.
+     */
+    private <T extends IBaseResource> Mono<String> revalidate(Target target,
+                                                              SectionKey key,
+                                                              Function<UriBuilder, URI> uriFunction,
+                                                              Class<T> resourceType,
+                                                              String heading,
+                                                              BiConsumer<StringBuilder, T> renderer) {
+        SectionValidators.Validator previous = sectionValidators.get(key);
+        Instant fetchStart = Instant.now();
+        boolean incremental = previous != null && previous.etag() == null;
+        AtomicLong bytesRead = new AtomicLong();
+        AtomicReference<String> etag = new AtomicReference<>();
+        AtomicBoolean notModified = new AtomicBoolean();
+        Mono<ResponseEntity<Flux<DataBuffer>>> firstPage = target.webClient().get()
+            .uri(!incremental ? uriFunction : uriBuilder -> uriFunction.apply(
+                uriBuilder.queryParam("_lastUpdated", "gt" + DateTimeFormatter.ISO_INSTANT.format(previous.since()))))
+            .headers(headers -> {
+                if (previous != null && previous.etag() != null) {
+                    headers.setIfNoneMatch(previous.etag());
                 }
-            }
-            return "ALLERGIES:\n" + allergies.toString();
-                   
-        } catch (Exception e) {
-            logger.error("Error retrieving allergies", e);
-            return "ALLERGIES: Unable to retrieve\n\n";
+            })
+            .retrieve()
+            .toEntityFlux(DataBuffer.class)
+            .filter(response -> {
+                etag.set(response.getHeaders().getETag());
+                if (response.getStatusCode().value() == HttpStatus.NOT_MODIFIED.value()) {
+                    notModified.set(true);
+                    response.getBody().subscribe();
+                    return false;
+                }
+                return true;
+            });
+        return renderEntries(readPages(target, firstPage, bytesRead), resourceType, renderer, bytesRead)
+            .map(entries -> {
+                if (previous != null && (notModified.get() || (incremental && entries.isEmpty()))) {
+                    return sectionValidators.recordNotModified(key, previous, fetchStart, bytesRead.get());
+                }
+                if (incremental) {
+                    return sectionValidators.recordMerged(key, previous, fetchStart, entries, maxEntries,
+                        bytesRead.get());
+                }
+                return sectionValidators.recordFull(key, previous, etag.get(), fetchStart, heading, entries,
+                    bytesRead.get());
+            });
+    }
+
+    /**
+     * Renders one batch-response entry's resources; with revalidation, they
+     * are kept as the section's validator like a separate search's.
+     */
+    private <T extends IBaseResource> Mono<String> renderSection(Section<T> section,
+                                                                 Flux<IBaseResource> resources,
+                                                                 AtomicLong bytesRead,
+                                                                 Instant fetchStart) {
+        if (!sectionValidators.isEnabled()) {
+            return renderSection(resources, section.resourceType(), section.heading(), section.renderer(), bytesRead);
         }
+        return renderEntries(resources, section.resourceType(), section.renderer(), bytesRead)
+            .map(entries -> sectionValidators.recordFull(section.key(), null, null, fetchStart, section.heading(),
+                entries, bytesRead.get()));
     }
 
-    private String getVitalSigns(String patientId, int months) {
-        LocalDate cutoffDate = LocalDate.now().minusMonths(months);
-        String dateParam = cutoffDate.format(DateTimeFormatter.ISO_DATE);
-        
+    /**
+     * Like {@link #renderSection}, but renders each resource on its own, keyed
+     * by resource id in section order, so entries can be replaced later.
+     */
+    private <T extends IBaseResource> Mono<Map<String, String>> renderEntries(Flux<IBaseResource> resources,
+                                                                            Class<T> resourceType,
+                                                                            BiConsumer<StringBuilder, T> renderer,
+                                                                            AtomicLong bytesRead) {
+        return resources
+            .ofType(resourceType)
+            .take(maxEntries)
+            .collect(LinkedHashMap<String, String>::new, (entries, resource) -> {
+                String id = resource.getIdElement().getIdPart();
+                entries.put(id != null ? id : "#" + entries.size(), renderEntry(resource, renderer));
+            })
+            .<Map<String, String>>map(entries -> entries)
+            .doOnNext(entries -> metrics.recordFhirPayload(resourceType.getSimpleName(), bytesRead.get(),
+                entries.size()));
+    }
+
+    private static <T extends IBaseResource> String renderEntry(T resource, BiConsumer<StringBuilder, T> renderer) {
+        StringBuilder entry = new StringBuilder();
+        renderer.accept(entry, resource);
+        return entry.toString();
+    }
+
+    private <T extends IBaseResource> Mono<String> renderSection(Flux<IBaseResource> resources,
+                                                                 Class<T> resourceType,
+                                                                 String heading,
+                                                                 BiConsumer<StringBuilder, T> renderer,
+                                                                 AtomicLong bytesRead) {
+        String resource = resourceType.getSimpleName();
+        AtomicInteger entries = new AtomicInteger();
+        return resources
+            .ofType(resourceType)
+            .take(maxEntries)
+            .doOnNext(entry -> entries.incrementAndGet())
+            .collect(() -> new StringBuilder(heading), renderer)
+            .map(StringBuilder::toString)
+            .doOnNext(text -> metrics.recordFhirPayload(resource, bytesRead.get(), entries.get()));
+    }
+
+    /**
+     * Streams the resources of one Bundle page followed by those of the pages
+     * after it. The request for the next page is sent as soon as its link has
+     * been read, so the server builds it while this page is still being
+     * formatted; its body is only consumed once this page is done.
+     */
+    private Flux<IBaseResource> readPages(Target target, Mono<ResponseEntity<Flux<DataBuffer>>> page,
+                                          AtomicLong bytesRead) {
+        return Flux.defer(() -> {
+            AtomicReference<Mono<ResponseEntity<Flux<DataBuffer>>>> nextPage = new AtomicReference<>();
+            return page
+                .flatMapMany(response -> FhirBundleStreamReader.readResources(
+                    response.getBody().doOnNext(buffer -> bytesRead.addAndGet(buffer.readableByteCount())),
+                    nextUrl -> nextPage.set(prefetchPage(target, nextUrl))))
+                .concatWith(Flux.defer(() -> {
+                    Mono<ResponseEntity<Flux<DataBuffer>>> next = nextPage.getAndSet(null);
+                    return next == null ? Flux.empty() : readPages(target, next, bytesRead);
+                }))
+                .doFinally(signal -> {
+                    // Entry cap reached or the section failed: drop the prefetched page
+                    Mono<ResponseEntity<Flux<DataBuffer>>> unread = nextPage.getAndSet(null);
+                    if (unread != null) {
+                        unread.subscribe(response -> response.getBody().subscribe().dispose(), e -> { });
+                    }
+                });
+        });
+    }
+
+    private Flux<IBaseResource> readStore(StoreQuery storeQuery) {
+        return Mono.fromCallable(() -> patientStore.search(storeQuery, maxEntries))
+            .subscribeOn(Schedulers.boundedElastic())
+            .flatMapIterable(resources -> resources)
+            .map(FhirParserUtil::parseResource);
+    }
+
+    /**
+     * Sends the request for a {@code next} page, resolved against the tenant's
+     * base URL. Links that leave the tenant's server are not followed, as the
+     * request would carry the chat's access token: paging stops there and null
+     * is returned.
+     */
+    private Mono<ResponseEntity<Flux<DataBuffer>>> prefetchPage(Target target, String nextUrl) {
+        URI base = URI.create(target.tenant().baseUrl() + "/");
+        URI link;
         try {
-            String vitalsJson = webClient.get()
-                .uri(uriBuilder -> uriBuilder
-                    .path("/Observation")
-                    .queryParam("patient", patientId)
-                    .queryParam("category", "vital-signs")
-                //    .queryParam("date", "ge" + dateParam)
-                    .build())
-                .retrieve()
-                .bodyToMono(String.class)
-                .block();
-            logger.info("Vitals JSON: {}", vitalsJson);
-            Bundle bundle = FhirParserUtil.parseBundle(vitalsJson);
-            StringBuilder vitals = new StringBuilder();
-            for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
-                if (entry.hasResource() && entry.getResource() instanceof Observation) {
-                    Observation observation = (Observation) entry.getResource();
-                    vitals.append(FhirParserUtil.formatObservation(observation));   
-                }
-            }
-            return "VITAL SIGNS (LAST " + months + " MONTHS):\n" +
-                   vitals.toString();
-                   
-        } catch (Exception e) {
-            logger.error("Error retrieving vital signs", e);
-            return "VITAL SIGNS: Unable to retrieve\n\n";
+            link = base.resolve(nextUrl).normalize();
+        } catch (IllegalArgumentException e) {
+            logger.warn("Not following malformed next link of tenant {}: {}", target.tenant().id(), nextUrl);
+            return null;
+        }
+        if (!isUnder(link, base)) {
+            logger.warn("Not following next link outside tenant {}'s server {}: {}", target.tenant().id(),
+                target.tenant().baseUrl(), nextUrl);
+            return null;
         }
+        Mono<ResponseEntity<Flux<DataBuffer>>> next = target.webClient().get()
+            .uri(link)
+            .retrieve()
+            .toEntityFlux(DataBuffer.class)
+            .cache();
+        // Errors are replayed to whoever reads the page, so nothing to do here
+        next.subscribe(response -> { }, e -> { });
+        return next;
     }
 
-    private boolean containsKeyword(String query, String... keywords) {
-        String lowercaseQuery = query.toLowerCase();
-        for (String keyword : keywords) {
-            if (lowercaseQuery.contains(keyword.toLowerCase())) {
-                return true;
-            }
+    /**
+     * Whether the link has the base URL's scheme, host and port, and a path
+     * at or below its path.
+     */
+    private static boolean isUnder(URI link, URI base) {
+        if (link.getScheme() == null || !link.getScheme().equalsIgnoreCase(base.getScheme())
+                || link.getHost() == null || !link.getHost().equalsIgnoreCase(base.getHost())
+                || port(link) != port(base) || link.getRawUserInfo() != null) {
+            return false;
         }
-        return false;
+        String basePath = base.getRawPath();
+        String path = link.getRawPath() == null ? "" : link.getRawPath();
+        return path.startsWith(basePath) || path.equals(basePath.substring(0, basePath.length() - 1));
     }
 
-    private int extractTimeframe(String query, int defaultMonths) {
-        // Look for patterns like "last 2 months", "past 3 weeks", etc.
-        Pattern pattern = Pattern.compile("(last|past)\\s+(\\d+)\\s+(month|months|week|weeks|day|days)");
-        Matcher matcher = pattern.matcher(query.toLowerCase());
-        
-        if (matcher.find()) {
-            int amount = Integer.parseInt(matcher.group(2));
-            String unit = matcher.group(3);
-            
-            if (unit.startsWith("week")) {
-                return Math.max(1, amount / 4); // Convert weeks to approximate months
-            } else if (unit.startsWith("day")) {
-                return Math.max(1, amount / 30); // Convert days to approximate months
-            } else {
-                return amount; // Already in months
-            }
+    private static int port(URI uri) {
+        if (uri.getPort() != -1) {
+            return uri.getPort();
+        }
+        return "https".equalsIgnoreCase(uri.getScheme()) ? 443 : 80;
+    }
+
+    /**
+     * The tenant a chat's sections come from, the principal of the chat's
+     * access token if it has one, and the WebClient to fetch them with, which
+     * carries that token.
+     */
+    private record Target(Tenant tenant, String principal, WebClient webClient) {
+    }
+
+    /**
+     * One section of the fetch plan: its cache key, how to fetch it on its own,
+     * the relative URL of the same search as a batch entry, and how to render
+     * the resources it returns.
+     */
+    private record Section<T extends IBaseResource>(SectionKey key, String description, String unavailable,
+                                                    String batchUrl, Mono<String> fetch, Class<T> resourceType,
+                                                    String heading, BiConsumer<StringBuilder, T> renderer) {
+    }
+
+    /**
+     * The FHIR server does not accept batch Bundles; sections are fetched separately.
+     */
+    static class BatchNotSupportedException extends RuntimeException {
+
+        BatchNotSupportedException(String message) {
+            super(message);
+        }
+
+        BatchNotSupportedException(String message, Throwable cause) {
+            super(message, cause);
         }
-        
-        return defaultMonths;
     }
-}
\ No newline at end of file
+}
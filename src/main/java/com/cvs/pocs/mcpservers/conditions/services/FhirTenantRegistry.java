@@ -0,0 +1,292 @@
+package com.cvs.pocs.mcpservers.conditions.services;
+
+import com.cvs.pocs.mcpservers.conditions.config.UpstreamHttpClients;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Mono;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The FHIR servers one instance serves, each with a WebClient over a
+ * connection pool and guards of its own, so one slow EHR cannot take the
+ * connections or trip the breaker of another.
+ * <p>
+ * A chat names its server by tenant id, configured as
+ * {@code fhir.tenants.<id>.url} and tuned under {@code fhir.tenants.<id>.http.*}
+ * and {@code .resilience.*} (falling back to {@code fhir.http.*} and
+ * {@code fhir.resilience.*}), or by FHIR base URL, which must start with one
+ * of {@code fhir.tenants.allowed-urls}; with neither, the
+ * {@code fhir.server.url} server is used as the {@value #DEFAULT_TENANT}
+ * tenant. Clients other than the default one are created on first use and
+ * kept for at most {@code fhir.tenants.max-clients} tenants, the least
+ * recently used being evicted first, or until idle for
+ * {@code fhir.tenants.idle-timeout}. An evicted client is closed once the
+ * chats using it are done, and no sooner than {@code fhir.tenants.close-grace}
+ * after eviction, for chats that resolved the tenant just before.
+ * <p>
+ * Data a chat fetches with its own access token is only cached for that
+ * token: caches key it by the token's {@link #principal}, next to the tenant.
+ */
+@Component
+public class FhirTenantRegistry {
+
+    private static final Logger logger = LoggerFactory.getLogger(FhirTenantRegistry.class);
+
+    public static final String DEFAULT_TENANT = "default";
+
+    private final WebClient.Builder webClientBuilder;
+    private final UpstreamHttpClients httpClients;
+    private final Environment environment;
+    private final List<String> allowedUrls;
+    private final Tenant defaultTenant;
+    private final Cache<String, Tenant> tenants;
+    private final AtomicLong evictions = new AtomicLong();
+
+    public FhirTenantRegistry(@Value("${fhir.server.url}") String fhirServerUrl,
+                              @Value("${fhir.tenants.allowed-urls:}") List<String> allowedUrls,
+                              @Value("${fhir.tenants.max-clients:20}") long maxClients,
+                              @Value("${fhir.tenants.idle-timeout:30m}") Duration idleTimeout,
+                              @Value("${fhir.tenants.close-grace:5s}") Duration closeGrace,
+                              WebClient.Builder webClientBuilder,
+                              UpstreamHttpClients httpClients,
+                              Environment environment) {
+        this.webClientBuilder = webClientBuilder;
+        this.httpClients = httpClients;
+        this.environment = environment;
+        this.allowedUrls = allowedUrls.stream().filter(url -> !url.isBlank()).map(FhirTenantRegistry::normalize).toList();
+        String baseUrl = normalize(fhirServerUrl);
+        this.defaultTenant = new Tenant(DEFAULT_TENANT, baseUrl, webClientBuilder.clone()
+            .clientConnector(httpClients.connector("fhir", baseUrl))
+            .filter(httpClients.resilience("fhir"))
+            .baseUrl(baseUrl)
+            .build(), null);
+        this.tenants = Caffeine.newBuilder()
+            .maximumSize(maxClients)
+            .expireAfterAccess(idleTimeout)
+            .removalListener((String id, Tenant tenant, RemovalCause cause) -> {
+                if (tenant != null) {
+                    evictions.incrementAndGet();
+                    logger.info("Retiring FHIR client for tenant {} ({})", id, cause);
+                    tenant.client.removeMetrics();
+                    Mono.delay(closeGrace).subscribe(tick -> tenant.retire());
+                }
+            })
+            .build();
+    }
+
+    public Tenant defaultTenant() {
+        return defaultTenant;
+    }
+
+    /**
+     * The tenant a request names by id or, failing that, by FHIR base URL;
+     * the default tenant if it names neither.
+     *
+     * @throws UnknownTenantException if the id is not configured or the URL not allowed
+     */
+    public Tenant resolve(String tenantId, String fhirServerUrl) {
+        if (tenantId != null && !tenantId.isBlank()) {
+            if (tenantId.equals(DEFAULT_TENANT)) {
+                return defaultTenant;
+            }
+            String url = environment.getProperty("fhir.tenants." + tenantId + ".url");
+            if (url == null) {
+                throw new UnknownTenantException("Unknown FHIR tenant: " + tenantId);
+            }
+            return tenants.get(tenantId, id -> create(id, normalize(url)));
+        }
+        if (fhirServerUrl == null || fhirServerUrl.isBlank()) {
+            return defaultTenant;
+        }
+        String url = normalize(fhirServerUrl);
+        if (url.equals(defaultTenant.baseUrl)) {
+            return defaultTenant;
+        }
+        // Whole path segments only, so https://ehr.example.com does not allow https://ehr.example.com.evil.net
+        if (allowedUrls.stream().noneMatch(allowed -> url.equals(allowed) || url.startsWith(allowed + "/"))) {
+            throw new UnknownTenantException("FHIR server not allowed: " + url);
+        }
+        // Known by URL alone: the URL is the tenant id
+        return tenants.get(url, id -> create(id, url));
+    }
+
+    /**
+     * The patient id as {@link Tenant#qualify} scopes it for the tenant with
+     * this id, or for the default tenant if {@code tenantId} is null.
+     */
+    public static String qualify(String tenantId, String patientId) {
+        return tenantId == null || tenantId.equals(DEFAULT_TENANT) ? patientId : tenantId + "|" + patientId;
+    }
+
+    /**
+     * A digest of the access token a chat's FHIR calls are made with, scoping
+     * what is cached from them to requests with the same token; null without
+     * a token. The token itself is never kept.
+     */
+    public static String principal(String accessToken) {
+        if (accessToken == null || accessToken.isBlank()) {
+            return null;
+        }
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(accessToken.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest, 0, 16);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("clients", tenants.estimatedSize());
+        result.put("tenants", List.copyOf(tenants.asMap().keySet()));
+        result.put("evictions", evictions.get());
+        return result;
+    }
+
+    private Tenant create(String id, String baseUrl) {
+        UpstreamHttpClients.TenantClient client = httpClients.tenantClient("fhir", id, baseUrl);
+        logger.info("Created FHIR client for tenant {} at {}", id, baseUrl);
+        return new Tenant(id, baseUrl, webClientBuilder.clone()
+            .clientConnector(client.connector())
+            .filter(client.resilience())
+            .baseUrl(baseUrl)
+            .build(), client);
+    }
+
+    private static String normalize(String url) {
+        String trimmed = url.trim();
+        return trimmed.endsWith("/") ? trimmed.substring(0, trimmed.length() - 1) : trimmed;
+    }
+
+    /**
+     * One FHIR server and its client. Whether the server accepts batch
+     * Bundles is learned per tenant.
+     */
+    public static final class Tenant {
+
+        private final String id;
+        private final String baseUrl;
+        private final WebClient webClient;
+        private final UpstreamHttpClients.TenantClient client;
+        // Cleared the first time the server rejects a batch; searches are then sent separately
+        private volatile boolean batchSupported = true;
+        // Chats running on the client; a retired client is closed when the last one is done
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private volatile boolean retired;
+
+        private Tenant(String id, String baseUrl, WebClient webClient, UpstreamHttpClients.TenantClient client) {
+            this.id = id;
+            this.baseUrl = baseUrl;
+            this.webClient = webClient;
+            this.client = client;
+        }
+
+        public String id() {
+            return id;
+        }
+
+        public String baseUrl() {
+            return baseUrl;
+        }
+
+        public WebClient webClient() {
+            return webClient;
+        }
+
+        public boolean isDefault() {
+            return client == null;
+        }
+
+        /**
+         * Scopes a patient id to the tenant, for caches keyed by patient alone;
+         * the default tenant's ids are left as they are.
+         */
+        public String qualify(String patientId) {
+            return FhirTenantRegistry.qualify(id, patientId);
+        }
+
+        /**
+         * Like {@link #qualify(String)}, further scoped to the {@link #principal}
+         * of the access token the patient's data is fetched with, if any.
+         */
+        public String qualify(String patientId, String accessToken) {
+            String principal = principal(accessToken);
+            return principal == null ? qualify(patientId) : qualify(patientId) + "#" + principal;
+        }
+
+        /**
+         * Runs a chat's calls to the tenant's server, keeping the client open
+         * until they are done even if the tenant is evicted meanwhile.
+         */
+        public <T> Mono<T> track(Mono<T> calls) {
+            return Mono.defer(() -> {
+                inFlight.incrementAndGet();
+                return calls.doFinally(signal -> {
+                    if (inFlight.decrementAndGet() == 0 && retired) {
+                        close();
+                    }
+                });
+            });
+        }
+
+        private void retire() {
+            retired = true;
+            if (inFlight.get() == 0) {
+                close();
+            }
+        }
+
+        private void close() {
+            if (client != null && closed.compareAndSet(false, true)) {
+                logger.info("Closing FHIR client for tenant {}", id);
+                client.dispose();
+            }
+        }
+
+        boolean isClosed() {
+            return client != null && client.isDisposed();
+        }
+
+        boolean isBatchSupported() {
+            return batchSupported;
+        }
+
+        /**
+         * Returns whether batches were thought supported until now.
+         */
+        boolean markBatchUnsupported() {
+            boolean was = batchSupported;
+            batchSupported = false;
+            return was;
+        }
+    }
+
+    /**
+     * A request named a FHIR tenant or server this instance does not serve.
+     */
+    public static class UnknownTenantException extends RuntimeException {
+
+        public UnknownTenantException(String message) {
+            super(message);
+        }
+    }
+}
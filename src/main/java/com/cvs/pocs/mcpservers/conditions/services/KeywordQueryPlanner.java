@@ -0,0 +1,161 @@
+package com.cvs.pocs.mcpservers.conditions.services;
+
+import com.cvs.pocs.mcpservers.conditions.services.FetchPlan.Section;
+import com.cvs.pocs.mcpservers.conditions.util.KeywordMatcher;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Plans a chat's fetches from the words in the query. Each section has a
+ * vocabulary ({@code mcp.query.keywords.<section>}) and a section is fetched if
+ * any of its keywords occurs as a whole word, so "med" no longer matches
+ * "medical history". A time window such as "last 2 months" or "past 3 weeks"
+ * narrows the lab and vital sign searches. All keywords are compiled into one
+ * {@link KeywordMatcher}, which reads the query once, and the plans of the
+ * most frequent queries are kept ({@code mcp.query.plan-cache.maximum-size}).
+ */
+@Component
+public class KeywordQueryPlanner implements QueryPlanner {
+
+    static final int DEFAULT_LAB_MONTHS = 3;
+    static final int DEFAULT_VITAL_MONTHS = 1;
+
+    private static final String LAB_KEYWORDS = "lab,labs,laboratory,test,tests,result,results";
+    private static final String CONDITION_KEYWORDS = "condition,conditions,diagnosis,diagnoses,problem,problems";
+    private static final String MEDICATION_KEYWORDS =
+        "medication,medications,med,meds,drug,drugs,prescription,prescriptions";
+    private static final String ALLERGY_KEYWORDS = "allergy,allergies,allergic";
+    private static final String VITAL_KEYWORDS = "vital,vitals,sign,signs,blood pressure,heart rate";
+
+    // What a keyword stands for: a section, or the start of a time window ("last", "past")
+    private record Term(Section section) {
+    }
+
+    private static final Term WINDOW = new Term(null);
+
+    private final KeywordMatcher<Term> matcher;
+    private final Cache<String, FetchPlan> plans;
+
+    @Autowired
+    public KeywordQueryPlanner(@Value("${mcp.query.keywords.labs:" + LAB_KEYWORDS + "}") List<String> labs,
+                               @Value("${mcp.query.keywords.conditions:" + CONDITION_KEYWORDS + "}") List<String> conditions,
+                               @Value("${mcp.query.keywords.medications:" + MEDICATION_KEYWORDS + "}") List<String> medications,
+                               @Value("${mcp.query.keywords.allergies:" + ALLERGY_KEYWORDS + "}") List<String> allergies,
+                               @Value("${mcp.query.keywords.vitals:" + VITAL_KEYWORDS + "}") List<String> vitals,
+                               @Value("${mcp.query.plan-cache.maximum-size:1000}") long planCacheSize) {
+        Map<Term, List<String>> vocabulary = new LinkedHashMap<>();
+        vocabulary.put(new Term(Section.LABS), labs);
+        vocabulary.put(new Term(Section.CONDITIONS), conditions);
+        vocabulary.put(new Term(Section.MEDICATIONS), medications);
+        vocabulary.put(new Term(Section.ALLERGIES), allergies);
+        vocabulary.put(new Term(Section.VITALS), vitals);
+        vocabulary.put(WINDOW, List.of("last", "past"));
+        this.matcher = KeywordMatcher.of(vocabulary);
+        this.plans = Caffeine.newBuilder()
+            .maximumSize(planCacheSize)
+            .recordStats()
+            .build();
+    }
+
+    /**
+     * Planner with the default vocabulary, e.g. for benchmarks.
+     */
+    public KeywordQueryPlanner() {
+        this(split(LAB_KEYWORDS), split(CONDITION_KEYWORDS), split(MEDICATION_KEYWORDS),
+            split(ALLERGY_KEYWORDS), split(VITAL_KEYWORDS), 1000);
+    }
+
+    @Override
+    public FetchPlan plan(String query) {
+        return plans.get(query, this::compile);
+    }
+
+    @Override
+    public Map<String, Object> getStats() {
+        CacheStats stats = plans.stats();
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("size", plans.estimatedSize());
+        result.put("hits", stats.hitCount());
+        result.put("misses", stats.missCount());
+        result.put("hitRate", stats.hitRate());
+        return result;
+    }
+
+    /**
+     * Plans the query without the cache: one pass of the keyword matcher.
+     */
+    FetchPlan compile(String query) {
+        EnumSet<Section> sections = EnumSet.noneOf(Section.class);
+        int[] windowMonths = {-1};
+        matcher.scan(query, (term, start, end) -> {
+            if (term != WINDOW) {
+                sections.add(term.section());
+            } else if (windowMonths[0] < 0) {
+                // The first complete window wins
+                windowMonths[0] = windowMonths(query, end);
+            }
+        });
+        return windowMonths[0] < 0
+            ? new FetchPlan(sections, DEFAULT_LAB_MONTHS, DEFAULT_VITAL_MONTHS)
+            : new FetchPlan(sections, windowMonths[0], windowMonths[0]);
+    }
+
+    /**
+     * Reads the "2 months" after a "last" or "past" ending at {@code from}, in
+     * months (weeks and days round down, to at least one); -1 if there is none.
+     */
+    private static int windowMonths(String query, int from) {
+        int digits = skipSpaces(query, from);
+        if (digits == from) {
+            return -1;
+        }
+        int i = digits;
+        int amount = 0;
+        while (i < query.length() && Character.isDigit(query.charAt(i)) && i - digits < 6) {
+            amount = amount * 10 + Character.digit(query.charAt(i), 10);
+            i++;
+        }
+        if (i == digits) {
+            return -1;
+        }
+        int unit = skipSpaces(query, i);
+        if (unit == i) {
+            return -1;
+        }
+        int end = unit;
+        while (end < query.length() && Character.isLetter(query.charAt(end))) {
+            end++;
+        }
+        String word = query.substring(unit, end).toLowerCase();
+        switch (word) {
+            case "month", "months":
+                return amount;
+            case "week", "weeks":
+                return Math.max(1, amount / 4);
+            case "day", "days":
+                return Math.max(1, amount / 30);
+            default:
+                return -1;
+        }
+    }
+
+    private static int skipSpaces(String query, int i) {
+        while (i < query.length() && Character.isWhitespace(query.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static List<String> split(String keywords) {
+        return List.of(keywords.split(","));
+    }
+}
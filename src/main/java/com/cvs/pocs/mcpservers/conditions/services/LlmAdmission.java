@@ -0,0 +1,371 @@
+package com.cvs.pocs.mcpservers.conditions.services;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Admission control in front of the LLM API, so one clinician or script
+ * firing bulk questions cannot use up the rate quota and starve everyone
+ * else. At most {@code llm.admission.max-concurrent-calls} calls run at once,
+ * and each call takes its estimated tokens (prompt plus {@code llm.max-tokens})
+ * from a bucket refilled at {@code llm.admission.tokens-per-minute}.
+ * <p>
+ * Calls that cannot start at once wait in a queue per user. Users are served
+ * round-robin, one call each in turn, so a user with a hundred queued calls
+ * delays another user's single call by at most one call. Urgent calls are
+ * served before routine ones. A call is rejected with
+ * {@link AdmissionRejectedException} when its user already has
+ * {@code llm.admission.queue-capacity-per-user} calls waiting, when
+ * {@code llm.admission.queue-capacity} calls are waiting in all, or when it
+ * has waited longer than {@code llm.admission.max-wait}.
+ * <p>
+ * When disabled every call starts at once, leaving only the
+ * {@link com.cvs.pocs.mcpservers.conditions.config.ResilienceFilter} bulkhead;
+ * keep {@code max-concurrent-calls} at or below its limit so admitted calls
+ * are not refused there.
+ */
+@Component
+public class LlmAdmission {
+
+    public enum Priority {
+        URGENT, ROUTINE
+    }
+
+    private final boolean enabled;
+    private final int maxConcurrentCalls;
+    private final long tokensPerMinute;
+    private final int queueCapacity;
+    private final int queueCapacityPerUser;
+    private final Duration maxWait;
+    private final PipelineMetrics metrics;
+
+    // Guarded by this
+    private final Map<Priority, Map<String, ArrayDeque<Waiter>>> queues = new EnumMap<>(Priority.class);
+    private final Map<Priority, ArrayDeque<String>> turns = new EnumMap<>(Priority.class);
+    private final Map<Priority, Integer> queued = new EnumMap<>(Priority.class);
+    private int inFlight;
+    private double tokens;
+    private long refilledAt = System.nanoTime();
+    private Disposable refillTimer;
+
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong waited = new AtomicLong();
+    private final Map<String, AtomicLong> rejected = new LinkedHashMap<>();
+
+    public LlmAdmission(@Value("${llm.admission.enabled:false}") boolean enabled,
+                        @Value("${llm.admission.max-concurrent-calls:40}") int maxConcurrentCalls,
+                        @Value("${llm.admission.tokens-per-minute:0}") long tokensPerMinute,
+                        @Value("${llm.admission.queue-capacity:500}") int queueCapacity,
+                        @Value("${llm.admission.queue-capacity-per-user:20}") int queueCapacityPerUser,
+                        @Value("${llm.admission.max-wait:30s}") Duration maxWait,
+                        PipelineMetrics metrics) {
+        this.enabled = enabled;
+        this.maxConcurrentCalls = maxConcurrentCalls;
+        this.tokensPerMinute = tokensPerMinute;
+        this.queueCapacity = queueCapacity;
+        this.queueCapacityPerUser = queueCapacityPerUser;
+        this.maxWait = maxWait;
+        this.metrics = metrics;
+        this.tokens = tokensPerMinute;
+        for (Priority priority : Priority.values()) {
+            queues.put(priority, new HashMap<>());
+            turns.put(priority, new ArrayDeque<>());
+            queued.put(priority, 0);
+            metrics.registerAdmissionQueue(priority.name().toLowerCase(), () -> queueDepth(priority));
+        }
+        for (String reason : List.of("user-queue-full", "queue-full", "timeout")) {
+            rejected.put(reason, new AtomicLong());
+        }
+        metrics.registerAdmissionInFlight(this::getInFlight);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Runs {@code call} once admitted; the slot is held until it terminates
+     * or is cancelled.
+     *
+     * @param userId    whose queue the call waits in; {@code null} shares one anonymous queue
+     * @param estimatedTokens prompt and completion tokens the call may use
+     */
+    public <T> Mono<T> admit(String userId, Priority priority, int estimatedTokens, Supplier<Mono<T>> call) {
+        if (!enabled) {
+            return Mono.defer(call);
+        }
+        return acquire(userId, priority, estimatedTokens)
+            .flatMap(permit -> call.get().doFinally(signal -> permit.release()));
+    }
+
+    /**
+     * Streaming form of {@link #admit(String, Priority, int, Supplier)}.
+     */
+    public <T> Flux<T> admitMany(String userId, Priority priority, int estimatedTokens, Supplier<Flux<T>> call) {
+        if (!enabled) {
+            return Flux.defer(call);
+        }
+        return acquire(userId, priority, estimatedTokens)
+            .flatMapMany(permit -> call.get().doFinally(signal -> permit.release()));
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("enabled", enabled);
+        synchronized (this) {
+            result.put("inFlight", inFlight);
+            result.put("queued", queuedTotal());
+            result.put("queuedUsers", turns.values().stream().mapToInt(ArrayDeque::size).sum());
+            if (tokensPerMinute > 0) {
+                refill(System.nanoTime());
+                result.put("tokensAvailable", (long) tokens);
+            }
+        }
+        result.put("admitted", admitted.get());
+        result.put("waited", waited.get());
+        Map<String, Long> rejections = new LinkedHashMap<>();
+        rejected.forEach((reason, count) -> rejections.put(reason, count.get()));
+        result.put("rejected", rejections);
+        return result;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    private Mono<Permit> acquire(String userId, Priority priority, int estimatedTokens) {
+        String user = userId == null || userId.isBlank() ? "anonymous" : userId;
+        // A call costing more than a minute's budget would never start; it waits for a full bucket instead
+        long cost = tokensPerMinute > 0 ? Math.min(Math.max(estimatedTokens, 1), tokensPerMinute) : 0;
+        return Mono.<Permit>create(sink -> {
+                Waiter waiter = new Waiter(user, priority, cost, sink, System.nanoTime());
+                sink.onCancel(() -> cancel(waiter));
+                enqueue(waiter);
+            })
+            .timeout(maxWait, Mono.error(() -> reject("timeout",
+                "LLM call for " + user + " not admitted within " + maxWait.toMillis() + " ms")))
+            // Granted just as the caller gave up
+            .doOnDiscard(Permit.class, Permit::release);
+    }
+
+    private void enqueue(Waiter waiter) {
+        List<Waiter> granted;
+        String rejection = null;
+        synchronized (this) {
+            ArrayDeque<Waiter> userQueue = queues.get(waiter.priority).get(waiter.user);
+            if (userQueue != null && userQueue.size() >= queueCapacityPerUser) {
+                rejection = "user-queue-full";
+            } else if (queuedTotal() >= queueCapacity) {
+                rejection = "queue-full";
+            } else {
+                if (userQueue == null) {
+                    userQueue = new ArrayDeque<>();
+                    queues.get(waiter.priority).put(waiter.user, userQueue);
+                    turns.get(waiter.priority).addLast(waiter.user);
+                }
+                userQueue.addLast(waiter);
+                queued.merge(waiter.priority, 1, Integer::sum);
+            }
+            granted = dispatch();
+        }
+        if (rejection != null) {
+            waiter.done.set(true);
+            waiter.sink.error(reject(rejection, rejection.equals("user-queue-full")
+                ? waiter.user + " already has " + queueCapacityPerUser + " LLM calls queued"
+                : "LLM admission queue is full: " + queueCapacity + " calls waiting"));
+        }
+        grant(granted);
+    }
+
+    private void cancel(Waiter waiter) {
+        if (!waiter.done.compareAndSet(false, true)) {
+            return;
+        }
+        List<Waiter> granted;
+        synchronized (this) {
+            ArrayDeque<Waiter> userQueue = queues.get(waiter.priority).get(waiter.user);
+            if (userQueue != null && userQueue.remove(waiter)) {
+                queued.merge(waiter.priority, -1, Integer::sum);
+                if (userQueue.isEmpty()) {
+                    queues.get(waiter.priority).remove(waiter.user);
+                    turns.get(waiter.priority).remove(waiter.user);
+                }
+            }
+            // The head of the queue may have been waiting for tokens this call would have taken first
+            granted = dispatch();
+        }
+        grant(granted);
+    }
+
+    private void release() {
+        List<Waiter> granted;
+        synchronized (this) {
+            inFlight--;
+            granted = dispatch();
+        }
+        grant(granted);
+    }
+
+    /**
+     * Takes waiters off the queues while there are free slots and tokens, by
+     * priority and then round-robin across users. Must hold the lock; the
+     * returned waiters are completed after it has been released.
+     */
+    private List<Waiter> dispatch() {
+        List<Waiter> granted = new ArrayList<>();
+        long now = System.nanoTime();
+        refill(now);
+        while (inFlight < maxConcurrentCalls) {
+            Waiter next = peekNext();
+            if (next == null) {
+                break;
+            }
+            if (next.cost > tokens) {
+                scheduleRefill(next.cost - tokens);
+                break;
+            }
+            pollNext(next);
+            if (next.done.compareAndSet(false, true)) {
+                tokens -= next.cost;
+                inFlight++;
+                granted.add(next);
+            }
+        }
+        return granted;
+    }
+
+    private Waiter peekNext() {
+        for (Priority priority : Priority.values()) {
+            String user = turns.get(priority).peekFirst();
+            if (user != null) {
+                return queues.get(priority).get(user).peekFirst();
+            }
+        }
+        return null;
+    }
+
+    private void pollNext(Waiter waiter) {
+        ArrayDeque<String> userTurns = turns.get(waiter.priority);
+        ArrayDeque<Waiter> userQueue = queues.get(waiter.priority).get(waiter.user);
+        userQueue.pollFirst();
+        queued.merge(waiter.priority, -1, Integer::sum);
+        userTurns.pollFirst();
+        if (userQueue.isEmpty()) {
+            queues.get(waiter.priority).remove(waiter.user);
+        } else {
+            // Back of the line for this user's next call
+            userTurns.addLast(waiter.user);
+        }
+    }
+
+    private void grant(List<Waiter> granted) {
+        for (Waiter waiter : granted) {
+            long waitNanos = System.nanoTime() - waiter.enqueuedAt;
+            admitted.incrementAndGet();
+            if (waitNanos > TimeUnit.MILLISECONDS.toNanos(1)) {
+                waited.incrementAndGet();
+            }
+            metrics.recordAdmissionWait(waiter.priority.name().toLowerCase(), waitNanos);
+            waiter.sink.success(new Permit());
+        }
+    }
+
+    private void refill(long now) {
+        if (tokensPerMinute <= 0) {
+            return;
+        }
+        tokens = Math.min(tokensPerMinute, tokens + (now - refilledAt) * tokensPerMinute / 60e9);
+        refilledAt = now;
+    }
+
+    private void scheduleRefill(double missingTokens) {
+        if (refillTimer != null && !refillTimer.isDisposed()) {
+            return;
+        }
+        long delayNanos = (long) Math.ceil(missingTokens * 60e9 / tokensPerMinute);
+        refillTimer = Schedulers.parallel().schedule(() -> {
+            List<Waiter> granted;
+            synchronized (this) {
+                refillTimer = null;
+                granted = dispatch();
+            }
+            grant(granted);
+        }, Math.max(delayNanos, TimeUnit.MILLISECONDS.toNanos(1)), TimeUnit.NANOSECONDS);
+    }
+
+    private int queuedTotal() {
+        return queued.values().stream().mapToInt(Integer::intValue).sum();
+    }
+
+    private synchronized int queueDepth(Priority priority) {
+        return queued.get(priority);
+    }
+
+    private AdmissionRejectedException reject(String reason, String message) {
+        rejected.get(reason).incrementAndGet();
+        metrics.recordAdmissionRejected(reason);
+        return new AdmissionRejectedException(message);
+    }
+
+    private static final class Waiter {
+
+        private final String user;
+        private final Priority priority;
+        private final long cost;
+        private final MonoSink<Permit> sink;
+        private final long enqueuedAt;
+        // Set once the waiter has been granted or given up, whichever comes first
+        private final AtomicBoolean done = new AtomicBoolean();
+
+        Waiter(String user, Priority priority, long cost, MonoSink<Permit> sink, long enqueuedAt) {
+            this.user = user;
+            this.priority = priority;
+            this.cost = cost;
+            this.sink = sink;
+            this.enqueuedAt = enqueuedAt;
+        }
+    }
+
+    /**
+     * One admitted call's slot, returned exactly once.
+     */
+    private final class Permit {
+
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        void release() {
+            if (released.compareAndSet(false, true)) {
+                LlmAdmission.this.release();
+            }
+        }
+    }
+
+    /**
+     * An LLM call turned away by admission control; the chat endpoints answer
+     * it with 429 rather than the fallback response.
+     */
+    public static class AdmissionRejectedException extends RuntimeException {
+
+        public AdmissionRejectedException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.cvs.pocs.mcpservers.conditions.services;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Cache of LLM completions keyed on the normalized clinician query, a SHA-256
+ * digest of the assembled patient data, the model and the sampling parameters.
+ * Changed patient data gives a new digest and so a miss; completions computed
+ * from the old data are no longer reached and age out with their TTL. Patient
+ * data with a section that could not be retrieved is not cached at all (see
+ * {@link #isComplete(String)}).
+ */
+@Component
+public class LlmCompletionCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(LlmCompletionCache.class);
+
+    // Heading suffix of a section FhirService could not retrieve
+    private static final String UNAVAILABLE_SUFFIX = ": Unable to retrieve";
+
+    private final boolean enabled;
+    private final Cache<CompletionKey, String> completions;
+
+    public LlmCompletionCache(@Value("${llm.cache.enabled:true}") boolean enabled,
+                              @Value("${llm.cache.maximum-size:1000}") long maximumSize,
+                              @Value("${llm.cache.ttl:15m}") Duration ttl) {
+        this.enabled = enabled;
+        this.completions = Caffeine.newBuilder()
+            .maximumSize(maximumSize)
+            .expireAfterWrite(ttl)
+            .recordStats()
+            .build();
+    }
+
+    /**
+     * Returns the cached completion for the key, or subscribes to the loader and
+     * stores its value. Errors from the loader are passed through uncached.
+     */
+    public Mono<String> get(CompletionKey key, Mono<String> loader) {
+        if (!enabled) {
+            return loader;
+        }
+        return Mono.defer(() -> {
+            String cached = completions.getIfPresent(key);
+            if (cached != null) {
+                logger.debug("LLM completion cache hit for patient ID: {}", key.patientId());
+                return Mono.just(cached);
+            }
+            return loader.doOnNext(completion -> completions.put(key, completion));
+        });
+    }
+
+    /**
+     * Drops the patient's completions, including those scoped to an access
+     * token ({@code <patientId>#<principal>}).
+     */
+    public void invalidatePatient(String patientId) {
+        String scoped = patientId + "#";
+        completions.asMap().keySet().removeIf(key ->
+            key.patientId().equals(patientId) || key.patientId().startsWith(scoped));
+    }
+
+    public Map<String, Object> getStats() {
+        CacheStats stats = completions.stats();
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("enabled", enabled);
+        result.put("size", completions.estimatedSize());
+        result.put("hits", stats.hitCount());
+        result.put("misses", stats.missCount());
+        result.put("evictions", stats.evictionCount());
+        result.put("hitRate", stats.hitRate());
+        return result;
+    }
+
+    public static CompletionKey key(String patientId, String clinicianQuery, String patientData,
+                                    String model, double temperature, int maxTokens) {
+        return new CompletionKey(patientId, normalize(clinicianQuery), digest(patientData), model, temperature, maxTokens);
+    }
+
+    /**
+     * Whether every section of the patient data was retrieved. An answer built
+     * around an "Unable to retrieve" section is not worth repeating once the
+     * FHIR server is back, so such completions are not cached.
+     */
+    public static boolean isComplete(String patientData) {
+        return !patientData.contains(UNAVAILABLE_SUFFIX + "\n") && !patientData.endsWith(UNAVAILABLE_SUFFIX);
+    }
+
+    static String normalize(String query) {
+        return query.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+    }
+
+    static String digest(String patientData) {
+        try {
+            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(sha256.digest(patientData.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    public record CompletionKey(String patientId, String query, String contextDigest,
+                                String model, double temperature, int maxTokens) {
+    }
+}
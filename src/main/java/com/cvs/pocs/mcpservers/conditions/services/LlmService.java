@@ -1,145 +1,382 @@
 package com.cvs.pocs.mcpservers.conditions.services;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.ParameterizedTypeReference;
 import org.springframework.http.MediaType;
+import org.springframework.http.codec.ServerSentEvent;
 import org.springframework.stereotype.Service;
 import org.springframework.web.reactive.function.BodyInserters;
 import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import com.cvs.pocs.mcpservers.conditions.config.ResilienceFilter;
+import com.cvs.pocs.mcpservers.conditions.config.UpstreamHttpClients;
+import com.cvs.pocs.mcpservers.conditions.util.PromptAssembler;
+import com.cvs.pocs.mcpservers.conditions.util.SingleFlight;
+import com.cvs.pocs.mcpservers.conditions.util.TokenEstimator;
 
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 @Service
 public class LlmService {
 
     private static final Logger logger = LoggerFactory.getLogger(LlmService.class);
 
-    @Value("${llm.api.url}")
-    private String llmApiUrl;
+    private static final String SYSTEM_PROMPT = "You are a clinical decision support assistant. " +
+        "Your role is to help healthcare providers interpret patient data " +
+        "and make informed decisions about potential conditions. " +
+        "Use the patient data provided to answer the clinician's question accurately. " +
+        "Make it clear when you're uncertain and avoid speculation. " +
+        "Format your response for easy reading in a clinical setting.";
+
+    // The system prompt, plus the few tokens the chat format adds around each message
+    private static final int FIXED_PROMPT_TOKENS = TokenEstimator.estimate(SYSTEM_PROMPT) + 12;
 
     @Value("${llm.api.key}")
     private String llmApiKey;
 
+    @Value("${llm.model:gpt-4}")
+    private String model;
+
+    @Value("${llm.temperature:0.2}")
+    private double temperature;
+
+    @Value("${llm.max-tokens:1000}")
+    private int maxTokens;
+
+    // Estimated tokens for the whole prompt: system prompt, query and patient data; 0 for no limit
+    @Value("${llm.prompt.token-budget:6000}")
+    private int promptTokenBudget;
+
+    @Autowired
+    private LlmCompletionCache completionCache;
+
+    private final PipelineMetrics metrics;
+    private final LlmAdmission admission;
+
+    private final SingleFlight<LlmCompletionCache.CompletionKey, String> completionFlights =
+        new SingleFlight<>("llm-completions");
+
     private final WebClient webClient;
     private final ObjectMapper objectMapper;
 
     @Autowired
-    public LlmService(WebClient.Builder webClientBuilder, ObjectMapper objectMapper) {
-        this.webClient = webClientBuilder.baseUrl(llmApiUrl).build();
+    public LlmService(WebClient.Builder webClientBuilder, UpstreamHttpClients httpClients, ObjectMapper objectMapper,
+                      PipelineMetrics metrics, LlmAdmission admission, @Value("${llm.api.url}") String llmApiUrl) {
+        this.webClient = webClientBuilder.clone()
+            .clientConnector(httpClients.connector("llm", llmApiUrl))
+            .filter(httpClients.resilience("llm"))
+            .baseUrl(llmApiUrl)
+            .build();
         this.objectMapper = objectMapper;
+        this.metrics = metrics;
+        this.admission = admission;
     }
 
     public String processQuery(String clinicianQuery, String patientData) {
-        try {
-            // Construct a prompt that includes the patient data and the clinician's query
-            String systemPrompt = "You are a clinical decision support assistant. " +
-                "Your role is to help healthcare providers interpret patient data " +
-                "and make informed decisions about potential conditions. " +
-                "Use the patient data provided to answer the clinician's question accurately. " +
-                "Make it clear when you're uncertain and avoid speculation. " +
-                "Format your response for easy reading in a clinical setting.";
-
-            String userPrompt = "CLINICIAN QUERY: " + clinicianQuery + "\n\n" +
-                               "PATIENT DATA:\n" + patientData;
-
-            // Create the request payload for the LLM API
-            Map<String, Object> requestBody = new HashMap<>();
-            requestBody.put("model", "gpt-4"); // Use appropriate model
-            
-            Map<String, String> systemMessage = new HashMap<>();
-            systemMessage.put("role", "system");
-            systemMessage.put("content", systemPrompt);
-            
-            Map<String, String> userMessage = new HashMap<>();
-            userMessage.put("role", "user");
-            userMessage.put("content", userPrompt);
-            
-            requestBody.put("messages", List.of(systemMessage, userMessage));
-            requestBody.put("temperature", 0.2); // Lower temperature for more predictable responses
-            requestBody.put("max_tokens", 1000);
+        return processQueryAsync(clinicianQuery, patientData).block();
+    }
+
+    /**
+     * Non-blocking form of {@link #processQuery}. Falls back to the mock
+     * response if the LLM API call or the response parsing fails, but not if
+     * {@link LlmAdmission} turned the call away.
+     */
+    public Mono<String> processQueryAsync(String clinicianQuery, String patientData) {
+        return callLlm(null, LlmAdmission.Priority.ROUTINE, clinicianQuery, patientData)
+            .onErrorResume(LlmService::isFallbackError, e -> {
+                logFallback("Error processing query with LLM", e);
+                metrics.recordLlmFallback("completion");
+                return Mono.just(mockResponse(clinicianQuery));
+            });
+    }
+
+    /**
+     * Same as {@link #processQueryAsync(String, String)}, but answers repeated
+     * questions about unchanged patient data from the completion cache unless
+     * {@code useCache} is false. Concurrent identical prompts share one LLM
+     * call either way. Mock fallback responses and answers from patient data
+     * missing a section are never cached.
+     */
+    public Mono<String> processQueryAsync(String patientId, String clinicianQuery, String patientData, boolean useCache) {
+        return processQueryAsync(patientId, null, LlmAdmission.Priority.ROUTINE, clinicianQuery, patientData, useCache);
+    }
+
+    /**
+     * Same as {@link #processQueryAsync(String, String, String, boolean)}, with
+     * the LLM call queued for admission as {@code userId} at {@code priority}.
+     * Cache hits are not queued. A caller sharing an identical call already in
+     * flight is still admitted on its own first, so it is never rejected,
+     * delayed or sped up by another user's queue; it holds its slot until the
+     * shared call returns.
+     */
+    public Mono<String> processQueryAsync(String patientId, String userId, LlmAdmission.Priority priority,
+                                          String clinicianQuery, String patientData, boolean useCache) {
+        if (patientId == null) {
+            return processQueryAsync(clinicianQuery, patientData);
+        }
+        LlmCompletionCache.CompletionKey key = LlmCompletionCache.key(
+            patientId, clinicianQuery, patientData, model, temperature, maxTokens);
+        Mono<String> call = admission.admit(userId, priority, estimatedTokens(clinicianQuery, patientData),
+            () -> completionFlights.execute(key, () -> requestCompletion(clinicianQuery, patientData)));
+        boolean cacheable = useCache && LlmCompletionCache.isComplete(patientData);
+        return (cacheable ? completionCache.get(key, call) : call)
+            .onErrorResume(LlmService::isFallbackError, e -> {
+                logFallback("Error processing query with LLM", e);
+                metrics.recordLlmFallback("completion");
+                return Mono.just(mockResponse(clinicianQuery));
+            });
+    }
+
+    public void invalidatePatient(String patientId) {
+        completionCache.invalidatePatient(patientId);
+    }
+
+    public Map<String, Object> getCacheStats() {
+        return completionCache.getStats();
+    }
+
+    public Map<String, Object> getCoalescingStats() {
+        return completionFlights.getStats();
+    }
+
+    public Map<String, Object> getAdmissionStats() {
+        return admission.getStats();
+    }
+
+    /**
+     * Cuts the patient data down to what fits in {@code llm.prompt.token-budget}
+     * next to the system prompt and the query; see {@link PromptAssembler}.
+     * The result lists what was left out so the caller can report it.
+     */
+    public PromptAssembler.Assembly fitPatientData(String clinicianQuery, String patientData) {
+        long startNanos = System.nanoTime();
+        int budget = promptTokenBudget <= 0 ? Integer.MAX_VALUE
+            : promptTokenBudget - FIXED_PROMPT_TOKENS - TokenEstimator.estimate(userPrompt(clinicianQuery, ""));
+        PromptAssembler.Assembly assembly = PromptAssembler.fit(patientData, budget);
+        metrics.recordPromptFit(System.nanoTime() - startNanos, assembly.tokens(),
+            assembly.omitted().values().stream().mapToInt(Integer::intValue).sum());
+        if (assembly.truncated()) {
+            logger.info("Patient data cut to ~{} tokens to fit the prompt budget, entries omitted: {}",
+                assembly.tokens(), assembly.omitted());
+        }
+        return assembly;
+    }
+
+    private Mono<String> callLlm(String userId, LlmAdmission.Priority priority, String clinicianQuery,
+                                 String patientData) {
+        return admission.admit(userId, priority, estimatedTokens(clinicianQuery, patientData),
+            () -> requestCompletion(clinicianQuery, patientData));
+    }
 
-            // Send request to LLM API
-            String responseJson = webClient.post()
+    private Mono<String> requestCompletion(String clinicianQuery, String patientData) {
+        return metrics.timeLlmCall("completion", Mono.defer(() -> {
+                // Create the request payload for the LLM API
+                Map<String, Object> requestBody = buildRequestBody(clinicianQuery, patientData);
+
+                // Send request to LLM API
+                return webClient.post()
+                    .headers(headers -> headers.set("Authorization", "Bearer " + llmApiKey))
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .body(BodyInserters.fromValue(requestBody))
+                    .retrieve()
+                    .bodyToMono(String.class);
+            })
+            .map(this::extractContent));
+    }
+
+    // What admission control charges a call: the whole prompt plus the longest completion allowed
+    private int estimatedTokens(String clinicianQuery, String patientData) {
+        return FIXED_PROMPT_TOKENS + TokenEstimator.estimate(userPrompt(clinicianQuery, patientData)) + maxTokens;
+    }
+
+    /**
+     * Streams the completion for the query token by token. Tokens are relayed as
+     * the LLM API sends them; the time to the first token is logged. If the API
+     * fails before any token has arrived, the mock response is emitted instead.
+     */
+    public Flux<String> streamQuery(String clinicianQuery, String patientData) {
+        return streamQuery(null, LlmAdmission.Priority.ROUTINE, clinicianQuery, patientData);
+    }
+
+    /**
+     * Same as {@link #streamQuery(String, String)}, with the stream queued for
+     * admission as {@code userId} at {@code priority}; its slot is held until
+     * the last token. A rejection is passed on rather than answered with the
+     * mock response.
+     */
+    public Flux<String> streamQuery(String userId, LlmAdmission.Priority priority, String clinicianQuery,
+                                    String patientData) {
+        return Flux.defer(() -> {
+            Map<String, Object> requestBody = buildRequestBody(clinicianQuery, patientData);
+            requestBody.put("stream", true);
+            long startNanos = System.nanoTime();
+            AtomicBoolean firstToken = new AtomicBoolean(true);
+
+            Flux<String> tokens = webClient.post()
                 .headers(headers -> headers.set("Authorization", "Bearer " + llmApiKey))
                 .contentType(MediaType.APPLICATION_JSON)
+                .accept(MediaType.TEXT_EVENT_STREAM)
                 .body(BodyInserters.fromValue(requestBody))
                 .retrieve()
-                .bodyToMono(String.class)
-                .block();
+                .bodyToFlux(new ParameterizedTypeReference<ServerSentEvent<String>>() { })
+                .mapNotNull(ServerSentEvent::data)
+                .takeWhile(data -> !"[DONE]".equals(data))
+                .map(this::extractDelta)
+                .filter(token -> !token.isEmpty());
+
+            // The time to first token includes any wait for admission, as the clinician sees it
+            return admission.admitMany(userId, priority, estimatedTokens(clinicianQuery, patientData),
+                    () -> metrics.timeLlmStream("stream", tokens))
+                .doOnNext(token -> {
+                    if (firstToken.compareAndSet(true, false)) {
+                        logger.info("LLM time to first token: {} ms", (System.nanoTime() - startNanos) / 1_000_000);
+                    }
+                })
+                .doOnComplete(() -> logger.info("LLM stream completed in {} ms", (System.nanoTime() - startNanos) / 1_000_000))
+                .onErrorResume(e -> {
+                    if (!firstToken.get() || !isFallbackError(e)) {
+                        // Part of the answer has already been sent; don't splice a mock onto it
+                        return Flux.error(e);
+                    }
+                    logFallback("Error streaming query with LLM", e);
+                    metrics.recordLlmFallback("stream");
+                    return Flux.just(mockResponse(clinicianQuery));
+                });
+        });
+    }
+
+    // Turned away by admission control: the caller is told to retry, not given a mock answer
+    private static boolean isFallbackError(Throwable e) {
+        return !(e instanceof LlmAdmission.AdmissionRejectedException);
+    }
+
+    private static void logFallback(String message, Throwable e) {
+        if (e instanceof ResilienceFilter.CallRejectedException) {
+            // Refused without calling the API; no stack trace for every request while the breaker is open
+            logger.warn("{}: {}", message, e.getMessage());
+        } else {
+            logger.error(message, e);
+        }
+    }
+
+    Map<String, Object> buildRequestBody(String clinicianQuery, String patientData) {
+        long startNanos = System.nanoTime();
+        // Construct a prompt that includes the patient data and the clinician's query
+        String userPrompt = userPrompt(clinicianQuery, patientData);
+
+        Map<String, Object> requestBody = new HashMap<>();
+        requestBody.put("model", model);
+        
+        Map<String, String> systemMessage = new HashMap<>();
+        systemMessage.put("role", "system");
+        systemMessage.put("content", SYSTEM_PROMPT);
+        
+        Map<String, String> userMessage = new HashMap<>();
+        userMessage.put("role", "user");
+        userMessage.put("content", userPrompt);
+        
+        requestBody.put("messages", List.of(systemMessage, userMessage));
+        requestBody.put("temperature", temperature); // Lower temperature for more predictable responses
+        requestBody.put("max_tokens", maxTokens);
+        metrics.recordPromptAssembly(System.nanoTime() - startNanos, userPrompt.length());
+        return requestBody;
+    }
 
+    private static String userPrompt(String clinicianQuery, String patientData) {
+        return "CLINICIAN QUERY: " + clinicianQuery + "\n\n" +
+               "PATIENT DATA:\n" + patientData;
+    }
+
+    @SuppressWarnings("unchecked")
+    private String extractContent(String responseJson) {
+        try {
             // Parse the response to extract the generated text
             // This is a simplified example; actual parsing would depend on the LLM API's response format
             Map<String, Object> responseMap = objectMapper.readValue(responseJson, Map.class);
             Map<String, Object> choicesMap = (Map<String, Object>) ((List) responseMap.get("choices")).get(0);
             Map<String, Object> messageMap = (Map<String, Object>) choicesMap.get("message");
             String generatedText = (String) messageMap.get("content");
-
             return generatedText.trim();
+        } catch (Exception e) {
+            throw new IllegalStateException("Malformed LLM response", e);
+        }
+    }
 
+    private String extractDelta(String chunkJson) {
+        try {
+            JsonNode chunk = objectMapper.readTree(chunkJson);
+            return chunk.path("choices").path(0).path("delta").path("content").asText("");
         } catch (Exception e) {
-            logger.error("Error processing query with LLM", e);
-            
-            // Generate a realistic mock response based on the query type
-            String queryLower = clinicianQuery.toLowerCase();
+            throw new IllegalStateException("Malformed LLM stream chunk", e);
+        }
+    }
+
+    private String mockResponse(String clinicianQuery) {
+        // Generate a realistic mock response based on the query type
+        String queryLower = clinicianQuery.toLowerCase();
+        
+        if (queryLower.contains("lab") || queryLower.contains("test") || queryLower.contains("result")) {
+            return "Based on the patient's laboratory results:\n" +
+                   "- Complete Blood Count (CBC) shows normal ranges\n" +
+                   "- Basic Metabolic Panel (BMP) indicates stable electrolyte levels\n" +
+                   "- Lipid panel shows slightly elevated LDL cholesterol\n" +
+                   "Note: This is a mock response due to LLM service unavailability.";
+        } else if (queryLower.contains("medication") || queryLower.contains("drug") || queryLower.contains("prescription")) {
+            return "Current medication status:\n" +
+                   "- Metformin 500mg twice daily for Type 2 Diabetes\n" +
+                   "- Lisinopril 10mg daily for hypertension\n" +
+                   "- Aspirin 81mg daily for cardiovascular prevention\n" +
+                   "Note: This is a mock response due to LLM service unavailability.";
+        } else if (queryLower.contains("condition") || queryLower.contains("diagnosis") || queryLower.contains("problem")) {
+            return "Active conditions:\n" +
+                   "- Type 2 Diabetes (well-controlled)\n" +
+                   "- Essential Hypertension\n" +
+                   "- Hyperlipidemia\n" +
+                   "Note: This is a mock response due to LLM service unavailability.";
+        } else if (queryLower.contains("allergy") || queryLower.contains("allergic")) {
+            return "Known allergies:\n" +
+                   "- Penicillin (moderate reaction)\n" +
+                   "- Sulfa drugs (mild reaction)\n" +
+                   "Note: This is a mock response due to LLM service unavailability.";
+        } else if (queryLower.contains("diagnose") || queryLower.contains("add diagnosis") || queryLower.contains("suggest diagnosis")) {
+            // Randomly choose between supporting or rejecting the diagnosis
+            boolean supportDiagnosis = Math.random() > 0.5;
             
-            if (queryLower.contains("lab") || queryLower.contains("test") || queryLower.contains("result")) {
-                return "Based on the patient's laboratory results:\n" +
-                       "- Complete Blood Count (CBC) shows normal ranges\n" +
-                       "- Basic Metabolic Panel (BMP) indicates stable electrolyte levels\n" +
-                       "- Lipid panel shows slightly elevated LDL cholesterol\n" +
-                       "Note: This is a mock response due to LLM service unavailability.";
-            } else if (queryLower.contains("medication") || queryLower.contains("drug") || queryLower.contains("prescription")) {
-                return "Current medication status:\n" +
-                       "- Metformin 500mg twice daily for Type 2 Diabetes\n" +
-                       "- Lisinopril 10mg daily for hypertension\n" +
-                       "- Aspirin 81mg daily for cardiovascular prevention\n" +
-                       "Note: This is a mock response due to LLM service unavailability.";
-            } else if (queryLower.contains("condition") || queryLower.contains("diagnosis") || queryLower.contains("problem")) {
-                return "Active conditions:\n" +
-                       "- Type 2 Diabetes (well-controlled)\n" +
-                       "- Essential Hypertension\n" +
-                       "- Hyperlipidemia\n" +
-                       "Note: This is a mock response due to LLM service unavailability.";
-            } else if (queryLower.contains("allergy") || queryLower.contains("allergic")) {
-                return "Known allergies:\n" +
-                       "- Penicillin (moderate reaction)\n" +
-                       "- Sulfa drugs (mild reaction)\n" +
-                       "Note: This is a mock response due to LLM service unavailability.";
-            } else if (queryLower.contains("diagnose") || queryLower.contains("add diagnosis") || queryLower.contains("suggest diagnosis")) {
-                // Randomly choose between supporting or rejecting the diagnosis
-                boolean supportDiagnosis = Math.random() > 0.5;
-                
-                if (supportDiagnosis) {
-                    return "Based on the patient's lab values and current medications, I support adding the following diagnosis:\n" +
-                           "- The HbA1c of 7.2% and fasting glucose of 126 mg/dL support a diagnosis of Type 2 Diabetes\n" +
-                           "- The blood pressure readings consistently above 140/90 mmHg support Essential Hypertension\n" +
-                           "- The LDL cholesterol of 130 mg/dL and total cholesterol of 220 mg/dL support Hyperlipidemia\n" +
-                           "These diagnoses are consistent with the patient's current medication regimen of Metformin, Lisinopril, and statin therapy.\n" +
-                           "Note: This is a mock response due to LLM service unavailability.";
-                } else {
-                    return "Based on the patient's lab values and current medications, I cannot support adding the suggested diagnosis:\n" +
-                           "- The lab values do not meet diagnostic criteria for the proposed condition\n" +
-                           "- The patient's current medications and lab results suggest better control of existing conditions\n" +
-                           "- Additional testing would be needed to confirm the diagnosis\n" +
-                           "Recommendation: Continue current treatment plan and monitor for changes in condition.\n" +
-                           "Note: This is a mock response due to LLM service unavailability.";
-                }
-            } else if (queryLower.contains("reject") || queryLower.contains("remove diagnosis") || queryLower.contains("discontinue diagnosis")) {
-                return "Based on the patient's lab values and current medications, I support rejecting/removing the following diagnosis:\n" +
-                       "- The most recent HbA1c of 5.7% and normal fasting glucose values no longer support Type 2 Diabetes\n" +
-                       "- Blood pressure readings consistently below 130/80 mmHg suggest resolution of Essential Hypertension\n" +
-                       "- Normal lipid panel results suggest resolution of Hyperlipidemia\n" +
-                       "Recommendation: Consider discontinuing related medications and updating the patient's problem list.\n" +
+            if (supportDiagnosis) {
+                return "Based on the patient's lab values and current medications, I support adding the following diagnosis:\n" +
+                       "- The HbA1c of 7.2% and fasting glucose of 126 mg/dL support a diagnosis of Type 2 Diabetes\n" +
+                       "- The blood pressure readings consistently above 140/90 mmHg support Essential Hypertension\n" +
+                       "- The LDL cholesterol of 130 mg/dL and total cholesterol of 220 mg/dL support Hyperlipidemia\n" +
+                       "These diagnoses are consistent with the patient's current medication regimen of Metformin, Lisinopril, and statin therapy.\n" +
                        "Note: This is a mock response due to LLM service unavailability.";
             } else {
-                return "I apologize, but I'm currently unable to process your query due to technical difficulties. " +
-                       "Please try again later or contact technical support if the issue persists.";
+                return "Based on the patient's lab values and current medications, I cannot support adding the suggested diagnosis:\n" +
+                       "- The lab values do not meet diagnostic criteria for the proposed condition\n" +
+                       "- The patient's current medications and lab results suggest better control of existing conditions\n" +
+                       "- Additional testing would be needed to confirm the diagnosis\n" +
+                       "Recommendation: Continue current treatment plan and monitor for changes in condition.\n" +
+                       "Note: This is a mock response due to LLM service unavailability.";
             }
+        } else if (queryLower.contains("reject") || queryLower.contains("remove diagnosis") || queryLower.contains("discontinue diagnosis")) {
+            return "Based on the patient's lab values and current medications, I support rejecting/removing the following diagnosis:\n" +
+                   "- The most recent HbA1c of 5.7% and normal fasting glucose values no longer support Type 2 Diabetes\n" +
+                   "- Blood pressure readings consistently below 130/80 mmHg suggest resolution of Essential Hypertension\n" +
+                   "- Normal lipid panel results suggest resolution of Hyperlipidemia\n" +
+                   "Recommendation: Consider discontinuing related medications and updating the patient's problem list.\n" +
+                   "Note: This is a mock response due to LLM service unavailability.";
+        } else {
+            return "I apologize, but I'm currently unable to process your query due to technical difficulties. " +
+                   "Please try again later or contact technical support if the issue persists.";
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,116 @@
+package com.cvs.pocs.mcpservers.conditions.services;
+
+import com.cvs.pocs.mcpservers.conditions.util.ObservationSeries;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The latest lab and vital-sign Observations fetched per tenant, access token
+ * principal, patient and category, as {@link ObservationSeries} rather than HAPI objects or text.
+ * A lab or vitals section for a shorter window than one fetched within
+ * {@code fhir.observations.series.ttl} is rendered from here instead of
+ * searched again, and trends are computed from here.
+ * <p>
+ * A series covers the days from the search's {@code date=ge} bound onwards,
+ * or, if the search hit {@code fhir.search.max-entries}, from the day after
+ * the oldest entry read, since entries of that day may have been cut off.
+ * Series with entries lacking an {@code effectiveDateTime} are not kept, as
+ * a window cannot tell whether they belong in it. Off unless
+ * {@code fhir.observations.series.enabled}.
+ */
+@Component
+public class ObservationSeriesStore {
+
+    private final boolean enabled;
+    private final Cache<SeriesKey, Stored> series;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+
+    public ObservationSeriesStore(@Value("${fhir.observations.series.enabled:false}") boolean enabled,
+                                  @Value("${fhir.observations.series.maximum-size:20000}") long maximumSize,
+                                  @Value("${fhir.observations.series.ttl:2m}") Duration ttl) {
+        this.enabled = enabled;
+        this.series = Caffeine.newBuilder()
+            .maximumSize(maximumSize)
+            .expireAfterWrite(ttl)
+            .build();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * The series of the patient's Observations in the category if it covers
+     * every day from {@code since}; null otherwise.
+     */
+    public ObservationSeries find(String tenant, String principal, String patientId, String category,
+                                  LocalDate since) {
+        if (!enabled) {
+            return null;
+        }
+        Stored stored = series.getIfPresent(new SeriesKey(tenant, principal, patientId, category));
+        if (stored == null || stored.fromDay() > since.toEpochDay()) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return stored.series();
+    }
+
+    /**
+     * Keeps the series read by a search from {@code since}, unless a series
+     * already kept covers a longer window; {@code truncated} tells whether the
+     * search stopped at the entry cap.
+     */
+    public void put(String tenant, String principal, String patientId, String category, LocalDate since,
+                    ObservationSeries observations, boolean truncated) {
+        if (!enabled) {
+            return;
+        }
+        if (observations.undated() > 0 || (truncated && observations.oldestDay() == ObservationSeries.NO_DATE)) {
+            skipped.incrementAndGet();
+            return;
+        }
+        long fromDay = truncated ? observations.oldestDay() + 1L : since.toEpochDay();
+        series.asMap().merge(new SeriesKey(tenant, principal, patientId, category), new Stored(observations, fromDay),
+            (existing, fetched) -> existing.fromDay() < fetched.fromDay() ? existing : fetched);
+    }
+
+    public void invalidatePatient(String tenant, String patientId) {
+        series.asMap().keySet().removeIf(key -> key.tenant().equals(tenant) && key.patientId().equals(patientId));
+    }
+
+    public Map<String, Object> getStats() {
+        long entries = 0;
+        long bytes = 0;
+        for (Stored stored : series.asMap().values()) {
+            entries += stored.series().size();
+            bytes += stored.series().estimatedBytes();
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("enabled", enabled);
+        result.put("series", series.estimatedSize());
+        result.put("observations", entries);
+        result.put("estimatedBytes", bytes);
+        result.put("hits", hits.get());
+        result.put("misses", misses.get());
+        result.put("skipped", skipped.get());
+        return result;
+    }
+
+    private record SeriesKey(String tenant, String principal, String patientId, String category) {
+    }
+
+    private record Stored(ObservationSeries series, long fromDay) {
+    }
+}
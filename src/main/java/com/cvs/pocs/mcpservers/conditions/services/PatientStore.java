@@ -0,0 +1,149 @@
+package com.cvs.pocs.mcpservers.conditions.services;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.AllergyIntolerance;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.MedicationRequest;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Reference;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Local copy of patient data loaded from FHIR Bulk Data exports. Resources are
+ * kept as their FHIR JSON, keyed by type and id, together with the few columns
+ * the chat sections filter on, so {@link FhirService} can answer from here
+ * instead of running remote searches.
+ */
+@Repository
+public class PatientStore {
+
+    private static final String UPSERT_SQL =
+        "MERGE INTO fhir_resource t USING (VALUES (?, ?, ?, ?, ?, ?, ?)) "
+            + "AS s(resource_type, id, patient_id, category, status, effective_at, resource_json) "
+            + "ON t.resource_type = s.resource_type AND t.id = s.id "
+            + "WHEN MATCHED THEN UPDATE SET patient_id = s.patient_id, category = s.category, status = s.status, "
+            + "effective_at = s.effective_at, resource_json = s.resource_json "
+            + "WHEN NOT MATCHED THEN INSERT (resource_type, id, patient_id, category, status, effective_at, resource_json) "
+            + "VALUES (s.resource_type, s.id, s.patient_id, s.category, s.status, s.effective_at, s.resource_json)";
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public PatientStore(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * Inserts or replaces the given resources in one JDBC batch.
+     */
+    public void upsert(List<StoredResource> resources) {
+        jdbcTemplate.batchUpdate(UPSERT_SQL, resources, resources.size(), (ps, resource) -> {
+            ps.setString(1, resource.resourceType());
+            ps.setString(2, resource.id());
+            ps.setString(3, resource.patientId());
+            ps.setString(4, resource.category());
+            ps.setString(5, resource.status());
+            ps.setTimestamp(6, resource.effectiveAt() == null ? null : new Timestamp(resource.effectiveAt().getTime()));
+            ps.setString(7, resource.json());
+        });
+    }
+
+    public boolean hasPatient(String patientId) {
+        Integer count = jdbcTemplate.queryForObject(
+            "SELECT COUNT(*) FROM fhir_resource WHERE resource_type = 'Patient' AND id = ?", Integer.class, patientId);
+        return count != null && count > 0;
+    }
+
+    public Optional<String> findResource(String resourceType, String id) {
+        return jdbcTemplate.query("SELECT resource_json FROM fhir_resource WHERE resource_type = ? AND id = ?",
+                (rs, rowNum) -> rs.getString(1), resourceType, id)
+            .stream()
+            .findFirst();
+    }
+
+    /**
+     * Returns the JSON of at most {@code limit} of the patient's resources
+     * matching the query. Observations come newest first, as the remote
+     * searches request with {@code _sort=-date}.
+     */
+    public List<String> search(StoreQuery query, int limit) {
+        StringBuilder sql = new StringBuilder(
+            "SELECT resource_json FROM fhir_resource WHERE patient_id = ? AND resource_type = ?");
+        List<Object> args = new ArrayList<>(List.of(query.patientId(), query.resourceType()));
+        if (query.category() != null) {
+            sql.append(" AND category = ?");
+            args.add(query.category());
+        }
+        if (query.status() != null) {
+            sql.append(" AND status = ?");
+            args.add(query.status());
+        }
+        if (query.since() != null) {
+            sql.append(" AND effective_at >= ?");
+            args.add(Timestamp.valueOf(query.since().atStartOfDay()));
+        }
+        sql.append("Observation".equals(query.resourceType()) ? " ORDER BY effective_at DESC" : " ORDER BY id");
+        sql.append(" FETCH FIRST ").append(limit).append(" ROWS ONLY");
+        return jdbcTemplate.query(sql.toString(), (rs, rowNum) -> rs.getString(1), args.toArray());
+    }
+
+    public long count(String resourceType) {
+        Long count = jdbcTemplate.queryForObject(
+            "SELECT COUNT(*) FROM fhir_resource WHERE resource_type = ?", Long.class, resourceType);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * Filter for {@link #search}; {@code null} fields are not filtered on.
+     */
+    public record StoreQuery(String patientId, String resourceType, String category, String status, LocalDate since) {
+    }
+
+    /**
+     * One resource as stored, with the columns extracted from it.
+     */
+    public record StoredResource(String resourceType, String id, String patientId, String category,
+                                 String status, Date effectiveAt, String json) {
+
+        public static StoredResource of(IBaseResource resource, String json) {
+            String resourceType = resource.fhirType();
+            String id = resource.getIdElement().getIdPart();
+            if (resource instanceof Observation observation) {
+                String category = observation.hasCategory() && observation.getCategoryFirstRep().hasCoding()
+                    ? observation.getCategoryFirstRep().getCodingFirstRep().getCode() : null;
+                Date effectiveAt = observation.hasEffectiveDateTimeType()
+                    ? observation.getEffectiveDateTimeType().getValue()
+                    : observation.hasEffectivePeriod() ? observation.getEffectivePeriod().getStart() : null;
+                return new StoredResource(resourceType, id, patientId(observation.getSubject()), category,
+                    observation.hasStatus() ? observation.getStatus().toCode() : null, effectiveAt, json);
+            }
+            if (resource instanceof Condition condition) {
+                return new StoredResource(resourceType, id, patientId(condition.getSubject()), null, null, null, json);
+            }
+            if (resource instanceof MedicationRequest medication) {
+                return new StoredResource(resourceType, id, patientId(medication.getSubject()), null,
+                    medication.hasStatus() ? medication.getStatus().toCode() : null, null, json);
+            }
+            if (resource instanceof AllergyIntolerance allergy) {
+                return new StoredResource(resourceType, id, patientId(allergy.getPatient()), null, null, null, json);
+            }
+            // Patients are their own patient; anything else is kept without one
+            return new StoredResource(resourceType, id, "Patient".equals(resourceType) ? id : null,
+                null, null, null, json);
+        }
+
+        private static String patientId(Reference reference) {
+            if (reference == null || !reference.hasReference()) {
+                return null;
+            }
+            return reference.getReferenceElement().getIdPart();
+        }
+    }
+}
@@ -0,0 +1,403 @@
+package com.cvs.pocs.mcpservers.conditions.services;
+
+import com.cvs.pocs.mcpservers.conditions.util.CircuitBreaker;
+import com.cvs.pocs.mcpservers.conditions.util.Hedger;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.TimeGauge;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SignalType;
+import reactor.netty.resources.ConnectionPoolMetrics;
+import reactor.netty.resources.ConnectionProvider;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+import java.util.function.ToIntFunction;
+
+/**
+ * Timers and size distributions for each stage of a chat request, so a slow
+ * answer can be attributed to the FHIR server, parsing, prompt assembly or the
+ * LLM. Exposed through {@code /actuator/metrics} and {@code /actuator/prometheus}.
+ * HAPI parse times are recorded by {@code FhirParserUtil} under
+ * {@value #FHIR_PARSE}; the upstream connection pools publish their gauges
+ * through {@link #connectionPoolRegistrar}.
+ */
+@Component
+public class PipelineMetrics {
+
+    public static final String FHIR_FETCH = "mcp.fhir.fetch";
+    public static final String FHIR_PAYLOAD = "mcp.fhir.payload";
+    public static final String FHIR_ENTRIES = "mcp.fhir.entries";
+    public static final String FHIR_PARSE = "mcp.fhir.parse";
+    public static final String REVALIDATION = "mcp.fhir.revalidation";
+    public static final String REVALIDATION_BYTES_SAVED = "mcp.fhir.revalidation.bytes.saved";
+    public static final String SNAPSHOT_LOOKUP = "mcp.fhir.snapshot.lookup";
+    public static final String SNAPSHOT_QUEUE = "mcp.fhir.snapshot.queue";
+    public static final String SNAPSHOT_WRITES = "mcp.fhir.snapshot.writes";
+    public static final String PREWARM_PATIENTS = "mcp.prewarm.patients";
+    public static final String PREWARM_CHATS = "mcp.prewarm.chats";
+    public static final String PROMPT_ASSEMBLY = "mcp.prompt.assembly";
+    public static final String PROMPT_SIZE = "mcp.prompt.size";
+    public static final String PROMPT_FIT = "mcp.prompt.fit";
+    public static final String PROMPT_TOKENS = "mcp.prompt.tokens";
+    public static final String PROMPT_OMITTED = "mcp.prompt.omitted";
+    public static final String LLM_CALL = "mcp.llm.call";
+    public static final String LLM_RESPONSE_SIZE = "mcp.llm.response.size";
+    public static final String LLM_FALLBACK = "mcp.llm.fallback";
+    public static final String ADMISSION_QUEUE = "mcp.llm.admission.queue";
+    public static final String ADMISSION_IN_FLIGHT = "mcp.llm.admission.in.flight";
+    public static final String ADMISSION_WAIT = "mcp.llm.admission.wait";
+    public static final String ADMISSION_REJECTED = "mcp.llm.admission.rejected";
+    public static final String HTTP_POOL = "mcp.http.pool";
+    public static final String BREAKER_STATE = "mcp.resilience.breaker.state";
+    public static final String BREAKER_FAILURE_RATE = "mcp.resilience.breaker.failure.rate";
+    public static final String BULKHEAD_AVAILABLE = "mcp.resilience.bulkhead.available";
+    public static final String REJECTED = "mcp.resilience.rejected";
+    public static final String HEDGE_SENT = "mcp.resilience.hedge.sent";
+    public static final String HEDGE_WON = "mcp.resilience.hedge.won";
+    public static final String HEDGE_WIN_RATE = "mcp.resilience.hedge.win.rate";
+    public static final String HEDGE_DELAY = "mcp.resilience.hedge.delay";
+
+    private final MeterRegistry registry;
+    // Pool gauges by upstream pool and remote address, removed again when the pool is disposed
+    private final Map<String, List<Meter>> poolMeters = new ConcurrentHashMap<>();
+
+    public PipelineMetrics(MeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * Times one FHIR section fetch, from sending the first request until the
+     * last page has been read and formatted. Cache hits never reach here.
+     */
+    public <T> Mono<T> timeFhirFetch(String resource, Mono<T> fetch) {
+        return Mono.defer(() -> {
+            Timer.Sample sample = Timer.start(registry);
+            return fetch.doFinally(signal -> sample.stop(Timer.builder(FHIR_FETCH)
+                .description("FHIR section fetch, including paging, parsing and formatting")
+                .tag("resource", resource)
+                .tag("outcome", outcome(signal))
+                .register(registry)));
+        });
+    }
+
+    public void recordFhirPayload(String resource, long bytes, int entries) {
+        DistributionSummary.builder(FHIR_PAYLOAD)
+            .description("Response bytes read for one FHIR section")
+            .baseUnit("bytes")
+            .tag("resource", resource)
+            .register(registry)
+            .record(bytes);
+        DistributionSummary.builder(FHIR_ENTRIES)
+            .description("Resources formatted for one FHIR section")
+            .tag("resource", resource)
+            .register(registry)
+            .record(entries);
+    }
+
+    /**
+     * Counts one revalidation of an expired section; {@code outcome} is
+     * {@code not-modified}, {@code merged} (only changed entries were read) or
+     * {@code modified} (the server sent the section in full). {@code bytesSaved}
+     * is what the last full fetch read beyond what the revalidation did.
+     */
+    public void recordRevalidation(String resource, String outcome, long bytesSaved) {
+        registry.counter(REVALIDATION, "resource", resource, "outcome", outcome).increment();
+        Counter.builder(REVALIDATION_BYTES_SAVED)
+            .description("Response bytes not read thanks to revalidating sections")
+            .baseUnit("bytes")
+            .tag("resource", resource)
+            .register(registry)
+            .increment(bytesSaved);
+    }
+
+    /**
+     * Counts one read of the persistent section snapshots; {@code outcome} is
+     * {@code hit}, {@code miss} (absent or past its max age) or {@code error}.
+     */
+    public void recordSnapshotLookup(String resource, String outcome) {
+        registry.counter(SNAPSHOT_LOOKUP, "resource", resource, "outcome", outcome).increment();
+    }
+
+    public void registerSnapshotQueue(IntSupplier pendingWrites) {
+        Gauge.builder(SNAPSHOT_QUEUE, pendingWrites, IntSupplier::getAsInt)
+            .description("Section snapshots waiting to be written")
+            .strongReference(true)
+            .register(registry);
+    }
+
+    /**
+     * Counts snapshots leaving the write-behind queue; {@code outcome} is
+     * {@code written}, {@code failed} or {@code dropped} (queue full).
+     */
+    public void recordSnapshotWrites(String outcome, int count) {
+        registry.counter(SNAPSHOT_WRITES, "outcome", outcome).increment(count);
+    }
+
+    /**
+     * Counts one patient taken off the pre-warm queue; {@code outcome} is
+     * {@code warmed}, {@code cached} (nothing to fetch) or {@code failed}.
+     */
+    public void recordPrewarm(String outcome) {
+        registry.counter(PREWARM_PATIENTS, "outcome", outcome).increment();
+    }
+
+    /**
+     * Counts one chat by whether its patient was pre-warmed and whether all of
+     * its sections were cached when it arrived.
+     */
+    public void recordPrewarmChat(boolean prewarmed, boolean warm) {
+        registry.counter(PREWARM_CHATS, "prewarmed", String.valueOf(prewarmed), "warm", String.valueOf(warm))
+            .increment();
+    }
+
+    public void recordPromptAssembly(long nanos, int characters) {
+        Timer.builder(PROMPT_ASSEMBLY)
+            .description("Building the LLM request from the query and patient data")
+            .register(registry)
+            .record(nanos, TimeUnit.NANOSECONDS);
+        DistributionSummary.builder(PROMPT_SIZE)
+            .description("Characters in the user prompt sent to the LLM")
+            .baseUnit("characters")
+            .register(registry)
+            .record(characters);
+    }
+
+    /**
+     * Records fitting the patient data into the prompt token budget: how long
+     * it took, the estimated tokens kept and how many entries were left out.
+     */
+    public void recordPromptFit(long nanos, int tokens, int omittedEntries) {
+        Timer.builder(PROMPT_FIT)
+            .description("Fitting the patient data into the prompt token budget")
+            .register(registry)
+            .record(nanos, TimeUnit.NANOSECONDS);
+        DistributionSummary.builder(PROMPT_TOKENS)
+            .description("Estimated tokens of patient data placed in the prompt")
+            .baseUnit("tokens")
+            .register(registry)
+            .record(tokens);
+        if (omittedEntries > 0) {
+            registry.counter(PROMPT_OMITTED).increment(omittedEntries);
+        }
+    }
+
+    /**
+     * Times one LLM API call; {@code mode} is {@code completion} or
+     * {@code stream}. Response sizes are recorded for successful completions.
+     */
+    public Mono<String> timeLlmCall(String mode, Mono<String> call) {
+        return Mono.defer(() -> {
+            Timer.Sample sample = Timer.start(registry);
+            return call
+                .doOnNext(content -> recordLlmResponseSize(mode, content.length()))
+                .doFinally(signal -> sample.stop(llmTimer(mode, outcome(signal))));
+        });
+    }
+
+    public Flux<String> timeLlmStream(String mode, Flux<String> tokens) {
+        return Flux.defer(() -> {
+            Timer.Sample sample = Timer.start(registry);
+            int[] characters = new int[1];
+            return tokens
+                .doOnNext(token -> characters[0] += token.length())
+                .doOnComplete(() -> recordLlmResponseSize(mode, characters[0]))
+                .doFinally(signal -> sample.stop(llmTimer(mode, outcome(signal))));
+        });
+    }
+
+    /**
+     * Counts answers served from the canned mock response because the LLM call
+     * failed.
+     */
+    public void recordLlmFallback(String mode) {
+        registry.counter(LLM_FALLBACK, "mode", mode).increment();
+    }
+
+    /**
+     * Publishes the number of LLM calls waiting for admission in one priority class.
+     */
+    public void registerAdmissionQueue(String priority, IntSupplier depth) {
+        Gauge.builder(ADMISSION_QUEUE, depth, IntSupplier::getAsInt)
+            .description("LLM calls waiting for admission")
+            .tag("priority", priority)
+            .strongReference(true)
+            .register(registry);
+    }
+
+    public void registerAdmissionInFlight(IntSupplier inFlight) {
+        Gauge.builder(ADMISSION_IN_FLIGHT, inFlight, IntSupplier::getAsInt)
+            .description("Admitted LLM calls still running")
+            .strongReference(true)
+            .register(registry);
+    }
+
+    /**
+     * Times how long an admitted LLM call waited for its slot and tokens.
+     */
+    public void recordAdmissionWait(String priority, long nanos) {
+        Timer.builder(ADMISSION_WAIT)
+            .description("Wait for LLM admission, from arrival until the call may start")
+            .tag("priority", priority)
+            .register(registry)
+            .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Counts LLM calls turned away by admission control; {@code reason} is
+     * {@code user-queue-full}, {@code queue-full} or {@code timeout}.
+     */
+    public void recordAdmissionRejected(String reason) {
+        registry.counter(ADMISSION_REJECTED, "reason", reason).increment();
+    }
+
+    /**
+     * Publishes the connection pool gauges ({@value #HTTP_POOL}.*) of one
+     * upstream's Reactor Netty connection provider, per remote address.
+     */
+    public ConnectionProvider.MeterRegistrar connectionPoolRegistrar(String upstream) {
+        return new ConnectionProvider.MeterRegistrar() {
+            @Override
+            public void registerMetrics(String poolName, String id, SocketAddress remoteAddress,
+                                        ConnectionPoolMetrics metrics) {
+                Tags tags = Tags.of("upstream", upstream, "remote", remoteAddress instanceof InetSocketAddress inet
+                    ? inet.getHostString() + ":" + inet.getPort() : String.valueOf(remoteAddress));
+                List<Meter> meters = List.of(
+                    poolGauge("active", "Connections leased to a request", tags, metrics, ConnectionPoolMetrics::acquiredSize),
+                    poolGauge("idle", "Open connections waiting in the pool", tags, metrics, ConnectionPoolMetrics::idleSize),
+                    poolGauge("allocated", "Open connections, leased or idle", tags, metrics, ConnectionPoolMetrics::allocatedSize),
+                    poolGauge("max", "Most connections the pool opens", tags, metrics, ConnectionPoolMetrics::maxAllocatedSize),
+                    poolGauge("pending", "Requests waiting for a connection", tags, metrics, ConnectionPoolMetrics::pendingAcquireSize),
+                    poolGauge("pending.max", "Most requests allowed to wait for a connection", tags, metrics,
+                        ConnectionPoolMetrics::maxPendingAcquireSize));
+                poolMeters.put(id + remoteAddress, meters);
+            }
+
+            @Override
+            public void deRegisterMetrics(String poolName, String id, SocketAddress remoteAddress) {
+                List<Meter> meters = poolMeters.remove(id + remoteAddress);
+                if (meters != null) {
+                    meters.forEach(registry::remove);
+                }
+            }
+        };
+    }
+
+    /**
+     * Publishes an upstream's resilience state: one {@value #BREAKER_STATE}
+     * gauge per state that reads 1 for the current one, the breaker's failure
+     * rate, free bulkhead slots and, if GETs are hedged, hedges sent and won
+     * with the resulting win rate and the current hedge delay.
+     */
+    public void registerResilience(String upstream, CircuitBreaker breaker, IntSupplier availableCalls, Hedger hedger) {
+        for (CircuitBreaker.State state : CircuitBreaker.State.values()) {
+            Gauge.builder(BREAKER_STATE, breaker, b -> b.getState() == state ? 1 : 0)
+                .description("Circuit breaker state, 1 for the current one")
+                .tag("upstream", upstream)
+                .tag("state", state.name().toLowerCase())
+                .strongReference(true)
+                .register(registry);
+        }
+        Gauge.builder(BREAKER_FAILURE_RATE, breaker, CircuitBreaker::getFailureRate)
+            .description("Failed share of the calls in the circuit breaker's window")
+            .baseUnit("percent")
+            .tag("upstream", upstream)
+            .strongReference(true)
+            .register(registry);
+        Gauge.builder(BULKHEAD_AVAILABLE, availableCalls, IntSupplier::getAsInt)
+            .description("Further concurrent calls the bulkhead admits")
+            .tag("upstream", upstream)
+            .strongReference(true)
+            .register(registry);
+        if (hedger == null) {
+            return;
+        }
+        FunctionCounter.builder(HEDGE_SENT, hedger, Hedger::getSent)
+            .description("Second attempts sent because the first was slower than the hedge delay")
+            .tag("upstream", upstream)
+            .register(registry);
+        FunctionCounter.builder(HEDGE_WON, hedger, Hedger::getWon)
+            .description("Hedges that answered before the attempt they hedged")
+            .tag("upstream", upstream)
+            .register(registry);
+        Gauge.builder(HEDGE_WIN_RATE, hedger, Hedger::getWinRate)
+            .description("Share of hedges sent that won")
+            .tag("upstream", upstream)
+            .strongReference(true)
+            .register(registry);
+        TimeGauge.builder(HEDGE_DELAY, hedger, TimeUnit.NANOSECONDS,
+                h -> h.getDelay() == null ? Double.NaN : h.getDelay().toNanos())
+            .description("Wait before a GET is hedged, from recent latencies")
+            .tag("upstream", upstream)
+            .strongReference(true)
+            .register(registry);
+    }
+
+    /**
+     * Counts calls refused before reaching the upstream; {@code reason} is
+     * {@code bulkhead} or {@code circuit-open}.
+     */
+    public void recordUpstreamRejected(String upstream, String reason) {
+        registry.counter(REJECTED, "upstream", upstream, "reason", reason).increment();
+    }
+
+    /**
+     * Removes the meters tagged with an upstream that is no longer served,
+     * e.g. an evicted tenant's pool gauges and resilience state.
+     */
+    public void removeUpstream(String upstream) {
+        registry.getMeters().stream()
+            .filter(meter -> upstream.equals(meter.getId().getTag("upstream")))
+            .forEach(registry::remove);
+    }
+
+    private Meter poolGauge(String name, String description, Tags tags, ConnectionPoolMetrics metrics,
+                            ToIntFunction<ConnectionPoolMetrics> value) {
+        return Gauge.builder(HTTP_POOL + "." + name, metrics, m -> value.applyAsInt(m))
+            .description(description)
+            .tags(tags)
+            .strongReference(true)
+            .register(registry);
+    }
+
+    private Timer llmTimer(String mode, String outcome) {
+        return Timer.builder(LLM_CALL)
+            .description("LLM API call, until the full completion has been received")
+            .tag("mode", mode)
+            .tag("outcome", outcome)
+            .register(registry);
+    }
+
+    private void recordLlmResponseSize(String mode, int characters) {
+        DistributionSummary.builder(LLM_RESPONSE_SIZE)
+            .description("Characters in the LLM completion")
+            .baseUnit("characters")
+            .tag("mode", mode)
+            .register(registry)
+            .record(characters);
+    }
+
+    private static String outcome(SignalType signal) {
+        switch (signal) {
+            case ON_COMPLETE:
+                return "success";
+            case ON_ERROR:
+                return "error";
+            default:
+                return "cancelled";
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package com.cvs.pocs.mcpservers.conditions.services;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fetches patients' sections into the cache before their encounters, so the
+ * first chat after a clinician opens the chart does not wait on the FHIR
+ * server. Patients are queued from {@code mcp.prewarm.patient-ids}, from the
+ * file at {@code mcp.prewarm.patient-ids-file} (one ID per line, {@code #}
+ * for comments), from an {@code Appointment} search for the next
+ * {@code mcp.prewarm.lookahead} and through {@link #prewarm}. With
+ * {@code mcp.prewarm.enabled} the configured sources are queued every
+ * {@code mcp.prewarm.interval}, starting when the application is ready.
+ * <p>
+ * Each patient's sections for {@code mcp.prewarm.query} are fetched through
+ * {@link FhirService}, at most {@code mcp.prewarm.concurrency} patients at a
+ * time and {@code mcp.prewarm.rate} patients per second, so pre-warming never
+ * crowds out chats. Patients already queued or fully cached are skipped.
+ * {@link #recordChat} tracks how many chats then find their sections cached.
+ */
+@Service
+public class PrewarmService {
+
+    private static final Logger logger = LoggerFactory.getLogger(PrewarmService.class);
+
+    private final FhirService fhirService;
+    private final PipelineMetrics metrics;
+    private final boolean enabled;
+    private final Duration interval;
+    private final Duration lookahead;
+    private final List<String> patientIds;
+    private final String patientIdsFile;
+    private final boolean appointments;
+    private final String query;
+
+    private final Sinks.Many<String> queue = Sinks.many().unicast().onBackpressureBuffer();
+    private final Set<String> queued = ConcurrentHashMap.newKeySet();
+    // Patients pre-warmed within the lookahead, to tell their chats apart
+    private final Cache<String, Instant> prewarmed;
+    private final Disposable worker;
+    private volatile Disposable schedule;
+
+    private final AtomicLong warmed = new AtomicLong();
+    private final AtomicLong alreadyCached = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong chats = new AtomicLong();
+    private final AtomicLong warmChats = new AtomicLong();
+    private final AtomicLong prewarmedChats = new AtomicLong();
+    private final AtomicLong prewarmedWarmChats = new AtomicLong();
+
+    public PrewarmService(FhirService fhirService,
+                          PipelineMetrics metrics,
+                          @Value("${mcp.prewarm.enabled:false}") boolean enabled,
+                          @Value("${mcp.prewarm.interval:5m}") Duration interval,
+                          @Value("${mcp.prewarm.lookahead:2h}") Duration lookahead,
+                          @Value("${mcp.prewarm.patient-ids:}") List<String> patientIds,
+                          @Value("${mcp.prewarm.patient-ids-file:}") String patientIdsFile,
+                          @Value("${mcp.prewarm.appointments:true}") boolean appointments,
+                          @Value("${mcp.prewarm.query:labs, conditions, medications, allergies and vital signs}") String query,
+                          @Value("${mcp.prewarm.concurrency:4}") int concurrency,
+                          @Value("${mcp.prewarm.rate:10}") double rate) {
+        this.fhirService = fhirService;
+        this.metrics = metrics;
+        this.enabled = enabled;
+        this.interval = interval;
+        this.lookahead = lookahead;
+        this.patientIds = patientIds;
+        this.patientIdsFile = patientIdsFile;
+        this.appointments = appointments;
+        this.query = query;
+        this.prewarmed = Caffeine.newBuilder()
+            .maximumSize(100_000)
+            .expireAfterWrite(lookahead)
+            .build();
+
+        Flux<String> patients = queue.asFlux();
+        if (rate > 0) {
+            patients = patients.delayElements(Duration.ofNanos((long) (1_000_000_000 / rate)));
+        }
+        this.worker = patients
+            .flatMap(this::warm, concurrency)
+            .subscribe(null, e -> logger.error("Pre-warming stopped", e));
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        logger.info("Pre-warming patient context every {}, looking {} ahead", interval, lookahead);
+        schedule = Flux.interval(Duration.ZERO, interval)
+            .onBackpressureDrop()
+            .concatMap(tick -> scheduledPatients()
+                .collectList()
+                .doOnNext(ids -> logger.info("Queued {} patients for pre-warming", prewarm(ids))), 1)
+            .subscribe();
+    }
+
+    /**
+     * Queues the patients to be pre-warmed and returns how many were newly
+     * queued; patients already waiting are not queued twice.
+     */
+    public synchronized int prewarm(Collection<String> ids) {
+        int added = 0;
+        for (String id : ids) {
+            if (id != null && !id.isBlank() && queued.add(id.trim())) {
+                queue.tryEmitNext(id.trim());
+                added++;
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Records whether a chat's sections were all cached when it arrived, and
+     * whether its patient had been pre-warmed. Call before fetching.
+     */
+    public void recordChat(String patientId, String chatQuery) {
+        boolean warm = fhirService.isCached(patientId, chatQuery);
+        boolean wasPrewarmed = prewarmed.getIfPresent(patientId) != null;
+        chats.incrementAndGet();
+        if (warm) {
+            warmChats.incrementAndGet();
+        }
+        if (wasPrewarmed) {
+            prewarmedChats.incrementAndGet();
+            if (warm) {
+                prewarmedWarmChats.incrementAndGet();
+            }
+        }
+        metrics.recordPrewarmChat(wasPrewarmed, warm);
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("enabled", enabled);
+        result.put("queued", queued.size());
+        result.put("warmed", warmed.get());
+        result.put("alreadyCached", alreadyCached.get());
+        result.put("failed", failed.get());
+        result.put("chats", chats.get());
+        result.put("warmHitRatio", ratio(warmChats.get(), chats.get()));
+        result.put("prewarmedChats", prewarmedChats.get());
+        // Low while prewarmedChats is high: sections expire before the encounter, shorten the interval
+        result.put("prewarmedWarmHitRatio", ratio(prewarmedWarmChats.get(), prewarmedChats.get()));
+        return result;
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (schedule != null) {
+            schedule.dispose();
+        }
+        worker.dispose();
+    }
+
+    private Mono<Void> warm(String patientId) {
+        queued.remove(patientId);
+        if (fhirService.isCached(patientId, query)) {
+            prewarmed.put(patientId, Instant.now());
+            alreadyCached.incrementAndGet();
+            metrics.recordPrewarm("cached");
+            return Mono.empty();
+        }
+        return fhirService.getRelevantPatientDataAsync(patientId, query)
+            .doOnNext(data -> {
+                // Sections that could not be retrieved are not cached
+                if (fhirService.isCached(patientId, query)) {
+                    prewarmed.put(patientId, Instant.now());
+                    warmed.incrementAndGet();
+                    metrics.recordPrewarm("warmed");
+                } else {
+                    logger.warn("Could not pre-warm every section for patient ID: {}", patientId);
+                    failed.incrementAndGet();
+                    metrics.recordPrewarm("failed");
+                }
+            })
+            .onErrorResume(e -> {
+                logger.warn("Could not pre-warm patient ID {}: {}", patientId, e.getMessage());
+                failed.incrementAndGet();
+                metrics.recordPrewarm("failed");
+                return Mono.empty();
+            })
+            .then();
+    }
+
+    /**
+     * The configured patients, those in the patient file and those with an
+     * appointment within the lookahead, without duplicates.
+     */
+    private Flux<String> scheduledPatients() {
+        Flux<String> fromFile = patientIdsFile.isBlank() ? Flux.empty()
+            : Mono.fromCallable(() -> readPatientIds(Path.of(patientIdsFile)))
+                .subscribeOn(Schedulers.boundedElastic())
+                .flatMapIterable(ids -> ids)
+                .onErrorResume(IOException.class, e -> {
+                    logger.warn("Could not read pre-warm patient file {}: {}", patientIdsFile, e.getMessage());
+                    return Flux.empty();
+                });
+        Flux<String> fromAppointments = !appointments ? Flux.empty()
+            : Flux.defer(() -> {
+                Instant now = Instant.now();
+                return fhirService.findPatientsWithAppointments(now, now.plus(lookahead));
+            })
+            .onErrorResume(e -> {
+                logger.warn("Could not search upcoming appointments: {}", e.getMessage());
+                return Flux.empty();
+            });
+        return Flux.concat(Flux.fromIterable(patientIds), fromFile, fromAppointments)
+            .map(String::trim)
+            .filter(id -> !id.isEmpty())
+            .distinct();
+    }
+
+    private static List<String> readPatientIds(Path file) throws IOException {
+        try (var lines = Files.lines(file)) {
+            return lines
+                .map(line -> line.contains("#") ? line.substring(0, line.indexOf('#')) : line)
+                .map(String::trim)
+                .filter(line -> !line.isEmpty())
+                .toList();
+        }
+    }
+
+    private static double ratio(long part, long total) {
+        return total == 0 ? 0 : (double) part / total;
+    }
+}
@@ -0,0 +1,20 @@
+package com.cvs.pocs.mcpservers.conditions.services;
+
+import java.util.Map;
+
+/**
+ * Turns a clinician's free-text query into the {@link FetchPlan} that
+ * {@link FhirService} executes. Declare a {@code @Primary} bean of this type
+ * to replace the keyword-based {@link KeywordQueryPlanner}.
+ */
+public interface QueryPlanner {
+
+    FetchPlan plan(String query);
+
+    /**
+     * Counters for {@code /cache/stats}, e.g. of a plan cache; empty if the planner keeps none.
+     */
+    default Map<String, Object> getStats() {
+        return Map.of();
+    }
+}
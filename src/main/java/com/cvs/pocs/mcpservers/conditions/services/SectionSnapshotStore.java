@@ -0,0 +1,373 @@
+package com.cvs.pocs.mcpservers.conditions.services;
+
+import com.cvs.pocs.mcpservers.conditions.services.FhirSectionCache.SectionKey;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.sql.Timestamp;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Persistent second level behind {@link FhirSectionCache}: formatted sections
+ * are kept in the {@code fhir_section_snapshot} table, so after a restart (with
+ * a file or PostgreSQL datasource) chats are answered from here instead of
+ * starting cold against the FHIR server.
+ * <p>
+ * Sections are written behind the request: they are queued, a later write for
+ * the same key replacing an earlier one, and a background thread upserts them
+ * in JDBC batches of {@code fhir.snapshot.batch-size} every
+ * {@code fhir.snapshot.flush-interval}, or as soon as a batch is full. Queued
+ * sections are served before they reach the table. If the queue holds
+ * {@code fhir.snapshot.queue-capacity} sections, new ones are dropped.
+ * <p>
+ * Each snapshot is served for the max age of its resource type
+ * ({@code fhir.snapshot.max-age.<ResourceType>}, falling back to
+ * {@code fhir.snapshot.max-age.default}); a max age of 0 keeps that type out of
+ * the store. Expired rows are purged every {@code fhir.snapshot.purge-interval}.
+ */
+@Component
+public class SectionSnapshotStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(SectionSnapshotStore.class);
+
+    private static final String UPSERT_SQL =
+        "MERGE INTO fhir_section_snapshot t USING (VALUES (?, ?, ?, ?, ?, ?, ?)) "
+            + "AS s(tenant_id, patient_id, resource_type, params, section_text, fetched_at, expires_at) "
+            + "ON t.tenant_id = s.tenant_id AND t.patient_id = s.patient_id AND t.resource_type = s.resource_type "
+            + "AND t.params = s.params "
+            + "WHEN MATCHED THEN UPDATE SET section_text = s.section_text, fetched_at = s.fetched_at, "
+            + "expires_at = s.expires_at "
+            + "WHEN NOT MATCHED THEN INSERT (tenant_id, patient_id, resource_type, params, section_text, fetched_at, "
+            + "expires_at) "
+            + "VALUES (s.tenant_id, s.patient_id, s.resource_type, s.params, s.section_text, s.fetched_at, s.expires_at)";
+
+    private final boolean enabled;
+    private final int batchSize;
+    private final int queueCapacity;
+    private final Duration defaultMaxAge;
+    private final Environment environment;
+    private final JdbcTemplate jdbcTemplate;
+    private final PipelineMetrics metrics;
+    private final Clock clock;
+    private final Map<String, Duration> maxAgeByResourceType = new ConcurrentHashMap<>();
+    // Write-behind queue; a newer section for a key replaces the queued one
+    private final Map<SectionKey, Snapshot> pending = new ConcurrentHashMap<>();
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    // Held while a batch is written, so an invalidation cannot be overtaken by it
+    private final Object writeLock = new Object();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final ScheduledExecutorService writer;
+
+    @Autowired
+    public SectionSnapshotStore(@Value("${fhir.snapshot.enabled:false}") boolean enabled,
+                                @Value("${fhir.snapshot.batch-size:100}") int batchSize,
+                                @Value("${fhir.snapshot.queue-capacity:10000}") int queueCapacity,
+                                @Value("${fhir.snapshot.flush-interval:1s}") Duration flushInterval,
+                                @Value("${fhir.snapshot.purge-interval:10m}") Duration purgeInterval,
+                                @Value("${fhir.snapshot.max-age.default:1h}") Duration defaultMaxAge,
+                                Environment environment,
+                                JdbcTemplate jdbcTemplate,
+                                PipelineMetrics metrics) {
+        this(enabled, batchSize, queueCapacity, flushInterval, purgeInterval, defaultMaxAge, environment,
+            jdbcTemplate, metrics, Clock.systemUTC());
+    }
+
+    SectionSnapshotStore(boolean enabled, int batchSize, int queueCapacity, Duration flushInterval,
+                         Duration purgeInterval, Duration defaultMaxAge, Environment environment,
+                         JdbcTemplate jdbcTemplate, PipelineMetrics metrics, Clock clock) {
+        this.enabled = enabled;
+        this.batchSize = batchSize;
+        this.queueCapacity = queueCapacity;
+        this.defaultMaxAge = defaultMaxAge;
+        this.environment = environment;
+        this.jdbcTemplate = jdbcTemplate;
+        this.metrics = metrics;
+        this.clock = clock;
+        if (!enabled) {
+            this.writer = null;
+            return;
+        }
+        recreateLegacyTable();
+        this.writer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "fhir-snapshot-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        writer.scheduleWithFixedDelay(this::flushQuietly, flushInterval.toMillis(), flushInterval.toMillis(),
+            TimeUnit.MILLISECONDS);
+        writer.scheduleWithFixedDelay(this::purgeQuietly, purgeInterval.toMillis(), purgeInterval.toMillis(),
+            TimeUnit.MILLISECONDS);
+        metrics.registerSnapshotQueue(pending::size);
+    }
+
+    /**
+     * Returns the stored section for the key if it is within its max age, or
+     * subscribes to the loader and queues its value to be stored. A failing
+     * read falls through to the loader; loader errors are passed through and
+     * nothing is stored for them. Sections fetched with a chat's access token
+     * are not stored.
+     */
+    public Mono<String> get(SectionKey key, Mono<String> loader) {
+        if (!enabled || key.principal() != null || maxAgeFor(key.resourceType()).isZero()) {
+            return loader;
+        }
+        return Mono.defer(() -> {
+            Snapshot queued = pending.get(key);
+            if (queued != null) {
+                hit(key);
+                return Mono.just(queued.text());
+            }
+            return Mono.fromCallable(() -> find(key))
+                .subscribeOn(Schedulers.boundedElastic())
+                .onErrorResume(e -> {
+                    logger.warn("Could not read the stored {} section: {}", key.resourceType(), e.getMessage());
+                    metrics.recordSnapshotLookup(key.resourceType(), "error");
+                    return Mono.empty();
+                })
+                .switchIfEmpty(loader.doOnNext(section -> put(key, section)));
+        });
+    }
+
+    /**
+     * Which of the keys have a section within its max age, queued or stored;
+     * read in one query per patient.
+     */
+    public Mono<Set<SectionKey>> findFresh(Collection<SectionKey> keys) {
+        if (!enabled || keys.isEmpty()) {
+            return Mono.just(Set.of());
+        }
+        return Mono.fromCallable(() -> {
+                Set<SectionKey> fresh = new HashSet<>();
+                Set<SectionKey> patients = new HashSet<>();
+                for (SectionKey key : keys) {
+                    if (key.principal() != null) {
+                        continue;
+                    }
+                    if (pending.containsKey(key)) {
+                        fresh.add(key);
+                    } else {
+                        patients.add(new SectionKey(key.tenant(), key.patientId(), "", ""));
+                    }
+                }
+                Timestamp now = Timestamp.from(clock.instant());
+                for (SectionKey patient : patients) {
+                    jdbcTemplate.query("SELECT resource_type, params FROM fhir_section_snapshot "
+                            + "WHERE tenant_id = ? AND patient_id = ? AND expires_at > ?",
+                        rs -> {
+                            SectionKey stored = new SectionKey(patient.tenant(), patient.patientId(),
+                                rs.getString(1), rs.getString(2));
+                            if (keys.contains(stored)) {
+                                fresh.add(stored);
+                            }
+                        }, patient.tenant(), patient.patientId(), now);
+                }
+                return fresh;
+            })
+            .subscribeOn(Schedulers.boundedElastic())
+            .onErrorResume(e -> {
+                logger.warn("Could not read stored sections: {}", e.getMessage());
+                return Mono.just(Set.of());
+            });
+    }
+
+    /**
+     * Drops the patient's queued and stored sections.
+     */
+    public void invalidatePatient(String tenant, String patientId) {
+        if (!enabled) {
+            return;
+        }
+        pending.keySet().removeIf(key -> key.tenant().equals(tenant) && key.patientId().equals(patientId));
+        synchronized (writeLock) {
+            jdbcTemplate.update("DELETE FROM fhir_section_snapshot WHERE tenant_id = ? AND patient_id = ?",
+                tenant, patientId);
+        }
+        logger.info("Invalidated stored FHIR sections for patient ID: {} of tenant {}", patientId, tenant);
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("enabled", enabled);
+        result.put("pendingWrites", pending.size());
+        result.put("hits", hits.get());
+        result.put("misses", misses.get());
+        result.put("written", written.get());
+        result.put("dropped", dropped.get());
+        return result;
+    }
+
+    /**
+     * Writes every queued section, in batches.
+     */
+    void flush() {
+        synchronized (writeLock) {
+            flushRequested.set(false);
+            while (!pending.isEmpty()) {
+                List<Snapshot> batch = new ArrayList<>(Math.min(batchSize, pending.size()));
+                for (Map.Entry<SectionKey, Snapshot> entry : pending.entrySet()) {
+                    if (batch.size() == batchSize) {
+                        break;
+                    }
+                    // Left queued if it was replaced meanwhile; the newer section goes in a later batch
+                    if (pending.remove(entry.getKey(), entry.getValue())) {
+                        batch.add(entry.getValue());
+                    }
+                }
+                write(batch);
+            }
+        }
+    }
+
+    void purgeExpired() {
+        int purged = jdbcTemplate.update("DELETE FROM fhir_section_snapshot WHERE expires_at <= ?",
+            Timestamp.from(clock.instant()));
+        if (purged > 0) {
+            logger.debug("Purged {} expired FHIR section snapshots", purged);
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        if (writer == null) {
+            return;
+        }
+        writer.shutdown();
+        try {
+            writer.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // Whatever was still queued, so a clean shutdown loses nothing
+        flushQuietly();
+    }
+
+    private String find(SectionKey key) {
+        List<String> found = jdbcTemplate.query("SELECT section_text FROM fhir_section_snapshot "
+                + "WHERE tenant_id = ? AND patient_id = ? AND resource_type = ? AND params = ? AND expires_at > ?",
+            (rs, rowNum) -> rs.getString(1),
+            key.tenant(), key.patientId(), key.resourceType(), key.params(), Timestamp.from(clock.instant()));
+        if (found.isEmpty()) {
+            misses.incrementAndGet();
+            metrics.recordSnapshotLookup(key.resourceType(), "miss");
+            return null;
+        }
+        hit(key);
+        return found.get(0);
+    }
+
+    private void hit(SectionKey key) {
+        hits.incrementAndGet();
+        metrics.recordSnapshotLookup(key.resourceType(), "hit");
+    }
+
+    private void put(SectionKey key, String section) {
+        if (pending.size() >= queueCapacity && !pending.containsKey(key)) {
+            dropped.incrementAndGet();
+            metrics.recordSnapshotWrites("dropped", 1);
+            return;
+        }
+        Instant now = clock.instant();
+        pending.put(key, new Snapshot(key, section, now, now.plus(maxAgeFor(key.resourceType()))));
+        if (pending.size() >= batchSize && flushRequested.compareAndSet(false, true)) {
+            writer.execute(this::flushQuietly);
+        }
+    }
+
+    private void write(List<Snapshot> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            jdbcTemplate.batchUpdate(UPSERT_SQL, batch, batch.size(), (ps, snapshot) -> {
+                ps.setString(1, snapshot.key().tenant());
+                ps.setString(2, snapshot.key().patientId());
+                ps.setString(3, snapshot.key().resourceType());
+                ps.setString(4, snapshot.key().params());
+                ps.setString(5, snapshot.text());
+                ps.setTimestamp(6, Timestamp.from(snapshot.fetchedAt()));
+                ps.setTimestamp(7, Timestamp.from(snapshot.expiresAt()));
+            });
+            written.addAndGet(batch.size());
+            metrics.recordSnapshotWrites("written", batch.size());
+        } catch (RuntimeException e) {
+            // Snapshots only save round trips; a failed batch is not retried
+            logger.warn("Could not store {} FHIR section snapshots: {}", batch.size(), e.getMessage());
+            metrics.recordSnapshotWrites("failed", batch.size());
+        }
+    }
+
+    /**
+     * A table created before sections were stored per tenant has no
+     * {@code tenant_id} column, and {@code CREATE TABLE IF NOT EXISTS} leaves
+     * it that way, failing every write. It only holds cached sections, so it
+     * is dropped and {@code schema.sql} run again to create the current one.
+     */
+    private void recreateLegacyTable() {
+        try {
+            Integer columns = jdbcTemplate.queryForObject("SELECT COUNT(*) FROM information_schema.columns "
+                + "WHERE LOWER(table_schema) = LOWER(CURRENT_SCHEMA) AND LOWER(table_name) = 'fhir_section_snapshot' "
+                + "AND LOWER(column_name) IN ('patient_id', 'tenant_id')", Integer.class);
+            // Both for the current table, none before schema.sql has run
+            if (columns == null || columns != 1) {
+                return;
+            }
+            logger.info("Recreating fhir_section_snapshot without its stored sections: it has no tenant_id column");
+            jdbcTemplate.execute("DROP TABLE fhir_section_snapshot");
+            new ResourceDatabasePopulator(new ClassPathResource("schema.sql")).execute(jdbcTemplate.getDataSource());
+        } catch (RuntimeException e) {
+            logger.warn("Could not check the fhir_section_snapshot table: {}", e.getMessage());
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            logger.error("Error writing FHIR section snapshots", e);
+        }
+    }
+
+    private void purgeQuietly() {
+        try {
+            purgeExpired();
+        } catch (RuntimeException e) {
+            logger.warn("Could not purge expired FHIR section snapshots: {}", e.getMessage());
+        }
+    }
+
+    private Duration maxAgeFor(String resourceType) {
+        return maxAgeByResourceType.computeIfAbsent(resourceType, type ->
+            environment.getProperty("fhir.snapshot.max-age." + type, Duration.class, defaultMaxAge));
+    }
+
+    private record Snapshot(SectionKey key, String text, Instant fetchedAt, Instant expiresAt) {
+    }
+}
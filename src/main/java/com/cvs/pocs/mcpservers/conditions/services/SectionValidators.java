@@ -0,0 +1,173 @@
+package com.cvs.pocs.mcpservers.conditions.services;
+
+import com.cvs.pocs.mcpservers.conditions.services.FhirSectionCache.SectionKey;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Version metadata of fetched FHIR sections, kept after their cache entries
+ * expire so {@link FhirService} can revalidate them instead of fetching them
+ * again in full: with {@code If-None-Match} when the server sent an ETag (or
+ * the resource a {@code meta.versionId}), otherwise with the same search
+ * narrowed to {@code _lastUpdated=gt<previous fetch>}, whose entries are
+ * merged into the section by resource id.
+ * <p>
+ * An incremental search does not see deleted resources, or ones that no
+ * longer match the search, so a section is fetched in full again once its
+ * last full fetch is older than {@code fhir.revalidation.max-age}.
+ * {@code fhir.revalidation.clock-skew} is taken off each {@code _lastUpdated}
+ * bound to allow for the server's clock.
+ */
+@Component
+public class SectionValidators {
+
+    private final boolean enabled;
+    private final Duration maxAge;
+    private final Duration clockSkew;
+    private final PipelineMetrics metrics;
+    private final Cache<SectionKey, Validator> validators;
+
+    private final AtomicLong revalidations = new AtomicLong();
+    private final AtomicLong notModified = new AtomicLong();
+    private final AtomicLong merged = new AtomicLong();
+    private final AtomicLong bytesSaved = new AtomicLong();
+
+    public SectionValidators(@Value("${fhir.revalidation.enabled:false}") boolean enabled,
+                             @Value("${fhir.revalidation.max-age:30m}") Duration maxAge,
+                             @Value("${fhir.revalidation.clock-skew:5s}") Duration clockSkew,
+                             @Value("${fhir.revalidation.maximum-size:10000}") long maximumSize,
+                             PipelineMetrics metrics) {
+        this.enabled = enabled;
+        this.maxAge = maxAge;
+        this.clockSkew = clockSkew;
+        this.metrics = metrics;
+        this.validators = Caffeine.newBuilder()
+            .maximumSize(maximumSize)
+            .expireAfterWrite(maxAge)
+            .build();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * The validator to revalidate the section with, or {@code null} if it has
+     * to be fetched in full.
+     */
+    public Validator get(SectionKey key) {
+        if (!enabled) {
+            return null;
+        }
+        Validator validator = validators.getIfPresent(key);
+        return validator == null || validator.fullFetchAt().plus(maxAge).isBefore(Instant.now()) ? null : validator;
+    }
+
+    /**
+     * Records a full fetch started at {@code fetchStart} and returns the
+     * section text. {@code previous} is the validator it was revalidated
+     * with, if the server answered a conditional request in full.
+     */
+    public String recordFull(SectionKey key, Validator previous, String etag, Instant fetchStart, String heading,
+                             Map<String, String> entries, long bytes) {
+        String text = text(heading, entries);
+        if (enabled) {
+            validators.put(key, new Validator(etag, fetchStart.minus(clockSkew), fetchStart, heading,
+                new LinkedHashMap<>(entries), text, bytes));
+        }
+        if (previous != null) {
+            revalidated(key, "modified", previous, bytes);
+        }
+        return text;
+    }
+
+    /**
+     * Records a revalidation that found nothing changed and returns the
+     * section text as previously fetched.
+     */
+    public String recordNotModified(SectionKey key, Validator previous, Instant fetchStart, long bytes) {
+        validators.put(key, previous.revalidatedAt(fetchStart.minus(clockSkew), previous.entries(), previous.text()));
+        notModified.incrementAndGet();
+        revalidated(key, "not-modified", previous, bytes);
+        return previous.text();
+    }
+
+    /**
+     * Merges the entries of an incremental search into the section: changed
+     * resources replace their previous text in place, new ones come first.
+     * At most {@code maxEntries} entries are kept.
+     */
+    public String recordMerged(SectionKey key, Validator previous, Instant fetchStart, Map<String, String> changed,
+                               int maxEntries, long bytes) {
+        LinkedHashMap<String, String> entries = new LinkedHashMap<>();
+        changed.forEach((id, entry) -> {
+            if (!previous.entries().containsKey(id) && entries.size() < maxEntries) {
+                entries.put(id, entry);
+            }
+        });
+        for (Map.Entry<String, String> entry : previous.entries().entrySet()) {
+            if (entries.size() == maxEntries) {
+                break;
+            }
+            entries.put(entry.getKey(), changed.getOrDefault(entry.getKey(), entry.getValue()));
+        }
+        String text = text(previous.heading(), entries);
+        validators.put(key, previous.revalidatedAt(fetchStart.minus(clockSkew), entries, text));
+        merged.incrementAndGet();
+        revalidated(key, "merged", previous, bytes);
+        return text;
+    }
+
+    public void invalidatePatient(String tenant, String patientId) {
+        validators.asMap().keySet().removeIf(key -> key.tenant().equals(tenant) && key.patientId().equals(patientId));
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        long total = revalidations.get();
+        result.put("enabled", enabled);
+        result.put("size", validators.estimatedSize());
+        result.put("revalidations", total);
+        result.put("notModified", notModified.get());
+        result.put("merged", merged.get());
+        // Revalidations answered without the full section
+        result.put("hitRate", total == 0 ? 0 : (double) (notModified.get() + merged.get()) / total);
+        result.put("bytesSaved", bytesSaved.get());
+        return result;
+    }
+
+    private void revalidated(SectionKey key, String outcome, Validator previous, long bytes) {
+        revalidations.incrementAndGet();
+        long saved = Math.max(0, previous.fullBytes() - bytes);
+        bytesSaved.addAndGet(saved);
+        metrics.recordRevalidation(key.resourceType(), outcome, saved);
+    }
+
+    private static String text(String heading, Map<String, String> entries) {
+        StringBuilder text = new StringBuilder(heading);
+        entries.values().forEach(text::append);
+        return text.toString();
+    }
+
+    /**
+     * What the last fetch of a section returned: the ETag to send as
+     * {@code If-None-Match}, the {@code _lastUpdated} bound for an incremental
+     * search, and the section's rendered entries by resource id, with the
+     * bytes its last full fetch read.
+     */
+    public record Validator(String etag, Instant since, Instant fullFetchAt, String heading,
+                            LinkedHashMap<String, String> entries, String text, long fullBytes) {
+
+        Validator revalidatedAt(Instant since, LinkedHashMap<String, String> entries, String text) {
+            return new Validator(etag, since, fullFetchAt, heading, entries, text, fullBytes);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.cvs.pocs.mcpservers.conditions.services;
+
+import com.cvs.pocs.mcpservers.conditions.model.ChatRequest;
+import com.cvs.pocs.mcpservers.conditions.model.ChatResponse;
+import com.cvs.pocs.mcpservers.conditions.util.FhirParserUtil;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Loads the HAPI FHIR R4 model and JSON parser and the Jackson mappers for
+ * the chat API on a background thread while the rest of the application
+ * starts, so the first chat after a pod comes up does not pay for them.
+ * <p>
+ * With {@code mcp.startup.warmup.enabled}, this health indicator is
+ * {@code OUT_OF_SERVICE} until warming up has finished, which keeps the
+ * readiness group ({@code /actuator/health/readiness}) from reporting the
+ * instance ready before then. A failed warm-up is logged and does not hold
+ * readiness back; the work is then done by the first request, as without it.
+ */
+@Component
+public class StartupWarmup implements HealthIndicator {
+
+    private static final Logger logger = LoggerFactory.getLogger(StartupWarmup.class);
+
+    private final boolean enabled;
+    private final CompletableFuture<Duration> warmup;
+
+    public StartupWarmup(@Value("${mcp.startup.warmup.enabled:false}") boolean enabled,
+                         ObjectMapper objectMapper) {
+        this.enabled = enabled;
+        if (!enabled) {
+            this.warmup = CompletableFuture.completedFuture(Duration.ZERO);
+            return;
+        }
+        // Started from the constructor to overlap with the rest of context startup
+        this.warmup = new CompletableFuture<>();
+        Thread thread = new Thread(() -> warmUp(objectMapper), "startup-warmup");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public boolean isDone() {
+        return warmup.isDone();
+    }
+
+    @Override
+    public Health health() {
+        if (!enabled) {
+            return Health.up().withDetail("warmup", "disabled").build();
+        }
+        if (!warmup.isDone()) {
+            return Health.outOfService().withDetail("warmup", "running").build();
+        }
+        Duration took = warmup.join();
+        return Health.up().withDetail("warmup", "done").withDetail("durationMs", took.toMillis()).build();
+    }
+
+    private void warmUp(ObjectMapper objectMapper) {
+        long start = System.nanoTime();
+        try {
+            int resources = FhirParserUtil.warmUp();
+            ChatRequest request = objectMapper.readValue(
+                "{\"patientId\":\"p\",\"query\":\"labs\",\"userId\":\"u\",\"urgent\":false}", ChatRequest.class);
+            objectMapper.writeValueAsString(request);
+            objectMapper.writeValueAsString(new ChatResponse("warm-up"));
+            Duration took = Duration.ofNanos(System.nanoTime() - start);
+            logger.info("Warmed up the FHIR context ({} resource types) and JSON mappers in {} ms",
+                resources, took.toMillis());
+            warmup.complete(took);
+        } catch (Exception | LinkageError e) {
+            logger.warn("Startup warm-up failed; the first request will do it instead", e);
+            warmup.complete(Duration.ofNanos(System.nanoTime() - start));
+        }
+    }
+}
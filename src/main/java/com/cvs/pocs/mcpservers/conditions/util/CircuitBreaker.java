@@ -0,0 +1,187 @@
+package com.cvs.pocs.mcpservers.conditions.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Stops calling an upstream that keeps failing. While {@code CLOSED} the
+ * outcomes of the last {@code windowSize} calls are kept; once at least
+ * {@code minimumCalls} have been seen and {@code failureRateThreshold} percent
+ * of them failed, the breaker opens and every call is refused straight away.
+ * After {@code openDuration} it lets {@code halfOpenCalls} trial calls through:
+ * if they all succeed it closes again, the first failure re-opens it.
+ * <p>
+ * A caller asks for a permit with {@link #tryAcquire()} and reports the
+ * outcome with it. Outcomes of calls that started before the last state
+ * change are ignored, so a slow call from before the breaker opened cannot
+ * close it again.
+ */
+public class CircuitBreaker {
+
+    private static final Logger logger = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final String name;
+    private final int failureRateThreshold;
+    private final int minimumCalls;
+    private final long openNanos;
+    private final int halfOpenCalls;
+    private final LongSupplier clock;
+
+    // Ring of the last outcomes while closed; true is a failure
+    private final boolean[] window;
+    private int windowNext;
+    private int windowCalls;
+    private int windowFailures;
+
+    private State state = State.CLOSED;
+    // Changes with every transition; permits from an earlier epoch are stale
+    private long epoch;
+    private long openedAt;
+    private int halfOpenInFlight;
+    private int halfOpenSuccesses;
+    private long rejected;
+
+    public CircuitBreaker(String name, int failureRateThreshold, int minimumCalls, int windowSize,
+                          Duration openDuration, int halfOpenCalls) {
+        this(name, failureRateThreshold, minimumCalls, windowSize, openDuration, halfOpenCalls, System::nanoTime);
+    }
+
+    CircuitBreaker(String name, int failureRateThreshold, int minimumCalls, int windowSize,
+                   Duration openDuration, int halfOpenCalls, LongSupplier clock) {
+        this.name = name;
+        this.failureRateThreshold = failureRateThreshold;
+        this.minimumCalls = Math.min(minimumCalls, windowSize);
+        this.window = new boolean[windowSize];
+        this.openNanos = openDuration.toNanos();
+        this.halfOpenCalls = halfOpenCalls;
+        this.clock = clock;
+    }
+
+    /**
+     * Returns a permit for one call, or -1 if the breaker refuses it.
+     */
+    public synchronized long tryAcquire() {
+        if (state == State.OPEN && clock.getAsLong() - openedAt >= openNanos) {
+            transition(State.HALF_OPEN);
+        }
+        if (state == State.OPEN || (state == State.HALF_OPEN && halfOpenInFlight >= halfOpenCalls)) {
+            rejected++;
+            return -1;
+        }
+        if (state == State.HALF_OPEN) {
+            halfOpenInFlight++;
+        }
+        return epoch;
+    }
+
+    public synchronized void onSuccess(long permit) {
+        if (permit != epoch) {
+            return;
+        }
+        if (state == State.HALF_OPEN) {
+            halfOpenInFlight--;
+            if (++halfOpenSuccesses >= halfOpenCalls) {
+                transition(State.CLOSED);
+            }
+        } else {
+            record(false);
+        }
+    }
+
+    public synchronized void onFailure(long permit) {
+        if (permit != epoch) {
+            return;
+        }
+        if (state == State.HALF_OPEN) {
+            transition(State.OPEN);
+        } else {
+            record(true);
+            if (windowCalls >= minimumCalls && windowFailures * 100 >= failureRateThreshold * windowCalls) {
+                transition(State.OPEN);
+            }
+        }
+    }
+
+    /**
+     * Gives back a permit whose call was cancelled before it had an outcome.
+     */
+    public synchronized void release(long permit) {
+        if (permit == epoch && state == State.HALF_OPEN) {
+            halfOpenInFlight--;
+        }
+    }
+
+    public synchronized State getState() {
+        if (state == State.OPEN && clock.getAsLong() - openedAt >= openNanos) {
+            // Report the trial phase as soon as it is due, not only once a call asks
+            transition(State.HALF_OPEN);
+        }
+        return state;
+    }
+
+    /**
+     * Failed share of the calls in the window, in percent; 0 until it holds a call.
+     */
+    public synchronized double getFailureRate() {
+        return windowCalls == 0 ? 0 : windowFailures * 100.0 / windowCalls;
+    }
+
+    public synchronized long getRejected() {
+        return rejected;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public synchronized Map<String, Object> getStats() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("state", getState());
+        result.put("failureRate", getFailureRate());
+        result.put("calls", windowCalls);
+        result.put("rejected", rejected);
+        return result;
+    }
+
+    private void record(boolean failure) {
+        if (windowCalls == window.length) {
+            if (window[windowNext]) {
+                windowFailures--;
+            }
+        } else {
+            windowCalls++;
+        }
+        window[windowNext] = failure;
+        if (failure) {
+            windowFailures++;
+        }
+        windowNext = (windowNext + 1) % window.length;
+    }
+
+    private void transition(State next) {
+        if (next == State.OPEN && state == State.HALF_OPEN) {
+            logger.warn("Circuit breaker {} re-opened after a failed trial call", name);
+            openedAt = clock.getAsLong();
+        } else if (next == State.OPEN) {
+            logger.warn("Circuit breaker {} opened after {} of {} calls failed; refusing calls for {} ms",
+                name, windowFailures, windowCalls, openNanos / 1_000_000);
+            openedAt = clock.getAsLong();
+        } else {
+            logger.info("Circuit breaker {} is now {}", name, next);
+        }
+        state = next;
+        epoch++;
+        halfOpenInFlight = 0;
+        halfOpenSuccesses = 0;
+        windowNext = 0;
+        windowCalls = 0;
+        windowFailures = 0;
+    }
+}
@@ -0,0 +1,189 @@
+package com.cvs.pocs.mcpservers.conditions.util;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.async.ByteArrayFeeder;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Reads a FHIR JSON Bundle from a streamed response body and emits its entry
+ * resources one at a time. Only the JSON of the entry currently being read is
+ * buffered, so peak memory per request stays flat no matter how many entries
+ * the Bundle holds.
+ */
+public class FhirBundleStreamReader {
+
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    /**
+     * Tokenizes the body on the thread delivering it and parses each entry's
+     * resource with HAPI on the bounded elastic scheduler.
+     */
+    public static Flux<IBaseResource> readResources(Flux<DataBuffer> body) {
+        return readResources(body, nextUrl -> { });
+    }
+
+    /**
+     * Same as {@link #readResources(Flux)}, additionally handing the Bundle's
+     * {@code next} link to the given handler as soon as it has been read, which
+     * lets callers start on the following page before this one is finished.
+     */
+    public static Flux<IBaseResource> readResources(Flux<DataBuffer> body, Consumer<String> nextLinkHandler) {
+        return Flux.defer(() -> {
+                EntryTokenizer tokenizer = new EntryTokenizer(nextLinkHandler);
+                return body.concatMapIterable(tokenizer::feed)
+                    .concatWith(Flux.defer(() -> Flux.fromIterable(tokenizer.endOfInput())));
+            })
+            .publishOn(Schedulers.boundedElastic())
+            .map(FhirParserUtil::parseResource);
+    }
+
+    /**
+     * Incremental state machine over the Bundle JSON. It copies the tokens of
+     * each {@code entry[].resource} object into its own string, picks the
+     * {@code next} URL out of {@code link[]} and discards everything else.
+     */
+    static final class EntryTokenizer {
+
+        private final JsonParser parser;
+        private final ByteArrayFeeder feeder;
+        private final Consumer<String> nextLinkHandler;
+
+        private int depth;
+        private String rootField;
+        private String entryField;
+        private boolean inEntries;
+        private boolean inLinks;
+        private String linkRelation;
+        private String linkUrl;
+
+        private StringWriter resourceJson;
+        private JsonGenerator generator;
+        private int captureDepth;
+
+        EntryTokenizer(Consumer<String> nextLinkHandler) {
+            this.nextLinkHandler = nextLinkHandler;
+            try {
+                this.parser = jsonFactory.createNonBlockingByteArrayParser();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            this.feeder = (ByteArrayFeeder) parser.getNonBlockingInputFeeder();
+        }
+
+        List<String> feed(DataBuffer buffer) {
+            byte[] bytes;
+            try {
+                bytes = new byte[buffer.readableByteCount()];
+                buffer.read(bytes);
+            } finally {
+                DataBufferUtils.release(buffer);
+            }
+            try {
+                feeder.feedInput(bytes, 0, bytes.length);
+                return drain();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        List<String> endOfInput() {
+            feeder.endOfInput();
+            try {
+                List<String> resources = drain();
+                parser.close();
+                return resources;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private List<String> drain() throws IOException {
+            List<String> resources = null;
+            JsonToken token;
+            while ((token = parser.nextToken()) != null && token != JsonToken.NOT_AVAILABLE) {
+                if (generator != null) {
+                    generator.copyCurrentEvent(parser);
+                    if (token.isStructStart()) {
+                        captureDepth++;
+                    } else if (token.isStructEnd() && --captureDepth == 0) {
+                        generator.close();
+                        if (resources == null) {
+                            resources = new ArrayList<>();
+                        }
+                        resources.add(resourceJson.toString());
+                        generator = null;
+                        resourceJson = null;
+                        depth--;
+                    }
+                    continue;
+                }
+                switch (token) {
+                    case FIELD_NAME:
+                        if (depth == 1) {
+                            rootField = parser.currentName();
+                        } else if (depth == 3 && (inEntries || inLinks)) {
+                            entryField = parser.currentName();
+                        }
+                        break;
+                    case VALUE_STRING:
+                        if (depth == 3 && inLinks) {
+                            if ("relation".equals(entryField)) {
+                                linkRelation = parser.getText();
+                            } else if ("url".equals(entryField)) {
+                                linkUrl = parser.getText();
+                            }
+                        }
+                        break;
+                    case START_OBJECT:
+                    case START_ARRAY:
+                        depth++;
+                        if (depth == 2 && token == JsonToken.START_ARRAY && "entry".equals(rootField)) {
+                            inEntries = true;
+                        } else if (depth == 2 && token == JsonToken.START_ARRAY && "link".equals(rootField)) {
+                            inLinks = true;
+                        } else if (depth == 4 && inEntries && token == JsonToken.START_OBJECT
+                                && "resource".equals(entryField)) {
+                            resourceJson = new StringWriter();
+                            generator = jsonFactory.createGenerator(resourceJson);
+                            generator.copyCurrentEvent(parser);
+                            captureDepth = 1;
+                        }
+                        break;
+                    case END_OBJECT:
+                    case END_ARRAY:
+                        if (depth == 3) {
+                            if (inLinks && "next".equals(linkRelation) && linkUrl != null) {
+                                nextLinkHandler.accept(linkUrl);
+                            }
+                            entryField = null;
+                            linkRelation = null;
+                            linkUrl = null;
+                        } else if (depth == 2) {
+                            inEntries = false;
+                            inLinks = false;
+                        }
+                        depth--;
+                        break;
+                    default:
+                        break;
+                }
+            }
+            return resources == null ? Collections.emptyList() : resources;
+        }
+    }
+}
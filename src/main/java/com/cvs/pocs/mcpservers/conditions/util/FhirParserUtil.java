@@ -2,30 +2,46 @@ package com.cvs.pocs.mcpservers.conditions.util;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import java.text.SimpleDateFormat;
-import java.util.Date;
 import org.hl7.fhir.r4.model.Patient;
-import org.hl7.fhir.r4.model.HumanName;
 import org.hl7.fhir.r4.model.Observation;
-import org.hl7.fhir.r4.model.Quantity;
-import org.hl7.fhir.r4.model.Observation.ObservationReferenceRangeComponent;
 import org.hl7.fhir.r4.model.Condition;
 import org.hl7.fhir.r4.model.MedicationRequest;
 import org.hl7.fhir.r4.model.AllergyIntolerance;
-import org.hl7.fhir.r4.model.AllergyIntolerance.AllergyIntoleranceReactionComponent;
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.parser.IParser;
 import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import java.util.function.Supplier;
 
 public class FhirParserUtil {
      private static final Logger logger = LoggerFactory.getLogger(FhirParserUtil.class); 
-     private static final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd"); 
      private static final FhirContext fhirContext = FhirContext.forR4();
      private static final IParser parser = fhirContext.newJsonParser();
+
+     // One resource of each type the app reads, with the elements the renderers look at
+     private static final String WARM_UP_BUNDLE = "{\"resourceType\":\"Bundle\",\"type\":\"searchset\",\"entry\":["
+         + "{\"resource\":{\"resourceType\":\"Patient\",\"id\":\"p\",\"meta\":{\"versionId\":\"1\"},"
+         + "\"identifier\":[{\"value\":\"MRN\"}],\"name\":[{\"family\":\"Doe\",\"given\":[\"Jane\"]}],"
+         + "\"gender\":\"female\",\"birthDate\":\"1961-04-12\"}},"
+         + "{\"resource\":{\"resourceType\":\"Observation\",\"id\":\"o\",\"status\":\"final\","
+         + "\"code\":{\"coding\":[{\"system\":\"http://loinc.org\",\"code\":\"2345-7\"}],\"text\":\"Glucose\"},"
+         + "\"effectiveDateTime\":\"2024-01-01T08:30:00Z\",\"valueQuantity\":{\"value\":90.5,\"unit\":\"mg/dL\"},"
+         + "\"interpretation\":[{\"text\":\"Normal\"}],\"referenceRange\":[{\"low\":{\"value\":70},\"high\":{\"value\":99}}]}},"
+         + "{\"resource\":{\"resourceType\":\"Condition\",\"id\":\"c\","
+         + "\"verificationStatus\":{\"coding\":[{\"code\":\"confirmed\"}]},"
+         + "\"code\":{\"text\":\"Hypertension\"},\"onsetDateTime\":\"2019-03-01\"}},"
+         + "{\"resource\":{\"resourceType\":\"MedicationRequest\",\"id\":\"m\",\"status\":\"active\",\"intent\":\"order\","
+         + "\"medicationCodeableConcept\":{\"text\":\"Lisinopril\"},\"dosageInstruction\":[{\"text\":\"Daily\"}]}},"
+         + "{\"resource\":{\"resourceType\":\"AllergyIntolerance\",\"id\":\"a\",\"code\":{\"text\":\"Penicillin\"},"
+         + "\"reaction\":[{\"manifestation\":[{\"text\":\"Hives\"}]}]}},"
+         + "{\"resource\":{\"resourceType\":\"Appointment\",\"id\":\"ap\",\"status\":\"booked\","
+         + "\"participant\":[{\"actor\":{\"reference\":\"Patient/p\"},\"status\":\"accepted\"}]}}]}";
      
      public static Patient parsePatient(String patientJson) {
          logger.info("Parsing patient JSON");
-         return parser.parseResource(Patient.class, patientJson);
+         return timedParse("Patient", () -> parser.parseResource(Patient.class, patientJson));
      }
      
      public static Observation parseObservation(String observationJson) {
@@ -46,182 +62,99 @@ public class FhirParserUtil {
         return parser.parseResource(MedicationRequest.class, medicationRequestJson);
     }
     
-    public static String formatPatient(Patient patient) { 
-         StringBuilder sb = new StringBuilder(); 
-         sb.append("PATIENT DEMOGRAPHICS:\n"); 
-         // Name 
-         if (patient.hasName() && !patient.getName().isEmpty()) { 
-             HumanName name = patient.getNameFirstRep(); 
-             sb.append("Name: "); 
-             if (name.hasGiven()) { 
-                 sb.append(name.getGivenAsSingleString()).append(" "); 
-             } 
-             if (name.hasFamily()) { 
-                 sb.append(name.getFamily()); 
-             } 
-             sb.append("\n"); 
-         } 
-         // Gender and DOB 
-         if (patient.hasGender()) { 
-             sb.append("Gender: ").append(patient.getGender().getDisplay()).append("\n"); 
-         } 
-         if (patient.hasBirthDate()) { 
-             sb.append("DOB: ").append(dateFormat.format(patient.getBirthDate())).append("\n"); 
-         } 
-         // Other identifiers 
-         if (patient.hasIdentifier()) { 
-             sb.append("MRN: ").append(patient.getIdentifierFirstRep().getValue()).append("\n"); 
-         } 
-         sb.append("\n"); 
-         return sb.toString(); 
-     }
+    public static String formatPatient(Patient patient) {
+        StringBuilder sb = new StringBuilder();
+        FhirTextRenderer.appendPatient(sb, patient);
+        return sb.toString();
+    }
+
+    public static String formatObservation(Observation observation) {
+        StringBuilder sb = new StringBuilder();
+        FhirTextRenderer.appendObservation(sb, observation);
+        return sb.toString();
+    }
+
+    public static String formatCondition(Condition condition) {
+        StringBuilder sb = new StringBuilder();
+        FhirTextRenderer.appendCondition(sb, condition);
+        return sb.toString();
+    }
+
+    public static String formatMedication(MedicationRequest medicationRequest) {
+        StringBuilder sb = new StringBuilder();
+        FhirTextRenderer.appendMedication(sb, medicationRequest);
+        return sb.toString();
+    }
+
+    public static String formatAllergy(AllergyIntolerance allergyIntolerance) {
+        StringBuilder sb = new StringBuilder();
+        FhirTextRenderer.appendAllergy(sb, allergyIntolerance);
+        return sb.toString();
+    }
      
-     public static String formatObservation(Observation observation) { 
-         StringBuilder sb = new StringBuilder(); 
-         // Get the observation date 
-         Date effectiveDate = null; 
-         if (observation.hasEffectiveDateTimeType()) { 
-             effectiveDate = observation.getEffectiveDateTimeType().getValue(); 
-         } 
-         // Get the observation name/code 
-         String observationName = "Unknown Test"; 
-         if (observation.hasCode() && observation.getCode().hasText()) { 
-             observationName = observation.getCode().getText(); 
-         } else if (observation.hasCode() && observation.getCode().hasCoding()) { 
-             observationName = observation.getCode().getCodingFirstRep().getDisplay(); 
-         } 
-         // Get the value and unit 
-         String valueText = ""; 
-         if (observation.hasValueQuantity()) { 
-             Quantity quantity = observation.getValueQuantity(); 
-             valueText = String.format("%.2f %s", quantity.getValue().doubleValue(), quantity.getUnit() != null ? quantity.getUnit() : ""); 
-         } else if (observation.hasValueStringType()) { 
-             valueText = observation.getValueStringType().getValue(); 
-         } else if (observation.hasValueCodeableConcept()) { 
-             valueText = observation.getValueCodeableConcept().getText(); 
-         } 
-         // Get reference ranges 
-         String referenceRange = ""; 
-         if (observation.hasReferenceRange() && !observation.getReferenceRange().isEmpty()) { 
-             ObservationReferenceRangeComponent range = observation.getReferenceRangeFirstRep(); 
-             if (range.hasLow() && range.hasHigh()) { 
-                 referenceRange = String.format("[%.2f - %.2f]", range.getLow().getValue().doubleValue(), range.getHigh().getValue().doubleValue()); 
-             } 
-         } 
-         // Get interpretation (abnormal, etc.) 
-         String interpretation = ""; 
-         if (observation.hasInterpretation() && !observation.getInterpretation().isEmpty()) { 
-             interpretation = observation.getInterpretationFirstRep().getText(); 
-         } 
-         // Format the output 
-         sb.append(observationName).append(": ") 
-             .append(valueText); 
-         if (!referenceRange.isEmpty()) { 
-             sb.append(" ").append(referenceRange); 
-         } 
-         if (!interpretation.isEmpty()) { 
-             sb.append(" (").append(interpretation).append(")"); 
-         } 
-         if (effectiveDate != null) { 
-             sb.append(" - ").append(dateFormat.format(effectiveDate)); 
-         } 
-         sb.append("\n"); 
-         return sb.toString(); 
+     public static Bundle parseBundle(String bundleJson) {
+         logger.info("Parsing bundle JSON");
+         return timedParse("Bundle", () -> parser.parseResource(Bundle.class, bundleJson));
      }
      
-     public static String formatCondition(Condition condition) { 
-         StringBuilder sb = new StringBuilder(); 
-         // Condition name/code 
-         String conditionName = "Unknown Condition"; 
-         if (condition.hasCode()) { 
-             if (condition.getCode().hasText()) { 
-                 conditionName = condition.getCode().getText(); 
-             } else if (condition.getCode().hasCoding()) { 
-                 conditionName = condition.getCode().getCodingFirstRep().getDisplay(); 
-             } 
-         } 
-         // Status 
-         String status = ""; 
-         if (condition.hasVerificationStatus() && condition.getVerificationStatus().hasCoding() && !condition.getVerificationStatus().getCoding().isEmpty()) {
-             status = condition.getVerificationStatus().getCodingFirstRep().getDisplay();
+     public static IBaseResource parseResource(String resourceJson) {
+         logger.debug("Parsing resource JSON");
+         Timer.Sample sample = Timer.start(Metrics.globalRegistry);
+         try {
+             IBaseResource resource = parser.parseResource(resourceJson);
+             sample.stop(parseTimer(resource.fhirType(), "success"));
+             return resource;
+         } catch (RuntimeException e) {
+             sample.stop(parseTimer("unknown", "error"));
+             throw e;
          }
-         // Onset date 
-         String onset = ""; 
-         if (condition.hasOnsetDateTimeType()) { 
-             onset = dateFormat.format(condition.getOnsetDateTimeType().getValue()); 
-         } 
-         // Format the output 
-         sb.append(conditionName); 
-         if (status != null && !status.isEmpty()) { 
-             sb.append(" (").append(status).append(")"); 
-         } 
-         if (!onset.isEmpty()) { 
-             sb.append(" - Onset: ").append(onset); 
-         } 
-         sb.append("\n"); 
-         return sb.toString(); 
      }
-     
-     public static String formatMedication(MedicationRequest medicationRequest) { 
-         StringBuilder sb = new StringBuilder(); 
-         // Medication name 
-         String medicationName = "Unknown Medication"; 
-         if (medicationRequest.hasMedicationCodeableConcept()) { 
-             if (medicationRequest.getMedicationCodeableConcept().hasText()) { 
-                 medicationName = medicationRequest.getMedicationCodeableConcept().getText(); 
-             } else if (medicationRequest.getMedicationCodeableConcept().hasCoding()) { 
-                 medicationName = medicationRequest.getMedicationCodeableConcept().getCodingFirstRep().getDisplay(); 
-             } 
-         } 
-         // Dosage 
-         String dosage = ""; 
-         if (medicationRequest.hasDosageInstruction() && !medicationRequest.getDosageInstruction().isEmpty()) { 
-             // Get the text representation of the dosage instruction
-             String dosageText = medicationRequest.getDosageInstructionFirstRep().getText();
-             if (dosageText != null) {
-                 dosage = dosageText;
+
+     /**
+      * Builds the R4 context and JSON parser, and scans the model of each
+      * resource type the app reads, which HAPI otherwise does on the first
+      * request to parse one. Parses are not timed, so warming up leaves
+      * {@code mcp.fhir.parse} alone. Returns the number of resources read.
+      */
+     public static int warmUp() {
+         Bundle bundle = parser.parseResource(Bundle.class, WARM_UP_BUNDLE);
+         StringBuilder sb = new StringBuilder();
+         for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+             IBaseResource resource = parser.parseResource(parser.encodeResourceToString(entry.getResource()));
+             if (resource instanceof Patient patient) {
+                 FhirTextRenderer.appendPatient(sb, patient);
+             } else if (resource instanceof Observation observation) {
+                 FhirTextRenderer.appendObservation(sb, observation);
+             } else if (resource instanceof Condition condition) {
+                 FhirTextRenderer.appendCondition(sb, condition);
+             } else if (resource instanceof MedicationRequest medicationRequest) {
+                 FhirTextRenderer.appendMedication(sb, medicationRequest);
+             } else if (resource instanceof AllergyIntolerance allergyIntolerance) {
+                 FhirTextRenderer.appendAllergy(sb, allergyIntolerance);
              }
-         } 
-         // Format the output 
-         sb.append(medicationName); 
-         if (dosage != null && !dosage.isEmpty()) { 
-             sb.append(": ").append(dosage); 
-         } 
-         sb.append("\n"); 
-         return sb.toString(); 
+         }
+         return bundle.getEntry().size();
      }
-     
-     public static String formatAllergy(AllergyIntolerance allergyIntolerance) { 
-         StringBuilder sb = new StringBuilder(); 
-         // Allergy substance 
-         String substance = "Unknown Allergen"; 
-         if (allergyIntolerance.hasCode()) { 
-             if (allergyIntolerance.getCode().hasText()) { 
-                 substance = allergyIntolerance.getCode().getText(); 
-             } else if (allergyIntolerance.getCode().hasCoding()) { 
-                 substance = allergyIntolerance.getCode().getCodingFirstRep().getDisplay(); 
-             } 
-         } 
-         // Reaction 
-         String reaction = ""; 
-         if (allergyIntolerance.hasReaction() && !allergyIntolerance.getReaction().isEmpty()) { 
-             AllergyIntoleranceReactionComponent reactionComponent = allergyIntolerance.getReactionFirstRep(); 
-             if (reactionComponent.hasManifestation()) { 
-                 reaction = reactionComponent.getManifestationFirstRep().getText(); 
-             } 
-         } 
-         // Format the output 
-         sb.append(substance); 
-         if (!reaction.isEmpty()) { 
-             sb.append(" (").append(reaction).append(")"); 
-         } 
-         sb.append("\n"); 
-         return sb.toString(); 
+
+     // Recorded in the global registry, which Spring Boot binds its meter registries to
+     private static <T extends IBaseResource> T timedParse(String resourceType, Supplier<T> parse) {
+         Timer.Sample sample = Timer.start(Metrics.globalRegistry);
+         String outcome = "error";
+         try {
+             T resource = parse.get();
+             outcome = "success";
+             return resource;
+         } finally {
+             sample.stop(parseTimer(resourceType, outcome));
+         }
      }
-     
-     public static Bundle parseBundle(String bundleJson) {
-         logger.info("Parsing bundle JSON");
-         return parser.parseResource(Bundle.class, bundleJson);
+
+     private static Timer parseTimer(String resourceType, String outcome) {
+         return Timer.builder("mcp.fhir.parse")
+             .description("HAPI FHIR JSON parsing")
+             .tag("resource", resourceType)
+             .tag("outcome", outcome)
+             .register(Metrics.globalRegistry);
      }
 } 
 
@@ -0,0 +1,243 @@
+package com.cvs.pocs.mcpservers.conditions.util;
+
+import org.hl7.fhir.r4.model.AllergyIntolerance;
+import org.hl7.fhir.r4.model.AllergyIntolerance.AllergyIntoleranceReactionComponent;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.HumanName;
+import org.hl7.fhir.r4.model.MedicationRequest;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Observation.ObservationReferenceRangeComponent;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Quantity;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Date;
+
+/**
+ * Renders FHIR resources as the plain-text lines sent to the LLM, appending
+ * straight into a caller-supplied buffer so that a whole section is built in
+ * one {@link StringBuilder}. Holds no mutable state and is safe to call from
+ * any thread. The text is identical to what the original
+ * {@code FhirParserUtil.format*} methods produced.
+ */
+public final class FhirTextRenderer {
+
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd");
+
+    // Resolved once, as the shared SimpleDateFormat did; ZoneId.systemDefault() copies the TimeZone per call
+    private static final ZoneId ZONE = ZoneId.systemDefault();
+
+    // Values with more significant digits than a double holds exactly are left to String.format
+    private static final int MAX_EXACT_PRECISION = 15;
+
+    // Largest integer part for which value * 100 still rounds to the exact cent as a double;
+    // String.format prints the binary expansion of larger values, so those are left to it too
+    private static final int MAX_INTEGER_DIGITS = 13;
+
+    // String.format("%.2f") follows the default locale; the fast path only matches it for ASCII decimals
+    private static final boolean ASCII_DECIMALS = "-1234.50".equals(String.format("%.2f", -1234.5));
+
+    private FhirTextRenderer() {
+    }
+
+    public static void appendPatient(StringBuilder sb, Patient patient) {
+        sb.append("PATIENT DEMOGRAPHICS:\n");
+        // Name
+        if (patient.hasName() && !patient.getName().isEmpty()) {
+            HumanName name = patient.getNameFirstRep();
+            sb.append("Name: ");
+            if (name.hasGiven()) {
+                sb.append(name.getGivenAsSingleString()).append(' ');
+            }
+            if (name.hasFamily()) {
+                sb.append(name.getFamily());
+            }
+            sb.append('\n');
+        }
+        // Gender and DOB
+        if (patient.hasGender()) {
+            sb.append("Gender: ").append(patient.getGender().getDisplay()).append('\n');
+        }
+        if (patient.hasBirthDate()) {
+            sb.append("DOB: ");
+            appendDate(sb, patient.getBirthDate());
+            sb.append('\n');
+        }
+        // Other identifiers
+        if (patient.hasIdentifier()) {
+            sb.append("MRN: ").append(patient.getIdentifierFirstRep().getValue()).append('\n');
+        }
+        sb.append('\n');
+    }
+
+    public static void appendObservation(StringBuilder sb, Observation observation) {
+        // Name/code
+        if (observation.hasCode() && observation.getCode().hasText()) {
+            sb.append(observation.getCode().getText());
+        } else if (observation.hasCode() && observation.getCode().hasCoding()) {
+            sb.append(observation.getCode().getCodingFirstRep().getDisplay());
+        } else {
+            sb.append("Unknown Test");
+        }
+        sb.append(": ");
+        // Value and unit
+        if (observation.hasValueQuantity()) {
+            Quantity quantity = observation.getValueQuantity();
+            appendFixed2(sb, quantity.getValue());
+            sb.append(' ');
+            if (quantity.getUnit() != null) {
+                sb.append(quantity.getUnit());
+            }
+        } else if (observation.hasValueStringType()) {
+            sb.append(observation.getValueStringType().getValue());
+        } else if (observation.hasValueCodeableConcept()) {
+            sb.append(observation.getValueCodeableConcept().getText());
+        }
+        // Reference range
+        if (observation.hasReferenceRange() && !observation.getReferenceRange().isEmpty()) {
+            ObservationReferenceRangeComponent range = observation.getReferenceRangeFirstRep();
+            if (range.hasLow() && range.hasHigh()) {
+                BigDecimal low = range.getLow().getValue();
+                BigDecimal high = range.getHigh().getValue();
+                sb.append(" [");
+                appendFixed2(sb, low);
+                sb.append(" - ");
+                appendFixed2(sb, high);
+                sb.append(']');
+            }
+        }
+        // Interpretation (abnormal, etc.)
+        if (observation.hasInterpretation() && !observation.getInterpretation().isEmpty()) {
+            String interpretation = observation.getInterpretationFirstRep().getText();
+            if (!interpretation.isEmpty()) {
+                sb.append(" (").append(interpretation).append(')');
+            }
+        }
+        if (observation.hasEffectiveDateTimeType()) {
+            Date effectiveDate = observation.getEffectiveDateTimeType().getValue();
+            if (effectiveDate != null) {
+                sb.append(" - ");
+                appendDate(sb, effectiveDate);
+            }
+        }
+        sb.append('\n');
+    }
+
+    public static void appendCondition(StringBuilder sb, Condition condition) {
+        // Name/code
+        String conditionName = "Unknown Condition";
+        if (condition.hasCode()) {
+            if (condition.getCode().hasText()) {
+                conditionName = condition.getCode().getText();
+            } else if (condition.getCode().hasCoding()) {
+                conditionName = condition.getCode().getCodingFirstRep().getDisplay();
+            }
+        }
+        sb.append(conditionName);
+        // Status
+        if (condition.hasVerificationStatus() && condition.getVerificationStatus().hasCoding()
+                && !condition.getVerificationStatus().getCoding().isEmpty()) {
+            String status = condition.getVerificationStatus().getCodingFirstRep().getDisplay();
+            if (status != null && !status.isEmpty()) {
+                sb.append(" (").append(status).append(')');
+            }
+        }
+        // Onset date
+        if (condition.hasOnsetDateTimeType()) {
+            sb.append(" - Onset: ");
+            appendDate(sb, condition.getOnsetDateTimeType().getValue());
+        }
+        sb.append('\n');
+    }
+
+    public static void appendMedication(StringBuilder sb, MedicationRequest medicationRequest) {
+        // Medication name
+        String medicationName = "Unknown Medication";
+        if (medicationRequest.hasMedicationCodeableConcept()) {
+            if (medicationRequest.getMedicationCodeableConcept().hasText()) {
+                medicationName = medicationRequest.getMedicationCodeableConcept().getText();
+            } else if (medicationRequest.getMedicationCodeableConcept().hasCoding()) {
+                medicationName = medicationRequest.getMedicationCodeableConcept().getCodingFirstRep().getDisplay();
+            }
+        }
+        sb.append(medicationName);
+        // Dosage
+        if (medicationRequest.hasDosageInstruction() && !medicationRequest.getDosageInstruction().isEmpty()) {
+            String dosage = medicationRequest.getDosageInstructionFirstRep().getText();
+            if (dosage != null && !dosage.isEmpty()) {
+                sb.append(": ").append(dosage);
+            }
+        }
+        sb.append('\n');
+    }
+
+    public static void appendAllergy(StringBuilder sb, AllergyIntolerance allergyIntolerance) {
+        // Allergy substance
+        String substance = "Unknown Allergen";
+        if (allergyIntolerance.hasCode()) {
+            if (allergyIntolerance.getCode().hasText()) {
+                substance = allergyIntolerance.getCode().getText();
+            } else if (allergyIntolerance.getCode().hasCoding()) {
+                substance = allergyIntolerance.getCode().getCodingFirstRep().getDisplay();
+            }
+        }
+        sb.append(substance);
+        // Reaction
+        if (allergyIntolerance.hasReaction() && !allergyIntolerance.getReaction().isEmpty()) {
+            AllergyIntoleranceReactionComponent reactionComponent = allergyIntolerance.getReactionFirstRep();
+            if (reactionComponent.hasManifestation()) {
+                String reaction = reactionComponent.getManifestationFirstRep().getText();
+                if (!reaction.isEmpty()) {
+                    sb.append(" (").append(reaction).append(')');
+                }
+            }
+        }
+        sb.append('\n');
+    }
+
+    /**
+     * Appends the date as {@code yyyy-MM-dd} in the JVM's default time zone.
+     */
+    static void appendDate(StringBuilder sb, Date date) {
+        appendDate(sb, LocalDate.ofInstant(date.toInstant(), ZONE));
+    }
+
+    static void appendDate(StringBuilder sb, LocalDate date) {
+        DATE_FORMAT.formatTo(date, sb);
+    }
+
+    /**
+     * Appends the value with exactly two decimals, rounded half up, as
+     * {@code String.format("%.2f", value.doubleValue())} would. Values with at
+     * most two decimals are rendered from their double without allocating;
+     * longer ones are rounded as decimals. Only values too large or too
+     * precise for a lab result fall back to {@code String.format}.
+     */
+    static void appendFixed2(StringBuilder sb, BigDecimal value) {
+        if (!ASCII_DECIMALS || value.precision() > MAX_EXACT_PRECISION
+                || value.precision() - value.scale() > MAX_INTEGER_DIGITS) {
+            sb.append(String.format("%.2f", value.doubleValue()));
+            return;
+        }
+        long cents;
+        if (value.scale() <= 2) {
+            cents = Math.abs(Math.round(value.doubleValue() * 100));
+        } else {
+            cents = value.setScale(2, RoundingMode.HALF_UP).unscaledValue().abs().longValueExact();
+        }
+        if (value.signum() < 0) {
+            // Negative values that round to zero still print as -0.00
+            sb.append('-');
+        }
+        sb.append(cents / 100).append('.');
+        int fraction = (int) (cents % 100);
+        if (fraction < 10) {
+            sb.append('0');
+        }
+        sb.append(fraction);
+    }
+}
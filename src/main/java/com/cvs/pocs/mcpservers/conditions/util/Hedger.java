@@ -0,0 +1,157 @@
+package com.cvs.pocs.mcpservers.conditions.util;
+
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Cuts tail latency of idempotent calls by hedging: if an attempt has not
+ * answered within the recent {@code percentile} latency (e.g. p95), a second
+ * identical attempt is started and whichever answers first is used; the other
+ * is cancelled, or discarded if it answered too. Only about
+ * {@code 1 - percentile} of the calls are hedged, so the extra load stays small.
+ * <p>
+ * The delay is taken from the last {@code window} successful attempts and is
+ * never shorter than {@code minDelay}. Until {@code minSamples} attempts have
+ * been seen, nothing is hedged.
+ */
+public class Hedger {
+
+    private final double percentile;
+    private final long minDelayNanos;
+    private final int minSamples;
+    private final long[] samples;
+    private final AtomicLong recorded = new AtomicLong();
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong won = new AtomicLong();
+    // Recomputed every RECOMPUTE_EVERY samples rather than sorting on each call; -1 until minSamples
+    private volatile long delayNanos = -1;
+
+    private static final int RECOMPUTE_EVERY = 16;
+
+    public Hedger(double percentile, Duration minDelay, int window, int minSamples) {
+        this.percentile = percentile;
+        this.minDelayNanos = minDelay.toNanos();
+        this.samples = new long[window];
+        this.minSamples = Math.min(minSamples, window);
+    }
+
+    /**
+     * Runs {@code attempt}, starting a second one if the first is slower than
+     * the hedge delay. A failed first attempt is retried by the second one
+     * only if that has already been sent; otherwise the failure is passed on.
+     * {@code discard} releases the value of an attempt that answered too late.
+     */
+    public <T> Mono<T> execute(Supplier<Mono<T>> attempt, Consumer<? super T> discard) {
+        return Mono.defer(() -> {
+            calls.incrementAndGet();
+            long delay = delayNanos;
+            if (delay < 0) {
+                return timed(attempt);
+            }
+            AtomicBoolean decided = new AtomicBoolean();
+            AtomicReference<Throwable> firstError = new AtomicReference<>();
+            Sinks.One<Boolean> primaryFailed = Sinks.one();
+            Mono<T> primary = timed(attempt)
+                .doOnError(e -> {
+                    firstError.compareAndSet(null, e);
+                    primaryFailed.tryEmitValue(true);
+                })
+                .filter(value -> claim(decided, value, discard));
+            Mono<T> hedge = Mono.delay(Duration.ofNanos(delay))
+                // A failed primary ends the call; the hedge is only sent for a slow one
+                .takeUntilOther(primaryFailed.asMono())
+                .flatMap(tick -> {
+                    sent.incrementAndGet();
+                    return timed(attempt);
+                })
+                .doOnError(e -> firstError.compareAndSet(null, e))
+                .filter(value -> {
+                    if (claim(decided, value, discard)) {
+                        won.incrementAndGet();
+                        return true;
+                    }
+                    return false;
+                });
+            return Mono.firstWithValue(primary, hedge)
+                .onErrorMap(NoSuchElementException.class, e -> firstError.get() != null ? firstError.get() : e);
+        });
+    }
+
+    /**
+     * The current hedge delay, or {@code null} while there are too few samples.
+     */
+    public Duration getDelay() {
+        long delay = delayNanos;
+        return delay < 0 ? null : Duration.ofNanos(delay);
+    }
+
+    public long getCalls() {
+        return calls.get();
+    }
+
+    public long getSent() {
+        return sent.get();
+    }
+
+    public long getWon() {
+        return won.get();
+    }
+
+    /**
+     * Share of the hedges sent that answered before the attempt they hedged.
+     */
+    public double getWinRate() {
+        long hedges = sent.get();
+        return hedges == 0 ? 0 : (double) won.get() / hedges;
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        Duration delay = getDelay();
+        result.put("delayMillis", delay == null ? null : delay.toMillis());
+        result.put("calls", calls.get());
+        result.put("sent", sent.get());
+        result.put("won", won.get());
+        result.put("winRate", getWinRate());
+        return result;
+    }
+
+    private <T> Mono<T> timed(Supplier<Mono<T>> attempt) {
+        return Mono.defer(() -> {
+            long startNanos = System.nanoTime();
+            return attempt.get().doOnNext(value -> record(System.nanoTime() - startNanos));
+        });
+    }
+
+    private static <T> boolean claim(AtomicBoolean decided, T value, Consumer<? super T> discard) {
+        if (decided.compareAndSet(false, true)) {
+            return true;
+        }
+        discard.accept(value);
+        return false;
+    }
+
+    private void record(long nanos) {
+        long n = recorded.getAndIncrement();
+        samples[(int) (n % samples.length)] = nanos;
+        if (n + 1 == minSamples || (n + 1 > minSamples && (n + 1) % RECOMPUTE_EVERY == 0)) {
+            // Racy copy: a sample being overwritten meanwhile only nudges the estimate
+            long[] copy = Arrays.copyOf(samples, (int) Math.min(n + 1, samples.length));
+            Arrays.sort(copy);
+            long quantile = copy[Math.min(copy.length - 1, (int) Math.ceil(percentile * copy.length) - 1)];
+            delayNanos = Math.max(minDelayNanos, quantile);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.cvs.pocs.mcpservers.conditions.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * Finds every occurrence of a fixed set of keywords in one left-to-right pass
+ * over the text (Aho-Corasick). Matching ignores case and only reports whole
+ * words: a keyword must not be preceded or followed by a letter or digit, so
+ * {@code med} matches "any meds" only if {@code meds} is a keyword too, and
+ * never matches "medical". Keywords may contain spaces ("blood pressure").
+ * Instances are immutable and safe to share between threads.
+ *
+ * @param <T> what each keyword stands for, reported with its matches
+ */
+public final class KeywordMatcher<T> {
+
+    /**
+     * Receives each whole-word match as it is found, in order of its end offset.
+     */
+    @FunctionalInterface
+    public interface MatchHandler<T> {
+        void onMatch(T value, int start, int end);
+    }
+
+    // Index of each keyword character in the transition table; 0 is every other character
+    private final char[] alphabet;
+    private final int[] symbolOf = new int[128];
+    private final int symbols;
+    // delta[state * symbols + symbol]: the next state, failure links already folded in
+    private final int[] delta;
+    // Keywords (as indexes into lengths/values) ending in each state, including via failure links
+    private final int[][] outputs;
+    private final int[] lengths;
+    private final List<T> values;
+
+    public KeywordMatcher(Map<String, T> keywords) {
+        StringBuilder chars = new StringBuilder();
+        keywords.keySet().forEach(keyword -> keyword.toLowerCase().chars()
+            .filter(c -> chars.indexOf(String.valueOf((char) c)) < 0)
+            .forEach(c -> chars.append((char) c)));
+        this.alphabet = chars.toString().toCharArray();
+        Arrays.sort(alphabet);
+        for (int i = 0; i < alphabet.length; i++) {
+            if (alphabet[i] < 128) {
+                symbolOf[alphabet[i]] = i + 1;
+            }
+        }
+        this.symbols = alphabet.length + 1;
+
+        // Trie of the keywords; -1 marks a missing edge until the failure links fill it
+        List<int[]> edges = new ArrayList<>();
+        List<List<Integer>> ends = new ArrayList<>();
+        edges.add(newRow());
+        ends.add(new ArrayList<>());
+        this.lengths = new int[keywords.size()];
+        this.values = new ArrayList<>(keywords.size());
+        for (Map.Entry<String, T> keyword : keywords.entrySet()) {
+            String word = keyword.getKey().toLowerCase();
+            int state = 0;
+            for (int i = 0; i < word.length(); i++) {
+                int symbol = symbol(word.charAt(i));
+                if (edges.get(state)[symbol] < 0) {
+                    edges.get(state)[symbol] = edges.size();
+                    edges.add(newRow());
+                    ends.add(new ArrayList<>());
+                }
+                state = edges.get(state)[symbol];
+            }
+            ends.get(state).add(values.size());
+            lengths[values.size()] = word.length();
+            values.add(keyword.getValue());
+        }
+
+        // Breadth-first: each state's failure target is shallower, so its row is already complete
+        int[] failure = new int[edges.size()];
+        this.delta = new int[edges.size() * symbols];
+        this.outputs = new int[edges.size()][];
+        Queue<Integer> queue = new ArrayDeque<>();
+        for (int symbol = 0; symbol < symbols; symbol++) {
+            int next = edges.get(0)[symbol];
+            delta[symbol] = Math.max(next, 0);
+            if (next > 0) {
+                queue.add(next);
+            }
+        }
+        outputs[0] = new int[0];
+        while (!queue.isEmpty()) {
+            int state = queue.remove();
+            List<Integer> out = new ArrayList<>(ends.get(state));
+            for (int inherited : outputs[failure[state]]) {
+                out.add(inherited);
+            }
+            outputs[state] = out.stream().mapToInt(Integer::intValue).toArray();
+            for (int symbol = 0; symbol < symbols; symbol++) {
+                int next = edges.get(state)[symbol];
+                if (next < 0) {
+                    delta[state * symbols + symbol] = delta[failure[state] * symbols + symbol];
+                } else {
+                    failure[next] = delta[failure[state] * symbols + symbol];
+                    delta[state * symbols + symbol] = next;
+                    queue.add(next);
+                }
+            }
+        }
+    }
+
+    /**
+     * Builds a matcher from groups of keywords that share a value, e.g. all the
+     * words that ask for lab results.
+     */
+    public static <T> KeywordMatcher<T> of(Map<T, ? extends Iterable<String>> vocabulary) {
+        Map<String, T> keywords = new HashMap<>();
+        vocabulary.forEach((value, words) -> {
+            for (String word : words) {
+                String keyword = word.trim();
+                if (!keyword.isEmpty()) {
+                    keywords.put(keyword, value);
+                }
+            }
+        });
+        return new KeywordMatcher<>(keywords);
+    }
+
+    /**
+     * Reports every whole-word keyword occurrence in {@code text}; allocates nothing.
+     */
+    public void scan(CharSequence text, MatchHandler<? super T> handler) {
+        int state = 0;
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            state = delta[state * symbols + symbol(text.charAt(i))];
+            for (int keyword : outputs[state]) {
+                int start = i + 1 - lengths[keyword];
+                if (isBoundary(text, start - 1) && isBoundary(text, i + 1)) {
+                    handler.onMatch(values.get(keyword), start, i + 1);
+                }
+            }
+        }
+    }
+
+    private int[] newRow() {
+        int[] row = new int[symbols];
+        Arrays.fill(row, -1);
+        return row;
+    }
+
+    private int symbol(char c) {
+        if (c < 128) {
+            return symbolOf[c | (c >= 'A' && c <= 'Z' ? 0x20 : 0)];
+        }
+        int index = Arrays.binarySearch(alphabet, Character.toLowerCase(c));
+        return index < 0 ? 0 : index + 1;
+    }
+
+    private static boolean isBoundary(CharSequence text, int index) {
+        return index < 0 || index >= text.length() || !Character.isLetterOrDigit(text.charAt(index));
+    }
+}
@@ -0,0 +1,123 @@
+package com.cvs.pocs.mcpservers.conditions.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Reads newline-delimited JSON from a file through a fixed-size NIO buffer, one
+ * line at a time. Memory use is the read buffer plus the longest line, however
+ * large the file. Reading can start at any line boundary, which is how an
+ * interrupted ingestion resumes from its last checkpoint.
+ */
+public class NdjsonReader implements Closeable {
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final int maxLineBytes;
+
+    private byte[] line = new byte[1024];
+    private int lineLength;
+    private long position;
+    private boolean endOfFile;
+
+    /**
+     * @param startOffset  byte offset to start at; must be the start of a line
+     * @param bufferSize   bytes read from the file per call
+     * @param maxLineBytes longest line accepted, a guard against a corrupt file
+     */
+    public NdjsonReader(Path file, long startOffset, int bufferSize, int maxLineBytes) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        this.channel.position(startOffset);
+        this.buffer = ByteBuffer.allocate(bufferSize);
+        this.buffer.flip();
+        this.maxLineBytes = maxLineBytes;
+        this.position = startOffset;
+    }
+
+    /**
+     * Returns the next non-blank line, or {@code null} at the end of the file.
+     */
+    public String nextLine() throws IOException {
+        while (true) {
+            String next = readLine();
+            if (next == null || !next.isBlank()) {
+                return next;
+            }
+        }
+    }
+
+    /**
+     * Byte offset just past the last line returned; reading again from here
+     * continues with the line after it.
+     */
+    public long position() {
+        return position;
+    }
+
+    private String readLine() throws IOException {
+        lineLength = 0;
+        while (true) {
+            if (!buffer.hasRemaining()) {
+                if (endOfFile || !fill()) {
+                    if (lineLength == 0) {
+                        return null;
+                    }
+                    // Last line without a trailing newline
+                    position += lineLength;
+                    return decode(lineLength);
+                }
+            }
+            byte[] bytes = buffer.array();
+            int start = buffer.position();
+            int end = buffer.limit();
+            for (int i = start; i < end; i++) {
+                if (bytes[i] == '\n') {
+                    append(bytes, start, i - start);
+                    buffer.position(i + 1);
+                    position += lineLength + 1;
+                    int length = lineLength > 0 && line[lineLength - 1] == '\r' ? lineLength - 1 : lineLength;
+                    return decode(length);
+                }
+            }
+            append(bytes, start, end - start);
+            buffer.position(end);
+        }
+    }
+
+    private boolean fill() throws IOException {
+        buffer.clear();
+        int read = channel.read(buffer);
+        buffer.flip();
+        if (read < 0) {
+            endOfFile = true;
+            return false;
+        }
+        return true;
+    }
+
+    private void append(byte[] bytes, int offset, int length) {
+        if (lineLength + length > maxLineBytes) {
+            throw new IllegalStateException("NDJSON line at offset " + position + " exceeds " + maxLineBytes + " bytes");
+        }
+        if (lineLength + length > line.length) {
+            line = Arrays.copyOf(line, Math.min(maxLineBytes, Math.max(line.length * 2, lineLength + length)));
+        }
+        System.arraycopy(bytes, offset, line, lineLength, length);
+        lineLength += length;
+    }
+
+    private String decode(int length) {
+        return new String(line, 0, length, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,372 @@
+package com.cvs.pocs.mcpservers.conditions.util;
+
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Observation.ObservationReferenceRangeComponent;
+import org.hl7.fhir.r4.model.Quantity;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A patient's Observations held column by column instead of as HAPI object
+ * trees: effective dates as epoch days, values and reference range bounds as
+ * doubles, and the codes, labels, units and interpretations as strings
+ * interned across all series. Only what {@link FhirTextRenderer#appendObservation}
+ * prints is kept, which comes to under a hundred bytes per Observation.
+ * <p>
+ * Entries keep the order they were added in, i.e. the order the server
+ * returned them, so {@link #render} reproduces the section text for any date
+ * window within the one fetched; values are printed as their shortest decimal,
+ * which matches the original text for values of up to 15 significant digits.
+ * {@link #trends} summarizes each code's numeric values without building any
+ * Observation. Instances are immutable and safe to share between threads.
+ */
+public final class ObservationSeries {
+
+    // Entries without an effectiveDateTime
+    public static final int NO_DATE = Integer.MIN_VALUE;
+
+    private static final byte VALUE_NONE = 0;
+    private static final byte VALUE_QUANTITY = 1;
+    private static final byte VALUE_TEXT = 2;
+
+    // Codes, labels, units and interpretations repeat across patients; free text is never interned
+    private static final int MAX_INTERNED = 100_000;
+    private static final Map<String, String> interned = new ConcurrentHashMap<>();
+
+    private static final ZoneId ZONE = ZoneId.systemDefault();
+
+    private final int size;
+    private final int[] days;
+    private final double[] values;
+    private final double[] lows;
+    private final double[] highs;
+    private final byte[] valueKinds;
+    private final String[] codes;
+    private final String[] labels;
+    private final String[] units;
+    private final String[] interpretations;
+    private final String[] texts;
+    private final int undated;
+    private final int oldestDay;
+
+    private ObservationSeries(Builder builder) {
+        this.size = builder.size;
+        this.days = Arrays.copyOf(builder.days, size);
+        this.values = Arrays.copyOf(builder.values, size);
+        this.lows = Arrays.copyOf(builder.lows, size);
+        this.highs = Arrays.copyOf(builder.highs, size);
+        this.valueKinds = Arrays.copyOf(builder.valueKinds, size);
+        this.codes = Arrays.copyOf(builder.codes, size);
+        this.labels = Arrays.copyOf(builder.labels, size);
+        this.units = Arrays.copyOf(builder.units, size);
+        this.interpretations = Arrays.copyOf(builder.interpretations, size);
+        this.texts = Arrays.copyOf(builder.texts, size);
+        int undatedCount = 0;
+        int oldest = Integer.MAX_VALUE;
+        for (int i = 0; i < size; i++) {
+            if (days[i] == NO_DATE) {
+                undatedCount++;
+            } else {
+                oldest = Math.min(oldest, days[i]);
+            }
+        }
+        this.undated = undatedCount;
+        this.oldestDay = oldest == Integer.MAX_VALUE ? NO_DATE : oldest;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Entries without an {@code effectiveDateTime}, which a date window can
+     * neither include nor leave out with certainty.
+     */
+    public int undated() {
+        return undated;
+    }
+
+    /**
+     * The earliest effective date as an epoch day, or {@link #NO_DATE} if no
+     * entry has one.
+     */
+    public int oldestDay() {
+        return oldestDay;
+    }
+
+    /**
+     * Appends, in their original order, the entries effective on or after
+     * {@code fromDay} (an epoch day), at most {@code maxEntries} of them, as
+     * {@link FhirTextRenderer#appendObservation} would have. Returns the number
+     * of entries appended.
+     */
+    public int render(StringBuilder sb, long fromDay, int maxEntries) {
+        int rendered = 0;
+        for (int i = 0; i < size && rendered < maxEntries; i++) {
+            if (days[i] == NO_DATE || days[i] < fromDay) {
+                continue;
+            }
+            appendEntry(sb, i);
+            rendered++;
+        }
+        return rendered;
+    }
+
+    /**
+     * One trend per code and unit over the numeric values effective on or
+     * after {@code fromDay}, in order of each code's first appearance.
+     */
+    public List<Trend> trends(long fromDay) {
+        Map<String, TrendBuilder> byCode = new LinkedHashMap<>();
+        for (int i = 0; i < size; i++) {
+            if (valueKinds[i] != VALUE_QUANTITY || Double.isNaN(values[i]) || days[i] == NO_DATE || days[i] < fromDay) {
+                continue;
+            }
+            String key = units[i] == null ? codes[i] : codes[i] + ' ' + units[i];
+            byCode.computeIfAbsent(key, k -> new TrendBuilder()).add(i);
+        }
+        List<Trend> trends = new ArrayList<>(byCode.size());
+        for (TrendBuilder trend : byCode.values()) {
+            trends.add(trend.build());
+        }
+        return trends;
+    }
+
+    /**
+     * Approximate heap held by this series: the column arrays, without the
+     * interned strings shared with other series or free text values.
+     */
+    public long estimatedBytes() {
+        // Object header and fields, then per entry: int, 3 doubles, byte and 5 compressed references
+        return 96 + 11L * 16 + (long) size * (4 + 3 * 8 + 1 + 5 * 4);
+    }
+
+    private void appendEntry(StringBuilder sb, int i) {
+        sb.append(labels[i]).append(": ");
+        if (valueKinds[i] == VALUE_QUANTITY) {
+            if (!Double.isNaN(values[i])) {
+                FhirTextRenderer.appendFixed2(sb, BigDecimal.valueOf(values[i]));
+            }
+            sb.append(' ');
+            if (units[i] != null) {
+                sb.append(units[i]);
+            }
+        } else if (valueKinds[i] == VALUE_TEXT) {
+            sb.append(texts[i]);
+        }
+        if (!Double.isNaN(lows[i])) {
+            sb.append(" [");
+            FhirTextRenderer.appendFixed2(sb, BigDecimal.valueOf(lows[i]));
+            sb.append(" - ");
+            FhirTextRenderer.appendFixed2(sb, BigDecimal.valueOf(highs[i]));
+            sb.append(']');
+        }
+        if (interpretations[i] != null) {
+            sb.append(" (").append(interpretations[i]).append(')');
+        }
+        if (days[i] != NO_DATE) {
+            sb.append(" - ");
+            FhirTextRenderer.appendDate(sb, LocalDate.ofEpochDay(days[i]));
+        }
+        sb.append('\n');
+    }
+
+    private static String intern(String value) {
+        if (value == null) {
+            return null;
+        }
+        String existing = interned.get(value);
+        if (existing != null) {
+            return existing;
+        }
+        if (interned.size() >= MAX_INTERNED) {
+            return value;
+        }
+        existing = interned.putIfAbsent(value, value);
+        return existing != null ? existing : value;
+    }
+
+    /**
+     * Collects Observations one at a time, e.g. as a search streams them in.
+     * Not thread-safe.
+     */
+    public static final class Builder {
+
+        private int size;
+        private int[] days = new int[16];
+        private double[] values = new double[16];
+        private double[] lows = new double[16];
+        private double[] highs = new double[16];
+        private byte[] valueKinds = new byte[16];
+        private String[] codes = new String[16];
+        private String[] labels = new String[16];
+        private String[] units = new String[16];
+        private String[] interpretations = new String[16];
+        private String[] texts = new String[16];
+
+        private Builder() {
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public Builder add(Observation observation) {
+            if (size == days.length) {
+                grow();
+            }
+            int i = size++;
+            String label;
+            if (observation.hasCode() && observation.getCode().hasText()) {
+                label = observation.getCode().getText();
+            } else if (observation.hasCode() && observation.getCode().hasCoding()) {
+                label = String.valueOf(observation.getCode().getCodingFirstRep().getDisplay());
+            } else {
+                label = "Unknown Test";
+            }
+            labels[i] = intern(label);
+            codes[i] = intern(code(observation, label));
+
+            values[i] = Double.NaN;
+            valueKinds[i] = VALUE_NONE;
+            units[i] = null;
+            texts[i] = null;
+            if (observation.hasValueQuantity()) {
+                Quantity quantity = observation.getValueQuantity();
+                valueKinds[i] = VALUE_QUANTITY;
+                values[i] = quantity.getValue() != null ? quantity.getValue().doubleValue() : Double.NaN;
+                units[i] = intern(quantity.getUnit());
+            } else if (observation.hasValueStringType()) {
+                valueKinds[i] = VALUE_TEXT;
+                texts[i] = String.valueOf(observation.getValueStringType().getValue());
+            } else if (observation.hasValueCodeableConcept()) {
+                valueKinds[i] = VALUE_TEXT;
+                texts[i] = intern(String.valueOf(observation.getValueCodeableConcept().getText()));
+            }
+
+            lows[i] = Double.NaN;
+            highs[i] = Double.NaN;
+            if (observation.hasReferenceRange() && !observation.getReferenceRange().isEmpty()) {
+                ObservationReferenceRangeComponent range = observation.getReferenceRangeFirstRep();
+                if (range.hasLow() && range.hasHigh()
+                        && range.getLow().getValue() != null && range.getHigh().getValue() != null) {
+                    lows[i] = range.getLow().getValue().doubleValue();
+                    highs[i] = range.getHigh().getValue().doubleValue();
+                }
+            }
+
+            String interpretation = null;
+            if (observation.hasInterpretation() && !observation.getInterpretation().isEmpty()) {
+                String text = observation.getInterpretationFirstRep().getText();
+                if (text != null && !text.isEmpty()) {
+                    interpretation = text;
+                }
+            }
+            interpretations[i] = intern(interpretation);
+
+            days[i] = NO_DATE;
+            if (observation.hasEffectiveDateTimeType()) {
+                Date effective = observation.getEffectiveDateTimeType().getValue();
+                if (effective != null) {
+                    days[i] = (int) LocalDate.ofInstant(effective.toInstant(), ZONE).toEpochDay();
+                }
+            }
+            return this;
+        }
+
+        public ObservationSeries build() {
+            return new ObservationSeries(this);
+        }
+
+        // system|code of the first coding that has a code, e.g. http://loinc.org|2345-7; the label otherwise
+        private static String code(Observation observation, String label) {
+            for (Coding coding : observation.getCode().getCoding()) {
+                if (coding.hasCode()) {
+                    return coding.hasSystem() ? coding.getSystem() + '|' + coding.getCode() : coding.getCode();
+                }
+            }
+            return label;
+        }
+
+        private void grow() {
+            int capacity = days.length * 2;
+            days = Arrays.copyOf(days, capacity);
+            values = Arrays.copyOf(values, capacity);
+            lows = Arrays.copyOf(lows, capacity);
+            highs = Arrays.copyOf(highs, capacity);
+            valueKinds = Arrays.copyOf(valueKinds, capacity);
+            codes = Arrays.copyOf(codes, capacity);
+            labels = Arrays.copyOf(labels, capacity);
+            units = Arrays.copyOf(units, capacity);
+            interpretations = Arrays.copyOf(interpretations, capacity);
+            texts = Arrays.copyOf(texts, capacity);
+        }
+    }
+
+    /**
+     * The numeric values of one code (and unit) over a date window: the first
+     * and latest value, the range, and the least-squares slope per year.
+     */
+    public record Trend(String code, String label, String unit, int count,
+                        LocalDate firstDate, double first, LocalDate lastDate, double last,
+                        double min, double max, double slopePerYear) {
+    }
+
+    private final class TrendBuilder {
+
+        private int count;
+        // Days are counted from the first entry's, to keep the sums small
+        private int origin;
+        private int firstIndex = -1;
+        private int lastIndex = -1;
+        private double min = Double.POSITIVE_INFINITY;
+        private double max = Double.NEGATIVE_INFINITY;
+        private double sumX;
+        private double sumY;
+        private double sumXX;
+        private double sumXY;
+
+        void add(int i) {
+            if (count++ == 0) {
+                origin = days[i];
+            }
+            // On equal dates the entry seen first is kept, which the server returned as the newer one
+            if (firstIndex < 0 || days[i] < days[firstIndex]) {
+                firstIndex = i;
+            }
+            if (lastIndex < 0 || days[i] > days[lastIndex]) {
+                lastIndex = i;
+            }
+            min = Math.min(min, values[i]);
+            max = Math.max(max, values[i]);
+            double x = days[i] - origin;
+            sumX += x;
+            sumY += values[i];
+            sumXX += x * x;
+            sumXY += x * values[i];
+        }
+
+        Trend build() {
+            double denominator = count * sumXX - sumX * sumX;
+            double slopePerDay = count < 2 || denominator == 0 ? 0 : (count * sumXY - sumX * sumY) / denominator;
+            return new Trend(codes[lastIndex], labels[lastIndex], units[lastIndex], count,
+                LocalDate.ofEpochDay(days[firstIndex]), values[firstIndex],
+                LocalDate.ofEpochDay(days[lastIndex]), values[lastIndex],
+                min, max, slopePerDay * 365.25);
+        }
+    }
+}
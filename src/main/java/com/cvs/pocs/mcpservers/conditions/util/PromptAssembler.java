@@ -0,0 +1,432 @@
+package com.cvs.pocs.mcpservers.conditions.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Fits the patient data text built by {@code FhirService} into a token budget
+ * before it is placed in the LLM prompt. The text is split into its sections
+ * at the upper-case {@code HEADING:} lines, and each section is given a fair
+ * share of the budget: sections needing less than an even split keep all
+ * their lines and pass what is left to the larger ones. Within a section that
+ * does not fit, abnormal entries are kept first, then the newest, and a note
+ * says how many were left out. Headings, blank lines and the demographics
+ * section are never cut. Token counts come from {@link TokenEstimator}.
+ * <p>
+ * Only the lines that end up in the prompt are estimated exactly; a large
+ * section is sized from a sample of its lines, so the cost of fitting grows
+ * with the budget rather than with the patient's history.
+ */
+public final class PromptAssembler {
+
+    private static final String PINNED_HEADING = "PATIENT DEMOGRAPHICS";
+    private static final String UNAVAILABLE_SUFFIX = ": Unable to retrieve";
+
+    // Room kept in a cut section for its "(n more entries omitted ...)" line
+    private static final int NOTE_TOKENS = 20;
+
+    // Sections with more entry lines than this are sized from this many of them
+    private static final int SAMPLE_LINES = 64;
+
+    private static final int INDEX_BITS = 24;
+    private static final int MAX_INDEX = (1 << INDEX_BITS) - 1;
+    private static final long NO_DATE = 0;
+
+    private PromptAssembler() {
+    }
+
+    /**
+     * Returns the patient data cut down to at most {@code budget} estimated
+     * tokens, or unchanged if it already fits. Only the demographics and the
+     * section headings can take it over the budget.
+     */
+    public static Assembly fit(String patientData, int budget) {
+        Lines lines = Lines.of(patientData);
+        List<Section> sections = sections(patientData, lines);
+        long estimate = 0;
+        for (Section section : sections) {
+            estimate += section.fixedTokens + section.entryTokens;
+        }
+        // No line has more tokens than characters, so text no longer than the budget always fits
+        if (patientData.length() + lines.count <= budget) {
+            return new Assembly(patientData, (int) Math.min(Integer.MAX_VALUE, estimate), Collections.emptyMap());
+        }
+
+        int remaining = budget;
+        List<Section> candidates = new ArrayList<>();
+        for (Section section : sections) {
+            remaining -= section.fixedTokens;
+            if (section.pinned) {
+                section.allotted = Integer.MAX_VALUE;
+                remaining -= section.entryTokens;
+            } else if (section.entryCount > 0) {
+                candidates.add(section);
+            }
+        }
+        // Max-min fair split: small sections are filled first and leave the rest to the big ones
+        candidates.sort(Comparator.comparingInt(section -> section.entryTokens));
+        for (int i = 0; i < candidates.size(); i++) {
+            Section section = candidates.get(i);
+            int share = Math.max(0, remaining) / (candidates.size() - i);
+            section.allotted = Math.min(section.entryTokens, share);
+            remaining -= section.allotted;
+        }
+
+        boolean[] kept = new boolean[lines.count];
+        int tokens = 0;
+        Map<String, Integer> omitted = new LinkedHashMap<>();
+        for (Section section : sections) {
+            tokens += section.fixedTokens + select(patientData, lines, section, kept);
+            if (section.omitted > 0) {
+                tokens += NOTE_TOKENS;
+                omitted.put(section.name, section.omitted);
+            }
+        }
+        if (omitted.isEmpty()) {
+            return new Assembly(patientData, tokens, Collections.emptyMap());
+        }
+        return new Assembly(render(patientData, lines, sections, kept), tokens, omitted);
+    }
+
+    /**
+     * Marks the section's entries to keep within its allotment and returns
+     * their exact tokens.
+     */
+    private static int select(String text, Lines lines, Section section, boolean[] kept) {
+        if (section.entryCount == 0) {
+            return 0;
+        }
+        if (section.entryTokens <= section.allotted) {
+            // Sampled sizes are only estimates; confirm before keeping the whole section
+            int exact = section.exact ? section.entryTokens : exactEntryTokens(text, lines, section);
+            if (exact <= section.allotted) {
+                for (int line = section.firstLine; line < section.endLine; line++) {
+                    kept[line] = lines.entry[line];
+                }
+                return exact;
+            }
+        }
+        int allowance = section.allotted - NOTE_TOKENS;
+        int used = 0;
+        int keptCount = 0;
+        PriorityQueue queue = priorityQueue(text, lines, section);
+        while (!queue.isEmpty()) {
+            int line = queue.poll();
+            int lineTokens = lines.tokens(text, line);
+            if (used + lineTokens > allowance) {
+                break;
+            }
+            kept[line] = true;
+            used += lineTokens;
+            keptCount++;
+        }
+        section.omitted = section.entryCount - keptCount;
+        return used;
+    }
+
+    private static int exactEntryTokens(String text, Lines lines, Section section) {
+        int tokens = 0;
+        for (int line = section.firstLine; line < section.endLine; line++) {
+            if (lines.entry[line]) {
+                tokens += lines.tokens(text, line);
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * The section's entry lines, abnormal first and newest first within that,
+     * then in their original order. The queue is heapified rather than sorted,
+     * since only the entries that fit are ever taken from it.
+     */
+    private static PriorityQueue priorityQueue(String text, Lines lines, Section section) {
+        long[] keys = new long[section.entryCount];
+        int n = 0;
+        for (int line = section.firstLine; line < section.endLine && n < keys.length; line++) {
+            if (!lines.entry[line]) {
+                continue;
+            }
+            int start = lines.start[line];
+            int end = lines.end[line];
+            long date = trailingDate(text, start, end);
+            // Dated lines end in " - yyyy-MM-dd", so their interpretation closes 13 characters earlier
+            long normal = isAbnormal(text, start, date == NO_DATE ? end : end - 13) ? 0 : 1;
+            long age = 99_999_999L - date;
+            keys[n++] = (normal << 51) | (age << INDEX_BITS) | Math.min(line, MAX_INDEX);
+        }
+        return new PriorityQueue(keys, n);
+    }
+
+    /**
+     * Reads a {@code yyyy-MM-dd} date at the end of the line as yyyyMMdd.
+     */
+    private static long trailingDate(String text, int start, int end) {
+        if (end - start < 10 || text.charAt(end - 6) != '-' || text.charAt(end - 3) != '-') {
+            return NO_DATE;
+        }
+        long date = 0;
+        for (int i = end - 10; i < end; i++) {
+            if (i == end - 6 || i == end - 3) {
+                continue;
+            }
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                return NO_DATE;
+            }
+            date = date * 10 + (c - '0');
+        }
+        return date;
+    }
+
+    /**
+     * An Observation line carries its interpretation in parentheses, e.g.
+     * {@code (High)}; anything there other than normal counts as abnormal.
+     */
+    private static boolean isAbnormal(String text, int start, int end) {
+        if (end <= start || text.charAt(end - 1) != ')') {
+            return false;
+        }
+        // Scan within the line only; String.lastIndexOf would run on into the lines before it
+        int open = end - 2;
+        while (open >= start && text.charAt(open) != '(') {
+            open--;
+        }
+        if (open < start) {
+            return false;
+        }
+        int length = end - open - 2;
+        return !(length == 6 && text.startsWith("Normal", open + 1))
+            && !(length == 1 && text.charAt(open + 1) == 'N');
+    }
+
+    private static String render(String text, Lines lines, List<Section> sections, boolean[] kept) {
+        int capacity = 0;
+        for (int line = 0; line < lines.count; line++) {
+            if (!lines.entry[line] || kept[line]) {
+                capacity += lines.end[line] - lines.start[line] + 1;
+            }
+        }
+        StringBuilder sb = new StringBuilder(capacity + 64 * sections.size());
+        for (Section section : sections) {
+            for (int line = section.firstLine; line < section.endLine; line++) {
+                if (!lines.entry[line] || kept[line]) {
+                    sb.append(text, lines.start[line], lines.end[line]).append('\n');
+                }
+                if (line == section.lastEntryLine && section.omitted > 0) {
+                    sb.append("(").append(section.omitted)
+                        .append(" more entries omitted to fit the prompt budget)\n");
+                }
+            }
+        }
+        if (!text.endsWith("\n") && sb.length() > 0) {
+            sb.setLength(sb.length() - 1);
+        }
+        return sb.toString();
+    }
+
+    private static List<Section> sections(String text, Lines lines) {
+        List<Section> sections = new ArrayList<>();
+        // Anything before the first heading is kept as is
+        Section current = new Section(0, "", true);
+        for (int line = 0; line < lines.count; line++) {
+            int start = lines.start[line];
+            int end = lines.end[line];
+            if (end > start && isHeading(text, start, end)) {
+                current.finish(text, lines, line);
+                sections.add(current);
+                String name = text.charAt(end - 1) == ':' ? text.substring(start, end - 1)
+                    : text.substring(start, end - UNAVAILABLE_SUFFIX.length());
+                current = new Section(line, name, name.startsWith(PINNED_HEADING));
+                lines.entry[line] = false;
+            }
+            if (lines.entry[line]) {
+                current.entryCount++;
+                current.entryChars += end - start + 1;
+                current.lastEntryLine = line;
+            } else {
+                current.fixedTokens += lines.tokens(text, line);
+            }
+        }
+        current.finish(text, lines, lines.count);
+        sections.add(current);
+        return sections;
+    }
+
+    private static boolean isHeading(String text, int start, int end) {
+        char last = text.charAt(end - 1);
+        if (last == ':') {
+            return isUpperCase(text, start, end - 1);
+        }
+        int suffixStart = end - UNAVAILABLE_SUFFIX.length();
+        return last == 'e' && suffixStart > start && text.startsWith(UNAVAILABLE_SUFFIX, suffixStart)
+            && isUpperCase(text, start, suffixStart);
+    }
+
+    private static boolean isUpperCase(String text, int start, int end) {
+        boolean letter = false;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (Character.isLowerCase(c)) {
+                return false;
+            }
+            letter |= Character.isLetter(c);
+        }
+        return letter;
+    }
+
+    /**
+     * The patient data as fitted into the prompt, its estimated tokens, and the
+     * number of entries left out per section heading.
+     */
+    public record Assembly(String patientData, int tokens, Map<String, Integer> omitted) {
+
+        public boolean truncated() {
+            return !omitted.isEmpty();
+        }
+    }
+
+    /**
+     * Line boundaries, with token estimates filled in as lines are looked at.
+     * The trailing newline counts as a token of its line, so an estimated line
+     * is never 0.
+     */
+    private static final class Lines {
+
+        final int count;
+        final int[] start;
+        final int[] end;
+        final boolean[] entry;
+        private final int[] tokens;
+
+        private Lines(int count, int[] start, int[] end) {
+            this.count = count;
+            this.start = start;
+            this.end = end;
+            this.entry = new boolean[count];
+            this.tokens = new int[count];
+        }
+
+        static Lines of(String text) {
+            int[] starts = new int[16 + text.length() / 32];
+            int[] ends = new int[starts.length];
+            int count = 0;
+            int lineStart = 0;
+            while (lineStart < text.length()) {
+                int newline = text.indexOf('\n', lineStart);
+                int lineEnd = newline < 0 ? text.length() : newline;
+                if (count == starts.length) {
+                    starts = Arrays.copyOf(starts, count * 2);
+                    ends = Arrays.copyOf(ends, count * 2);
+                }
+                starts[count] = lineStart;
+                ends[count] = lineEnd;
+                count++;
+                lineStart = lineEnd + 1;
+            }
+            Lines lines = new Lines(count, starts, ends);
+            for (int line = 0; line < count; line++) {
+                lines.entry[line] = ends[line] > starts[line];
+            }
+            return lines;
+        }
+
+        int tokens(String text, int line) {
+            int lineTokens = tokens[line];
+            if (lineTokens == 0) {
+                lineTokens = TokenEstimator.estimate(text, start[line], end[line]) + 1;
+                tokens[line] = lineTokens;
+            }
+            return lineTokens;
+        }
+    }
+
+    private static final class Section {
+
+        final int firstLine;
+        final String name;
+        final boolean pinned;
+        int endLine;
+        int lastEntryLine = -1;
+        int entryCount;
+        long entryChars;
+        int entryTokens;
+        // Whether entryTokens was counted line by line rather than scaled up from a sample
+        boolean exact;
+        int fixedTokens;
+        int allotted;
+        int omitted;
+
+        Section(int firstLine, String name, boolean pinned) {
+            this.firstLine = firstLine;
+            this.name = name;
+            this.pinned = pinned;
+        }
+
+        void finish(String text, Lines lines, int endLine) {
+            this.endLine = endLine;
+            int sampledLines = 0;
+            long sampledChars = 0;
+            int sampledTokens = 0;
+            for (int line = firstLine; line < endLine && (pinned || sampledLines < SAMPLE_LINES); line++) {
+                if (lines.entry[line]) {
+                    sampledLines++;
+                    sampledChars += lines.end[line] - lines.start[line] + 1;
+                    sampledTokens += lines.tokens(text, line);
+                }
+            }
+            exact = sampledLines == entryCount;
+            entryTokens = exact ? sampledTokens
+                : (int) Math.min(Integer.MAX_VALUE / 2, (entryChars * sampledTokens + sampledChars - 1) / sampledChars);
+        }
+    }
+
+    /**
+     * Binary min-heap over packed {@code long} keys whose low bits hold the line.
+     */
+    private static final class PriorityQueue {
+
+        private final long[] heap;
+        private int size;
+
+        PriorityQueue(long[] keys, int size) {
+            this.heap = keys;
+            this.size = size;
+            for (int i = size / 2 - 1; i >= 0; i--) {
+                siftDown(i);
+            }
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        int poll() {
+            long top = heap[0];
+            heap[0] = heap[--size];
+            siftDown(0);
+            return (int) (top & MAX_INDEX);
+        }
+
+        private void siftDown(int i) {
+            long key = heap[i];
+            int half = size / 2;
+            while (i < half) {
+                int child = 2 * i + 1;
+                if (child + 1 < size && heap[child + 1] < heap[child]) {
+                    child++;
+                }
+                if (key <= heap[child]) {
+                    break;
+                }
+                heap[i] = heap[child];
+                i = child;
+            }
+            heap[i] = key;
+        }
+    }
+}
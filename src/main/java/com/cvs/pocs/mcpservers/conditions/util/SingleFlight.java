@@ -0,0 +1,75 @@
+package com.cvs.pocs.mcpservers.conditions.util;
+
+import reactor.core.publisher.Mono;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent calls with the same key into one upstream call. The
+ * first caller for a key subscribes to the call; callers arriving while it is
+ * still in flight share its result, or its error. The key is released as the
+ * call's result is signalled, before it reaches any caller, so a call made
+ * after one has returned starts a fresh one.
+ */
+public class SingleFlight<K, V> {
+
+    private final String name;
+    private final Map<K, Mono<V>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong collapsed = new AtomicLong();
+
+    public SingleFlight(String name) {
+        this.name = name;
+    }
+
+    public Mono<V> execute(K key, Supplier<Mono<V>> call) {
+        return Mono.defer(() -> {
+            calls.incrementAndGet();
+            Mono<V> existing = inFlight.get(key);
+            if (existing != null) {
+                collapsed.incrementAndGet();
+                return existing;
+            }
+            Object[] self = new Object[1];
+            Mono<V> shared = call.get()
+                .doOnEach(signal -> inFlight.remove(key, self[0]))
+                .doOnCancel(() -> inFlight.remove(key, self[0]))
+                .cache();
+            self[0] = shared;
+            existing = inFlight.putIfAbsent(key, shared);
+            if (existing != null) {
+                collapsed.incrementAndGet();
+                return existing;
+            }
+            return shared;
+        });
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getCalls() {
+        return calls.get();
+    }
+
+    public long getCollapsed() {
+        return collapsed.get();
+    }
+
+    public int getInFlight() {
+        return inFlight.size();
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("calls", calls.get());
+        result.put("collapsed", collapsed.get());
+        result.put("inFlight", inFlight.size());
+        return result;
+    }
+}
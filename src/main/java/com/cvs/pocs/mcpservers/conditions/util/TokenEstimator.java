@@ -0,0 +1,59 @@
+package com.cvs.pocs.mcpservers.conditions.util;
+
+/**
+ * Estimates how many tokens a BPE tokenizer such as OpenAI's cl100k produces
+ * for a piece of text, without loading a vocabulary. Words count one token per
+ * four letters, digit runs one per three digits, a space is folded into the
+ * word after it, and every other character counts as its own token. This tends
+ * to slightly overestimate English prose, which is the safe side for a budget.
+ */
+public final class TokenEstimator {
+
+    private TokenEstimator() {
+    }
+
+    public static int estimate(CharSequence text) {
+        return estimate(text, 0, text.length());
+    }
+
+    /**
+     * Estimates the tokens of {@code text[start, end)}; allocates nothing.
+     */
+    public static int estimate(CharSequence text, int start, int end) {
+        int tokens = 0;
+        int i = start;
+        while (i < end) {
+            char c = text.charAt(i);
+            if (isLetter(c)) {
+                int j = i + 1;
+                while (j < end && isLetter(text.charAt(j))) {
+                    j++;
+                }
+                tokens += (j - i + 3) / 4;
+                i = j;
+            } else if (isDigit(c)) {
+                int j = i + 1;
+                while (j < end && isDigit(text.charAt(j))) {
+                    j++;
+                }
+                tokens += (j - i + 2) / 3;
+                i = j;
+            } else {
+                if (c != ' ') {
+                    tokens++;
+                }
+                i++;
+            }
+        }
+        return tokens;
+    }
+
+    private static boolean isLetter(char c) {
+        // ASCII letters without the Character lookup; anything else non-ASCII is left to it
+        return (char) ((c | 0x20) - 'a') < 26 || (c >= 0x80 && Character.isLetter(c));
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+}
@@ -0,0 +1,48 @@
+-- Local patient store, loaded from FHIR Bulk Data $export files
+CREATE TABLE IF NOT EXISTS fhir_resource (
+    resource_type VARCHAR(64) NOT NULL,
+    id VARCHAR(128) NOT NULL,
+    patient_id VARCHAR(128),
+    category VARCHAR(64),
+    status VARCHAR(32),
+    effective_at TIMESTAMP,
+    resource_json TEXT NOT NULL,
+    PRIMARY KEY (resource_type, id)
+);
+CREATE INDEX IF NOT EXISTS idx_fhir_resource_patient ON fhir_resource (patient_id, resource_type);
+
+-- $export jobs and per-file ingestion checkpoints, so an interrupted export can be resumed
+CREATE TABLE IF NOT EXISTS bulk_export_job (
+    job_id VARCHAR(36) PRIMARY KEY,
+    status_url VARCHAR(2048) NOT NULL,
+    state VARCHAR(16) NOT NULL,
+    transaction_time VARCHAR(64),
+    error VARCHAR(2048),
+    created_at TIMESTAMP NOT NULL,
+    updated_at TIMESTAMP NOT NULL
+);
+
+CREATE TABLE IF NOT EXISTS bulk_export_file (
+    job_id VARCHAR(36) NOT NULL,
+    file_url VARCHAR(2048) NOT NULL,
+    resource_type VARCHAR(64) NOT NULL,
+    state VARCHAR(16) NOT NULL,
+    bytes_ingested BIGINT NOT NULL,
+    resources_ingested BIGINT NOT NULL,
+    resources_skipped BIGINT NOT NULL,
+    PRIMARY KEY (job_id, file_url)
+);
+
+-- Formatted FHIR sections persisted behind the in-process section cache, so a restart does not start cold
+-- (SectionSnapshotStore drops and recreates a copy of this table from before tenant_id: it is cache data only)
+CREATE TABLE IF NOT EXISTS fhir_section_snapshot (
+    tenant_id VARCHAR(512) NOT NULL,
+    patient_id VARCHAR(128) NOT NULL,
+    resource_type VARCHAR(64) NOT NULL,
+    params VARCHAR(512) NOT NULL,
+    section_text TEXT NOT NULL,
+    fetched_at TIMESTAMP NOT NULL,
+    expires_at TIMESTAMP NOT NULL,
+    PRIMARY KEY (tenant_id, patient_id, resource_type, params)
+);
+CREATE INDEX IF NOT EXISTS idx_fhir_section_snapshot_expires ON fhir_section_snapshot (expires_at);
@@ -0,0 +1,132 @@
+package com.cvs.pocs.mcpservers.conditions.benchmark;
+
+import com.cvs.pocs.mcpservers.conditions.ConditionsApplication;
+import com.cvs.pocs.mcpservers.conditions.model.ChatRequest;
+import com.cvs.pocs.mcpservers.conditions.support.StubFhirServer;
+import com.cvs.pocs.mcpservers.conditions.support.StubLlmServer;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Measures how many concurrent {@code /api/v1/chat} requests one instance
+ * sustains with the servlet-thread pipeline ({@code mcp.chat.reactive-mode=false})
+ * versus the reactive one. Both runs cap Tomcat at {@value #TOMCAT_THREADS}
+ * threads and put fixed latency on the stub FHIR and LLM upstreams, so the
+ * blocking run is bound by the thread pool and the reactive run by upstream
+ * latency.
+ *
+ * <p>Not part of the regular build; run with {@code mvn test -Pbenchmark}.
+ */
+@Tag("benchmark")
+class ChatConcurrencyBenchmark {
+
+    private static final int TOMCAT_THREADS = 20;
+    private static final int CONCURRENT_REQUESTS = 400;
+    private static final long FHIR_LATENCY_MILLIS = 200;
+    private static final long LLM_LATENCY_MILLIS = 300;
+
+    @Test
+    void compareBlockingAndReactiveModes() {
+        try (StubFhirServer fhir = new StubFhirServer(1, FHIR_LATENCY_MILLIS);
+             StubLlmServer llm = new StubLlmServer(List.of("ok"), 0, LLM_LATENCY_MILLIS)) {
+            Result blocking = run(false, fhir, llm);
+            Result reactive = run(true, fhir, llm);
+            System.out.println();
+            System.out.printf("%-10s %10s %10s %10s %10s %8s%n", "mode", "req/s", "p50 ms", "p95 ms", "max ms", "errors");
+            System.out.println(blocking.format("blocking"));
+            System.out.println(reactive.format("reactive"));
+        }
+    }
+
+    private Result run(boolean reactiveMode, StubFhirServer fhir, StubLlmServer llm) {
+        ConfigurableApplicationContext context = new SpringApplicationBuilder(ConditionsApplication.class).run(
+            "--server.port=0",
+            "--server.tomcat.threads.max=" + TOMCAT_THREADS,
+            "--server.tomcat.accept-count=" + CONCURRENT_REQUESTS,
+            "--server.tomcat.max-connections=" + (CONCURRENT_REQUESTS * 2),
+            "--mcp.chat.reactive-mode=" + reactiveMode,
+            "--fhir.cache.enabled=false",
+            // Keep the app's upstream pools and bulkheads out of the way so the
+            // servlet threads are the only limit being compared
+            "--fhir.http.max-connections=2000",
+            "--llm.http.max-connections=2000",
+            "--fhir.resilience.max-concurrent-calls=2000",
+            "--llm.resilience.max-concurrent-calls=2000",
+            "--fhir.server.url=" + fhir.baseUrl(),
+            "--llm.api.url=" + llm.completionsUrl(),
+            "--logging.level.root=WARN");
+        try {
+            int port = ((WebServerApplicationContext) context).getWebServer().getPort();
+            ConnectionProvider provider = ConnectionProvider.builder("benchmark-client")
+                .maxConnections(CONCURRENT_REQUESTS)
+                .build();
+            WebClient client = WebClient.builder()
+                .baseUrl("http://127.0.0.1:" + port)
+                .clientConnector(new ReactorClientHttpConnector(HttpClient.create(provider)))
+                .build();
+
+            // Warm up parsing, codecs and connections before measuring
+            send(client, 0, 50).blockLast(Duration.ofMinutes(2));
+
+            long start = System.nanoTime();
+            List<Long> latencies = send(client, 1, CONCURRENT_REQUESTS).collectList().block(Duration.ofMinutes(5));
+            long elapsedNanos = System.nanoTime() - start;
+            provider.dispose();
+            return new Result(latencies, elapsedNanos);
+        } finally {
+            context.close();
+        }
+    }
+
+    private Flux<Long> send(WebClient client, int round, int count) {
+        return Flux.range(0, count)
+            .flatMap(i -> {
+                long start = System.nanoTime();
+                return client.post()
+                    .uri("/api/v1/chat")
+                    .bodyValue(new ChatRequest("bench-" + round + "-" + i, "recent labs and active meds?", "bench"))
+                    .retrieve()
+                    .toBodilessEntity()
+                    .map(response -> (System.nanoTime() - start) / 1_000_000)
+                    .onErrorReturn(-1L);
+            }, count);
+    }
+
+    private static final class Result {
+
+        private final long[] latencies;
+        private final long errors;
+        private final double requestsPerSecond;
+
+        Result(List<Long> samples, long elapsedNanos) {
+            this.errors = samples.stream().filter(latency -> latency < 0).count();
+            this.latencies = samples.stream().filter(latency -> latency >= 0).mapToLong(Long::longValue).toArray();
+            Arrays.sort(latencies);
+            this.requestsPerSecond = latencies.length / (elapsedNanos / 1e9);
+        }
+
+        String format(String mode) {
+            return String.format("%-10s %10.1f %10d %10d %10d %8d", mode, requestsPerSecond,
+                percentile(0.50), percentile(0.95), latencies.length == 0 ? 0 : latencies[latencies.length - 1], errors);
+        }
+
+        private long percentile(double quantile) {
+            if (latencies.length == 0) {
+                return 0;
+            }
+            return latencies[(int) Math.min(latencies.length - 1, Math.ceil(quantile * latencies.length) - 1)];
+        }
+    }
+}
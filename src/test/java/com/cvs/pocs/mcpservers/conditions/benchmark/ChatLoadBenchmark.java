@@ -0,0 +1,317 @@
+package com.cvs.pocs.mcpservers.conditions.benchmark;
+
+import com.cvs.pocs.mcpservers.conditions.ConditionsApplication;
+import com.cvs.pocs.mcpservers.conditions.model.ChatRequest;
+import com.cvs.pocs.mcpservers.conditions.support.LatencyProfile;
+import com.cvs.pocs.mcpservers.conditions.support.StubFhirServer;
+import com.cvs.pocs.mcpservers.conditions.support.StubLlmServer;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.distribution.CountAtBucket;
+import io.micrometer.core.instrument.distribution.HistogramSnapshot;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives {@code /api/v1/chat} with open-loop and closed-loop traffic at the
+ * same time, against stub FHIR and LLM servers with configurable latency
+ * distributions, payload sizes and error rates, and reports throughput and
+ * p50/p95/p99 latency for the whole request as the clients saw it and for
+ * each pipeline stage as the app's own timers recorded it.
+ * <p>
+ * The open loop sends {@code load.open.rate} requests per second whatever the
+ * response times, and measures latency from when each request was due to be
+ * sent, so a stalled server is not hidden by the load generator waiting for
+ * it. The closed loop runs {@code load.closed.users} users that each send a
+ * request, wait for the answer and think for {@code load.closed.think-time}.
+ * Either can be turned off with 0.
+ * <p>
+ * Everything is set with system properties, which reach the app as well, so
+ * a capacity change can be measured by running it twice:
+ * <pre>
+ * mvn test -Pbenchmark -Dtest=ChatLoadBenchmark \
+ *     -Dload.fhir.latency=lognormal:80,600 -Dload.llm.latency=lognormal:900,4000 \
+ *     -Dload.open.rate=100 -Dload.closed.users=50 -Dload.duration=60s \
+ *     -Dfhir.cache.enabled=false
+ * </pre>
+ * Latency profiles are written as {@code fixed:200}, {@code uniform:50-250}
+ * or {@code lognormal:<median>,<p99>}, in milliseconds.
+ * <p>
+ * Not part of the regular build; run with {@code mvn test -Pbenchmark}.
+ */
+@Tag("benchmark")
+class ChatLoadBenchmark {
+
+    private static final String QUERY = "Any recent labs, active medications or allergies?";
+
+    private static final List<String> STAGES = List.of(
+        "http.server.requests", "mcp.fhir.fetch", "mcp.fhir.parse", "mcp.prompt.fit", "mcp.prompt.assembly",
+        "mcp.llm.call");
+
+    private final LatencyProfile fhirLatency = LatencyProfile.parse(System.getProperty("load.fhir.latency", "lognormal:80,600"));
+    private final LatencyProfile llmLatency = LatencyProfile.parse(System.getProperty("load.llm.latency", "lognormal:800,3000"));
+    private final int fhirEntries = Integer.getInteger("load.fhir.entries", 20);
+    private final int llmTokens = Integer.getInteger("load.llm.tokens", 200);
+    private final double fhirErrorRate = Double.parseDouble(System.getProperty("load.fhir.error-rate", "0"));
+    private final double llmErrorRate = Double.parseDouble(System.getProperty("load.llm.error-rate", "0"));
+    private final int errorStatus = Integer.getInteger("load.error-status", 503);
+    private final double openRate = Double.parseDouble(System.getProperty("load.open.rate", "50"));
+    private final int closedUsers = Integer.getInteger("load.closed.users", 20);
+    private final Duration thinkTime = Duration.parse("PT" + System.getProperty("load.closed.think-time", "1s"));
+    private final Duration duration = Duration.parse("PT" + System.getProperty("load.duration", "30s"));
+    private final Duration warmup = Duration.parse("PT" + System.getProperty("load.warmup", "10s"));
+    private final int patients = Integer.getInteger("load.patients", 1000);
+
+    @Test
+    void runLoad() {
+        List<String> tokens = Collections.nCopies(llmTokens, "word ");
+        try (StubFhirServer fhir = new StubFhirServer(fhirEntries, 0);
+             StubLlmServer llm = new StubLlmServer(tokens, 0, 0)) {
+            fhir.setLatency(fhirLatency);
+            fhir.setErrorRate(fhirErrorRate, errorStatus);
+            llm.setResponseLatency(llmLatency);
+            llm.setErrorRate(llmErrorRate, errorStatus);
+
+            ConfigurableApplicationContext context = new SpringApplicationBuilder(ConditionsApplication.class).run(
+                arg("server.port", "0"),
+                arg("server.tomcat.accept-count", "2000"),
+                arg("server.tomcat.max-connections", "4000"),
+                // Keep the app's own limits out of the way unless the run is about them
+                arg("fhir.http.max-connections", "2000"),
+                arg("llm.http.max-connections", "2000"),
+                arg("fhir.resilience.max-concurrent-calls", "2000"),
+                arg("llm.resilience.max-concurrent-calls", "2000"),
+                arg("management.metrics.distribution.percentiles-histogram.mcp", "true"),
+                arg("management.metrics.distribution.percentiles-histogram.http.server.requests", "true"),
+                arg("logging.level.root", "WARN"),
+                arg("logging.file.name", ""),
+                "--fhir.server.url=" + fhir.baseUrl(),
+                "--llm.api.url=" + llm.completionsUrl());
+            try {
+                run(context);
+            } finally {
+                context.close();
+            }
+        }
+    }
+
+    private void run(ConfigurableApplicationContext context) {
+        int port = ((WebServerApplicationContext) context).getWebServer().getPort();
+        MeterRegistry registry = context.getBean(MeterRegistry.class);
+        ConnectionProvider provider = ConnectionProvider.builder("load-client")
+            .maxConnections(4000)
+            .pendingAcquireMaxCount(-1)
+            .build();
+        WebClient client = WebClient.builder()
+            .baseUrl("http://127.0.0.1:" + port)
+            .clientConnector(new ReactorClientHttpConnector(HttpClient.create(provider)))
+            .build();
+        try {
+            if (!warmup.isZero()) {
+                load(client, warmup);
+            }
+            Map<String, Stage> before = stages(registry);
+            long start = System.nanoTime();
+            Results results = load(client, duration);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            Map<String, Stage> after = stages(registry);
+
+            System.out.println();
+            System.out.printf("FHIR %s, %d entries, %.1f%% errors; LLM %s, %d tokens, %.1f%% errors%n",
+                fhirLatency, fhirEntries, fhirErrorRate * 100, llmLatency, llmTokens, llmErrorRate * 100);
+            System.out.printf("open loop %.1f req/s, closed loop %d users thinking %s, %d patients, %s%n",
+                openRate, closedUsers, thinkTime, patients, duration);
+            System.out.println();
+            System.out.printf("%-36s %10s %10s %10s %10s %10s %8s%n",
+                "stage", "count", "req/s", "p50 ms", "p95 ms", "p99 ms", "errors");
+            System.out.println(results.open.format("client open-loop", seconds));
+            System.out.println(results.closed.format("client closed-loop", seconds));
+            after.forEach((name, stage) -> System.out.println(stage.minus(before.get(name)).format(name, seconds)));
+        } finally {
+            provider.dispose();
+        }
+    }
+
+    /**
+     * A command-line argument for the app, unless overridden with {@code -D}.
+     */
+    private static String arg(String key, String value) {
+        return "--" + key + "=" + System.getProperty(key, value);
+    }
+
+    private Results load(WebClient client, Duration length) {
+        long start = System.nanoTime();
+        long end = start + length.toNanos();
+        Mono<Latencies> open = Mono.just(new Latencies());
+        if (openRate > 0) {
+            long intervalNanos = (long) (1e9 / openRate);
+            long count = length.toNanos() / intervalNanos;
+            open = Flux.interval(Duration.ofNanos(intervalNanos))
+                .take(count)
+                // Measured from when the request was due, not when it went out
+                .flatMap(i -> send(client, start + (i + 1) * intervalNanos), Integer.MAX_VALUE)
+                .collect(Latencies::new, Latencies::add);
+        }
+        Mono<Latencies> closed = Flux.range(0, closedUsers)
+            .flatMap(user -> Mono.defer(() -> send(client, System.nanoTime()))
+                .delayUntil(latency -> Mono.delay(thinkTime))
+                .repeat(() -> System.nanoTime() < end), Math.max(1, closedUsers))
+            .collect(Latencies::new, Latencies::add);
+        return Mono.zip(open, closed, Results::new).block(length.plusMinutes(5));
+    }
+
+    private Mono<Long> send(WebClient client, long dueNanos) {
+        String patientId = "load-" + ThreadLocalRandom.current().nextInt(patients);
+        return client.post()
+            .uri("/api/v1/chat")
+            .bodyValue(new ChatRequest(patientId, QUERY, "load"))
+            .retrieve()
+            .toBodilessEntity()
+            .map(response -> System.nanoTime() - dueNanos)
+            .onErrorReturn(-1L);
+    }
+
+    /**
+     * The app's timers by stage, merged across their tags, except that FHIR
+     * fetches are broken down by resource type.
+     */
+    private static Map<String, Stage> stages(MeterRegistry registry) {
+        Map<String, Stage> stages = new TreeMap<>();
+        for (String name : STAGES) {
+            for (Timer timer : registry.find(name).timers()) {
+                String uri = timer.getId().getTag("uri");
+                if (uri != null && !uri.startsWith("/api/v1/chat")) {
+                    continue;
+                }
+                String resource = timer.getId().getTag("resource");
+                String key = resource == null ? name : name + " " + resource;
+                String outcome = timer.getId().getTag("outcome");
+                boolean failed = outcome != null && !outcome.equals("success") && !outcome.equals("SUCCESS");
+                stages.merge(key, new Stage(timer.takeSnapshot(), failed), Stage::plus);
+            }
+        }
+        return stages;
+    }
+
+    private record Results(Latencies open, Latencies closed) {
+    }
+
+    private static final class Latencies {
+
+        private final List<Long> nanos = new ArrayList<>();
+        private long errors;
+
+        void add(long latency) {
+            if (latency < 0) {
+                errors++;
+            } else {
+                nanos.add(latency);
+            }
+        }
+
+        String format(String name, double seconds) {
+            long[] sorted = nanos.stream().mapToLong(Long::longValue).sorted().toArray();
+            return String.format("%-36s %10d %10.1f %10.1f %10.1f %10.1f %8d", name, sorted.length + errors,
+                sorted.length / seconds, percentile(sorted, 0.50), percentile(sorted, 0.95),
+                percentile(sorted, 0.99), errors);
+        }
+
+        private static double percentile(long[] sorted, double quantile) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            return sorted[(int) Math.min(sorted.length - 1, Math.ceil(quantile * sorted.length) - 1)] / 1e6;
+        }
+    }
+
+    /**
+     * Counts of one stage, from a percentile histogram: the measured window is
+     * the difference of two snapshots, and percentiles are interpolated
+     * within the histogram's buckets.
+     */
+    private static final class Stage {
+
+        private final long count;
+        private final long errors;
+        // Non-cumulative count per bucket upper bound, in milliseconds
+        private final TreeMap<Double, Long> buckets;
+
+        Stage(HistogramSnapshot snapshot, boolean failed) {
+            this.count = snapshot.count();
+            this.errors = failed ? snapshot.count() : 0;
+            this.buckets = new TreeMap<>();
+            long previous = 0;
+            for (CountAtBucket bucket : snapshot.histogramCounts()) {
+                long cumulative = (long) bucket.count();
+                buckets.put(bucket.bucket(TimeUnit.MILLISECONDS), cumulative - previous);
+                previous = cumulative;
+            }
+            // Everything above the highest bucket
+            buckets.merge(Double.POSITIVE_INFINITY, count - previous, Long::sum);
+        }
+
+        private Stage(long count, long errors, TreeMap<Double, Long> buckets) {
+            this.count = count;
+            this.errors = errors;
+            this.buckets = buckets;
+        }
+
+        Stage plus(Stage other) {
+            TreeMap<Double, Long> merged = new TreeMap<>(buckets);
+            other.buckets.forEach((bound, n) -> merged.merge(bound, n, Long::sum));
+            return new Stage(count + other.count, errors + other.errors, merged);
+        }
+
+        Stage minus(Stage earlier) {
+            if (earlier == null) {
+                return this;
+            }
+            TreeMap<Double, Long> remaining = new TreeMap<>(buckets);
+            earlier.buckets.forEach((bound, n) -> remaining.merge(bound, -n, Long::sum));
+            return new Stage(count - earlier.count, errors - earlier.errors, remaining);
+        }
+
+        String format(String name, double seconds) {
+            return String.format("%-36s %10d %10.1f %10.1f %10.1f %10.1f %8d", name, count,
+                (count - errors) / seconds, percentile(0.50), percentile(0.95), percentile(0.99), errors);
+        }
+
+        private double percentile(double quantile) {
+            if (count == 0) {
+                return 0;
+            }
+            double rank = quantile * count;
+            double lower = 0;
+            long seen = 0;
+            for (Map.Entry<Double, Long> bucket : buckets.entrySet()) {
+                long n = bucket.getValue();
+                if (n > 0 && seen + n >= rank) {
+                    double upper = bucket.getKey();
+                    // Past the highest bucket there is nothing to interpolate against
+                    return Double.isInfinite(upper) ? lower : lower + (upper - lower) * (rank - seen) / n;
+                }
+                seen += n;
+                lower = bucket.getKey();
+            }
+            return lower;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.cvs.pocs.mcpservers.conditions.benchmark;
+
+import com.cvs.pocs.mcpservers.conditions.support.StubFhirServer;
+import com.cvs.pocs.mcpservers.conditions.util.FhirParserUtil;
+import com.cvs.pocs.mcpservers.conditions.util.ObservationSeries;
+import org.hl7.fhir.r4.model.Observation;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntFunction;
+
+/**
+ * Retained heap of {@code memory.patients} patients' worth of
+ * {@code memory.observations} lab Observations each, held as parsed HAPI
+ * objects and as {@link ObservationSeries}, measured as the used heap after a
+ * full GC with and without them. Run with a fixed heap, e.g.
+ * <pre>
+ * mvn test -Pbenchmark -Dtest=ObservationMemoryBenchmark -DargLine=-Xmx2g
+ * </pre>
+ * Not part of the regular build; run with {@code mvn test -Pbenchmark}.
+ */
+@Tag("benchmark")
+class ObservationMemoryBenchmark {
+
+    private final int patients = Integer.getInteger("memory.patients", 1000);
+    private final int observations = Integer.getInteger("memory.observations", 200);
+
+    @Test
+    void measureRetainedHeap() {
+        // Parse once first, so the HAPI model classes are loaded before measuring
+        retained(patient -> parse(patient).size());
+
+        long hapi = retained(this::parse);
+        long series = retained(patient -> {
+            ObservationSeries.Builder builder = ObservationSeries.builder();
+            parse(patient).forEach(builder::add);
+            return builder.build();
+        });
+        long entries = (long) patients * observations;
+        System.out.println();
+        System.out.printf("%d patients x %d Observations%n", patients, observations);
+        System.out.printf("%-8s %14s %16s%n", "held as", "retained MB", "bytes/entry");
+        System.out.printf("%-8s %14.1f %16d%n", "hapi", hapi / 1048576.0, hapi / entries);
+        System.out.printf("%-8s %14.1f %16d%n", "series", series / 1048576.0, series / entries);
+    }
+
+    private List<Observation> parse(int patient) {
+        List<Observation> result = new ArrayList<>(observations);
+        for (int i = 0; i < observations; i++) {
+            // Vary the values per patient, as real results do
+            result.add(FhirParserUtil.parseObservation(StubFhirServer.resource("Observation", patient * 7 + i)));
+        }
+        return result;
+    }
+
+    private long retained(IntFunction<Object> holder) {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        long before = usedAfterGc(memory);
+        Object[] held = new Object[patients];
+        for (int patient = 0; patient < patients; patient++) {
+            held[patient] = holder.apply(patient);
+        }
+        long after = usedAfterGc(memory);
+        if (held.length != patients) {
+            throw new IllegalStateException();
+        }
+        return after - before;
+    }
+
+    private static long usedAfterGc(MemoryMXBean memory) {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+}
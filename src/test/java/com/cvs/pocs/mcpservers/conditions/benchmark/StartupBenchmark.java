@@ -0,0 +1,164 @@
+package com.cvs.pocs.mcpservers.conditions.benchmark;
+
+import com.cvs.pocs.mcpservers.conditions.ConditionsApplication;
+import com.cvs.pocs.mcpservers.conditions.model.ChatRequest;
+import com.cvs.pocs.mcpservers.conditions.support.StubFhirServer;
+import com.cvs.pocs.mcpservers.conditions.support.StubLlmServer;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.reactive.function.client.WebClient;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how soon a freshly started instance answers its first chat, in a
+ * new JVM per run so nothing is already loaded. For each mode it reports the
+ * median over {@code startup.runs} runs of: time until
+ * {@code /actuator/health/readiness} is UP, the latency of the first and the
+ * second chat sent after that, and time from launch to the first answer.
+ * <p>
+ * Modes ({@code startup.modes}, comma-separated):
+ * <ul>
+ * <li>{@code cold}: the test classpath, as before any startup work</li>
+ * <li>{@code warmup}: the same with {@code mcp.startup.warmup.enabled}</li>
+ * <li>{@code cds}: the artifact built by {@code mvn -Pcds package}, with its
+ * class data sharing archive and Spring AOT, and warm-up on</li>
+ * </ul>
+ * <pre>
+ * mvn -Pcds package -DskipTests
+ * mvn test -Pbenchmark -Dtest=StartupBenchmark -Dstartup.modes=cold,warmup,cds
+ * </pre>
+ * Not part of the regular build; run with {@code mvn test -Pbenchmark}.
+ */
+@Tag("benchmark")
+class StartupBenchmark {
+
+    private static final String QUERY = "Any recent labs, active medications or allergies?";
+
+    private final List<String> modes = Arrays.asList(System.getProperty("startup.modes", "cold,warmup").split(","));
+    private final int runs = Integer.getInteger("startup.runs", 3);
+    private final Path cdsDirectory = Path.of(System.getProperty("startup.cds.directory", "target/application"));
+    private final Duration timeout = Duration.parse("PT" + System.getProperty("startup.timeout", "120s"));
+
+    @Test
+    void measureTimeToFirstRequest() throws Exception {
+        try (StubFhirServer fhir = new StubFhirServer(20, 20);
+             StubLlmServer llm = new StubLlmServer(List.of("Patient ", "is ", "stable."), 0, 50)) {
+            List<String> rows = new ArrayList<>();
+            for (String mode : modes) {
+                List<Run> results = new ArrayList<>();
+                for (int i = 0; i < runs; i++) {
+                    results.add(run(mode.trim(), i, fhir, llm));
+                }
+                rows.add(String.format("%-8s %10d %12d %13d %16d", mode.trim(),
+                    median(results, Run::readyMillis), median(results, Run::firstChatMillis),
+                    median(results, Run::secondChatMillis), median(results, Run::firstAnswerMillis)));
+            }
+            System.out.println();
+            System.out.printf("median of %d runs per mode, in ms%n", runs);
+            System.out.printf("%-8s %10s %12s %13s %16s%n", "mode", "ready", "first chat", "second chat",
+                "launch->answer");
+            rows.forEach(System.out::println);
+        }
+    }
+
+    private Run run(String mode, int index, StubFhirServer fhir, StubLlmServer llm) throws Exception {
+        int port = freePort();
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        if (mode.equals("cds")) {
+            Path jar;
+            try (var files = Files.list(cdsDirectory)) {
+                jar = files.filter(file -> file.toString().endsWith(".jar")).findFirst()
+                    .orElseThrow(() -> new IllegalStateException("No jar in " + cdsDirectory + "; run mvn -Pcds package"));
+            }
+            command.addAll(List.of("-XX:SharedArchiveFile=" + cdsDirectory.resolve("application.jsa"),
+                "-Xlog:cds=error", "-Dspring.aot.enabled=true", "-jar", jar.toString()));
+        } else {
+            command.addAll(List.of("-cp", System.getProperty("java.class.path"), ConditionsApplication.class.getName()));
+        }
+        command.addAll(List.of(
+            "--server.port=" + port,
+            "--fhir.server.url=" + fhir.baseUrl(),
+            "--llm.api.url=" + llm.completionsUrl(),
+            "--mcp.startup.warmup.enabled=" + !mode.equals("cold"),
+            "--logging.level.root=WARN",
+            "--logging.file.name="));
+        File log = new File("target/startup-" + mode + "-" + index + ".log");
+
+        long launched = System.nanoTime();
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(log).start();
+        try {
+            WebClient client = WebClient.create("http://127.0.0.1:" + port);
+            awaitReady(client, process, launched);
+            long ready = System.nanoTime();
+            chat(client, "startup-" + index + "-1");
+            long firstAnswer = System.nanoTime();
+            chat(client, "startup-" + index + "-2");
+            long secondAnswer = System.nanoTime();
+            return new Run(millis(launched, ready), millis(ready, firstAnswer), millis(firstAnswer, secondAnswer),
+                millis(launched, firstAnswer));
+        } finally {
+            process.destroy();
+            if (!process.waitFor(10, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+            }
+        }
+    }
+
+    private void awaitReady(WebClient client, Process process, long launched) throws InterruptedException {
+        while (true) {
+            if (!process.isAlive()) {
+                throw new IllegalStateException("Application exited with " + process.exitValue());
+            }
+            if (System.nanoTime() - launched > timeout.toNanos()) {
+                throw new IllegalStateException("Not ready after " + timeout);
+            }
+            Boolean ready = client.get()
+                .uri("/actuator/health/readiness")
+                .exchangeToMono(response -> response.releaseBody().thenReturn(response.statusCode().is2xxSuccessful()))
+                .onErrorReturn(false)
+                .block();
+            if (Boolean.TRUE.equals(ready)) {
+                return;
+            }
+            Thread.sleep(20);
+        }
+    }
+
+    private static void chat(WebClient client, String patientId) {
+        client.post()
+            .uri("/api/v1/chat")
+            .bodyValue(new ChatRequest(patientId, QUERY, "startup"))
+            .retrieve()
+            .toBodilessEntity()
+            .block();
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static long millis(long from, long to) {
+        return TimeUnit.NANOSECONDS.toMillis(to - from);
+    }
+
+    private static long median(List<Run> results, java.util.function.ToLongFunction<Run> metric) {
+        long[] values = results.stream().mapToLong(metric).sorted().toArray();
+        return values[values.length / 2];
+    }
+
+    private record Run(long readyMillis, long firstChatMillis, long secondChatMillis, long firstAnswerMillis) {
+    }
+}
@@ -0,0 +1,149 @@
+package com.cvs.pocs.mcpservers.conditions.config;
+
+import com.cvs.pocs.mcpservers.conditions.services.LlmAdmission;
+import com.cvs.pocs.mcpservers.conditions.services.LlmService;
+import com.cvs.pocs.mcpservers.conditions.services.PipelineMetrics;
+import com.cvs.pocs.mcpservers.conditions.support.StubFhirServer;
+import com.cvs.pocs.mcpservers.conditions.support.StubLlmServer;
+import com.cvs.pocs.mcpservers.conditions.util.CircuitBreaker;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.convert.ApplicationConversionService;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ResilienceFilterTests {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final MockEnvironment environment = new MockEnvironment()
+        .withProperty("fhir.resilience.breaker.minimum-calls", "4")
+        .withProperty("fhir.resilience.breaker.open-duration", "300ms")
+        .withProperty("fhir.resilience.breaker.half-open-calls", "1");
+    private UpstreamHttpClients httpClients;
+    private StubFhirServer fhirServer;
+
+    ResilienceFilterTests() {
+        // Durations like "300ms", as in application.properties
+        environment.setConversionService(new ApplicationConversionService());
+    }
+
+    @AfterEach
+    void stop() {
+        httpClients.dispose();
+        fhirServer.close();
+    }
+
+    @Test
+    void opensTheBreakerOnFailuresAndClosesItOnceTheServerRecovers() throws InterruptedException {
+        WebClient client = fhirClient(0);
+        fhirServer.setFailureStatus(503);
+        for (int i = 0; i < 4; i++) {
+            assertThrows(WebClientResponseException.ServiceUnavailable.class, () -> read(client));
+        }
+        CircuitBreaker breaker = httpClients.resilience("fhir").getBreaker();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(1.0, registry.get("mcp.resilience.breaker.state").tag("state", "open").gauge().value());
+
+        // Refused without a round trip while open
+        int requests = fhirServer.getRequestCount();
+        assertInstanceOf(ResilienceFilter.CallRejectedException.class, assertThrows(RuntimeException.class, () -> read(client)));
+        assertEquals(requests, fhirServer.getRequestCount());
+        assertEquals(1.0, registry.get("mcp.resilience.rejected").tag("reason", "circuit-open").counter().count());
+
+        // One successful trial call after the open period closes it again
+        fhirServer.setFailureStatus(0);
+        Thread.sleep(400);
+        assertTrue(read(client).contains("searchset"));
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    void bulkheadRefusesCallsBeyondItsLimit() {
+        environment.setProperty("fhir.resilience.max-concurrent-calls", "2");
+        WebClient client = fhirClient(300);
+
+        List<String> outcomes = Flux.range(0, 3)
+            .flatMap(i -> client.get().uri("/Condition").retrieve().bodyToMono(String.class)
+                .map(body -> "ok")
+                .onErrorResume(ResilienceFilter.CallRejectedException.class, e -> Mono.just("rejected")))
+            .collectList()
+            .block(Duration.ofSeconds(10));
+
+        assertEquals(2, outcomes.stream().filter("ok"::equals).count(), outcomes::toString);
+        assertEquals(List.of("rejected"), outcomes.stream().filter("rejected"::equals).toList());
+        // Every slot is free again once the bodies have been read
+        assertEquals(2, httpClients.resilience("fhir").getAvailableCalls());
+    }
+
+    @Test
+    void hedgesAGetThatIsSlowerThanRecentLatencies() {
+        environment.setProperty("fhir.resilience.hedge.enabled", "true");
+        environment.setProperty("fhir.resilience.hedge.min-samples", "10");
+        environment.setProperty("fhir.resilience.hedge.min-delay", "50ms");
+        WebClient client = fhirClient(0);
+        for (int i = 0; i < 10; i++) {
+            read(client);
+        }
+
+        fhirServer.delayNext(1, 3000);
+        long startNanos = System.nanoTime();
+        assertTrue(read(client).contains("searchset"));
+        long elapsedMillis = (System.nanoTime() - startNanos) / 1_000_000;
+
+        assertTrue(elapsedMillis < 2000, elapsedMillis + " ms");
+        assertEquals(1, httpClients.resilience("fhir").getHedger().getWon());
+        assertEquals(1.0, registry.get("mcp.resilience.hedge.win.rate").gauge().value());
+        assertEquals(12, fhirServer.getRequestCount());
+    }
+
+    @Test
+    void llmCallsFallBackWithoutWaitingWhileTheBreakerIsOpen() {
+        environment.setProperty("llm.resilience.breaker.minimum-calls", "2");
+        fhirServer = new StubFhirServer(1, 0);
+        httpClients = new UpstreamHttpClients(environment, new PipelineMetrics(registry));
+        try (StubLlmServer llmServer = new StubLlmServer(List.of("Stable."), 0, 500)) {
+            llmServer.setFailureStatus(503);
+            PipelineMetrics metrics = new PipelineMetrics(registry);
+            LlmAdmission admission = new LlmAdmission(false, 1, 0, 1, 1, Duration.ofSeconds(1), metrics);
+            LlmService llmService = new LlmService(WebClient.builder(), httpClients, new ObjectMapper(),
+                metrics, admission, llmServer.completionsUrl());
+            llmService.processQuery("recent labs?", "LABS");
+            llmService.processQuery("recent labs?", "LABS");
+
+            long startNanos = System.nanoTime();
+            String answer = llmService.processQuery("recent labs?", "LABS");
+            long elapsedMillis = (System.nanoTime() - startNanos) / 1_000_000;
+
+            assertTrue(answer.contains("mock response"), answer);
+            assertTrue(elapsedMillis < 200, elapsedMillis + " ms");
+            assertEquals(2, llmServer.getRequestCount());
+        }
+    }
+
+    private WebClient fhirClient(long latencyMillis) {
+        fhirServer = new StubFhirServer(1, latencyMillis);
+        httpClients = new UpstreamHttpClients(environment, new PipelineMetrics(registry));
+        return WebClient.builder()
+            .clientConnector(httpClients.connector("fhir", fhirServer.baseUrl()))
+            .filter(httpClients.resilience("fhir"))
+            .baseUrl(fhirServer.baseUrl())
+            .build();
+    }
+
+    private static String read(WebClient client) {
+        return client.get().uri("/Condition").retrieve().bodyToMono(String.class).block(Duration.ofSeconds(10));
+    }
+}
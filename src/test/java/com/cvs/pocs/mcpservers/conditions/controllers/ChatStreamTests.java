@@ -0,0 +1,67 @@
+package com.cvs.pocs.mcpservers.conditions.controllers;
+
+import com.cvs.pocs.mcpservers.conditions.model.ChatRequest;
+import com.cvs.pocs.mcpservers.conditions.support.StubLlmServer;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.http.MediaType;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.web.reactive.server.WebTestClient;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+class ChatStreamTests {
+
+    private static StubLlmServer llmServer;
+
+    @Autowired
+    private WebTestClient webTestClient;
+
+    @DynamicPropertySource
+    static void stubProperties(DynamicPropertyRegistry registry) {
+        llmServer = new StubLlmServer(List.of("Active ", "meds: ", "metformin."), 50);
+        registry.add("llm.api.url", llmServer::completionsUrl);
+        // The stub answers 404 for FHIR paths, so every section falls back quickly
+        registry.add("fhir.server.url", llmServer::baseUrl);
+    }
+
+    @AfterAll
+    static void stopStub() {
+        llmServer.close();
+    }
+
+    @Test
+    void streamsTokensAsServerSentEvents() {
+        List<ServerSentEvent<String>> events = webTestClient.mutate()
+            .responseTimeout(Duration.ofSeconds(30))
+            .build()
+            .post()
+            .uri("/api/v1/chat/stream")
+            .contentType(MediaType.APPLICATION_JSON)
+            .accept(MediaType.TEXT_EVENT_STREAM)
+            .bodyValue(new ChatRequest("p1", "active meds?", "clinician-1"))
+            .exchange()
+            .expectStatus().isOk()
+            .returnResult(new ParameterizedTypeReference<ServerSentEvent<String>>() { })
+            .getResponseBody()
+            .collectList()
+            .block(Duration.ofSeconds(30));
+
+        List<String> tokens = events.stream()
+            .filter(event -> "token".equals(event.event()))
+            .map(ServerSentEvent::data)
+            .collect(Collectors.toList());
+        assertEquals(List.of("Active ", "meds: ", "metformin."), tokens);
+        assertEquals("done", events.get(events.size() - 1).event());
+    }
+}
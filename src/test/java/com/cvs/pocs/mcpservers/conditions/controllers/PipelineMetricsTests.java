@@ -0,0 +1,83 @@
+package com.cvs.pocs.mcpservers.conditions.controllers;
+
+import com.cvs.pocs.mcpservers.conditions.model.ChatRequest;
+import com.cvs.pocs.mcpservers.conditions.support.StubFhirServer;
+import com.cvs.pocs.mcpservers.conditions.support.StubLlmServer;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.actuate.observability.AutoConfigureObservability;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.web.reactive.server.WebTestClient;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Tests disable metrics exporters unless asked for; the Prometheus endpoint is what's under test
+@AutoConfigureObservability
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+class PipelineMetricsTests {
+
+    private static StubFhirServer fhirServer;
+    private static StubLlmServer llmServer;
+
+    @Autowired
+    private WebTestClient webTestClient;
+
+    @DynamicPropertySource
+    static void stubProperties(DynamicPropertyRegistry registry) {
+        fhirServer = new StubFhirServer(3, 0);
+        llmServer = new StubLlmServer(List.of("Labs ", "are ", "stable."), 0);
+        registry.add("fhir.server.url", fhirServer::baseUrl);
+        registry.add("llm.api.url", llmServer::completionsUrl);
+    }
+
+    @AfterAll
+    static void stopStubs() {
+        fhirServer.close();
+        llmServer.close();
+    }
+
+    @Test
+    void recordsEachStageOfAChatRequest() {
+        WebTestClient client = webTestClient.mutate()
+            .responseTimeout(Duration.ofSeconds(30))
+            .codecs(codecs -> codecs.defaultCodecs().maxInMemorySize(4 * 1024 * 1024))
+            .build();
+        client.post()
+            .uri("/api/v1/chat")
+            .contentType(MediaType.APPLICATION_JSON)
+            .bodyValue(new ChatRequest("metrics-p1", "recent labs and meds?", "clinician-1"))
+            .exchange()
+            .expectStatus().isOk();
+
+        String scrape = client.get()
+            .uri("/actuator/prometheus")
+            .exchange()
+            .expectStatus().isOk()
+            .expectBody(String.class)
+            .returnResult()
+            .getResponseBody();
+
+        assertTrue(scrape.contains("mcp_fhir_fetch_seconds_count{application=\"conditions\",outcome=\"success\",resource=\"Observation\"}"), scrape);
+        assertTrue(scrape.contains("mcp_fhir_fetch_seconds_count{application=\"conditions\",outcome=\"success\",resource=\"MedicationRequest\"}"), scrape);
+        assertTrue(scrape.contains("mcp_fhir_entries_sum{application=\"conditions\",resource=\"Observation\"} 3.0"), scrape);
+        assertTrue(scrape.contains("mcp_fhir_payload_bytes_count{application=\"conditions\",resource=\"Patient\"} 1"), scrape);
+        assertTrue(scrape.contains("mcp_fhir_parse_seconds_count{application=\"conditions\",outcome=\"success\",resource=\"Observation\"} 3"), scrape);
+        assertTrue(scrape.contains("mcp_prompt_assembly_seconds_count{application=\"conditions\"} 1"), scrape);
+        assertTrue(scrape.contains("mcp_llm_call_seconds_count{application=\"conditions\",mode=\"completion\",outcome=\"success\"} 1"), scrape);
+        assertTrue(scrape.contains("mcp_llm_call_seconds_bucket{"), scrape);
+
+        // Each upstream has its own pool, and FHIR Bundles were asked for gzip-compressed
+        assertTrue(scrape.contains("mcp_http_pool_max{application=\"conditions\",remote=\"" + fhirServer.baseUrl().substring("http://".length()) + "\",upstream=\"fhir\"} 100.0"), scrape);
+        assertTrue(scrape.contains("mcp_http_pool_idle{application=\"conditions\",remote=\"" + URI.create(llmServer.completionsUrl()).getAuthority() + "\",upstream=\"llm\"}"), scrape);
+        assertEquals(fhirServer.getRequestCount(), fhirServer.getGzipRequestCount());
+    }
+}
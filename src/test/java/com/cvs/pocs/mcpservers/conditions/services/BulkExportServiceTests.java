@@ -0,0 +1,97 @@
+package com.cvs.pocs.mcpservers.conditions.services;
+
+import com.cvs.pocs.mcpservers.conditions.support.StubBulkExportServer;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest
+class BulkExportServiceTests {
+
+    private static StubBulkExportServer bulkServer;
+
+    @Autowired
+    private BulkExportService bulkExportService;
+
+    @Autowired
+    private PatientStore patientStore;
+
+    @Autowired
+    private FhirService fhirService;
+
+    @DynamicPropertySource
+    static void stubProperties(DynamicPropertyRegistry registry) throws Exception {
+        bulkServer = new StubBulkExportServer(3, 4, 2);
+        String workDir = Files.createTempDirectory("bulk-export-tests").toString();
+        registry.add("fhir.server.url", bulkServer::baseUrl);
+        registry.add("fhir.bulk.work-dir", () -> workDir);
+        // Small batches and buffers so every file spans several of each
+        registry.add("fhir.bulk.batch-size", () -> 5);
+        registry.add("fhir.bulk.read-buffer-size", () -> 256);
+        registry.add("fhir.store.enabled", () -> true);
+    }
+
+    @AfterAll
+    static void stopStub() {
+        bulkServer.close();
+    }
+
+    @Test
+    void ingestsTheExportAndServesChatSectionsFromTheStore() {
+        String jobId = bulkExportService.startExport(null).block(Duration.ofSeconds(10));
+        bulkExportService.awaitJob(jobId).block(Duration.ofSeconds(30));
+
+        assertEquals("COMPLETE", bulkExportService.getStatus(jobId).get("state"));
+        assertEquals(3L, patientStore.count("Patient"));
+        assertEquals(12L, patientStore.count("Observation"));
+        assertEquals(12L, patientStore.count("AllergyIntolerance"));
+
+        int searchesBefore = bulkServer.getOtherRequestCount();
+        String patientData = fhirService.getRelevantPatientDataAsync("p1",
+            "labs, meds, conditions and allergies for the last 36 months").block(Duration.ofSeconds(10));
+
+        assertEquals(searchesBefore, bulkServer.getOtherRequestCount());
+        assertTrue(patientData.contains("Name: Jane Doe"), patientData);
+        assertTrue(patientData.contains("Glucose: "), patientData);
+        assertTrue(patientData.contains("Lisinopril 10 MG Oral Tablet 4"), patientData);
+        assertTrue(patientData.contains("Essential hypertension 7"), patientData);
+        assertTrue(patientData.contains("Penicillin 5 (Hives)"), patientData);
+        // p1 holds entries 4-7 of each type only
+        assertFalse(patientData.contains("Penicillin 3 "), patientData);
+    }
+
+    @Test
+    void resumesAFailedJobWithoutRedoingFinishedFiles() {
+        bulkServer.failDownloads("Observation", 1);
+        int patientDownloads = bulkServer.getDownloadCount("Patient");
+        int observationDownloads = bulkServer.getDownloadCount("Observation");
+
+        String jobId = bulkExportService.startExport(null).block(Duration.ofSeconds(10));
+        bulkExportService.awaitJob(jobId).block(Duration.ofSeconds(30));
+        assertEquals("FAILED", bulkExportService.getStatus(jobId).get("state"));
+
+        bulkExportService.resume(jobId);
+        bulkExportService.awaitJob(jobId).block(Duration.ofSeconds(30));
+
+        Map<String, Object> status = bulkExportService.getStatus(jobId);
+        assertEquals("COMPLETE", status.get("state"));
+        assertEquals(patientDownloads + 1, bulkServer.getDownloadCount("Patient"));
+        assertEquals(observationDownloads + 2, bulkServer.getDownloadCount("Observation"));
+        @SuppressWarnings("unchecked")
+        List<Map<String, Object>> files = (List<Map<String, Object>>) status.get("files");
+        assertEquals(5, files.size());
+        files.forEach(file -> assertEquals("INGESTED", file.get("state"), file::toString));
+    }
+}
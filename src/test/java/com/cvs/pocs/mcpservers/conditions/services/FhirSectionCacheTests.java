@@ -0,0 +1,111 @@
+package com.cvs.pocs.mcpservers.conditions.services;
+
+import com.cvs.pocs.mcpservers.conditions.services.FhirSectionCache.SectionKey;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.convert.ApplicationConversionService;
+import org.springframework.mock.env.MockEnvironment;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FhirSectionCacheTests {
+
+    private final AtomicLong now = new AtomicLong();
+    private final AtomicInteger loads = new AtomicInteger();
+    private final MockEnvironment environment = new MockEnvironment()
+        .withProperty("fhir.cache.ttl.Patient", "30m");
+    private final FhirSectionCache cache;
+
+    FhirSectionCacheTests() {
+        environment.setConversionService(new ApplicationConversionService());
+        cache = new FhirSectionCache(true, 100, Duration.ofMinutes(5), environment, now::get);
+    }
+
+    @Test
+    void answersAHitWithoutCallingTheLoader() {
+        SectionKey key = new SectionKey("p-1", "Condition", "");
+
+        assertEquals("CONDITIONS: 1", cache.get(key, loader("CONDITIONS")).block());
+        assertEquals("CONDITIONS: 1", cache.get(key, loader("CONDITIONS")).block());
+        assertEquals(1, loads.get());
+        assertTrue(cache.contains(key));
+
+        // A failed load is not cached
+        SectionKey failing = new SectionKey("p-1", "AllergyIntolerance", "");
+        assertEquals("ALLERGIES: Unable to retrieve", cache.get(failing, Mono.<String>error(new IllegalStateException()))
+            .onErrorReturn("ALLERGIES: Unable to retrieve").block());
+        assertFalse(cache.contains(failing));
+    }
+
+    @Test
+    void expiresEachResourceTypeAfterItsOwnTtl() {
+        SectionKey patient = new SectionKey("p-1", "Patient", "");
+        SectionKey conditions = new SectionKey("p-1", "Condition", "");
+        cache.get(patient, loader("PATIENT")).block();
+        cache.get(conditions, loader("CONDITIONS")).block();
+
+        advance(Duration.ofMinutes(4));
+        assertTrue(cache.contains(patient));
+        assertTrue(cache.contains(conditions));
+
+        // Past the 5 minute default, within the Patient TTL
+        advance(Duration.ofMinutes(2));
+        assertEquals("PATIENT: 1", cache.get(patient, loader("PATIENT")).block());
+        assertEquals("CONDITIONS: 3", cache.get(conditions, loader("CONDITIONS")).block());
+
+        advance(Duration.ofMinutes(25));
+        assertEquals("PATIENT: 4", cache.get(patient, loader("PATIENT")).block());
+    }
+
+    @Test
+    void invalidatesOnlyThatPatientOfThatTenant() {
+        SectionKey own = new SectionKey("p-1", "Condition", "");
+        SectionKey withToken = new SectionKey(FhirTenantRegistry.DEFAULT_TENANT, "principal", "p-1", "Condition", "");
+        SectionKey otherTenant = new SectionKey("acme", "p-1", "Condition", "");
+        SectionKey otherPatient = new SectionKey("p-2", "Condition", "");
+        for (SectionKey key : new SectionKey[] {own, withToken, otherTenant, otherPatient}) {
+            cache.get(key, loader("CONDITIONS")).block();
+        }
+
+        cache.invalidatePatient(FhirTenantRegistry.DEFAULT_TENANT, "p-1");
+
+        assertFalse(cache.contains(own));
+        assertFalse(cache.contains(withToken));
+        assertTrue(cache.contains(otherTenant));
+        assertTrue(cache.contains(otherPatient));
+    }
+
+    @Test
+    void countsHitsMissesAndEvictions() {
+        SectionKey patient = new SectionKey("p-1", "Patient", "");
+        SectionKey conditions = new SectionKey("p-1", "Condition", "");
+        cache.get(patient, loader("PATIENT")).block();
+        cache.get(conditions, loader("CONDITIONS")).block();
+        cache.get(patient, loader("PATIENT")).block();
+        cache.get(conditions, loader("CONDITIONS")).block();
+        cache.get(conditions, loader("CONDITIONS")).block();
+
+        assertEquals(3L, cache.getStats().get("hits"));
+        assertEquals(2L, cache.getStats().get("misses"));
+        assertEquals(0.6, (double) cache.getStats().get("hitRate"), 1e-9);
+        assertEquals(2L, cache.getStats().get("size"));
+
+        advance(Duration.ofMinutes(6));
+        assertEquals(1L, cache.getStats().get("evictions"));
+        assertEquals(1L, cache.getStats().get("size"));
+    }
+
+    private Mono<String> loader(String heading) {
+        return Mono.fromCallable(() -> heading + ": " + loads.incrementAndGet());
+    }
+
+    private void advance(Duration duration) {
+        now.addAndGet(duration.toNanos());
+    }
+}
@@ -0,0 +1,83 @@
+package com.cvs.pocs.mcpservers.conditions.services;
+
+import com.cvs.pocs.mcpservers.conditions.support.StubFhirServer;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest
+class FhirServiceBatchTests {
+
+    private static final String QUERY = "Summarize labs, conditions, medications, allergies and vital signs";
+
+    private static StubFhirServer fhirServer;
+
+    @Autowired
+    private FhirService fhirService;
+
+    @Autowired
+    private FhirTenantRegistry tenants;
+
+    @DynamicPropertySource
+    static void stubProperties(DynamicPropertyRegistry registry) {
+        fhirServer = new StubFhirServer(3, 0);
+        registry.add("fhir.server.url", fhirServer::baseUrl);
+        registry.add("fhir.batch.enabled", () -> true);
+    }
+
+    @AfterAll
+    static void stopStub() {
+        fhirServer.close();
+    }
+
+    @BeforeEach
+    void enableBatches() {
+        fhirServer.setBatchSupported(true);
+        ReflectionTestUtils.setField(tenants.defaultTenant(), "batchSupported", true);
+    }
+
+    @Test
+    void fetchesEverySectionInOneBatchRoundTrip() {
+        int requestsBefore = fhirServer.getRequestCount();
+        String batched = fhirService.getRelevantPatientData("batch-1", QUERY);
+        assertEquals(requestsBefore + 1, fhirServer.getRequestCount());
+        assertTrue(batched.contains("LABORATORY RESULTS (LAST 3 MONTHS):\nGlucose: "), batched);
+        assertTrue(batched.contains("ALLERGIES:\nPenicillin 0 (Hives)\n"), batched);
+
+        // The same plan fetched search by search renders identical text
+        fhirService.invalidatePatient("batch-1");
+        ReflectionTestUtils.setField(fhirService, "batchEnabled", false);
+        try {
+            assertEquals(batched, fhirService.getRelevantPatientData("batch-1", QUERY));
+        } finally {
+            ReflectionTestUtils.setField(fhirService, "batchEnabled", true);
+        }
+    }
+
+    @Test
+    void fallsBackToSeparateSearchesWhenTheServerRejectsBatches() {
+        fhirServer.setBatchSupported(false);
+        int requestsBefore = fhirServer.getRequestCount();
+        int batchesBefore = fhirServer.getBatchCount();
+
+        String data = fhirService.getRelevantPatientData("batch-2", QUERY);
+        assertTrue(data.contains("ACTIVE MEDICATIONS:\nLisinopril 10 MG Oral Tablet 0"), data);
+        assertTrue(data.contains("VITAL SIGNS (LAST 1 MONTHS):\nGlucose: "), data);
+        // One rejected batch, then the patient read and five searches
+        assertEquals(batchesBefore + 1, fhirServer.getBatchCount());
+        assertEquals(requestsBefore + 7, fhirServer.getRequestCount());
+
+        // The rejection is remembered: the next chat goes straight to separate searches
+        fhirService.getRelevantPatientData("batch-3", QUERY);
+        assertEquals(batchesBefore + 1, fhirServer.getBatchCount());
+        assertEquals(requestsBefore + 13, fhirServer.getRequestCount());
+    }
+}
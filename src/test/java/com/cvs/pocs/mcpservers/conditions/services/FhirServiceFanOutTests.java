@@ -0,0 +1,93 @@
+package com.cvs.pocs.mcpservers.conditions.services;
+
+import com.cvs.pocs.mcpservers.conditions.support.StubFhirServer;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest
+class FhirServiceFanOutTests {
+
+    private static final String QUERY = "Recent labs, conditions, medications, allergies and vitals?";
+    private static final List<String> HEADINGS = List.of("PATIENT DEMOGRAPHICS:", "LABORATORY RESULTS",
+        "CONDITIONS:", "ACTIVE MEDICATIONS:", "ALLERGIES:", "VITAL SIGNS");
+
+    private static StubFhirServer fhirServer;
+
+    @Autowired
+    private FhirService fhirService;
+
+    @DynamicPropertySource
+    static void stubProperties(DynamicPropertyRegistry registry) {
+        fhirServer = new StubFhirServer(2, 0);
+        registry.add("fhir.server.url", fhirServer::baseUrl);
+    }
+
+    @AfterAll
+    static void stopStub() {
+        fhirServer.close();
+    }
+
+    @AfterEach
+    void resetStub() {
+        for (String resourceType : List.of("Patient", "Observation", "Condition", "MedicationRequest",
+                "AllergyIntolerance")) {
+            fhirServer.setResourceLatency(resourceType, 0);
+            fhirServer.setResourceFailure(resourceType, 0);
+        }
+    }
+
+    @Test
+    void fetchesSectionsConcurrentlyAndAppendsThemInPlanOrder() {
+        // Sections complete out of plan order
+        fhirServer.setResourceLatency("Patient", 300);
+        fhirServer.setResourceLatency("Observation", 400);
+        fhirServer.setResourceLatency("Condition", 200);
+        fhirServer.setResourceLatency("MedicationRequest", 300);
+        fhirServer.setResourceLatency("AllergyIntolerance", 100);
+
+        long start = System.nanoTime();
+        String data = fhirService.getRelevantPatientData("fan-out-1", QUERY);
+        Duration elapsed = Duration.ofNanos(System.nanoTime() - start);
+
+        assertInOrder(data, HEADINGS);
+        assertFalse(data.contains("Unable to retrieve"), data);
+        // About the slowest section (400 ms), far below the 1.7 s the six calls take one after another
+        assertTrue(elapsed.compareTo(Duration.ofMillis(400)) >= 0, "took " + elapsed.toMillis() + " ms");
+        assertTrue(elapsed.compareTo(Duration.ofMillis(1200)) < 0, "took " + elapsed.toMillis() + " ms");
+    }
+
+    @Test
+    void replacesOnlyTheFailingSection() {
+        fhirServer.setResourceFailure("MedicationRequest", 500);
+
+        String data = fhirService.getRelevantPatientData("fan-out-2", QUERY);
+
+        assertInOrder(data, List.of("PATIENT DEMOGRAPHICS:", "LABORATORY RESULTS", "CONDITIONS:",
+            "MEDICATIONS: Unable to retrieve", "ALLERGIES:", "VITAL SIGNS"));
+        assertEquals(1, data.split("Unable to retrieve", -1).length - 1, data);
+        assertTrue(data.contains("Essential hypertension 1"), data);
+        assertTrue(data.contains("Penicillin 1"), data);
+    }
+
+    // Each heading first appears after the one before it
+    private static void assertInOrder(String data, List<String> headings) {
+        int previous = -1;
+        for (String heading : headings) {
+            int at = data.indexOf(heading);
+            assertTrue(at > previous, heading + " out of order in:\n" + data);
+            previous = at;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.cvs.pocs.mcpservers.conditions.services;
+
+import com.cvs.pocs.mcpservers.conditions.support.StubFhirServer;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest
+class FhirServiceRevalidationTests {
+
+    private static final String QUERY = "What conditions does the patient have?";
+
+    private static StubFhirServer fhirServer;
+
+    @Autowired
+    private FhirService fhirService;
+
+    @Autowired
+    private FhirSectionCache sectionCache;
+
+    @Autowired
+    private SectionValidators sectionValidators;
+
+    @DynamicPropertySource
+    static void stubProperties(DynamicPropertyRegistry registry) {
+        fhirServer = new StubFhirServer(3, 0);
+        registry.add("fhir.server.url", fhirServer::baseUrl);
+        registry.add("fhir.revalidation.enabled", () -> true);
+    }
+
+    @AfterAll
+    static void stopStub() {
+        fhirServer.close();
+    }
+
+    @AfterEach
+    void resetStub() {
+        fhirServer.setUpdatedEntries(0);
+    }
+
+    @Test
+    void revalidatesExpiredSectionsWithoutReadingThemAgain() {
+        String first = fhirService.getRelevantPatientData("reval-1", QUERY);
+        Map<String, Object> before = sectionValidators.getStats();
+
+        // As if the cached sections had expired
+        sectionCache.invalidateAll();
+        assertEquals(first, fhirService.getRelevantPatientData("reval-1", QUERY));
+
+        // The Patient read is answered 304, the condition search finds no updates
+        Map<String, Object> after = sectionValidators.getStats();
+        assertEquals((Long) before.get("notModified") + 2, after.get("notModified"), after::toString);
+        assertTrue((Long) after.get("bytesSaved") > (Long) before.get("bytesSaved"), after::toString);
+        assertEquals(1.0, after.get("hitRate"), after::toString);
+    }
+
+    @Test
+    void mergesUpdatedEntriesIntoTheSection() {
+        String first = fhirService.getRelevantPatientData("reval-2", QUERY);
+        assertTrue(first.contains("CONDITIONS:\nEssential hypertension 0"), first);
+
+        fhirServer.setUpdatedEntries(1);
+        sectionCache.invalidateAll();
+        String revalidated = fhirService.getRelevantPatientData("reval-2", QUERY);
+
+        // The new condition comes first, followed by the three already known
+        int start = revalidated.indexOf("CONDITIONS:\n") + "CONDITIONS:\n".length();
+        String added = revalidated.substring(start, revalidated.indexOf('\n', start) + 1);
+        assertTrue(added.startsWith("Essential hypertension 3 (Confirmed)"), revalidated);
+        assertEquals(first.replace("CONDITIONS:\n", "CONDITIONS:\n" + added), revalidated);
+        assertEquals(1L, sectionValidators.getStats().get("merged"));
+    }
+}
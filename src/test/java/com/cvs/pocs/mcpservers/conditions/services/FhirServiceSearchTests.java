@@ -0,0 +1,86 @@
+package com.cvs.pocs.mcpservers.conditions.services;
+
+import com.cvs.pocs.mcpservers.conditions.support.StubFhirServer;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.web.util.UriComponentsBuilder;
+
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest
+class FhirServiceSearchTests {
+
+    private static StubFhirServer fhirServer;
+
+    @Autowired
+    private FhirService fhirService;
+
+    @DynamicPropertySource
+    static void stubProperties(DynamicPropertyRegistry registry) {
+        fhirServer = new StubFhirServer(5, 0);
+        registry.add("fhir.server.url", fhirServer::baseUrl);
+        registry.add("fhir.search.page-size", () -> 5);
+        registry.add("fhir.search.max-entries", () -> 7);
+    }
+
+    @AfterAll
+    static void stopStub() {
+        fhirServer.close();
+    }
+
+    @Test
+    void narrowsObservationSearchesOnTheServer() {
+        int before = fhirServer.getRequestUris().size();
+
+        fhirService.getRelevantPatientData("search-1", "Lab results from the last 3 months?");
+
+        List<String> observationSearches = fhirServer.getRequestUris().stream().skip(before)
+            .filter(uri -> uri.startsWith("/Observation?"))
+            .toList();
+        assertEquals(1, observationSearches.size(), observationSearches.toString());
+        Map<String, List<String>> params = UriComponentsBuilder.fromUriString(observationSearches.get(0))
+            .build().getQueryParams();
+        assertEquals(List.of("search-1"), params.get("patient"));
+        assertEquals(List.of("laboratory"), params.get("category"));
+        assertEquals(List.of("ge" + LocalDate.now().minusMonths(3)), params.get("date"));
+        assertEquals(List.of("-date"), params.get("_sort"));
+        assertEquals(List.of("code,value,referenceRange,interpretation,effective"), params.get("_elements"));
+        assertEquals(List.of("5"), params.get("_count"));
+    }
+
+    @Test
+    void followsNextLinksUpToTheEntryCap() {
+        int before = fhirServer.getRequestUris().size();
+        fhirServer.setNextLink(fhirServer.baseUrl() + "/Condition?patient=search-2&page=2");
+        String data;
+        try {
+            data = fhirService.getRelevantPatientData("search-2", "Which conditions does the patient have?");
+        } finally {
+            fhirServer.setNextLink(null);
+        }
+
+        List<String> conditionSearches = fhirServer.getRequestUris().stream().skip(before)
+            .filter(uri -> uri.startsWith("/Condition?"))
+            .toList();
+        assertEquals(2, conditionSearches.size(), conditionSearches.toString());
+        Map<String, List<String>> params = UriComponentsBuilder.fromUriString(conditionSearches.get(0))
+            .build().getQueryParams();
+        assertTrue(params.containsKey("_elements"), conditionSearches.get(0));
+        assertEquals(List.of("5"), params.get("_count"));
+        assertEquals("/Condition?patient=search-2&page=2", conditionSearches.get(1));
+
+        // Five entries from the first page and two from the second
+        String conditions = data.substring(data.indexOf("CONDITIONS:\n"));
+        assertEquals(7, conditions.lines().filter(line -> line.contains("Essential hypertension")).count(), data);
+        assertTrue(conditions.contains("Essential hypertension 4"), data);
+    }
+}
@@ -0,0 +1,156 @@
+package com.cvs.pocs.mcpservers.conditions.services;
+
+import com.cvs.pocs.mcpservers.conditions.services.FhirTenantRegistry.Tenant;
+import com.cvs.pocs.mcpservers.conditions.services.FhirTenantRegistry.UnknownTenantException;
+import com.cvs.pocs.mcpservers.conditions.support.StubFhirServer;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest
+class FhirServiceTenantTests {
+
+    private static final String QUERY = "Which conditions does the patient have?";
+
+    private static StubFhirServer defaultServer;
+    private static StubFhirServer acmeServer;
+
+    @Autowired
+    private FhirService fhirService;
+
+    @Autowired
+    private FhirTenantRegistry tenants;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @DynamicPropertySource
+    static void stubProperties(DynamicPropertyRegistry registry) {
+        defaultServer = new StubFhirServer(2, 0);
+        acmeServer = new StubFhirServer(3, 0);
+        registry.add("fhir.server.url", defaultServer::baseUrl);
+        registry.add("fhir.tenants.acme.url", acmeServer::baseUrl);
+        registry.add("fhir.tenants.allowed-urls", acmeServer::baseUrl);
+    }
+
+    @AfterAll
+    static void stopStubs() {
+        defaultServer.close();
+        acmeServer.close();
+    }
+
+    @Test
+    void keepsTheSamePatientIdOfTwoTenantsApart() {
+        int defaultBefore = defaultServer.getRequestCount();
+        int acmeBefore = acmeServer.getRequestCount();
+        Tenant acme = tenants.resolve("acme", null);
+
+        String fromDefault = fhirService.getRelevantPatientDataAsync(tenants.defaultTenant(), null, "t-1", QUERY).block();
+        String fromAcme = fhirService.getRelevantPatientDataAsync(acme, "secret", "t-1", QUERY).block();
+        // Patient read and condition search on each server, with the chat's token only sent to acme
+        assertEquals(defaultBefore + 2, defaultServer.getRequestCount());
+        assertEquals(acmeBefore + 2, acmeServer.getRequestCount());
+        assertEquals("Bearer secret", acmeServer.getLastAuthorization());
+        assertTrue(fromAcme.contains("Essential hypertension 2"), fromAcme);
+        assertFalse(fromDefault.contains("Essential hypertension 2"), fromDefault);
+
+        // Each tenant's sections are cached and invalidated on their own
+        assertEquals(fromAcme, fhirService.getRelevantPatientDataAsync(acme, "secret", "t-1", QUERY).block());
+        fhirService.invalidatePatient("acme", "t-1");
+        assertEquals(fromDefault, fhirService.getRelevantPatientData("t-1", QUERY));
+        assertEquals(defaultBefore + 2, defaultServer.getRequestCount());
+        assertEquals(fromAcme, fhirService.getRelevantPatientDataAsync(acme, "secret", "t-1", QUERY).block());
+        assertEquals(acmeBefore + 4, acmeServer.getRequestCount());
+
+        // acme has guards of its own
+        assertNotNull(meterRegistry.find(PipelineMetrics.BREAKER_STATE).tag("upstream", "fhir:acme").gauge());
+    }
+
+    @Test
+    void servesSectionsFetchedWithATokenOnlyToTheSameToken() {
+        Tenant acme = tenants.resolve("acme", null);
+        int before = acmeServer.getRequestCount();
+
+        String withToken = fhirService.getRelevantPatientDataAsync(acme, "token-a", "t-2", QUERY).block();
+        assertEquals(withToken, fhirService.getRelevantPatientDataAsync(acme, "token-a", "t-2", QUERY).block());
+        assertEquals(before + 2, acmeServer.getRequestCount());
+
+        // Another token, and no token, are each fetched under their own authorization
+        fhirService.getRelevantPatientDataAsync(acme, "token-b", "t-2", QUERY).block();
+        assertEquals("Bearer token-b", acmeServer.getLastAuthorization());
+        assertEquals(before + 4, acmeServer.getRequestCount());
+        fhirService.getRelevantPatientDataAsync(acme, null, "t-2", QUERY).block();
+        assertNull(acmeServer.getLastAuthorization());
+        assertEquals(before + 6, acmeServer.getRequestCount());
+
+        // Invalidating the patient drops the sections of every token
+        fhirService.invalidatePatient("acme", "t-2");
+        fhirService.getRelevantPatientDataAsync(acme, "token-a", "t-2", QUERY).block();
+        assertEquals(before + 8, acmeServer.getRequestCount());
+
+        // Completions are scoped the same way, and the token is not kept
+        assertNotEquals(acme.qualify("t-2", "token-a"), acme.qualify("t-2", "token-b"));
+        assertEquals(acme.qualify("t-2"), acme.qualify("t-2", null));
+        assertFalse(acme.qualify("t-2", "token-a").contains("token-a"));
+    }
+
+    @Test
+    void followsNextLinksOnTheTenantsServerOnly() {
+        Tenant acme = tenants.resolve("acme", null);
+        int defaultBefore = defaultServer.getRequestCount();
+        int acmeBefore = acmeServer.getRequestCount();
+        try {
+            // A next link to another host would receive the chat's token: not followed
+            acmeServer.setNextLink(defaultServer.baseUrl() + "/Condition?patient=t-3&page=2");
+            String foreign = fhirService.getRelevantPatientDataAsync(acme, "secret", "t-3", QUERY).block();
+            assertEquals(defaultBefore, defaultServer.getRequestCount());
+            assertEquals(acmeBefore + 2, acmeServer.getRequestCount());
+            assertEquals(3, conditionCount(foreign), foreign);
+
+            // A relative link on the same server is
+            acmeServer.setNextLink("Condition?patient=t-4&page=2");
+            String paged = fhirService.getRelevantPatientDataAsync(acme, "secret", "t-4", QUERY).block();
+            assertEquals(acmeBefore + 5, acmeServer.getRequestCount());
+            assertEquals("Bearer secret", acmeServer.getLastAuthorization());
+            assertEquals(2 * conditionCount(foreign), conditionCount(paged), paged);
+        } finally {
+            acmeServer.setNextLink(null);
+        }
+    }
+
+    @Test
+    void resolvesConfiguredTenantsAndAllowedUrlsOnly() {
+        assertSame(tenants.defaultTenant(), tenants.resolve(null, null));
+        assertSame(tenants.defaultTenant(), tenants.resolve(null, defaultServer.baseUrl() + "/"));
+        assertSame(tenants.resolve("acme", null), tenants.resolve("acme", null));
+
+        Tenant byUrl = tenants.resolve(null, acmeServer.baseUrl() + "/");
+        assertEquals(acmeServer.baseUrl(), byUrl.id());
+        assertEquals(acmeServer.baseUrl() + "|t-1", byUrl.qualify("t-1"));
+        assertTrue(((List<?>) tenants.getStats().get("tenants")).contains("acme"));
+
+        assertThrows(UnknownTenantException.class, () -> tenants.resolve("other", null));
+        assertThrows(UnknownTenantException.class, () -> tenants.resolve(null, "http://127.0.0.1:1"));
+        // Same prefix, different port
+        assertThrows(UnknownTenantException.class, () -> tenants.resolve(null, acmeServer.baseUrl() + "0"));
+    }
+
+    private static long conditionCount(String patientData) {
+        return patientData.lines().filter(line -> line.startsWith("Essential hypertension")).count();
+    }
+}
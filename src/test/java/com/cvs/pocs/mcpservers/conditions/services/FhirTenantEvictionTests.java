@@ -0,0 +1,80 @@
+package com.cvs.pocs.mcpservers.conditions.services;
+
+import com.cvs.pocs.mcpservers.conditions.services.FhirTenantRegistry.Tenant;
+import com.cvs.pocs.mcpservers.conditions.support.StubFhirServer;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// One tenant client at a time, so resolving a second tenant evicts one of the two
+@SpringBootTest(properties = {"fhir.tenants.max-clients=1", "fhir.tenants.close-grace=200ms"})
+class FhirTenantEvictionTests {
+
+    private static final String QUERY = "Which conditions does the patient have?";
+
+    private static StubFhirServer first;
+    private static StubFhirServer second;
+
+    @Autowired
+    private FhirService fhirService;
+
+    @Autowired
+    private FhirTenantRegistry tenants;
+
+    @DynamicPropertySource
+    static void stubProperties(DynamicPropertyRegistry registry) {
+        // Slow, two-page searches: the next page is requested well after the eviction
+        first = new StubFhirServer(2, 400);
+        second = new StubFhirServer(2, 400);
+        first.setNextLink("Condition?patient=e-1&page=2");
+        second.setNextLink("Condition?patient=e-2&page=2");
+        registry.add("fhir.tenants.allowed-urls", () -> first.baseUrl() + "," + second.baseUrl());
+    }
+
+    @AfterAll
+    static void stopStubs() {
+        first.close();
+        second.close();
+    }
+
+    @Test
+    void finishesChatsOnAnEvictedTenant() throws Exception {
+        Tenant firstTenant = tenants.resolve(null, first.baseUrl());
+        CompletableFuture<String> firstChat =
+            fhirService.getRelevantPatientDataAsync(firstTenant, "token", "e-1", QUERY).toFuture();
+        Thread.sleep(100);
+        Tenant secondTenant = tenants.resolve(null, second.baseUrl());
+        CompletableFuture<String> secondChat =
+            fhirService.getRelevantPatientDataAsync(secondTenant, "token", "e-2", QUERY).toFuture();
+
+        for (String patientData : new String[] {firstChat.get(30, TimeUnit.SECONDS), secondChat.get(30, TimeUnit.SECONDS)}) {
+            assertFalse(patientData.contains("Unable to retrieve"), patientData);
+        }
+        assertEquals(1L, tenants.getStats().get("evictions"));
+        // Patient read and both search pages on each server
+        assertEquals(3, first.getRequestCount());
+        assertEquals(3, second.getRequestCount());
+
+        // The evicted client is closed once its chat is done, and stays closed
+        List<?> kept = (List<?>) tenants.getStats().get("tenants");
+        Tenant evicted = kept.contains(firstTenant.id()) ? secondTenant : firstTenant;
+        Tenant active = evicted == firstTenant ? secondTenant : firstTenant;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!evicted.isClosed() && System.nanoTime() < deadline) {
+            Thread.sleep(20);
+        }
+        assertTrue(evicted.isClosed());
+        assertFalse(active.isClosed());
+    }
+}
@@ -0,0 +1,48 @@
+package com.cvs.pocs.mcpservers.conditions.services;
+
+import com.cvs.pocs.mcpservers.conditions.services.FetchPlan.Section;
+import org.junit.jupiter.api.Test;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class KeywordQueryPlannerTests {
+
+    private final KeywordQueryPlanner planner = new KeywordQueryPlanner();
+
+    @Test
+    void matchesWholeKeywordsOnly() {
+        assertEquals(EnumSet.of(Section.MEDICATIONS), sections("What are the active MEDS?"));
+        // "medical", "latest" and "design" contain keywords but are other words
+        assertEquals(Set.of(), sections("Any medical history in the latest design notes"));
+        assertEquals(EnumSet.of(Section.VITALS, Section.LABS, Section.CONDITIONS),
+            sections("Is the blood pressure trending up? Check recent test results and the problem list."));
+        assertEquals(EnumSet.allOf(Section.class),
+            sections("Summarize labs, conditions, medications, allergies and vital signs"));
+    }
+
+    @Test
+    void readsTheFirstTimeWindow() {
+        assertEquals(new FetchPlan(Set.of(Section.LABS), 6, 6), planner.plan("labs for the last 6 months"));
+        assertEquals(new FetchPlan(Set.of(Section.VITALS), 2, 2), planner.plan("vitals over the past  9 Weeks or last 2 days"));
+        assertEquals(new FetchPlan(Set.of(Section.VITALS), 1, 1), planner.plan("vitals in the last 10 days"));
+        // No number, or an unknown unit, is no window
+        assertEquals(new FetchPlan(Set.of(Section.LABS), KeywordQueryPlanner.DEFAULT_LAB_MONTHS,
+            KeywordQueryPlanner.DEFAULT_VITAL_MONTHS), planner.plan("the last labs, past 2 visits"));
+    }
+
+    @Test
+    void cachesPlansOfRepeatedQueries() {
+        FetchPlan first = planner.plan("recent labs and active meds?");
+
+        assertSame(first, planner.plan("recent labs and active meds?"));
+        assertEquals(1L, planner.getStats().get("hits"));
+    }
+
+    private Set<Section> sections(String query) {
+        return planner.plan(query).sections();
+    }
+}
@@ -0,0 +1,135 @@
+package com.cvs.pocs.mcpservers.conditions.services;
+
+import com.cvs.pocs.mcpservers.conditions.config.UpstreamHttpClients;
+import com.cvs.pocs.mcpservers.conditions.services.LlmAdmission.AdmissionRejectedException;
+import com.cvs.pocs.mcpservers.conditions.services.LlmAdmission.Priority;
+import com.cvs.pocs.mcpservers.conditions.support.StubLlmServer;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LlmAdmissionTests {
+
+    private final List<String> started = Collections.synchronizedList(new ArrayList<>());
+    private final List<Sinks.One<String>> running = new ArrayList<>();
+
+    @Test
+    void servesUsersRoundRobinWithUrgentCallsFirst() {
+        LlmAdmission admission = admission(1, 0, 10, Duration.ofSeconds(10));
+        List<Mono<String>> calls = new ArrayList<>();
+        for (int i = 1; i <= 4; i++) {
+            calls.add(call(admission, "bulk", Priority.ROUTINE, "bulk-" + i));
+        }
+        calls.add(call(admission, "clinician", Priority.ROUTINE, "clinician-1"));
+        calls.add(call(admission, "other", Priority.URGENT, "urgent-1"));
+        calls.forEach(Mono::subscribe);
+
+        for (int i = 0; i < calls.size(); i++) {
+            running.get(i).tryEmitValue("done");
+        }
+        assertEquals(List.of("bulk-1", "urgent-1", "bulk-2", "clinician-1", "bulk-3", "bulk-4"), started);
+        assertEquals(0, admission.getInFlight());
+    }
+
+    @Test
+    void rejectsCallsBeyondTheUserQueue() {
+        LlmAdmission admission = admission(1, 0, 2, Duration.ofSeconds(10));
+        call(admission, "bulk", Priority.ROUTINE, "bulk-1").subscribe();
+        call(admission, "bulk", Priority.ROUTINE, "bulk-2").subscribe();
+        call(admission, "bulk", Priority.ROUTINE, "bulk-3").subscribe();
+
+        AdmissionRejectedException rejected = assertThrows(AdmissionRejectedException.class,
+            () -> call(admission, "bulk", Priority.ROUTINE, "bulk-4").block());
+        assertTrue(rejected.getMessage().contains("bulk already has 2 LLM calls queued"), rejected.getMessage());
+
+        // Another user still gets in line
+        call(admission, "clinician", Priority.ROUTINE, "clinician-1").subscribe();
+        assertEquals(Map.of("user-queue-full", 1L, "queue-full", 0L, "timeout", 0L),
+            admission.getStats().get("rejected"));
+        assertEquals(3, admission.getStats().get("queued"));
+    }
+
+    @Test
+    void waitsForTokensAndGivesUpAfterTheMaximumWait() {
+        // 1000 tokens a second; the first call drains the whole minute's budget
+        LlmAdmission admission = admission(10, 60_000, 10, Duration.ofMillis(200));
+        call(admission, "a", Priority.ROUTINE, "a-1", 60_000).subscribe();
+
+        long start = System.nanoTime();
+        call(admission, "b", Priority.ROUTINE, "b-1", 50).subscribe();
+        while (started.size() < 2) {
+            assertTrue(System.nanoTime() - start < Duration.ofSeconds(5).toNanos(), "never admitted");
+            Thread.onSpinWait();
+        }
+        assertTrue(System.nanoTime() - start >= Duration.ofMillis(40).toNanos());
+
+        // Would need the whole budget again
+        assertThrows(AdmissionRejectedException.class,
+            () -> call(admission, "c", Priority.ROUTINE, "c-1", 60_000).block());
+        assertEquals(List.of("a-1", "b-1"), started);
+        assertEquals(1L, ((Map<?, ?>) admission.getStats().get("rejected")).get("timeout"));
+    }
+
+    @Test
+    void admitsEachCallerOfASharedPromptOnItsOwn() {
+        LlmAdmission admission = admission(1, 0, 1, Duration.ofSeconds(10));
+        PipelineMetrics metrics = new PipelineMetrics(new SimpleMeterRegistry());
+        UpstreamHttpClients httpClients = new UpstreamHttpClients(new MockEnvironment(), metrics);
+        try (StubLlmServer llm = new StubLlmServer(List.of("Shared", " answer"), 0)) {
+            LlmService llmService = new LlmService(WebClient.builder(), httpClients, new ObjectMapper(), metrics,
+                admission, llm.completionsUrl());
+            // One call running and one of bulk's waiting: bulk's queue is full, the clinician's is empty
+            call(admission, "other", Priority.ROUTINE, "other-1").subscribe();
+            call(admission, "bulk", Priority.ROUTINE, "bulk-1").subscribe();
+
+            Mono<String> clinician = llmService.processQueryAsync("patient-1", "clinician", Priority.ROUTINE,
+                "Any red flags?", "Conditions:\n- Asthma", false).cache();
+            clinician.subscribe(answer -> { }, error -> { });
+            // Same prompt while the clinician's call is waiting; bulk is still turned away
+            assertThrows(AdmissionRejectedException.class, () -> llmService.processQueryAsync("patient-1", "bulk",
+                Priority.ROUTINE, "Any red flags?", "Conditions:\n- Asthma", false).block(Duration.ofSeconds(5)));
+
+            running.forEach(sink -> sink.tryEmitValue("done"));
+            assertEquals("Shared answer", clinician.block(Duration.ofSeconds(5)));
+            assertEquals(1, llm.getRequestCount());
+            assertEquals(Map.of("user-queue-full", 1L, "queue-full", 0L, "timeout", 0L),
+                admission.getStats().get("rejected"));
+        } finally {
+            httpClients.dispose();
+        }
+    }
+
+    private LlmAdmission admission(int maxConcurrentCalls, long tokensPerMinute, int queueCapacityPerUser,
+                                   Duration maxWait) {
+        return new LlmAdmission(true, maxConcurrentCalls, tokensPerMinute, 100, queueCapacityPerUser, maxWait,
+            new PipelineMetrics(new SimpleMeterRegistry()));
+    }
+
+    private Mono<String> call(LlmAdmission admission, String userId, Priority priority, String name) {
+        return call(admission, userId, priority, name, 1);
+    }
+
+    // The call records that it started and then runs until its sink is completed
+    private Mono<String> call(LlmAdmission admission, String userId, Priority priority, String name, int tokens) {
+        Sinks.One<String> sink = Sinks.one();
+        running.add(sink);
+        return admission.admit(userId, priority, tokens, () -> {
+            started.add(name);
+            return sink.asMono();
+        });
+    }
+}
@@ -0,0 +1,76 @@
+package com.cvs.pocs.mcpservers.conditions.services;
+
+import com.cvs.pocs.mcpservers.conditions.support.StubLlmServer;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+@SpringBootTest
+class LlmCompletionCacheTests {
+
+    private static final String MEDICATIONS = "MEDICATIONS:\nLisinopril 10 mg - Active - 2024-01-10\n\n";
+    private static final String LABS = "LABORATORY RESULTS (LAST 3 MONTHS):\nGlucose: 80.00 mg/dL - 2024-01-10\n\n";
+
+    private static StubLlmServer llmServer;
+
+    @Autowired
+    private LlmService llmService;
+
+    @DynamicPropertySource
+    static void stubProperties(DynamicPropertyRegistry registry) {
+        llmServer = new StubLlmServer(List.of("Patient ", "is ", "stable."), 0);
+        registry.add("llm.api.url", llmServer::completionsUrl);
+    }
+
+    @AfterAll
+    static void stopStub() {
+        llmServer.close();
+    }
+
+    @Test
+    void answersRepeatedQuestionsAboutUnchangedData() {
+        int before = llmServer.getRequestCount();
+        String first = ask("c-1", "Any active medications?", MEDICATIONS, true);
+        assertEquals(first, ask("c-1", "  any ACTIVE medications? ", MEDICATIONS, true));
+        assertEquals(before + 1, llmServer.getRequestCount());
+
+        // Changed data or another patient is a miss
+        ask("c-1", "Any active medications?", MEDICATIONS + "Metformin 500 mg - Active - 2024-02-01\n", true);
+        ask("c-2", "Any active medications?", MEDICATIONS, true);
+        assertEquals(before + 3, llmServer.getRequestCount());
+    }
+
+    @Test
+    void keepsAnswersForEachScopeOfTheSamePatient() {
+        int before = llmServer.getRequestCount();
+        ask("c-3", "Any active medications?", MEDICATIONS, true);
+        ask("c-3", "Any recent labs?", LABS, true);
+        ask("c-3", "Any active medications?", MEDICATIONS, true);
+        ask("c-3", "Any recent labs?", LABS, true);
+        assertEquals(before + 2, llmServer.getRequestCount());
+    }
+
+    @Test
+    void skipsTheCacheWhenBypassedOrDataIsMissing() {
+        int before = llmServer.getRequestCount();
+        ask("c-4", "Any recent labs?", LABS, false);
+        ask("c-4", "Any recent labs?", LABS, false);
+        assertEquals(before + 2, llmServer.getRequestCount());
+
+        String degraded = MEDICATIONS + "LABORATORY RESULTS: Unable to retrieve\n\n";
+        ask("c-4", "Any recent labs?", degraded, true);
+        ask("c-4", "Any recent labs?", degraded, true);
+        assertEquals(before + 4, llmServer.getRequestCount());
+    }
+
+    private String ask(String patientId, String query, String patientData, boolean useCache) {
+        return llmService.processQueryAsync(patientId, query, patientData, useCache).block();
+    }
+}
@@ -0,0 +1,102 @@
+package com.cvs.pocs.mcpservers.conditions.services;
+
+import com.cvs.pocs.mcpservers.conditions.controllers.MCPController;
+import com.cvs.pocs.mcpservers.conditions.support.StubFhirServer;
+import com.cvs.pocs.mcpservers.conditions.util.ObservationSeries;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(properties = "fhir.observations.series.enabled=true")
+class ObservationSeriesStoreTests {
+
+    private static final int ENTRIES = 40;
+
+    private static StubFhirServer fhirServer;
+
+    @Autowired
+    private FhirService fhirService;
+
+    @Autowired
+    private MCPController controller;
+
+    @DynamicPropertySource
+    static void stubProperties(DynamicPropertyRegistry registry) {
+        fhirServer = new StubFhirServer(ENTRIES, 0);
+        registry.add("fhir.server.url", fhirServer::baseUrl);
+    }
+
+    @AfterAll
+    static void stopStub() {
+        fhirServer.close();
+    }
+
+    @Test
+    void rendersShorterWindowsFromTheStoredSeries() {
+        // The stub's Observations are dated within 2024; the first window covers all of them
+        int wide = (int) ChronoUnit.MONTHS.between(LocalDate.parse("2024-01-01"), LocalDate.now()) + 1;
+        int narrow = (int) ChronoUnit.MONTHS.between(LocalDate.parse("2024-06-01"), LocalDate.now());
+        String cutoff = LocalDate.now().minusMonths(narrow).toString();
+
+        String all = fhirService.getRelevantPatientData("s-1", "labs from the last " + wide + " months");
+        int requests = fhirServer.getRequestCount();
+        String recent = fhirService.getRelevantPatientData("s-1", "labs from the last " + narrow + " months");
+        assertEquals(requests, fhirServer.getRequestCount());
+
+        String expected = all.replace("(LAST " + wide + " MONTHS)", "(LAST " + narrow + " MONTHS)").lines()
+            .filter(line -> !line.startsWith("Glucose: ") || line.substring(line.length() - 10).compareTo(cutoff) >= 0)
+            .collect(Collectors.joining("\n", "", "\n"));
+        assertNotEquals(all, recent);
+        assertEquals(expected, recent);
+
+        List<ObservationSeries.Trend> trends = fhirService.getObservationTrends("s-1", "laboratory", wide).block();
+        assertEquals(requests, fhirServer.getRequestCount());
+        assertEquals(1, trends.size());
+        assertEquals(ENTRIES, trends.get(0).count());
+        assertEquals("mg/dL", trends.get(0).unit());
+    }
+
+    @Test
+    void searchesWhenTheStoredSeriesDoesNotCoverTheWindow() {
+        int narrow = (int) ChronoUnit.MONTHS.between(LocalDate.parse("2024-06-01"), LocalDate.now());
+        fhirService.getRelevantPatientData("s-2", "labs from the last " + narrow + " months");
+        int requests = fhirServer.getRequestCount();
+
+        List<ObservationSeries.Trend> trends = fhirService.getObservationTrends("s-2", "laboratory", narrow + 12).block();
+        assertEquals(requests + 1, fhirServer.getRequestCount());
+        assertEquals(ENTRIES, trends.get(0).count());
+
+        fhirService.invalidatePatient(FhirTenantRegistry.DEFAULT_TENANT, "s-2");
+        assertEquals(List.of(), fhirService.getObservationTrends("s-2", "vital-signs", 1).block());
+    }
+
+    @Test
+    void answersEmptyTrendsWhenTheSearchFails() {
+        fhirServer.setFailureStatus(500);
+        try {
+            assertEquals(List.of(), fhirService.getObservationTrends("s-3", "laboratory", 12).block());
+        } finally {
+            fhirServer.setFailureStatus(0);
+        }
+    }
+
+    @Test
+    void rejectsUnknownCategoriesAndWindows() {
+        assertEquals(400, controller.observationTrends("s-4", "imaging", 12).block().getStatusCode().value());
+        assertEquals(400, controller.observationTrends("s-4", "laboratory", 0).block().getStatusCode().value());
+        assertEquals(400, controller.observationTrends("s-4", "laboratory", 1200).block().getStatusCode().value());
+        assertTrue(controller.observationTrends("s-4", "laboratory", 120).block().getStatusCode().is2xxSuccessful());
+    }
+}
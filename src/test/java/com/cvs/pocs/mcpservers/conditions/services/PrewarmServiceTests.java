@@ -0,0 +1,89 @@
+package com.cvs.pocs.mcpservers.conditions.services;
+
+import com.cvs.pocs.mcpservers.conditions.support.StubFhirServer;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest
+class PrewarmServiceTests {
+
+    private static final String CHAT_QUERY = "Any recent labs or new medications?";
+
+    private static StubFhirServer fhirServer;
+
+    @Autowired
+    private PrewarmService prewarmService;
+
+    @Autowired
+    private FhirService fhirService;
+
+    @DynamicPropertySource
+    static void stubProperties(DynamicPropertyRegistry registry) {
+        fhirServer = new StubFhirServer(2, 20);
+        registry.add("fhir.server.url", fhirServer::baseUrl);
+        registry.add("mcp.prewarm.enabled", () -> true);
+        registry.add("mcp.prewarm.interval", () -> "1h");
+        registry.add("mcp.prewarm.patient-ids", () -> "configured-1");
+    }
+
+    @AfterAll
+    static void stopStub() {
+        fhirServer.close();
+    }
+
+    @Test
+    void warmsConfiguredPatientsAndThoseWithUpcomingAppointmentsOnStartup() throws InterruptedException {
+        List<String> patients = List.of("configured-1", "appt-patient-0", "appt-patient-1");
+        awaitCached(patients);
+
+        prewarmService.recordChat("appt-patient-0", CHAT_QUERY);
+        fhirService.getRelevantPatientData("appt-patient-0", CHAT_QUERY);
+
+        Map<String, Object> stats = prewarmService.getStats();
+        assertTrue((Long) stats.get("prewarmedChats") >= 1, stats::toString);
+        assertEquals(1.0, stats.get("prewarmedWarmHitRatio"), stats::toString);
+    }
+
+    @Test
+    void warmsQueuedPatientsOnceAndCountsColdChats() throws InterruptedException {
+        assertEquals(2, prewarmService.prewarm(List.of("queued-1", "queued-2", "queued-1")));
+        awaitCached(List.of("queued-1", "queued-2"));
+
+        // Already cached: nothing is fetched again
+        int requests = fhirServer.getRequestCount();
+        prewarmService.prewarm(List.of("queued-1"));
+        awaitCondition(() -> (Long) prewarmService.getStats().get("alreadyCached") >= 1);
+        assertEquals(requests, fhirServer.getRequestCount());
+
+        assertFalse(fhirService.isCached("cold-1", CHAT_QUERY));
+        long chatsBefore = (Long) prewarmService.getStats().get("chats");
+        prewarmService.recordChat("cold-1", CHAT_QUERY);
+        assertEquals(chatsBefore + 1, prewarmService.getStats().get("chats"));
+    }
+
+    private void awaitCached(List<String> patientIds) throws InterruptedException {
+        awaitCondition(() -> patientIds.stream()
+            .allMatch(id -> fhirService.isCached(id, "labs, conditions, medications, allergies and vital signs")));
+    }
+
+    private static void awaitCondition(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "Timed out waiting for pre-warming");
+            Thread.sleep(20);
+        }
+    }
+}
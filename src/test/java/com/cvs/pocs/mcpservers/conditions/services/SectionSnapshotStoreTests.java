@@ -0,0 +1,156 @@
+package com.cvs.pocs.mcpservers.conditions.services;
+
+import com.cvs.pocs.mcpservers.conditions.services.FhirSectionCache.SectionKey;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.convert.ApplicationConversionService;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+import org.springframework.mock.env.MockEnvironment;
+import reactor.core.publisher.Mono;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class SectionSnapshotStoreTests {
+
+    private static final SectionKey CONDITIONS = new SectionKey("p1", "Condition", "");
+    private static final SectionKey LABS = new SectionKey("p1", "Observation", "category=laboratory");
+
+    private final EmbeddedDatabase database = new EmbeddedDatabaseBuilder()
+        .setType(EmbeddedDatabaseType.H2)
+        .generateUniqueName(true)
+        .addScript("schema.sql")
+        .build();
+    private final JdbcTemplate jdbcTemplate = new JdbcTemplate(database);
+    private final MockEnvironment environment = new MockEnvironment()
+        .withProperty("fhir.snapshot.max-age.Observation", "15m")
+        .withProperty("fhir.snapshot.max-age.Patient", "0s");
+    private final List<SectionSnapshotStore> stores = new ArrayList<>();
+
+    SectionSnapshotStoreTests() {
+        environment.setConversionService(new ApplicationConversionService());
+    }
+
+    @AfterEach
+    void stop() {
+        stores.forEach(SectionSnapshotStore::close);
+        database.shutdown();
+    }
+
+    @Test
+    void writesBehindTheRequestAndServesSnapshotsAfterARestart() {
+        SectionSnapshotStore store = store(Clock.systemUTC());
+        assertEquals("CONDITIONS:\nHypertension\n", store.get(CONDITIONS, Mono.just("CONDITIONS:\nHypertension\n")).block());
+        // Queued, not yet written, but already served
+        assertEquals(0, storedRows());
+        assertEquals("CONDITIONS:\nHypertension\n", store.get(CONDITIONS, failingLoader()).block());
+
+        store.flush();
+        assertEquals(1, storedRows());
+
+        SectionSnapshotStore restarted = store(Clock.systemUTC());
+        assertEquals("CONDITIONS:\nHypertension\n", restarted.get(CONDITIONS, failingLoader()).block());
+        assertEquals(Set.of(CONDITIONS), restarted.findFresh(List.of(CONDITIONS, LABS)).block());
+    }
+
+    @Test
+    void servesEachResourceTypeForItsMaxAgeOnly() {
+        SectionSnapshotStore store = store(Clock.systemUTC());
+        store.get(CONDITIONS, Mono.just("CONDITIONS:\n")).block();
+        store.get(LABS, Mono.just("LABORATORY RESULTS:\n")).block();
+        store.get(new SectionKey("p1", "Patient", ""), Mono.just("PATIENT DEMOGRAPHICS:\n")).block();
+        store.flush();
+        // Patient has a max age of 0 and is never stored
+        assertEquals(2, storedRows());
+
+        // Half an hour later the labs (15m) are past their max age, the conditions (default 1h) are not
+        SectionSnapshotStore later = store(Clock.offset(Clock.systemUTC(), Duration.ofMinutes(30)));
+        assertEquals("CONDITIONS:\n", later.get(CONDITIONS, failingLoader()).block());
+        assertEquals("LABORATORY RESULTS (refetched):\n",
+            later.get(LABS, Mono.just("LABORATORY RESULTS (refetched):\n")).block());
+
+        later.flush();
+        later.purgeExpired();
+        assertEquals(2, storedRows());
+        store(Clock.offset(Clock.systemUTC(), Duration.ofHours(2))).purgeExpired();
+        assertEquals(0, storedRows());
+    }
+
+    @Test
+    void invalidationDropsQueuedAndStoredSections() {
+        SectionSnapshotStore store = store(Clock.systemUTC());
+        store.get(CONDITIONS, Mono.just("CONDITIONS:\n")).block();
+        store.flush();
+        store.get(LABS, Mono.just("LABORATORY RESULTS:\n")).block();
+
+        store.invalidatePatient(FhirTenantRegistry.DEFAULT_TENANT, "p1");
+        store.flush();
+
+        assertEquals(0, storedRows());
+        assertEquals("CONDITIONS (refetched):\n", store.get(CONDITIONS, Mono.just("CONDITIONS (refetched):\n")).block());
+    }
+
+    @Test
+    void recreatesATableFromBeforeTenants() {
+        EmbeddedDatabase legacy = new EmbeddedDatabaseBuilder()
+            .setType(EmbeddedDatabaseType.H2)
+            .generateUniqueName(true)
+            .build();
+        try {
+            JdbcTemplate legacyJdbc = new JdbcTemplate(legacy);
+            legacyJdbc.execute("CREATE TABLE fhir_section_snapshot (patient_id VARCHAR(128) NOT NULL, "
+                + "resource_type VARCHAR(64) NOT NULL, params VARCHAR(512) NOT NULL, section_text TEXT NOT NULL, "
+                + "fetched_at TIMESTAMP NOT NULL, expires_at TIMESTAMP NOT NULL, "
+                + "PRIMARY KEY (patient_id, resource_type, params))");
+            legacyJdbc.update("INSERT INTO fhir_section_snapshot VALUES ('p1', 'Condition', '', 'CONDITIONS:\n', "
+                + "CURRENT_TIMESTAMP, DATEADD('HOUR', 1, CURRENT_TIMESTAMP))");
+            // As at startup: schema.sql leaves the existing table alone
+            new ResourceDatabasePopulator(new ClassPathResource("schema.sql")).execute(legacy);
+
+            SectionSnapshotStore store = store(Clock.systemUTC(), legacyJdbc);
+            store.get(CONDITIONS, Mono.just("CONDITIONS:\nHypertension\n")).block();
+            store.get(new SectionKey("acme", "p1", "Condition", ""), Mono.just("CONDITIONS:\nAsthma\n")).block();
+            store.flush();
+
+            assertEquals(2, legacyJdbc.queryForObject("SELECT COUNT(*) FROM fhir_section_snapshot", Integer.class));
+            assertEquals("CONDITIONS:\nHypertension\n", store(Clock.systemUTC(), legacyJdbc)
+                .get(CONDITIONS, failingLoader()).block());
+        } finally {
+            stores.forEach(SectionSnapshotStore::close);
+            stores.clear();
+            legacy.shutdown();
+        }
+    }
+
+    private SectionSnapshotStore store(Clock clock) {
+        return store(clock, jdbcTemplate);
+    }
+
+    private SectionSnapshotStore store(Clock clock, JdbcTemplate jdbcTemplate) {
+        // Flushed by the tests, not by the writer thread
+        SectionSnapshotStore store = new SectionSnapshotStore(true, 100, 1000, Duration.ofHours(1),
+            Duration.ofHours(1), Duration.ofHours(1), environment, jdbcTemplate,
+            new PipelineMetrics(new SimpleMeterRegistry()), clock);
+        stores.add(store);
+        return store;
+    }
+
+    private int storedRows() {
+        return jdbcTemplate.queryForObject("SELECT COUNT(*) FROM fhir_section_snapshot", Integer.class);
+    }
+
+    private static Mono<String> failingLoader() {
+        return Mono.error(new AssertionError("Should have been served from the snapshot store"));
+    }
+}
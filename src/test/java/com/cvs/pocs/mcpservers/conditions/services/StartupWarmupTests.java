@@ -0,0 +1,41 @@
+package com.cvs.pocs.mcpservers.conditions.services;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.web.reactive.function.client.WebClient;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+    properties = "mcp.startup.warmup.enabled=true")
+class StartupWarmupTests {
+
+    @Autowired
+    private StartupWarmup startupWarmup;
+
+    @LocalServerPort
+    private int port;
+
+    @Test
+    void reportsReadyOnceWarmedUp() throws InterruptedException {
+        long deadline = System.nanoTime() + Duration.ofSeconds(30).toNanos();
+        while (!startupWarmup.isDone()) {
+            assertTrue(System.nanoTime() < deadline, "warm-up never finished");
+            Thread.sleep(10);
+        }
+        assertEquals("done", startupWarmup.health().getDetails().get("warmup"));
+
+        String readiness = WebClient.create("http://127.0.0.1:" + port)
+            .get()
+            .uri("/actuator/health/readiness")
+            .retrieve()
+            .bodyToMono(String.class)
+            .block(Duration.ofSeconds(10));
+        assertTrue(readiness.contains("\"status\":\"UP\""), readiness);
+    }
+}
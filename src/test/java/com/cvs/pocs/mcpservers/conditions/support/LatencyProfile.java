@@ -0,0 +1,83 @@
+package com.cvs.pocs.mcpservers.conditions.support;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Response-time distribution for the stub servers. Written as
+ * {@code fixed:200}, {@code uniform:50-250} or {@code lognormal:80,600}
+ * (median and p99, in milliseconds); a log-normal gives the long tail real
+ * EHR and LLM APIs show.
+ */
+public abstract class LatencyProfile {
+
+    // z-score of the 99th percentile of a standard normal distribution
+    private static final double Z_99 = 2.3263478740408408;
+
+    public abstract long sampleMillis();
+
+    public static LatencyProfile fixed(long millis) {
+        return new LatencyProfile() {
+            @Override
+            public long sampleMillis() {
+                return millis;
+            }
+
+            @Override
+            public String toString() {
+                return "fixed:" + millis;
+            }
+        };
+    }
+
+    public static LatencyProfile uniform(long minMillis, long maxMillis) {
+        return new LatencyProfile() {
+            @Override
+            public long sampleMillis() {
+                return ThreadLocalRandom.current().nextLong(minMillis, maxMillis + 1);
+            }
+
+            @Override
+            public String toString() {
+                return "uniform:" + minMillis + "-" + maxMillis;
+            }
+        };
+    }
+
+    public static LatencyProfile logNormal(long medianMillis, long p99Millis) {
+        if (p99Millis < medianMillis) {
+            throw new IllegalArgumentException("p99 " + p99Millis + " is below the median " + medianMillis);
+        }
+        double mu = Math.log(medianMillis);
+        double sigma = (Math.log(p99Millis) - mu) / Z_99;
+        return new LatencyProfile() {
+            @Override
+            public long sampleMillis() {
+                return Math.round(Math.exp(mu + sigma * ThreadLocalRandom.current().nextGaussian()));
+            }
+
+            @Override
+            public String toString() {
+                return "lognormal:" + medianMillis + "," + p99Millis;
+            }
+        };
+    }
+
+    public static LatencyProfile parse(String spec) {
+        int colon = spec.indexOf(':');
+        if (colon < 0) {
+            return fixed(Long.parseLong(spec.trim()));
+        }
+        String kind = spec.substring(0, colon).trim();
+        String[] args = spec.substring(colon + 1).split("[-,]");
+        switch (kind) {
+            case "fixed":
+                return fixed(Long.parseLong(args[0].trim()));
+            case "uniform":
+                return uniform(Long.parseLong(args[0].trim()), Long.parseLong(args[1].trim()));
+            case "lognormal":
+                return logNormal(Long.parseLong(args[0].trim()), Long.parseLong(args[1].trim()));
+            default:
+                throw new IllegalArgumentException("Unknown latency profile: " + spec);
+        }
+    }
+}
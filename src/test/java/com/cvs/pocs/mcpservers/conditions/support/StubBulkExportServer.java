@@ -0,0 +1,141 @@
+package com.cvs.pocs.mcpservers.conditions.support;
+
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import org.reactivestreams.Publisher;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.server.HttpServer;
+import reactor.netty.http.server.HttpServerRequest;
+import reactor.netty.http.server.HttpServerResponse;
+import reactor.netty.resources.LoopResources;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Local stand-in for a FHIR server implementing the Bulk Data {@code $export}
+ * flow. The kick-off answers 202 with a status URL; the status URL answers 202
+ * for the first {@code pendingPolls} polls and then the manifest, which lists
+ * one NDJSON file per exported resource type. Files hold {@code patientCount}
+ * patients, each with {@code resourcesPerPatient} resources of every other
+ * type, streamed line by line. Downloads of a type can be made to fail, and
+ * requests to any other path are counted and answered with 404.
+ */
+public class StubBulkExportServer implements AutoCloseable {
+
+    public static final List<String> TYPES =
+        List.of("Patient", "Condition", "MedicationRequest", "AllergyIntolerance", "Observation");
+
+    private final LoopResources loops = LoopResources.create("stub-bulk", 1, true);
+    private final DisposableServer server;
+    private final int patientCount;
+    private final int resourcesPerPatient;
+    private final int pendingPolls;
+    private final AtomicInteger polls = new AtomicInteger();
+    private final AtomicInteger otherRequests = new AtomicInteger();
+    private final Map<String, AtomicInteger> downloads = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> failuresLeft = new ConcurrentHashMap<>();
+
+    public StubBulkExportServer(int patientCount, int resourcesPerPatient, int pendingPolls) {
+        this.patientCount = patientCount;
+        this.resourcesPerPatient = resourcesPerPatient;
+        this.pendingPolls = pendingPolls;
+        // Own event loops: the app under test disposes the shared ones when its context closes
+        this.server = HttpServer.create()
+            .runOn(loops)
+            .host("127.0.0.1")
+            .port(0)
+            .route(routes -> routes
+                .route(request -> request.uri().startsWith("/$export"), this::kickOff)
+                .get("/status/1", this::status)
+                .get("/files/{type}", this::file)
+                .route(request -> true, (request, response) -> {
+                    otherRequests.incrementAndGet();
+                    return response.status(HttpResponseStatus.NOT_FOUND).send();
+                }))
+            .bindNow();
+    }
+
+    public String baseUrl() {
+        return "http://127.0.0.1:" + server.port();
+    }
+
+    /**
+     * Makes the next {@code times} downloads of the type's file fail with 500.
+     */
+    public void failDownloads(String type, int times) {
+        failuresLeft.put(type, new AtomicInteger(times));
+    }
+
+    public int getDownloadCount(String type) {
+        return downloads.getOrDefault(type, new AtomicInteger()).get();
+    }
+
+    /**
+     * Requests other than the {@code $export} flow, e.g. per-patient searches.
+     */
+    public int getOtherRequestCount() {
+        return otherRequests.get();
+    }
+
+    private Publisher<Void> kickOff(HttpServerRequest request, HttpServerResponse response) {
+        polls.set(0);
+        return response.status(HttpResponseStatus.ACCEPTED)
+            .header(HttpHeaderNames.CONTENT_LOCATION, baseUrl() + "/status/1")
+            .send();
+    }
+
+    private Publisher<Void> status(HttpServerRequest request, HttpServerResponse response) {
+        if (polls.getAndIncrement() < pendingPolls) {
+            return response.status(HttpResponseStatus.ACCEPTED)
+                .header(HttpHeaderNames.RETRY_AFTER, "0")
+                .header("X-Progress", "in progress")
+                .send();
+        }
+        String output = TYPES.stream()
+            .map(type -> "{\"type\":\"" + type + "\",\"url\":\"" + baseUrl() + "/files/" + type + ".ndjson\"}")
+            .collect(Collectors.joining(","));
+        return response
+            .header(HttpHeaderNames.CONTENT_TYPE, "application/json")
+            .sendString(Mono.just("{\"transactionTime\":\"2024-06-01T00:00:00Z\",\"request\":\"" + baseUrl()
+                + "/$export\",\"requiresAccessToken\":false,\"output\":[" + output + "],\"error\":[]}"));
+    }
+
+    private Publisher<Void> file(HttpServerRequest request, HttpServerResponse response) {
+        String type = request.param("type").replace(".ndjson", "");
+        downloads.computeIfAbsent(type, t -> new AtomicInteger()).incrementAndGet();
+        AtomicInteger failures = failuresLeft.get(type);
+        if (failures != null && failures.getAndDecrement() > 0) {
+            return response.status(HttpResponseStatus.INTERNAL_SERVER_ERROR).send();
+        }
+        return response
+            .header(HttpHeaderNames.CONTENT_TYPE, "application/fhir+ndjson")
+            .sendString(lines(type));
+    }
+
+    private Flux<String> lines(String type) {
+        if ("Patient".equals(type)) {
+            return Flux.range(0, patientCount).map(p -> StubFhirServer.patient("p" + p) + "\n");
+        }
+        String referenceField = "AllergyIntolerance".equals(type) ? "patient" : "subject";
+        return Flux.range(0, patientCount * resourcesPerPatient).map(i -> {
+            String resource = StubFhirServer.resource(type, i);
+            String extra = "\"" + referenceField + "\":{\"reference\":\"Patient/p" + (i / resourcesPerPatient) + "\"},";
+            if ("Observation".equals(type)) {
+                extra += "\"category\":[{\"coding\":[{\"code\":\"laboratory\"}]}],";
+            }
+            return "{" + extra + resource.substring(1) + "\n";
+        });
+    }
+
+    @Override
+    public void close() {
+        server.disposeNow();
+        loops.dispose();
+    }
+}
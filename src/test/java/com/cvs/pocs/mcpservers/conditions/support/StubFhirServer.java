@@ -0,0 +1,326 @@
+package com.cvs.pocs.mcpservers.conditions.support;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import org.reactivestreams.Publisher;
+import reactor.core.publisher.Mono;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.server.HttpServer;
+import reactor.netty.http.server.HttpServerRequest;
+import reactor.netty.http.server.HttpServerResponse;
+import reactor.netty.resources.LoopResources;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Local stand-in for a FHIR R4 server. {@code /Patient/{id}} returns a small
+ * Patient, and every search returns a searchset Bundle of {@code entryCount}
+ * resources of the searched type; appointment {@code i} is for patient
+ * {@code appt-patient-i}. A {@code batch} Bundle POSTed to the base URL
+ * is answered with a batch-response holding the same results, or with 405 once
+ * {@link #setBatchSupported} has been turned off. Each response is delayed by
+ * {@code latencyMillis} to model the round trip to a remote EHR; the delay is
+ * a timer, not a sleeping thread, so the stub itself never limits concurrency.
+ * Faults can be injected with {@link #setFailureStatus} and {@link #delayNext},
+ * or for one resource type with {@link #setResourceLatency} and {@link #setResourceFailure};
+ * for load tests, {@link #setLatency} and {@link #setErrorRate} model a
+ * latency distribution and random errors.
+ * Patients carry an ETag and answer a matching {@code If-None-Match} with 304;
+ * searches with {@code _lastUpdated} return {@link #setUpdatedEntries} new resources.
+ */
+public class StubFhirServer implements AutoCloseable {
+
+    private static final String PATIENT_ETAG = "W/\"1\"";
+
+    private final LoopResources loops = LoopResources.create("stub-fhir", 1, true);
+    private final DisposableServer server;
+    private final int entryCount;
+    private final long latencyMillis;
+    private final AtomicInteger requestCount = new AtomicInteger();
+    private final AtomicInteger batchCount = new AtomicInteger();
+    private final AtomicInteger gzipRequestCount = new AtomicInteger();
+    private final Queue<String> requestUris = new ConcurrentLinkedQueue<>();
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private volatile boolean batchSupported = true;
+    private volatile int failureStatus;
+    private final AtomicInteger slowRequests = new AtomicInteger();
+    private volatile long slowMillis;
+    private volatile int updatedEntries;
+    private volatile LatencyProfile latency;
+    private volatile double errorRate;
+    private volatile int errorStatus;
+    private volatile String lastAuthorization;
+    private volatile String nextLink;
+    private final Map<String, Long> resourceLatency = new ConcurrentHashMap<>();
+    private final Map<String, Integer> resourceFailures = new ConcurrentHashMap<>();
+
+    public StubFhirServer(int entryCount, long latencyMillis) {
+        this.entryCount = entryCount;
+        this.latencyMillis = latencyMillis;
+        this.latency = LatencyProfile.fixed(latencyMillis);
+        // Own event loops: the app under test disposes the shared ones when its context closes
+        this.server = HttpServer.create()
+            .runOn(loops)
+            .host("127.0.0.1")
+            .port(0)
+            // gzip responses for clients that accept them, like a production FHIR server
+            .compress(true)
+            .route(routes -> routes
+                .post("/", this::handleBatch)
+                .get("/**", this::handle))
+            .bindNow();
+    }
+
+    public String baseUrl() {
+        return "http://127.0.0.1:" + server.port();
+    }
+
+    public int getRequestCount() {
+        return requestCount.get();
+    }
+
+    public int getBatchCount() {
+        return batchCount.get();
+    }
+
+    /**
+     * Path and query of every request received so far, in arrival order.
+     */
+    public List<String> getRequestUris() {
+        return List.copyOf(requestUris);
+    }
+
+    /**
+     * The {@code Authorization} header of the latest request, if it had one.
+     */
+    public String getLastAuthorization() {
+        return lastAuthorization;
+    }
+
+    /**
+     * Requests sent with {@code Accept-Encoding: gzip}.
+     */
+    public int getGzipRequestCount() {
+        return gzipRequestCount.get();
+    }
+
+    public void setBatchSupported(boolean batchSupported) {
+        this.batchSupported = batchSupported;
+    }
+
+    /**
+     * Answers every request with {@code status} and no body until reset with 0,
+     * modelling an overloaded or failing server.
+     */
+    public void setFailureStatus(int status) {
+        this.failureStatus = status;
+    }
+
+    /**
+     * Delays the next {@code requests} GETs by another {@code millis}, e.g. to
+     * produce a tail-latency outlier.
+     */
+    public void delayNext(int requests, long millis) {
+        this.slowMillis = millis;
+        this.slowRequests.set(requests);
+    }
+
+    /**
+     * Draws each response's delay from {@code latency} instead of the fixed
+     * {@code latencyMillis}.
+     */
+    public void setLatency(LatencyProfile latency) {
+        this.latency = latency;
+    }
+
+    /**
+     * Answers a random {@code rate} share of requests with {@code status}.
+     */
+    public void setErrorRate(double rate, int status) {
+        this.errorRate = rate;
+        this.errorStatus = status;
+    }
+
+    /**
+     * Number of resources a search narrowed with {@code _lastUpdated} returns,
+     * 0 by default; they come after the {@code entryCount} regular ones.
+     */
+    public void setUpdatedEntries(int updatedEntries) {
+        this.updatedEntries = updatedEntries;
+    }
+
+    /**
+     * The {@code next} link of every search's first page, or null (the default)
+     * for single-page searches; a request with {@code page=2} gets the last page.
+     */
+    public void setNextLink(String nextLink) {
+        this.nextLink = nextLink;
+    }
+
+    /**
+     * Adds {@code millis} to every GET of {@code resourceType}; 0 removes it.
+     */
+    public void setResourceLatency(String resourceType, long millis) {
+        resourceLatency.put(resourceType, millis);
+    }
+
+    /**
+     * Answers every GET of {@code resourceType} with {@code status}; 0 resets it.
+     */
+    public void setResourceFailure(String resourceType, int status) {
+        resourceFailures.put(resourceType, status);
+    }
+
+    private Publisher<Void> handle(HttpServerRequest request, HttpServerResponse response) {
+        countRequest(request);
+        String resourceType = request.path().split("/", 2)[0];
+        int resourceFailure = resourceFailures.getOrDefault(resourceType, 0);
+        if (failureStatus != 0 || resourceFailure != 0) {
+            return response.status(failureStatus != 0 ? failureStatus : resourceFailure).send();
+        }
+        if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+            return response.status(errorStatus).send();
+        }
+        long delay = latency.sampleMillis() + (slowRequests.getAndUpdate(n -> Math.max(0, n - 1)) > 0 ? slowMillis : 0)
+            + resourceLatency.getOrDefault(resourceType, 0L);
+        if (request.path().startsWith("Patient/")) {
+            // Patients never change: version 1, as the server's ETag
+            response.header(HttpHeaderNames.ETAG, PATIENT_ETAG);
+            if (PATIENT_ETAG.equals(request.requestHeaders().get(HttpHeaderNames.IF_NONE_MATCH))) {
+                return response.status(HttpResponseStatus.NOT_MODIFIED)
+                    .sendString(Mono.<String>empty().delaySubscription(Duration.ofMillis(delay)));
+            }
+        }
+        String body = request.uri().contains("_lastUpdated=")
+            ? searchset(request.path(), entryCount, updatedEntries)
+            : read(request.fullPath());
+        String next = nextLink;
+        if (next != null && body.contains("\"searchset\"") && !request.uri().contains("page=2")) {
+            int entries = body.indexOf(",\"entry\":[");
+            body = body.substring(0, entries) + ",\"link\":[{\"relation\":\"next\",\"url\":\"" + next + "\"}]"
+                + body.substring(entries);
+        }
+        return response
+            .header(HttpHeaderNames.CONTENT_TYPE, "application/fhir+json")
+            .sendString(Mono.just(body).delayElement(Duration.ofMillis(delay)));
+    }
+
+    private Publisher<Void> handleBatch(HttpServerRequest request, HttpServerResponse response) {
+        countRequest(request);
+        batchCount.incrementAndGet();
+        if (!batchSupported) {
+            return response.status(HttpResponseStatus.METHOD_NOT_ALLOWED).send();
+        }
+        if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+            return request.receive().then(response.status(errorStatus).send());
+        }
+        Mono<String> body = request.receive().aggregate().asString().map(json -> {
+            StringBuilder sb = new StringBuilder("{\"resourceType\":\"Bundle\",\"type\":\"batch-response\",\"entry\":[");
+            try {
+                JsonNode entries = objectMapper.readTree(json).path("entry");
+                for (int i = 0; i < entries.size(); i++) {
+                    String url = entries.get(i).path("request").path("url").asText();
+                    if (i > 0) {
+                        sb.append(',');
+                    }
+                    sb.append("{\"resource\":").append(read("/" + url))
+                        .append(",\"response\":{\"status\":\"200 OK\"}}");
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return sb.append("]}").toString();
+        });
+        return response
+            .header(HttpHeaderNames.CONTENT_TYPE, "application/fhir+json")
+            .sendString(body.delayElement(Duration.ofMillis(latency.sampleMillis())));
+    }
+
+    private void countRequest(HttpServerRequest request) {
+        requestCount.incrementAndGet();
+        requestUris.add(request.uri());
+        lastAuthorization = request.requestHeaders().get(HttpHeaderNames.AUTHORIZATION);
+        String acceptEncoding = request.requestHeaders().get(HttpHeaderNames.ACCEPT_ENCODING);
+        if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            gzipRequestCount.incrementAndGet();
+        }
+    }
+
+    private String read(String path) {
+        int query = path.indexOf('?');
+        String resourcePath = query < 0 ? path : path.substring(0, query);
+        return resourcePath.startsWith("/Patient/")
+            ? patient(resourcePath.substring("/Patient/".length()))
+            : searchset(resourcePath.substring(1));
+    }
+
+    public static String patient(String id) {
+        return "{\"resourceType\":\"Patient\",\"id\":\"" + id + "\","
+            + "\"identifier\":[{\"value\":\"MRN-" + id + "\"}],"
+            + "\"name\":[{\"family\":\"Doe\",\"given\":[\"Jane\"]}],"
+            + "\"gender\":\"female\",\"birthDate\":\"1961-04-12\"}";
+    }
+
+    public String searchset(String resourceType) {
+        return searchset(resourceType, 0, entryCount);
+    }
+
+    private static String searchset(String resourceType, int first, int count) {
+        StringBuilder sb = new StringBuilder("{\"resourceType\":\"Bundle\",\"type\":\"searchset\",\"total\":")
+            .append(count).append(",\"entry\":[");
+        for (int i = first; i < first + count; i++) {
+            if (i > first) {
+                sb.append(',');
+            }
+            sb.append("{\"resource\":").append(resource(resourceType, i)).append('}');
+        }
+        return sb.append("]}").toString();
+    }
+
+    public static String resource(String resourceType, int i) {
+        switch (resourceType) {
+            case "Observation":
+                return "{\"resourceType\":\"Observation\",\"id\":\"obs-" + i + "\",\"status\":\"final\","
+                    + "\"code\":{\"coding\":[{\"system\":\"http://loinc.org\",\"code\":\"2345-7\",\"display\":\"Glucose\"}],\"text\":\"Glucose\"},"
+                    + "\"effectiveDateTime\":\"2024-0" + (1 + i % 9) + "-1" + (i % 10) + "T08:30:00Z\","
+                    + "\"valueQuantity\":{\"value\":" + (80 + i % 60) + "." + (i % 10) + ",\"unit\":\"mg/dL\"},"
+                    + "\"interpretation\":[{\"text\":\"" + (i % 5 == 0 ? "High" : "Normal") + "\"}],"
+                    + "\"referenceRange\":[{\"low\":{\"value\":70},\"high\":{\"value\":99}}]}";
+            case "Condition":
+                return "{\"resourceType\":\"Condition\",\"id\":\"cond-" + i + "\","
+                    + "\"verificationStatus\":{\"coding\":[{\"code\":\"confirmed\",\"display\":\"Confirmed\"}]},"
+                    + "\"code\":{\"text\":\"Essential hypertension " + i + "\"},\"onsetDateTime\":\"2019-03-0" + (1 + i % 9) + "\"}";
+            case "MedicationRequest":
+                return "{\"resourceType\":\"MedicationRequest\",\"id\":\"med-" + i + "\",\"status\":\"active\",\"intent\":\"order\","
+                    + "\"medicationCodeableConcept\":{\"text\":\"Lisinopril 10 MG Oral Tablet " + i + "\"},"
+                    + "\"dosageInstruction\":[{\"text\":\"Take 1 tablet by mouth daily\"}]}";
+            case "AllergyIntolerance":
+                return "{\"resourceType\":\"AllergyIntolerance\",\"id\":\"alg-" + i + "\","
+                    + "\"code\":{\"text\":\"Penicillin " + i + "\"},"
+                    + "\"reaction\":[{\"manifestation\":[{\"text\":\"Hives\"}]}]}";
+            case "Appointment":
+                return "{\"resourceType\":\"Appointment\",\"id\":\"appt-" + i + "\",\"status\":\"booked\","
+                    + "\"participant\":[{\"actor\":{\"reference\":\"Patient/appt-patient-" + i + "\"},\"status\":\"accepted\"},"
+                    + "{\"actor\":{\"reference\":\"Practitioner/dr-1\"},\"status\":\"accepted\"}]}";
+            default:
+                return "{\"resourceType\":\"Basic\",\"id\":\"basic-" + i + "\"}";
+        }
+    }
+
+    @Override
+    public void close() {
+        server.disposeNow();
+        loops.dispose();
+    }
+}
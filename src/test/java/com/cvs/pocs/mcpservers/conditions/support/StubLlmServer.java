@@ -0,0 +1,133 @@
+package com.cvs.pocs.mcpservers.conditions.support;
+
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import org.reactivestreams.Publisher;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.server.HttpServer;
+import reactor.netty.http.server.HttpServerRequest;
+import reactor.netty.http.server.HttpServerResponse;
+import reactor.netty.resources.LoopResources;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Local stand-in for an OpenAI-style chat completions API. Streaming requests
+ * ({@code "stream": true}) get one SSE chunk per token, with a fixed delay
+ * between chunks, followed by {@code data: [DONE]}; other requests get the
+ * whole completion in a single JSON response after an optional delay, or one
+ * drawn from {@link #setResponseLatency}. Every other path returns 404.
+ */
+public class StubLlmServer implements AutoCloseable {
+
+    public static final String COMPLETIONS_PATH = "/v1/chat/completions";
+
+    private final LoopResources loops = LoopResources.create("stub-llm", 1, true);
+    private final DisposableServer server;
+    private final List<String> tokens;
+    private final long tokenDelayMillis;
+    private final long responseDelayMillis;
+    private final AtomicInteger requestCount = new AtomicInteger();
+    private volatile int failureStatus;
+    private volatile LatencyProfile responseLatency;
+    private volatile double errorRate;
+    private volatile int errorStatus;
+
+    public StubLlmServer(List<String> tokens, long tokenDelayMillis) {
+        this(tokens, tokenDelayMillis, 0);
+    }
+
+    /**
+     * @param responseDelayMillis delay before a non-streaming completion is sent,
+     *                            modelling the full generation time
+     */
+    public StubLlmServer(List<String> tokens, long tokenDelayMillis, long responseDelayMillis) {
+        this.tokens = tokens;
+        this.tokenDelayMillis = tokenDelayMillis;
+        this.responseDelayMillis = responseDelayMillis;
+        this.responseLatency = LatencyProfile.fixed(responseDelayMillis);
+        // Own event loops: the app under test disposes the shared ones when its context closes
+        this.server = HttpServer.create()
+            .runOn(loops)
+            .host("127.0.0.1")
+            .port(0)
+            .route(routes -> routes
+                .post(COMPLETIONS_PATH, this::handleCompletion)
+                .route(request -> true, (request, response) -> response.status(HttpResponseStatus.NOT_FOUND).send()))
+            .bindNow();
+    }
+
+    public String baseUrl() {
+        return "http://127.0.0.1:" + server.port();
+    }
+
+    public String completionsUrl() {
+        return baseUrl() + COMPLETIONS_PATH;
+    }
+
+    public int getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * Answers every completion request with {@code status} until reset with 0,
+     * modelling an API outage.
+     */
+    public void setFailureStatus(int status) {
+        this.failureStatus = status;
+    }
+
+    /**
+     * Draws each non-streaming completion's delay from {@code latency}.
+     */
+    public void setResponseLatency(LatencyProfile latency) {
+        this.responseLatency = latency;
+    }
+
+    /**
+     * Answers a random {@code rate} share of completion requests with {@code status}.
+     */
+    public void setErrorRate(double rate, int status) {
+        this.errorRate = rate;
+        this.errorStatus = status;
+    }
+
+    private Publisher<Void> handleCompletion(HttpServerRequest request, HttpServerResponse response) {
+        requestCount.incrementAndGet();
+        if (failureStatus != 0) {
+            return request.receive().then(response.status(failureStatus).send());
+        }
+        if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+            return request.receive().then(response.status(errorStatus).send());
+        }
+        return request.receive().aggregate().asString().defaultIfEmpty("").flatMap(body -> {
+            if (body.contains("\"stream\":true")) {
+                Flux<String> chunks = Flux.fromIterable(tokens)
+                    .delayElements(Duration.ofMillis(tokenDelayMillis))
+                    .map(token -> "data: {\"choices\":[{\"index\":0,\"delta\":{\"content\":\"" + token + "\"}}]}\n\n")
+                    .concatWith(Mono.just("data: [DONE]\n\n"));
+                return response
+                    .header(HttpHeaderNames.CONTENT_TYPE, "text/event-stream")
+                    .sendString(chunks)
+                    .then();
+            }
+            String completion = "{\"choices\":[{\"index\":0,\"message\":{\"role\":\"assistant\",\"content\":\""
+                + String.join("", tokens) + "\"}}]}";
+            return response
+                .header(HttpHeaderNames.CONTENT_TYPE, "application/json")
+                .sendString(Mono.just(completion).delayElement(Duration.ofMillis(responseLatency.sampleMillis())))
+                .then();
+        });
+    }
+
+    @Override
+    public void close() {
+        server.disposeNow();
+        loops.dispose();
+    }
+}
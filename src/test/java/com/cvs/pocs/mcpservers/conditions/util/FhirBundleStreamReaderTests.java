@@ -0,0 +1,133 @@
+package com.cvs.pocs.mcpservers.conditions.util;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import reactor.core.publisher.Flux;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FhirBundleStreamReaderTests {
+
+    private static final String PATIENT = "{\"resourceType\":\"Patient\",\"id\":\"p1\","
+        + "\"name\":[{\"text\":\"Zoë Müller-Café ✓\"}],\"extension\":[{\"url\":\"x\",\"valueString\":\"\\\"q\\\"\"}]}";
+    private static final String CONDITION = "{\"resourceType\":\"Condition\",\"id\":\"c1\","
+        + "\"code\":{\"coding\":[{\"code\":\"I10\"}],\"text\":\"Hypertension\"},\"note\":[]}";
+    private static final String NEXT = "https://fhir.example.com/Condition?page=2&_count=2";
+
+    // link[] before entry[]; each entry has objects around the resource that must not be captured
+    private static final String LINKS_FIRST = """
+        {
+          "resourceType": "Bundle",
+          "type": "searchset",
+          "meta": {"lastUpdated": "2024-01-01T00:00:00Z"},
+          "link": [
+            {"relation": "self", "url": "https://fhir.example.com/Condition"},
+            {"relation": "next", "url": "%s"}
+          ],
+          "entry": [
+            {
+              "fullUrl": "https://fhir.example.com/Patient/p1",
+              "search": {"mode": "match", "score": 1},
+              "resource": %s,
+              "request": {"method": "GET", "url": "Patient/p1"}
+            },
+            {
+              "resource": %s,
+              "search": {"mode": "include"},
+              "response": {"status": "200", "outcome": {"resourceType": "OperationOutcome"}}
+            }
+          ]
+        }
+        """.formatted(NEXT, PATIENT, CONDITION);
+
+    private static final String LINKS_LAST = """
+        {"resourceType":"Bundle","entry":[{"resource":%s},{"resource":%s}],
+         "link":[{"url":"%s","relation":"next"},{"relation":"previous","url":"https://fhir.example.com/prev"}],
+         "total":2}
+        """.formatted(CONDITION, PATIENT, NEXT);
+
+    @Test
+    void emitsEntryResourcesWhereverTheBodyIsSplit() {
+        assertEverySplit(LINKS_FIRST, List.of(PATIENT, CONDITION), List.of(NEXT));
+    }
+
+    @Test
+    void picksUpTheNextLinkAfterTheEntries() {
+        assertEverySplit(LINKS_LAST, List.of(CONDITION, PATIENT), List.of(NEXT));
+    }
+
+    @Test
+    void emitsNothingForAnOperationOutcome() {
+        String outcome = """
+            {"resourceType":"OperationOutcome","issue":[{"severity":"error","code":"not-found",
+             "details":{"text":"Résource introuvable"},"diagnostics":"entry","resource":{"id":"x"}}],
+             "link":{"relation":"next","url":"https://fhir.example.com/not-a-link"}}
+            """;
+        assertEverySplit(outcome, List.of(), List.of());
+    }
+
+    @Test
+    void readsByteByByte() {
+        byte[] bytes = LINKS_FIRST.getBytes(StandardCharsets.UTF_8);
+        List<String> nextLinks = new ArrayList<>();
+        FhirBundleStreamReader.EntryTokenizer tokenizer = new FhirBundleStreamReader.EntryTokenizer(nextLinks::add);
+        List<String> resources = new ArrayList<>();
+        for (int i = 0; i < bytes.length; i++) {
+            resources.addAll(tokenizer.feed(buffer(Arrays.copyOfRange(bytes, i, i + 1))));
+        }
+        resources.addAll(tokenizer.endOfInput());
+
+        assertEquals(List.of(PATIENT, CONDITION), resources);
+        assertEquals(List.of(NEXT), nextLinks);
+    }
+
+    @Test
+    void parsesTheResourcesOfAStreamedBody() {
+        byte[] bytes = LINKS_FIRST.getBytes(StandardCharsets.UTF_8);
+        int middle = LINKS_FIRST.indexOf("Café");
+        List<String> nextLinks = new ArrayList<>();
+
+        List<IBaseResource> resources = FhirBundleStreamReader.readResources(
+                Flux.just(buffer(Arrays.copyOfRange(bytes, 0, middle)),
+                    buffer(Arrays.copyOfRange(bytes, middle, bytes.length))),
+                nextLinks::add)
+            .collectList()
+            .block();
+
+        assertEquals(2, resources.size());
+        Patient patient = (Patient) resources.get(0);
+        assertEquals("Zoë Müller-Café ✓", patient.getNameFirstRep().getText());
+        assertEquals("Hypertension", ((Condition) resources.get(1)).getCode().getText());
+        assertEquals(List.of(NEXT), nextLinks);
+    }
+
+    // Feeds the body as two buffers split at every byte offset, including inside tokens and UTF-8 sequences
+    private static void assertEverySplit(String json, List<String> expectedResources, List<String> expectedNextLinks) {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        assertTrue(bytes.length > json.length(), "body has multibyte characters");
+        for (int split = 0; split <= bytes.length; split++) {
+            List<String> nextLinks = new ArrayList<>();
+            FhirBundleStreamReader.EntryTokenizer tokenizer = new FhirBundleStreamReader.EntryTokenizer(nextLinks::add);
+            List<String> resources = new ArrayList<>(tokenizer.feed(buffer(Arrays.copyOfRange(bytes, 0, split))));
+            resources.addAll(tokenizer.feed(buffer(Arrays.copyOfRange(bytes, split, bytes.length))));
+            resources.addAll(tokenizer.endOfInput());
+
+            assertEquals(expectedResources, resources, "split at byte " + split);
+            assertEquals(expectedNextLinks, nextLinks, "split at byte " + split);
+        }
+    }
+
+    private static DataBuffer buffer(byte[] bytes) {
+        return DefaultDataBufferFactory.sharedInstance.wrap(bytes);
+    }
+}
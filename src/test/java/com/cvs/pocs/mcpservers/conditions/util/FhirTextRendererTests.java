@@ -0,0 +1,104 @@
+package com.cvs.pocs.mcpservers.conditions.util;
+
+import com.cvs.pocs.mcpservers.conditions.support.StubFhirServer;
+import org.hl7.fhir.r4.model.AllergyIntolerance;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.MedicationRequest;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.StringType;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class FhirTextRendererTests {
+
+    @Test
+    void rendersTheSameTextAsTheLegacyFormatters() {
+        for (int i = 0; i < 200; i++) {
+            Observation observation = FhirParserUtil.parseObservation(StubFhirServer.resource("Observation", i));
+            assertEquals(LegacyFhirFormatter.formatObservation(observation), FhirParserUtil.formatObservation(observation));
+            Condition condition = FhirParserUtil.parseCondition(StubFhirServer.resource("Condition", i));
+            assertEquals(LegacyFhirFormatter.formatCondition(condition), FhirParserUtil.formatCondition(condition));
+            MedicationRequest medication = FhirParserUtil.parseMedicationRequest(StubFhirServer.resource("MedicationRequest", i));
+            assertEquals(LegacyFhirFormatter.formatMedication(medication), FhirParserUtil.formatMedication(medication));
+            AllergyIntolerance allergy = FhirParserUtil.parseAllergyIntolerance(StubFhirServer.resource("AllergyIntolerance", i));
+            assertEquals(LegacyFhirFormatter.formatAllergy(allergy), FhirParserUtil.formatAllergy(allergy));
+        }
+        Patient patient = FhirParserUtil.parsePatient(StubFhirServer.patient("p1"));
+        assertEquals(LegacyFhirFormatter.formatPatient(patient), FhirParserUtil.formatPatient(patient));
+    }
+
+    @Test
+    void rendersSparseAndUnusualObservationsLikeTheLegacyFormatter() {
+        List<Observation> observations = new ArrayList<>();
+        observations.add(new Observation());
+        observations.add(new Observation().setCode(new CodeableConcept().addCoding(
+            new org.hl7.fhir.r4.model.Coding("http://loinc.org", "8867-4", "Heart rate"))));
+        observations.add(new Observation().setValue(new StringType("positive")));
+        observations.add(new Observation().setValue(new CodeableConcept().setText("Detected")));
+        observations.add(new Observation().setValue(new Quantity().setValue(new BigDecimal("-0.004"))));
+        observations.add(new Observation()
+            .setValue(new Quantity().setValue(new BigDecimal("2.675")).setUnit("mmol/L"))
+            .setEffective(new DateTimeType("2023-12-31T23:30:00-05:00")));
+        for (Observation observation : observations) {
+            assertEquals(LegacyFhirFormatter.formatObservation(observation), FhirParserUtil.formatObservation(observation));
+        }
+    }
+
+    @Test
+    void roundsToTwoDecimalsLikeStringFormat() {
+        String[] edgeCases = {"0", "0.005", "0.015", "0.125", "1.005", "2.675", "-0.001", "-0.005", "-1.995",
+            "99.995", "1E+3", "123456789012.345", "1234567890123.45", "12345678901234.56", "0.0000001"};
+        for (String edgeCase : edgeCases) {
+            assertFixed2(new BigDecimal(edgeCase));
+        }
+        Random random = new Random(42);
+        for (int i = 0; i < 100_000; i++) {
+            long unscaled = random.nextLong() % (long) Math.pow(10, 1 + random.nextInt(15));
+            assertFixed2(BigDecimal.valueOf(unscaled, random.nextInt(9) - 2));
+        }
+    }
+
+    @Test
+    void rendersDatesCorrectlyFromConcurrentThreads() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (int thread = 0; thread < 8; thread++) {
+                int month = thread + 1;
+                results.add(executor.submit(() -> {
+                    Condition condition = new Condition()
+                        .setCode(new CodeableConcept().setText("Asthma"))
+                        .setOnset(new DateTimeType("2020-0" + month + "-1" + month));
+                    for (int i = 0; i < 5_000; i++) {
+                        assertEquals("Asthma - Onset: 2020-0" + month + "-1" + month + "\n",
+                            FhirParserUtil.formatCondition(condition));
+                    }
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static void assertFixed2(BigDecimal value) {
+        StringBuilder sb = new StringBuilder();
+        FhirTextRenderer.appendFixed2(sb, value);
+        assertEquals(String.format("%.2f", value.doubleValue()), sb.toString(), value::toPlainString);
+    }
+}
@@ -0,0 +1,68 @@
+package com.cvs.pocs.mcpservers.conditions.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class NdjsonReaderTests {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void readsLinesAcrossBufferBoundaries() throws Exception {
+        String longLine = "{\"text\":\"" + "x".repeat(100) + "\"}";
+        Path file = write("{\"a\":1}\n\n" + longLine + "\r\n{\"b\":\"é\"}");
+
+        try (NdjsonReader reader = new NdjsonReader(file, 0, 8, 1024)) {
+            assertEquals(List.of("{\"a\":1}", longLine, "{\"b\":\"é\"}"), readAll(reader));
+            assertEquals(Files.size(file), reader.position());
+        }
+    }
+
+    @Test
+    void resumesFromTheOffsetAfterAnyLine() throws Exception {
+        Path file = write("{\"n\":1}\n{\"n\":2}\n{\"n\":3}\n");
+
+        long checkpoint;
+        try (NdjsonReader reader = new NdjsonReader(file, 0, 4, 1024)) {
+            assertEquals("{\"n\":1}", reader.nextLine());
+            checkpoint = reader.position();
+        }
+        try (NdjsonReader reader = new NdjsonReader(file, checkpoint, 4, 1024)) {
+            assertEquals(List.of("{\"n\":2}", "{\"n\":3}"), readAll(reader));
+        }
+    }
+
+    @Test
+    void rejectsLinesLongerThanTheLimit() throws Exception {
+        Path file = write("{\"text\":\"" + "x".repeat(100) + "\"}\n");
+
+        try (NdjsonReader reader = new NdjsonReader(file, 0, 16, 64)) {
+            assertThrows(IllegalStateException.class, reader::nextLine);
+        }
+    }
+
+    private Path write(String content) throws Exception {
+        return Files.write(tempDir.resolve("export.ndjson"), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static List<String> readAll(NdjsonReader reader) throws Exception {
+        List<String> lines = new ArrayList<>();
+        String line;
+        while ((line = reader.nextLine()) != null) {
+            lines.add(line);
+        }
+        assertNull(reader.nextLine());
+        return lines;
+    }
+}
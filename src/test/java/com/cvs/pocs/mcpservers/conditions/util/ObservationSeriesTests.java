@@ -0,0 +1,84 @@
+package com.cvs.pocs.mcpservers.conditions.util;
+
+import com.cvs.pocs.mcpservers.conditions.support.StubFhirServer;
+import org.hl7.fhir.r4.model.Observation;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ObservationSeriesTests {
+
+    @Test
+    void rendersWhatTheHapiRendererDoes() {
+        List<Observation> observations = stubObservations(60);
+        observations.add(FhirParserUtil.parseObservation("{\"resourceType\":\"Observation\",\"status\":\"final\","
+            + "\"code\":{\"coding\":[{\"system\":\"http://loinc.org\",\"code\":\"8867-4\",\"display\":\"Heart rate\"}]},"
+            + "\"effectiveDateTime\":\"2024-03-02\",\"valueQuantity\":{\"value\":1.005,\"unit\":\"/s\"}}"));
+        observations.add(FhirParserUtil.parseObservation("{\"resourceType\":\"Observation\",\"status\":\"final\","
+            + "\"code\":{\"text\":\"Urine color\"},\"effectiveDateTime\":\"2024-03-03T10:00:00Z\","
+            + "\"valueString\":\"Amber\",\"referenceRange\":[{\"low\":{\"value\":1}}]}"));
+        observations.add(FhirParserUtil.parseObservation("{\"resourceType\":\"Observation\",\"status\":\"final\","
+            + "\"code\":{\"text\":\"Blood type\"},\"effectiveDateTime\":\"2024-03-04\","
+            + "\"valueCodeableConcept\":{\"text\":\"O+\"},\"interpretation\":[{\"text\":\"\"}]}"));
+
+        StringBuilder expected = new StringBuilder();
+        ObservationSeries.Builder builder = ObservationSeries.builder();
+        for (Observation observation : observations) {
+            FhirTextRenderer.appendObservation(expected, observation);
+            builder.add(observation);
+        }
+        ObservationSeries series = builder.build();
+
+        StringBuilder rendered = new StringBuilder();
+        assertEquals(observations.size(), series.render(rendered, Long.MIN_VALUE, Integer.MAX_VALUE));
+        assertEquals(expected.toString(), rendered.toString());
+        assertEquals(0, series.undated());
+        assertTrue(series.estimatedBytes() < 100L * observations.size(), "estimated " + series.estimatedBytes());
+    }
+
+    @Test
+    void filtersByDateAndSummarizesTrends() {
+        List<Observation> observations = stubObservations(40);
+        ObservationSeries.Builder builder = ObservationSeries.builder();
+        StringBuilder all = new StringBuilder();
+        observations.forEach(observation -> {
+            builder.add(observation);
+            FhirTextRenderer.appendObservation(all, observation);
+        });
+        ObservationSeries series = builder.build();
+        LocalDate from = LocalDate.parse("2024-05-01");
+
+        StringBuilder window = new StringBuilder();
+        series.render(window, from.toEpochDay(), 1000);
+        String expected = all.toString().lines()
+            .filter(line -> line.compareTo(line.substring(0, line.length() - 10) + from) >= 0)
+            .map(line -> line + "\n")
+            .collect(Collectors.joining());
+        assertEquals(expected, window.toString());
+
+        List<ObservationSeries.Trend> trends = series.trends(from.toEpochDay());
+        assertEquals(1, trends.size());
+        ObservationSeries.Trend glucose = trends.get(0);
+        assertEquals("http://loinc.org|2345-7", glucose.code());
+        assertEquals("Glucose", glucose.label());
+        assertEquals("mg/dL", glucose.unit());
+        assertEquals(expected.lines().count(), glucose.count());
+        assertEquals(LocalDate.parse("2024-05-11"), glucose.firstDate());
+        assertEquals(LocalDate.parse("2024-09-18"), glucose.lastDate());
+        assertTrue(glucose.min() <= glucose.first() && glucose.first() <= glucose.max());
+    }
+
+    private static List<Observation> stubObservations(int count) {
+        List<Observation> observations = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            observations.add(FhirParserUtil.parseObservation(StubFhirServer.resource("Observation", i)));
+        }
+        return observations;
+    }
+}
@@ -0,0 +1,113 @@
+package com.cvs.pocs.mcpservers.conditions.util;
+
+import com.cvs.pocs.mcpservers.conditions.support.StubFhirServer;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PromptAssemblerTests {
+
+    private static final String DEMOGRAPHICS = "PATIENT DEMOGRAPHICS:\nPATIENT DEMOGRAPHICS:\n"
+        + "Name: Jane Doe\nGender: Female\nDOB: 1961-04-12\nMRN: MRN-p1\n\n";
+
+    @Test
+    void leavesDataThatFitsUntouched() {
+        String data = DEMOGRAPHICS + "CONDITIONS:\nAsthma (Confirmed) - Onset: 2020-01-11\n";
+
+        PromptAssembler.Assembly assembly = PromptAssembler.fit(data, 1000);
+
+        assertSame(data, assembly.patientData());
+        assertFalse(assembly.truncated());
+        assertEquals(TokenEstimator.estimate(data), assembly.tokens());
+    }
+
+    @Test
+    void sharesTheBudgetAcrossSectionsAndReportsWhatWasDropped() {
+        StringBuilder labs = new StringBuilder("LABORATORY RESULTS (LAST 3 MONTHS):\n");
+        StringBuilder vitals = new StringBuilder("VITAL SIGNS (LAST 1 MONTHS):\n");
+        for (int i = 0; i < 10_000; i++) {
+            labs.append(FhirParserUtil.formatObservation(
+                FhirParserUtil.parseObservation(StubFhirServer.resource("Observation", i))));
+            if (i < 1_000) {
+                vitals.append("Heart rate: 72.00 /min (Normal) - 2024-05-0").append(1 + i % 9).append('\n');
+            }
+        }
+        String allergies = "ALLERGIES:\nPenicillin (Hives)\n";
+        String data = DEMOGRAPHICS + labs + vitals + "CONDITIONS: Unable to retrieve\n\n" + allergies;
+
+        PromptAssembler.Assembly assembly = PromptAssembler.fit(data, 3000);
+        String fitted = assembly.patientData();
+
+        assertTrue(fitted.startsWith(DEMOGRAPHICS), fitted);
+        assertTrue(fitted.contains("CONDITIONS: Unable to retrieve\n\n" + allergies), fitted);
+        assertTrue(TokenEstimator.estimate(fitted) <= 3000, () -> "estimated " + TokenEstimator.estimate(fitted));
+        assertTrue(assembly.tokens() <= 3000);
+        Map<String, Integer> omitted = assembly.omitted();
+        assertEquals(2, omitted.size(), omitted::toString);
+        int keptLabs = count(fitted, "Glucose: ");
+        int keptVitals = count(fitted, "Heart rate: ");
+        assertEquals(10_000, keptLabs + omitted.get("LABORATORY RESULTS (LAST 3 MONTHS)"));
+        assertEquals(1_000, keptVitals + omitted.get("VITAL SIGNS (LAST 1 MONTHS)"));
+        // Both cut sections get about the same share
+        assertTrue(Math.abs(keptLabs - keptVitals) < keptVitals / 2, keptLabs + " vs " + keptVitals);
+        assertTrue(fitted.contains("(" + omitted.get("VITAL SIGNS (LAST 1 MONTHS)")
+            + " more entries omitted to fit the prompt budget)\n"), fitted);
+    }
+
+    @Test
+    void keepsAbnormalThenNewestEntriesInTheirOriginalOrder() {
+        String heading = DEMOGRAPHICS + "LABORATORY RESULTS (LAST 3 MONTHS):\n";
+        String glucose = "Glucose: 180.00 mg/dL [70.00 - 99.00] (High) - 2024-01-05\n";
+        String newestSodium = "Sodium: 138.00 mmol/L [135.00 - 145.00] (Normal) - 2024-06-01\n";
+        String data = heading
+            + "Sodium: 140.00 mmol/L [135.00 - 145.00] (Normal) - 2024-03-01\n"
+            + glucose
+            + "Sodium: 139.00 mmol/L [135.00 - 145.00] (Normal) - 2024-02-01\n"
+            + newestSodium
+            + "Potassium: 3.10 mmol/L [3.50 - 5.10] (Low) - 2023-11-20\n";
+        // Room for the two abnormal results, the newest normal one and the omission note
+        int budget = TokenEstimator.estimate(heading + glucose + newestSodium)
+            + TokenEstimator.estimate("Potassium: 3.10 mmol/L [3.50 - 5.10] (Low) - 2023-11-20\n") + 25;
+
+        PromptAssembler.Assembly assembly = PromptAssembler.fit(data, budget);
+        String fitted = assembly.patientData();
+
+        assertEquals(Map.of("LABORATORY RESULTS (LAST 3 MONTHS)", 2), assembly.omitted());
+        assertEquals(heading + glucose + newestSodium
+            + "Potassium: 3.10 mmol/L [3.50 - 5.10] (Low) - 2023-11-20\n"
+            + "(2 more entries omitted to fit the prompt budget)\n", fitted);
+    }
+
+    @Test
+    void neverCutsDemographics() {
+        String data = DEMOGRAPHICS + "ACTIVE MEDICATIONS:\nLisinopril 10 MG Oral Tablet: Take 1 tablet by mouth daily\n";
+
+        PromptAssembler.Assembly assembly = PromptAssembler.fit(data, 10);
+
+        assertEquals(DEMOGRAPHICS + "ACTIVE MEDICATIONS:\n(1 more entries omitted to fit the prompt budget)\n",
+            assembly.patientData());
+        assertEquals(Map.of("ACTIVE MEDICATIONS", 1), assembly.omitted());
+    }
+
+    @Test
+    void estimatesTokensLikeABytePairTokenizer() {
+        assertEquals(0, TokenEstimator.estimate(""));
+        assertEquals(2, TokenEstimator.estimate("Glucose"));
+        assertEquals(4, TokenEstimator.estimate("Heart rate:"));
+        assertEquals(6, TokenEstimator.estimate("2024-01-05"));
+        assertEquals(1, TokenEstimator.estimate("Ödem"));
+    }
+
+    private static int count(String text, String token) {
+        int count = 0;
+        for (int i = text.indexOf(token); i >= 0; i = text.indexOf(token, i + 1)) {
+            count++;
+        }
+        return count;
+    }
+}
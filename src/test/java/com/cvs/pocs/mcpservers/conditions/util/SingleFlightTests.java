@@ -0,0 +1,120 @@
+package com.cvs.pocs.mcpservers.conditions.util;
+
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SingleFlightTests {
+
+    private final SingleFlight<String, String> flights = new SingleFlight<>("test");
+    private final AtomicInteger started = new AtomicInteger();
+
+    @Test
+    void concurrentCallersShareOneCall() throws Exception {
+        int callers = 16;
+        Sinks.One<String> upstream = Sinks.one();
+        CountDownLatch ready = new CountDownLatch(callers);
+        CountDownLatch go = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(callers);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < callers; i++) {
+                results.add(executor.submit(() -> {
+                    ready.countDown();
+                    go.await();
+                    return flights.execute("key", () -> call(upstream)).block(Duration.ofSeconds(5));
+                }));
+            }
+            ready.await();
+            go.countDown();
+            // Every caller has joined before the call returns
+            long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+            while (flights.getCollapsed() < callers - 1) {
+                assertTrue(System.nanoTime() < deadline, "only " + flights.getCollapsed() + " callers joined");
+                Thread.onSpinWait();
+            }
+            upstream.tryEmitValue("result");
+
+            for (Future<String> result : results) {
+                assertEquals("result", result.get(5, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, started.get());
+        assertEquals(callers, flights.getCalls());
+        assertEquals(callers - 1, flights.getCollapsed());
+        assertEquals(0, flights.getInFlight());
+    }
+
+    @Test
+    void deliversAnErrorToEveryCaller() {
+        Sinks.One<String> upstream = Sinks.one();
+        List<Throwable> errors = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            flights.execute("key", () -> call(upstream)).subscribe(value -> { }, errors::add);
+        }
+        upstream.tryEmitError(new IllegalStateException("upstream down"));
+
+        assertEquals(3, errors.size());
+        errors.forEach(error -> assertEquals("upstream down", error.getMessage()));
+        assertEquals(1, started.get());
+        assertEquals(2, flights.getCollapsed());
+        assertEquals(0, flights.getInFlight());
+    }
+
+    @Test
+    void startsAFreshCallOnceTheLastHasReturned() {
+        Sinks.One<String> first = Sinks.one();
+        first.tryEmitValue("first");
+        assertEquals("first", flights.execute("key", () -> call(first)).block());
+
+        Sinks.One<String> failed = Sinks.one();
+        failed.tryEmitError(new IllegalStateException("failed"));
+        assertThrows(IllegalStateException.class, () -> flights.execute("key", () -> call(failed)).block());
+
+        Sinks.One<String> third = Sinks.one();
+        third.tryEmitValue("third");
+        assertEquals("third", flights.execute("key", () -> call(third)).block());
+
+        assertEquals(3, started.get());
+        assertEquals(0, flights.getCollapsed());
+        assertEquals(0, flights.getInFlight());
+    }
+
+    @Test
+    void keepsKeysApart() {
+        Sinks.One<String> a = Sinks.one();
+        Sinks.One<String> b = Sinks.one();
+        Mono<String> first = flights.execute("a", () -> call(a)).cache();
+        Mono<String> second = flights.execute("b", () -> call(b)).cache();
+        first.subscribe();
+        second.subscribe();
+        a.tryEmitValue("a");
+        b.tryEmitValue("b");
+
+        assertEquals("a", first.block());
+        assertEquals("b", second.block());
+        assertEquals(2, started.get());
+        assertEquals(0, flights.getCollapsed());
+    }
+
+    // Counts subscriptions to the upstream call, which then waits on the sink
+    private Mono<String> call(Sinks.One<String> upstream) {
+        return upstream.asMono().doOnSubscribe(subscription -> started.incrementAndGet());
+    }
+}